@@ -0,0 +1,74 @@
+/*
+ * Self-signed X.509 certificate (DER) returned as the CKA_VALUE of every
+ * certificate of the stub. Subject and issuer: CN=STUB USER, O=jesjobom stub.
+ * Generated with:
+ *   keytool -genkeypair -alias stub -dname "CN=STUB USER, O=jesjobom stub" -keyalg RSA
+ *           -keysize 2048 -validity 36500 -startdate 2017/01/01 -keystore stub.jks
+ *   keytool -exportcert -alias stub -keystore stub.jks -file stub.der
+ */
+static const unsigned char STUB_CERTIFICATE[] = {
+	0x30, 0x82, 0x02, 0xf9, 0x30, 0x82, 0x01, 0xe1, 0xa0, 0x03, 0x02, 0x01,
+	0x02, 0x02, 0x04, 0x55, 0xe2, 0xcb, 0xca, 0x30, 0x0d, 0x06, 0x09, 0x2a,
+	0x86, 0x48, 0x86, 0xf7, 0x0d, 0x01, 0x01, 0x0b, 0x05, 0x00, 0x30, 0x2c,
+	0x31, 0x16, 0x30, 0x14, 0x06, 0x03, 0x55, 0x04, 0x0a, 0x13, 0x0d, 0x6a,
+	0x65, 0x73, 0x6a, 0x6f, 0x62, 0x6f, 0x6d, 0x20, 0x73, 0x74, 0x75, 0x62,
+	0x31, 0x12, 0x30, 0x10, 0x06, 0x03, 0x55, 0x04, 0x03, 0x13, 0x09, 0x53,
+	0x54, 0x55, 0x42, 0x20, 0x55, 0x53, 0x45, 0x52, 0x30, 0x20, 0x17, 0x0d,
+	0x31, 0x37, 0x30, 0x31, 0x30, 0x31, 0x31, 0x35, 0x35, 0x32, 0x32, 0x34,
+	0x5a, 0x18, 0x0f, 0x32, 0x31, 0x31, 0x36, 0x31, 0x32, 0x30, 0x38, 0x31,
+	0x35, 0x35, 0x32, 0x32, 0x34, 0x5a, 0x30, 0x2c, 0x31, 0x16, 0x30, 0x14,
+	0x06, 0x03, 0x55, 0x04, 0x0a, 0x13, 0x0d, 0x6a, 0x65, 0x73, 0x6a, 0x6f,
+	0x62, 0x6f, 0x6d, 0x20, 0x73, 0x74, 0x75, 0x62, 0x31, 0x12, 0x30, 0x10,
+	0x06, 0x03, 0x55, 0x04, 0x03, 0x13, 0x09, 0x53, 0x54, 0x55, 0x42, 0x20,
+	0x55, 0x53, 0x45, 0x52, 0x30, 0x82, 0x01, 0x22, 0x30, 0x0d, 0x06, 0x09,
+	0x2a, 0x86, 0x48, 0x86, 0xf7, 0x0d, 0x01, 0x01, 0x01, 0x05, 0x00, 0x03,
+	0x82, 0x01, 0x0f, 0x00, 0x30, 0x82, 0x01, 0x0a, 0x02, 0x82, 0x01, 0x01,
+	0x00, 0xab, 0x97, 0xc7, 0x24, 0xab, 0x23, 0x42, 0x44, 0x6b, 0xdb, 0x48,
+	0x5c, 0xeb, 0x7f, 0x13, 0x9b, 0xbf, 0xc9, 0x5c, 0x4b, 0x40, 0x9a, 0xc9,
+	0xd2, 0x54, 0x05, 0xb2, 0xc3, 0x44, 0xdd, 0x94, 0x9b, 0xf0, 0x26, 0x61,
+	0xeb, 0x3f, 0x91, 0x3d, 0x68, 0xf8, 0xb1, 0x8f, 0x3c, 0x6a, 0x5f, 0xe2,
+	0xb0, 0x51, 0xec, 0x41, 0x5f, 0xb1, 0x67, 0xa3, 0x49, 0x34, 0x64, 0xc9,
+	0x56, 0x95, 0x3c, 0xc5, 0x4e, 0x43, 0x05, 0x3c, 0x0d, 0x7d, 0xab, 0x47,
+	0x41, 0xc4, 0x7c, 0x02, 0xe8, 0x88, 0x1b, 0x5c, 0x98, 0x9a, 0x2c, 0x4d,
+	0xab, 0xb8, 0x4d, 0x89, 0x55, 0x93, 0xc1, 0x77, 0x05, 0xd4, 0xd1, 0x66,
+	0x94, 0xb6, 0x86, 0x6c, 0x70, 0x58, 0xec, 0xff, 0x9f, 0xe4, 0x5e, 0x9b,
+	0x5f, 0xf3, 0x35, 0x8b, 0x33, 0x55, 0xcb, 0x07, 0x83, 0x76, 0xd7, 0x79,
+	0xa3, 0xb2, 0x10, 0xad, 0xc7, 0xc3, 0xd0, 0xfa, 0x4c, 0xe1, 0xe4, 0x6b,
+	0xbe, 0x86, 0x34, 0x17, 0xb7, 0xab, 0xb2, 0xec, 0x20, 0xea, 0xd3, 0xc1,
+	0xa8, 0x81, 0x57, 0x30, 0x23, 0xe2, 0x9f, 0x85, 0x4e, 0x5d, 0xd4, 0xe5,
+	0x7e, 0xb7, 0x1c, 0x24, 0x55, 0x5e, 0x50, 0x0f, 0x78, 0x34, 0xf1, 0x45,
+	0x46, 0x0b, 0x0d, 0x6d, 0xc9, 0x34, 0x66, 0x7a, 0xec, 0x62, 0xd3, 0xf9,
+	0xa7, 0x10, 0x46, 0x8a, 0x77, 0x8f, 0xe6, 0x0d, 0x14, 0x8e, 0xec, 0x31,
+	0x0a, 0x3c, 0x69, 0x7c, 0xaa, 0x7b, 0x44, 0x49, 0x92, 0x8e, 0x43, 0xe2,
+	0xe0, 0x4e, 0x8b, 0xad, 0x72, 0xb0, 0x4b, 0x4b, 0x69, 0x6e, 0xc0, 0x5a,
+	0xec, 0xdb, 0xae, 0x0b, 0x0f, 0x73, 0x2b, 0x4d, 0x03, 0x33, 0x4c, 0x06,
+	0x6e, 0x13, 0xfd, 0x4c, 0x4e, 0x7d, 0xb4, 0x6a, 0x39, 0xf1, 0xe5, 0x8b,
+	0x8e, 0x5d, 0x8c, 0x4c, 0xeb, 0xb8, 0x71, 0x65, 0xdc, 0x24, 0x67, 0xfb,
+	0xf9, 0x91, 0x6f, 0x12, 0xd5, 0x02, 0x03, 0x01, 0x00, 0x01, 0xa3, 0x21,
+	0x30, 0x1f, 0x30, 0x1d, 0x06, 0x03, 0x55, 0x1d, 0x0e, 0x04, 0x16, 0x04,
+	0x14, 0x47, 0xdc, 0x26, 0xc2, 0x8f, 0xef, 0x7c, 0x40, 0x75, 0xa9, 0xc1,
+	0x0a, 0x4b, 0xe2, 0x4b, 0xaa, 0x18, 0xb9, 0xc5, 0x24, 0x30, 0x0d, 0x06,
+	0x09, 0x2a, 0x86, 0x48, 0x86, 0xf7, 0x0d, 0x01, 0x01, 0x0b, 0x05, 0x00,
+	0x03, 0x82, 0x01, 0x01, 0x00, 0xa9, 0x46, 0x16, 0x64, 0x89, 0x9d, 0x32,
+	0xce, 0x3c, 0xe2, 0xa0, 0x64, 0xc8, 0x58, 0x95, 0xf3, 0xef, 0xde, 0xb7,
+	0x68, 0xdc, 0xd7, 0x56, 0xf9, 0x08, 0x95, 0x6a, 0x7f, 0xb2, 0xc5, 0xa5,
+	0x6d, 0x5f, 0x32, 0x14, 0x98, 0xb7, 0x2d, 0x50, 0x54, 0xd8, 0x31, 0xaf,
+	0x0e, 0xcd, 0x00, 0x67, 0xd3, 0x5f, 0x07, 0x2e, 0x68, 0x63, 0x60, 0xa3,
+	0x00, 0x92, 0x2e, 0x50, 0xd1, 0x4d, 0xe4, 0xaa, 0xfa, 0xca, 0x5e, 0x21,
+	0x8e, 0xeb, 0x91, 0xa1, 0x47, 0xaf, 0xa6, 0x8a, 0xd6, 0xf4, 0x5b, 0xdf,
+	0x2e, 0x9c, 0xd1, 0x37, 0xf3, 0x13, 0xc2, 0xab, 0x15, 0xb0, 0x79, 0x37,
+	0xd6, 0x1a, 0x7e, 0x1a, 0x6f, 0x52, 0x32, 0x5e, 0xee, 0xa6, 0x9c, 0xed,
+	0x7b, 0xae, 0x62, 0x79, 0x3e, 0x21, 0x03, 0x11, 0xba, 0x44, 0xfa, 0x6e,
+	0x00, 0x29, 0x8f, 0x51, 0x0c, 0xd1, 0x75, 0xbf, 0x93, 0x9b, 0xbc, 0x81,
+	0x4d, 0xfd, 0x34, 0xf5, 0xc6, 0xc5, 0x75, 0x3d, 0xbf, 0x4d, 0x6c, 0x53,
+	0x6b, 0x79, 0x1f, 0x88, 0xb4, 0x5a, 0xfd, 0xe9, 0x0b, 0x75, 0x0a, 0x0c,
+	0xb0, 0x37, 0x81, 0x40, 0x9e, 0x08, 0x27, 0x72, 0x77, 0xe0, 0xda, 0xae,
+	0x1e, 0xa6, 0x22, 0x86, 0x43, 0xee, 0x7a, 0x73, 0xa3, 0x20, 0x5f, 0xae,
+	0x64, 0xc3, 0x4c, 0x4f, 0x02, 0x96, 0xac, 0x41, 0x89, 0x26, 0xfa, 0xa5,
+	0x0f, 0x93, 0xec, 0xfd, 0xda, 0xee, 0x9e, 0xf6, 0x36, 0x36, 0xa6, 0x7e,
+	0x20, 0x56, 0xbc, 0x5b, 0xe5, 0xd6, 0xf2, 0x38, 0xf7, 0xc1, 0x67, 0xe8,
+	0x5e, 0x9f, 0xfa, 0x08, 0x8f, 0x6a, 0x01, 0x65, 0xd1, 0xc1, 0x1d, 0x67,
+	0xb8, 0xb1, 0x84, 0x2e, 0xd6, 0x2e, 0x64, 0x51, 0x3e, 0x48, 0x8b, 0x6e,
+	0xf6, 0x41, 0xe8, 0x1b, 0x8d, 0xe2, 0xeb, 0x76, 0x59, 0x3b, 0xc6, 0x41,
+	0x4a, 0x0a, 0x2b, 0x77, 0x1d, 0xcf, 0x0b, 0xa5, 0x9d
+};
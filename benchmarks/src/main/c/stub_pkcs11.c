@@ -0,0 +1,908 @@
+/*
+ * Minimal deterministic PKCS#11 module used by the benchmarks, so they can run
+ * on any Linux box without a card reader.
+ *
+ * Every slot has a token with STUB_PKCS11_OBJECTS certificates (handles 1..N)
+ * and the matching private keys (handles N+1..2N, same CKA_ID and CKA_LABEL).
+ * Every certificate has the same value, see stub_certificate.h.
+ * The keys sign and decrypt after C_Login, with a fake signature derived from
+ * the data and a XOR with the handle of the key. The digests are a FNV-1a.
+ * The searches honor the template, comparing the attributes byte by byte.
+ *
+ * Configured through environment variables read on C_Initialize:
+ *   STUB_PKCS11_SLOTS       number of slots with a token (default 1)
+ *   STUB_PKCS11_OBJECTS     number of certificates per token (default 3)
+ *   STUB_PKCS11_LATENCY_US  latency injected in every call to the token, in
+ *                           microseconds (default 0)
+ */
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+#include "stub_certificate.h"
+
+typedef unsigned long CK_ULONG;
+typedef unsigned char CK_BYTE;
+typedef CK_ULONG CK_RV;
+
+#define CKR_OK 0x0UL
+#define CKR_SLOT_ID_INVALID 0x3UL
+#define CKR_ARGUMENTS_BAD 0x7UL
+#define CKR_NO_EVENT 0x8UL
+#define CKR_ATTRIBUTE_TYPE_INVALID 0x12UL
+#define CKR_FUNCTION_NOT_SUPPORTED 0x54UL
+#define CKR_KEY_HANDLE_INVALID 0x60UL
+#define CKR_OPERATION_ACTIVE 0x90UL
+#define CKR_OPERATION_NOT_INITIALIZED 0x91UL
+#define CKR_SESSION_HANDLE_INVALID 0xB3UL
+#define CKR_SESSION_COUNT 0xB1UL
+#define CKR_USER_NOT_LOGGED_IN 0x101UL
+#define CKR_BUFFER_TOO_SMALL 0x150UL
+#define CKR_CRYPTOKI_NOT_INITIALIZED 0x190UL
+#define CKR_CRYPTOKI_ALREADY_INITIALIZED 0x191UL
+
+#define CK_UNAVAILABLE_INFORMATION (~0UL)
+
+#define CKF_TOKEN_PRESENT 0x1UL
+#define CKF_REMOVABLE_DEVICE 0x2UL
+#define CKF_SERIAL_SESSION 0x4UL
+#define CKF_TOKEN_INITIALIZED 0x400UL
+#define CKF_DONT_BLOCK 0x1UL
+
+#define CKO_CERTIFICATE 0x1UL
+#define CKO_PRIVATE_KEY 0x3UL
+#define CKK_RSA 0x0UL
+#define CKC_X_509 0x0UL
+
+#define CKA_CLASS 0x0UL
+#define CKA_TOKEN 0x1UL
+#define CKA_PRIVATE 0x2UL
+#define CKA_LABEL 0x3UL
+#define CKA_VALUE 0x11UL
+#define CKA_CERTIFICATE_TYPE 0x80UL
+#define CKA_ISSUER 0x81UL
+#define CKA_KEY_TYPE 0x100UL
+#define CKA_SUBJECT 0x101UL
+#define CKA_ID 0x102UL
+#define CKA_SENSITIVE 0x103UL
+#define CKA_SIGN 0x108UL
+#define CKA_EXTRACTABLE 0x162UL
+
+/* high enough for the sessions left open by a new SunPKCS11 on every lookup */
+#define MAX_SESSIONS 65536
+
+/* size of the signatures, as of a RSA 2048 key */
+#define SIGNATURE_SIZE 256
+
+/* size of the digests, as of SHA-256 */
+#define DIGEST_SIZE 32
+
+#define FNV_OFFSET 0xcbf29ce484222325ULL
+#define FNV_PRIME 0x100000001b3ULL
+
+typedef struct {
+	CK_BYTE major;
+	CK_BYTE minor;
+} CK_VERSION;
+
+typedef struct {
+	CK_ULONG type;
+	void *pValue;
+	CK_ULONG ulValueLen;
+} CK_ATTRIBUTE;
+
+typedef struct {
+	CK_VERSION cryptokiVersion;
+	unsigned char manufacturerID[32];
+	CK_ULONG flags;
+	unsigned char libraryDescription[32];
+	CK_VERSION libraryVersion;
+} CK_INFO;
+
+typedef struct {
+	unsigned char slotDescription[64];
+	unsigned char manufacturerID[32];
+	CK_ULONG flags;
+	CK_VERSION hardwareVersion;
+	CK_VERSION firmwareVersion;
+} CK_SLOT_INFO;
+
+typedef struct {
+	unsigned char label[32];
+	unsigned char manufacturerID[32];
+	unsigned char model[16];
+	unsigned char serialNumber[16];
+	CK_ULONG flags;
+	CK_ULONG ulMaxSessionCount;
+	CK_ULONG ulSessionCount;
+	CK_ULONG ulMaxRwSessionCount;
+	CK_ULONG ulRwSessionCount;
+	CK_ULONG ulMaxPinLen;
+	CK_ULONG ulMinPinLen;
+	CK_ULONG ulTotalPublicMemory;
+	CK_ULONG ulFreePublicMemory;
+	CK_ULONG ulTotalPrivateMemory;
+	CK_ULONG ulFreePrivateMemory;
+	CK_VERSION hardwareVersion;
+	CK_VERSION firmwareVersion;
+	unsigned char utcTime[16];
+} CK_TOKEN_INFO;
+
+typedef struct {
+	CK_ULONG slotID;
+	CK_ULONG state;
+	CK_ULONG flags;
+	CK_ULONG ulDeviceError;
+} CK_SESSION_INFO;
+
+typedef CK_RV (*CK_FUNCTION)(void);
+
+typedef struct {
+	CK_VERSION version;
+	CK_FUNCTION functions[68];
+} CK_FUNCTION_LIST;
+
+static int initialized = 0;
+static CK_ULONG slots = 1;
+static CK_ULONG objects = 3;
+static useconds_t latency = 0;
+static int loggedIn = 0;
+static CK_ULONG lastSession = 0;
+static pthread_mutex_t lock = PTHREAD_MUTEX_INITIALIZER;
+
+static struct {
+	int open;
+	CK_ULONG slot;
+	int finding;
+	CK_ULONG *found;
+	CK_ULONG foundCount;
+	CK_ULONG next;
+	CK_ULONG signKey;
+	int digesting;
+	unsigned long long digestHash;
+	unsigned long long signHash;
+	CK_ULONG decryptKey;
+} sessions[MAX_SESSIONS];
+
+/* issuer and subject of STUB_CERTIFICATE, found on C_Initialize */
+static const unsigned char *certIssuer;
+static CK_ULONG certIssuerLen;
+static const unsigned char *certSubject;
+static CK_ULONG certSubjectLen;
+
+static CK_ULONG env_ulong(const char *name, CK_ULONG def) {
+	const char *value = getenv(name);
+	return value == NULL ? def : strtoul(value, NULL, 10);
+}
+
+static void delay(void) {
+	if (latency > 0) {
+		usleep(latency);
+	}
+}
+
+static int valid_session(CK_ULONG session) {
+	return session > 0 && session < MAX_SESSIONS && sessions[session].open;
+}
+
+/* FNV-1a, standing in for the hash of the digest and sign mechanisms */
+static unsigned long long fnv(unsigned long long hash, const unsigned char *data, CK_ULONG len) {
+	CK_ULONG i;
+	for (i = 0; i < len; i++) {
+		hash = (hash ^ data[i]) * FNV_PRIME;
+	}
+	return hash;
+}
+
+/* Checks the output buffer of a function, as the PKCS11 convention. */
+static CK_RV output_length(unsigned char *out, CK_ULONG *outLen, CK_ULONG len) {
+	if (out == NULL) {
+		*outLen = len;
+		return CKR_OK;
+	}
+	if (*outLen < len) {
+		*outLen = len;
+		return CKR_BUFFER_TOO_SMALL;
+	}
+	*outLen = len;
+	return CKR_OK;
+}
+
+static void padded(unsigned char *dest, size_t size, const char *value) {
+	size_t len = strlen(value);
+	memset(dest, ' ', size);
+	memcpy(dest, value, len < size ? len : size);
+}
+
+/*
+ * Reads the DER header at *pos, returning the length of the content and
+ * moving *pos to it. *total gets the size of the whole element.
+ */
+static CK_ULONG der_element(const unsigned char *der, CK_ULONG *pos, CK_ULONG *total) {
+	CK_ULONG start = *pos;
+	CK_ULONG len = der[*pos + 1];
+	*pos += 2;
+	if (len & 0x80) {
+		CK_ULONG bytes = len & 0x7F;
+		len = 0;
+		while (bytes-- > 0) {
+			len = (len << 8) | der[(*pos)++];
+		}
+	}
+	*total = *pos - start + len;
+	return len;
+}
+
+/* Certificate ::= SEQUENCE { tbsCertificate SEQUENCE { [0] version, serial, signature, issuer, validity, subject, ... } ... } */
+static void parse_certificate(void) {
+	CK_ULONG pos = 0, total, i;
+	der_element(STUB_CERTIFICATE, &pos, &total);
+	der_element(STUB_CERTIFICATE, &pos, &total);
+	if (STUB_CERTIFICATE[pos] == 0xA0) {
+		CK_ULONG start = pos;
+		der_element(STUB_CERTIFICATE, &pos, &total);
+		pos = start + total;
+	}
+	for (i = 0; i < 5; i++) {
+		CK_ULONG start = pos;
+		der_element(STUB_CERTIFICATE, &pos, &total);
+		pos = start + total;
+		if (i == 2) {
+			certIssuer = STUB_CERTIFICATE + start;
+			certIssuerLen = total;
+		} else if (i == 4) {
+			certSubject = STUB_CERTIFICATE + start;
+			certSubjectLen = total;
+		}
+	}
+}
+
+/*
+ * Gets an attribute of an object. The value is written to the buffer or
+ * points to static data. Returns 0 if the object doesn't have the attribute.
+ */
+static int object_attribute(CK_ULONG object, CK_ULONG type, unsigned char *buffer, const void **value, CK_ULONG *len) {
+	int isKey;
+	CK_ULONG index;
+	if (object < 1 || object > 2 * objects) {
+		return 0;
+	}
+	isKey = object > objects;
+	index = isKey ? object - objects : object;
+
+	switch (type) {
+		case CKA_CLASS:
+			*(CK_ULONG *) buffer = isKey ? CKO_PRIVATE_KEY : CKO_CERTIFICATE;
+			*value = buffer;
+			*len = sizeof(CK_ULONG);
+			return 1;
+		case CKA_TOKEN:
+		case CKA_PRIVATE:
+			buffer[0] = type == CKA_TOKEN || isKey;
+			*value = buffer;
+			*len = 1;
+			return 1;
+		case CKA_LABEL:
+			*len = (CK_ULONG) snprintf((char *) buffer, 64, "STUB USER %lu:%09lu", index, index * 1111);
+			*value = buffer;
+			return 1;
+		case CKA_ID:
+			buffer[0] = (CK_BYTE) (index >> 8);
+			buffer[1] = (CK_BYTE) index;
+			*value = buffer;
+			*len = 2;
+			return 1;
+	}
+
+	if (isKey) {
+		switch (type) {
+			case CKA_KEY_TYPE:
+				*(CK_ULONG *) buffer = CKK_RSA;
+				*value = buffer;
+				*len = sizeof(CK_ULONG);
+				return 1;
+			case CKA_SENSITIVE:
+			case CKA_SIGN:
+			case CKA_EXTRACTABLE:
+				buffer[0] = type != CKA_EXTRACTABLE;
+				*value = buffer;
+				*len = 1;
+				return 1;
+		}
+		return 0;
+	}
+
+	switch (type) {
+		case CKA_CERTIFICATE_TYPE:
+			*(CK_ULONG *) buffer = CKC_X_509;
+			*value = buffer;
+			*len = sizeof(CK_ULONG);
+			return 1;
+		case CKA_VALUE:
+			*value = STUB_CERTIFICATE;
+			*len = sizeof(STUB_CERTIFICATE);
+			return 1;
+		case CKA_ISSUER:
+			*value = certIssuer;
+			*len = certIssuerLen;
+			return 1;
+		case CKA_SUBJECT:
+			*value = certSubject;
+			*len = certSubjectLen;
+			return 1;
+	}
+	return 0;
+}
+
+static int matches(CK_ULONG object, CK_ATTRIBUTE *templ, CK_ULONG count) {
+	CK_ULONG i;
+	unsigned char buffer[64];
+	const void *value;
+	CK_ULONG len;
+	for (i = 0; i < count; i++) {
+		if (!object_attribute(object, templ[i].type, buffer, &value, &len)) {
+			return 0;
+		}
+		if (len != templ[i].ulValueLen || memcmp(value, templ[i].pValue, len) != 0) {
+			return 0;
+		}
+	}
+	return 1;
+}
+
+static CK_RV not_supported(void) {
+	return CKR_FUNCTION_NOT_SUPPORTED;
+}
+
+CK_RV C_Initialize(void *args) {
+	(void) args;
+	if (initialized) {
+		return CKR_CRYPTOKI_ALREADY_INITIALIZED;
+	}
+	slots = env_ulong("STUB_PKCS11_SLOTS", 1);
+	objects = env_ulong("STUB_PKCS11_OBJECTS", 3);
+	latency = (useconds_t) env_ulong("STUB_PKCS11_LATENCY_US", 0);
+	memset(sessions, 0, sizeof(sessions));
+	lastSession = 0;
+	parse_certificate();
+	loggedIn = 0;
+	initialized = 1;
+	delay();
+	return CKR_OK;
+}
+
+CK_RV C_Finalize(void *reserved) {
+	CK_ULONG i;
+	(void) reserved;
+	if (!initialized) {
+		return CKR_CRYPTOKI_NOT_INITIALIZED;
+	}
+	for (i = 0; i < MAX_SESSIONS; i++) {
+		free(sessions[i].found);
+	}
+	memset(sessions, 0, sizeof(sessions));
+	initialized = 0;
+	delay();
+	return CKR_OK;
+}
+
+CK_RV C_GetInfo(CK_INFO *info) {
+	if (!initialized) {
+		return CKR_CRYPTOKI_NOT_INITIALIZED;
+	}
+	memset(info, 0, sizeof(CK_INFO));
+	info->cryptokiVersion.major = 2;
+	info->cryptokiVersion.minor = 40;
+	padded(info->manufacturerID, 32, "jesjobom");
+	padded(info->libraryDescription, 32, "PKCS11 benchmark stub");
+	info->libraryVersion.major = 1;
+	return CKR_OK;
+}
+
+CK_RV C_GetSlotList(CK_BYTE tokenPresent, CK_ULONG *slotList, CK_ULONG *count) {
+	CK_ULONG i;
+	(void) tokenPresent;
+	if (!initialized) {
+		return CKR_CRYPTOKI_NOT_INITIALIZED;
+	}
+	delay();
+	if (slotList == NULL) {
+		*count = slots;
+		return CKR_OK;
+	}
+	if (*count < slots) {
+		*count = slots;
+		return CKR_BUFFER_TOO_SMALL;
+	}
+	for (i = 0; i < slots; i++) {
+		slotList[i] = i + 1;
+	}
+	*count = slots;
+	return CKR_OK;
+}
+
+CK_RV C_GetSlotInfo(CK_ULONG slot, CK_SLOT_INFO *info) {
+	if (!initialized) {
+		return CKR_CRYPTOKI_NOT_INITIALIZED;
+	}
+	if (slot < 1 || slot > slots) {
+		return CKR_SLOT_ID_INVALID;
+	}
+	memset(info, 0, sizeof(CK_SLOT_INFO));
+	padded(info->slotDescription, 64, "Stub Reader");
+	padded(info->manufacturerID, 32, "jesjobom");
+	info->flags = CKF_TOKEN_PRESENT | CKF_REMOVABLE_DEVICE;
+	return CKR_OK;
+}
+
+CK_RV C_GetTokenInfo(CK_ULONG slot, CK_TOKEN_INFO *info) {
+	char serial[32];
+	if (!initialized) {
+		return CKR_CRYPTOKI_NOT_INITIALIZED;
+	}
+	if (slot < 1 || slot > slots) {
+		return CKR_SLOT_ID_INVALID;
+	}
+	delay();
+	memset(info, 0, sizeof(CK_TOKEN_INFO));
+	snprintf(serial, sizeof(serial), "STUB%012lu", slot);
+	padded(info->label, 32, "Stub Token");
+	padded(info->manufacturerID, 32, "jesjobom");
+	padded(info->model, 16, "stub");
+	padded(info->serialNumber, 16, serial);
+	padded(info->utcTime, 16, "");
+	info->flags = CKF_TOKEN_INITIALIZED;
+	info->ulMaxSessionCount = MAX_SESSIONS - 1;
+	info->ulMaxRwSessionCount = MAX_SESSIONS - 1;
+	info->ulMaxPinLen = 8;
+	info->ulMinPinLen = 4;
+	info->ulTotalPublicMemory = CK_UNAVAILABLE_INFORMATION;
+	info->ulFreePublicMemory = CK_UNAVAILABLE_INFORMATION;
+	info->ulTotalPrivateMemory = CK_UNAVAILABLE_INFORMATION;
+	info->ulFreePrivateMemory = CK_UNAVAILABLE_INFORMATION;
+	return CKR_OK;
+}
+
+CK_RV C_GetMechanismList(CK_ULONG slot, CK_ULONG *mechanisms, CK_ULONG *count) {
+	(void) mechanisms;
+	if (!initialized) {
+		return CKR_CRYPTOKI_NOT_INITIALIZED;
+	}
+	if (slot < 1 || slot > slots) {
+		return CKR_SLOT_ID_INVALID;
+	}
+	*count = 0;
+	return CKR_OK;
+}
+
+CK_RV C_WaitForSlotEvent(CK_ULONG flags, CK_ULONG *slot, void *reserved) {
+	(void) slot;
+	(void) reserved;
+	if (!initialized) {
+		return CKR_CRYPTOKI_NOT_INITIALIZED;
+	}
+	if (flags & CKF_DONT_BLOCK) {
+		return CKR_NO_EVENT;
+	}
+	return CKR_FUNCTION_NOT_SUPPORTED;
+}
+
+CK_RV C_OpenSession(CK_ULONG slot, CK_ULONG flags, void *app, void *notify, CK_ULONG *session) {
+	CK_ULONG i;
+	(void) flags;
+	(void) app;
+	(void) notify;
+	if (!initialized) {
+		return CKR_CRYPTOKI_NOT_INITIALIZED;
+	}
+	if (slot < 1 || slot > slots) {
+		return CKR_SLOT_ID_INVALID;
+	}
+	delay();
+	pthread_mutex_lock(&lock);
+	for (i = 1; i < MAX_SESSIONS; i++) {
+		CK_ULONG candidate = (lastSession + i) % MAX_SESSIONS;
+		if (candidate > 0 && !sessions[candidate].open) {
+			sessions[candidate].open = 1;
+			sessions[candidate].slot = slot;
+			sessions[candidate].finding = 0;
+			sessions[candidate].signKey = 0;
+			sessions[candidate].digesting = 0;
+			sessions[candidate].decryptKey = 0;
+			lastSession = candidate;
+			*session = candidate;
+			pthread_mutex_unlock(&lock);
+			return CKR_OK;
+		}
+	}
+	pthread_mutex_unlock(&lock);
+	return CKR_SESSION_COUNT;
+}
+
+CK_RV C_CloseSession(CK_ULONG session) {
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	delay();
+	pthread_mutex_lock(&lock);
+	free(sessions[session].found);
+	sessions[session].found = NULL;
+	sessions[session].open = 0;
+	pthread_mutex_unlock(&lock);
+	return CKR_OK;
+}
+
+CK_RV C_GetSessionInfo(CK_ULONG session, CK_SESSION_INFO *info) {
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	info->slotID = sessions[session].slot;
+	info->state = 0;
+	info->flags = CKF_SERIAL_SESSION;
+	info->ulDeviceError = 0;
+	return CKR_OK;
+}
+
+CK_RV C_Login(CK_ULONG session, CK_ULONG userType, unsigned char *pin, CK_ULONG pinLen) {
+	(void) userType;
+	(void) pin;
+	(void) pinLen;
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	delay();
+	loggedIn = 1;
+	return CKR_OK;
+}
+
+CK_RV C_Logout(CK_ULONG session) {
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	if (!loggedIn) {
+		return CKR_USER_NOT_LOGGED_IN;
+	}
+	loggedIn = 0;
+	return CKR_OK;
+}
+
+CK_RV C_FindObjectsInit(CK_ULONG session, CK_ATTRIBUTE *templ, CK_ULONG count) {
+	CK_ULONG object;
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	delay();
+	free(sessions[session].found);
+	sessions[session].found = malloc((2 * objects + 1) * sizeof(CK_ULONG));
+	sessions[session].foundCount = 0;
+	for (object = 1; object <= 2 * objects; object++) {
+		if (matches(object, templ, count)) {
+			sessions[session].found[sessions[session].foundCount++] = object;
+		}
+	}
+	sessions[session].finding = 1;
+	sessions[session].next = 0;
+	return CKR_OK;
+}
+
+CK_RV C_FindObjects(CK_ULONG session, CK_ULONG *found, CK_ULONG max, CK_ULONG *count) {
+	CK_ULONG n = 0;
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	if (!sessions[session].finding) {
+		return CKR_OPERATION_NOT_INITIALIZED;
+	}
+	delay();
+	while (n < max && sessions[session].next < sessions[session].foundCount) {
+		found[n++] = sessions[session].found[sessions[session].next++];
+	}
+	*count = n;
+	return CKR_OK;
+}
+
+CK_RV C_FindObjectsFinal(CK_ULONG session) {
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	if (!sessions[session].finding) {
+		return CKR_OPERATION_NOT_INITIALIZED;
+	}
+	sessions[session].finding = 0;
+	return CKR_OK;
+}
+
+CK_RV C_GetAttributeValue(CK_ULONG session, CK_ULONG object, CK_ATTRIBUTE *templ, CK_ULONG count) {
+	CK_ULONG i;
+	CK_RV rv = CKR_OK;
+	unsigned char buffer[64];
+	const void *value;
+	CK_ULONG len;
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	delay();
+	for (i = 0; i < count; i++) {
+		if (!object_attribute(object, templ[i].type, buffer, &value, &len)) {
+			templ[i].ulValueLen = CK_UNAVAILABLE_INFORMATION;
+			rv = CKR_ATTRIBUTE_TYPE_INVALID;
+		} else if (templ[i].pValue == NULL) {
+			templ[i].ulValueLen = len;
+		} else if (templ[i].ulValueLen < len) {
+			templ[i].ulValueLen = CK_UNAVAILABLE_INFORMATION;
+			rv = CKR_BUFFER_TOO_SMALL;
+		} else {
+			memcpy(templ[i].pValue, value, len);
+			templ[i].ulValueLen = len;
+		}
+	}
+	return rv;
+}
+
+/* the mechanism is ignored, the signature is derived from the key and the data */
+CK_RV C_SignInit(CK_ULONG session, void *mechanism, CK_ULONG key) {
+	(void) mechanism;
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	if (!loggedIn) {
+		return CKR_USER_NOT_LOGGED_IN;
+	}
+	if (key <= objects || key > 2 * objects) {
+		return CKR_KEY_HANDLE_INVALID;
+	}
+	if (sessions[session].signKey) {
+		return CKR_OPERATION_ACTIVE;
+	}
+	delay();
+	sessions[session].signKey = key;
+	sessions[session].signHash = FNV_OFFSET;
+	return CKR_OK;
+}
+
+CK_RV C_Sign(CK_ULONG session, unsigned char *data, CK_ULONG dataLen, unsigned char *signature, CK_ULONG *signatureLen) {
+	CK_ULONG i;
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	if (!sessions[session].signKey) {
+		return CKR_OPERATION_NOT_INITIALIZED;
+	}
+	if (signature == NULL) {
+		*signatureLen = SIGNATURE_SIZE;
+		return CKR_OK;
+	}
+	if (*signatureLen < SIGNATURE_SIZE) {
+		*signatureLen = SIGNATURE_SIZE;
+		return CKR_BUFFER_TOO_SMALL;
+	}
+	delay();
+	for (i = 0; i < SIGNATURE_SIZE; i++) {
+		signature[i] = (unsigned char) (sessions[session].signKey + (dataLen > 0 ? data[i % dataLen] : 0) + i);
+	}
+	*signatureLen = SIGNATURE_SIZE;
+	sessions[session].signKey = 0;
+	return CKR_OK;
+}
+
+CK_RV C_SignUpdate(CK_ULONG session, unsigned char *part, CK_ULONG partLen) {
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	if (!sessions[session].signKey) {
+		return CKR_OPERATION_NOT_INITIALIZED;
+	}
+	delay();
+	sessions[session].signHash = fnv(sessions[session].signHash, part, partLen);
+	return CKR_OK;
+}
+
+/* the signature is derived from the key and the hash of the parts */
+CK_RV C_SignFinal(CK_ULONG session, unsigned char *signature, CK_ULONG *signatureLen) {
+	CK_ULONG i;
+	CK_RV rv;
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	if (!sessions[session].signKey) {
+		return CKR_OPERATION_NOT_INITIALIZED;
+	}
+	rv = output_length(signature, signatureLen, SIGNATURE_SIZE);
+	if (rv != CKR_OK || signature == NULL) {
+		return rv;
+	}
+	delay();
+	for (i = 0; i < SIGNATURE_SIZE; i++) {
+		signature[i] = (unsigned char) (sessions[session].signKey + (sessions[session].signHash >> (8 * (7 - i % 8))) + i);
+	}
+	sessions[session].signKey = 0;
+	return CKR_OK;
+}
+
+/* every mechanism is the 64 bits FNV-1a, repeated to fill the digest */
+CK_RV C_DigestInit(CK_ULONG session, void *mechanism) {
+	(void) mechanism;
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	if (sessions[session].digesting) {
+		return CKR_OPERATION_ACTIVE;
+	}
+	sessions[session].digesting = 1;
+	sessions[session].digestHash = FNV_OFFSET;
+	return CKR_OK;
+}
+
+CK_RV C_DigestUpdate(CK_ULONG session, unsigned char *part, CK_ULONG partLen) {
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	if (!sessions[session].digesting) {
+		return CKR_OPERATION_NOT_INITIALIZED;
+	}
+	delay();
+	sessions[session].digestHash = fnv(sessions[session].digestHash, part, partLen);
+	return CKR_OK;
+}
+
+CK_RV C_DigestFinal(CK_ULONG session, unsigned char *digest, CK_ULONG *digestLen) {
+	CK_ULONG i;
+	CK_RV rv;
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	if (!sessions[session].digesting) {
+		return CKR_OPERATION_NOT_INITIALIZED;
+	}
+	rv = output_length(digest, digestLen, DIGEST_SIZE);
+	if (rv != CKR_OK || digest == NULL) {
+		return rv;
+	}
+	for (i = 0; i < DIGEST_SIZE; i++) {
+		digest[i] = (unsigned char) (sessions[session].digestHash >> (8 * (7 - i % 8)));
+	}
+	sessions[session].digesting = 0;
+	return CKR_OK;
+}
+
+/* the mechanism is ignored, the data is XORed with the handle of the key */
+CK_RV C_DecryptInit(CK_ULONG session, void *mechanism, CK_ULONG key) {
+	(void) mechanism;
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	if (!loggedIn) {
+		return CKR_USER_NOT_LOGGED_IN;
+	}
+	if (key <= objects || key > 2 * objects) {
+		return CKR_KEY_HANDLE_INVALID;
+	}
+	if (sessions[session].decryptKey) {
+		return CKR_OPERATION_ACTIVE;
+	}
+	delay();
+	sessions[session].decryptKey = key;
+	return CKR_OK;
+}
+
+CK_RV C_DecryptUpdate(CK_ULONG session, unsigned char *encrypted, CK_ULONG encryptedLen, unsigned char *part, CK_ULONG *partLen) {
+	CK_ULONG i;
+	CK_RV rv;
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	if (!sessions[session].decryptKey) {
+		return CKR_OPERATION_NOT_INITIALIZED;
+	}
+	rv = output_length(part, partLen, encryptedLen);
+	if (rv != CKR_OK || part == NULL) {
+		return rv;
+	}
+	delay();
+	for (i = 0; i < encryptedLen; i++) {
+		part[i] = encrypted[i] ^ (unsigned char) sessions[session].decryptKey;
+	}
+	return CKR_OK;
+}
+
+CK_RV C_DecryptFinal(CK_ULONG session, unsigned char *lastPart, CK_ULONG *lastPartLen) {
+	CK_RV rv;
+	if (!valid_session(session)) {
+		return CKR_SESSION_HANDLE_INVALID;
+	}
+	if (!sessions[session].decryptKey) {
+		return CKR_OPERATION_NOT_INITIALIZED;
+	}
+	rv = output_length(lastPart, lastPartLen, 0);
+	if (rv != CKR_OK || lastPart == NULL) {
+		return rv;
+	}
+	sessions[session].decryptKey = 0;
+	return CKR_OK;
+}
+
+CK_RV C_GetFunctionList(CK_FUNCTION_LIST **list);
+
+static CK_FUNCTION_LIST functionList = {
+	{2, 40},
+	{
+		(CK_FUNCTION) C_Initialize,
+		(CK_FUNCTION) C_Finalize,
+		(CK_FUNCTION) C_GetInfo,
+		(CK_FUNCTION) C_GetFunctionList,
+		(CK_FUNCTION) C_GetSlotList,
+		(CK_FUNCTION) C_GetSlotInfo,
+		(CK_FUNCTION) C_GetTokenInfo,
+		(CK_FUNCTION) C_GetMechanismList,
+		not_supported, /* C_GetMechanismInfo */
+		not_supported, /* C_InitToken */
+		not_supported, /* C_InitPIN */
+		not_supported, /* C_SetPIN */
+		(CK_FUNCTION) C_OpenSession,
+		(CK_FUNCTION) C_CloseSession,
+		not_supported, /* C_CloseAllSessions */
+		(CK_FUNCTION) C_GetSessionInfo,
+		not_supported, /* C_GetOperationState */
+		not_supported, /* C_SetOperationState */
+		(CK_FUNCTION) C_Login,
+		(CK_FUNCTION) C_Logout,
+		not_supported, /* C_CreateObject */
+		not_supported, /* C_CopyObject */
+		not_supported, /* C_DestroyObject */
+		not_supported, /* C_GetObjectSize */
+		(CK_FUNCTION) C_GetAttributeValue,
+		not_supported, /* C_SetAttributeValue */
+		(CK_FUNCTION) C_FindObjectsInit,
+		(CK_FUNCTION) C_FindObjects,
+		(CK_FUNCTION) C_FindObjectsFinal,
+		not_supported, /* C_EncryptInit */
+		not_supported, /* C_Encrypt */
+		not_supported, /* C_EncryptUpdate */
+		not_supported, /* C_EncryptFinal */
+		(CK_FUNCTION) C_DecryptInit,
+		not_supported, /* C_Decrypt */
+		(CK_FUNCTION) C_DecryptUpdate,
+		(CK_FUNCTION) C_DecryptFinal,
+		(CK_FUNCTION) C_DigestInit,
+		not_supported, /* C_Digest */
+		(CK_FUNCTION) C_DigestUpdate,
+		not_supported, /* C_DigestKey */
+		(CK_FUNCTION) C_DigestFinal,
+		(CK_FUNCTION) C_SignInit,
+		(CK_FUNCTION) C_Sign,
+		(CK_FUNCTION) C_SignUpdate,
+		(CK_FUNCTION) C_SignFinal,
+		not_supported, /* C_SignRecoverInit */
+		not_supported, /* C_SignRecover */
+		not_supported, /* C_VerifyInit */
+		not_supported, /* C_Verify */
+		not_supported, /* C_VerifyUpdate */
+		not_supported, /* C_VerifyFinal */
+		not_supported, /* C_VerifyRecoverInit */
+		not_supported, /* C_VerifyRecover */
+		not_supported, /* C_DigestEncryptUpdate */
+		not_supported, /* C_DecryptDigestUpdate */
+		not_supported, /* C_SignEncryptUpdate */
+		not_supported, /* C_DecryptVerifyUpdate */
+		not_supported, /* C_GenerateKey */
+		not_supported, /* C_GenerateKeyPair */
+		not_supported, /* C_WrapKey */
+		not_supported, /* C_UnwrapKey */
+		not_supported, /* C_DeriveKey */
+		not_supported, /* C_SeedRandom */
+		not_supported, /* C_GenerateRandom */
+		not_supported, /* C_GetFunctionStatus */
+		not_supported, /* C_CancelFunction */
+		(CK_FUNCTION) C_WaitForSlotEvent
+	}
+};
+
+CK_RV C_GetFunctionList(CK_FUNCTION_LIST **list) {
+	if (list == NULL) {
+		return CKR_ARGUMENTS_BAD;
+	}
+	*list = &functionList;
+	return CKR_OK;
+}
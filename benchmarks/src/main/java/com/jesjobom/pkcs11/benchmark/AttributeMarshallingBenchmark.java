@@ -0,0 +1,66 @@
+package com.jesjobom.pkcs11.benchmark;
+
+import com.jesjobom.pkcs11.jna.AttributeArena;
+import com.jesjobom.pkcs11.jna.CK_ATTRIBUTE;
+import com.jesjobom.pkcs11.jna.Pkcs11Wrapper;
+import com.sun.jna.Pointer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Conversion of attribute templates to native memory, without calling any
+ * library: {@link CK_ATTRIBUTE.Native} allocating a new block for every
+ * template and value, against the reused block of {@link AttributeArena}.
+ *
+ * @author jesjobom
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AttributeMarshallingBenchmark {
+
+	@Param({"1", "4", "16"})
+	public int attributes;
+
+	@Param({"8", "1024"})
+	public int valueSize;
+
+	private CK_ATTRIBUTE[] template;
+
+	@Setup
+	public void setup() {
+		template = new CK_ATTRIBUTE[attributes];
+		for (int i = 0; i < attributes; i++) {
+			template[i] = new CK_ATTRIBUTE(Pkcs11Wrapper.CKA_VALUE, valueSize);
+		}
+	}
+
+	@Benchmark
+	public CK_ATTRIBUTE[] nativeTemplate() {
+		return new CK_ATTRIBUTE.Native(template).refresh();
+	}
+
+	@Benchmark
+	public Pointer arenaTemplate(Blackhole blackhole) {
+		AttributeArena arena = AttributeArena.current();
+		Pointer pointer = arena.valueTemplate(template);
+		for (int i = 0; i < arena.size(); i++) {
+			blackhole.consume(arena.getValue(i));
+		}
+		return pointer;
+	}
+}
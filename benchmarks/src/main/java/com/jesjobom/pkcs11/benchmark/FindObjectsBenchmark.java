@@ -0,0 +1,76 @@
+package com.jesjobom.pkcs11.benchmark;
+
+import com.jesjobom.pkcs11.jna.CK_ATTRIBUTE;
+import com.jesjobom.pkcs11.jna.Pkcs11Binding;
+import com.jesjobom.pkcs11.jna.Pkcs11Module;
+import com.jesjobom.pkcs11.jna.Pkcs11Session;
+import com.jesjobom.pkcs11.jna.Pkcs11Wrapper;
+import com.jesjobom.pkcs11.jna.SessionPool;
+import com.sun.jna.NativeLong;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Search for the certificates of a token in an open session, with
+ * {@link Pkcs11Session#findObjects(CK_ATTRIBUTE...)}.
+ *
+ * @author jesjobom
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FindObjectsBenchmark {
+
+	@Param({"3", "100", "1000"})
+	public int objects;
+
+	@Param({"0", "200"})
+	public int latencyUs;
+
+	@Param({"library", "function"})
+	public String binding;
+
+	private Pkcs11Module module;
+
+	private SessionPool pool;
+
+	private Pkcs11Session session;
+
+	private CK_ATTRIBUTE certificateType;
+
+	@Setup
+	public void setup() {
+		System.setProperty(Pkcs11Binding.PROPERTY, binding);
+		module = Pkcs11Module.getInstance(StubModule.configure(1, objects, latencyUs));
+		pool = module.getSessionPool(module.getFirstTokenSlotId());
+		session = new Pkcs11Session(module.getApi(), pool.borrow());
+
+		//CKC_X_509 = 0
+		certificateType = new CK_ATTRIBUTE(Pkcs11Wrapper.CKA_CERTIFICATE_TYPE, NativeLong.SIZE);
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.release(session.getSessionId());
+		module.close();
+	}
+
+	@Benchmark
+	public long[] findObjects() {
+		return session.findObjects(certificateType);
+	}
+}
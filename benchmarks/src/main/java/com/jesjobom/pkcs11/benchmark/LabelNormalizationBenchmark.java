@@ -0,0 +1,54 @@
+package com.jesjobom.pkcs11.benchmark;
+
+import com.jesjobom.pkcs11.jna.RegexLabelNormalizer;
+import com.jesjobom.pkcs11.jna.ScannerLabelNormalizer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cleaning of a label, without calling any library:
+ * {@link String#replaceAll(String, String)} compiling the regex on every call,
+ * against the precompiled {@link RegexLabelNormalizer} and the
+ * {@link ScannerLabelNormalizer}.
+ *
+ * @author jesjobom
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LabelNormalizationBenchmark {
+
+	@Param({"JONH SNOW PARKER:123456789", "  -- JONH SNOW PARKER:123456789's certificate #2"})
+	public String label;
+
+	private final RegexLabelNormalizer regex = new RegexLabelNormalizer();
+
+	private final ScannerLabelNormalizer scanner = new ScannerLabelNormalizer();
+
+	@Benchmark
+	public String replaceAll() {
+		return label.replaceAll(RegexLabelNormalizer.DEFAULT_REGEX, RegexLabelNormalizer.DEFAULT_REPLACEMENT);
+	}
+
+	@Benchmark
+	public String precompiledRegex() {
+		return regex.normalize(label);
+	}
+
+	@Benchmark
+	public String scanner() {
+		return scanner.normalize(label);
+	}
+}
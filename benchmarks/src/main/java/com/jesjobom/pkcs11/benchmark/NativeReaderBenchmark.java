@@ -0,0 +1,72 @@
+package com.jesjobom.pkcs11.benchmark;
+
+import com.jesjobom.pkcs11.jna.NativeReader;
+import com.jesjobom.pkcs11.jna.Pkcs11Binding;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full lookup of the label through {@link NativeReader#getLabelCert(String)}:
+ * token info, session, search and attributes.
+ *
+ * @author jesjobom
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NativeReaderBenchmark {
+
+	@Param({"3", "100"})
+	public int objects;
+
+	@Param({"0", "200"})
+	public int latencyUs;
+
+	/**
+	 * Whether the labels already read from the token can be used.
+	 */
+	@Param({"false", "true"})
+	public boolean cached;
+
+	@Param({"library", "function"})
+	public String binding;
+
+	private String libPath;
+
+	private NativeReader reader;
+
+	@Setup
+	public void setup() {
+		System.setProperty(Pkcs11Binding.PROPERTY, binding);
+		libPath = StubModule.configure(1, objects, latencyUs);
+		reader = new NativeReader(libPath);
+		reader.initialize();
+	}
+
+	@TearDown
+	public void tearDown() {
+		reader.close();
+	}
+
+	@Benchmark
+	public String getLabelCert() {
+		if (!cached) {
+			reader.getTokenCache().clear();
+		}
+		return reader.getLabelCert(libPath);
+	}
+}
@@ -0,0 +1,79 @@
+package com.jesjobom.pkcs11.benchmark;
+
+import com.jesjobom.pkcs11.jna.Pkcs11Binding;
+import com.jesjobom.pkcs11.jna.Pkcs11Module;
+import com.jesjobom.pkcs11.jna.SigningEngine;
+import com.jesjobom.pkcs11.jna.SigningReport;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A batch of digests signed by {@link SigningEngine} with every token of the
+ * stub, for each quantity of sessions per token.
+ *
+ * @author jesjobom
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SigningEngineBenchmark {
+
+	@Param({"1", "4"})
+	public int slots;
+
+	@Param({"1", "4"})
+	public int sessions;
+
+	@Param({"0", "200"})
+	public int latencyUs;
+
+	@Param({"1000"})
+	public int digests;
+
+	private SigningEngine engine;
+
+	private List<byte[]> batch;
+
+	@Setup
+	public void setup() {
+		System.setProperty(Pkcs11Binding.PROPERTY, "function");
+		engine = new SigningEngine("1234".toCharArray(), StubModule.configure(slots, 1, latencyUs));
+		engine.setSessionsPerToken(sessions);
+		engine.open();
+
+		batch = new ArrayList<>(digests);
+		for (int i = 0; i < digests; i++) {
+			byte[] digest = new byte[32];
+			digest[0] = (byte) i;
+			digest[1] = (byte) (i >> 8);
+			batch.add(digest);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine.close();
+		Pkcs11Module.closeAll();
+	}
+
+	@Benchmark
+	public SigningReport sign() {
+		return engine.sign(batch);
+	}
+}
@@ -0,0 +1,98 @@
+package com.jesjobom.pkcs11.benchmark;
+
+import com.jesjobom.pkcs11.jna.CK_MECHANISM;
+import com.jesjobom.pkcs11.jna.Pkcs11Binding;
+import com.jesjobom.pkcs11.jna.Pkcs11Module;
+import com.jesjobom.pkcs11.jna.Pkcs11Session;
+import com.jesjobom.pkcs11.jna.Pkcs11Wrapper;
+import com.jesjobom.pkcs11.jna.SessionPool;
+import com.jesjobom.pkcs11.jna.StreamingOperations;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Digest of a file with {@link StreamingOperations}, memory mapped or read
+ * through the channel, for each chunk size.
+ *
+ * @author jesjobom
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx64m")
+@State(Scope.Benchmark)
+public class StreamingBenchmark {
+
+	@Param({"64"})
+	public int fileMb;
+
+	@Param({"4096", "65536", "1048576"})
+	public int chunkSize;
+
+	@Param({"true", "false"})
+	public boolean mapped;
+
+	private Path file;
+
+	private Pkcs11Module module;
+
+	private SessionPool pool;
+
+	private Pkcs11Session session;
+
+	private StreamingOperations operations;
+
+	private CK_MECHANISM mechanism;
+
+	@Setup
+	public void setup() throws IOException {
+		file = Files.createTempFile("pkcs11-streaming", ".bin");
+		byte[] block = new byte[1024 * 1024];
+		new Random(1).nextBytes(block);
+		try (OutputStream out = Files.newOutputStream(file)) {
+			for (int i = 0; i < fileMb; i++) {
+				out.write(block);
+			}
+		}
+
+		System.setProperty(Pkcs11Binding.PROPERTY, "function");
+		module = Pkcs11Module.getInstance(StubModule.configure(1, 1, 0));
+		pool = module.getSessionPool(module.getFirstTokenSlotId());
+		session = new Pkcs11Session(module.getApi(), pool.borrow());
+		operations = new StreamingOperations(session, chunkSize);
+		operations.setMemoryMapped(mapped);
+		mechanism = new CK_MECHANISM(Pkcs11Wrapper.CKM_SHA256);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		pool.release(session.getSessionId());
+		module.close();
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public byte[] digest() throws IOException {
+		try (FileChannel channel = FileChannel.open(file)) {
+			return operations.digest(mechanism, channel);
+		}
+	}
+}
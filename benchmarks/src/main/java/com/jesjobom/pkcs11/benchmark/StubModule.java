@@ -0,0 +1,56 @@
+package com.jesjobom.pkcs11.benchmark;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import java.io.File;
+
+/**
+ * The stub PKCS11 module built from <em>src/main/c</em>, a deterministic
+ * stand-in for a smart card so the benchmarks run without a reader.
+ * <br>
+ * The stub reads its configuration from the environment when initialized, so
+ * {@link #configure(int, int, int)} must be called before the first use of the
+ * library in the JVM. Every JMH fork is a new JVM.
+ *
+ * @author jesjobom
+ */
+public class StubModule {
+
+	/**
+	 * System property with the path to the stub, by default
+	 * <em>target/libstubpkcs11.so</em>.
+	 */
+	public static final String PROPERTY = "stub.pkcs11";
+
+	private interface CLibrary extends Library {
+
+		int setenv(String name, String value, int overwrite);
+	}
+
+	/**
+	 * @return absolute path to the stub
+	 */
+	public static String getLibPath() {
+		File lib = new File(System.getProperty(PROPERTY, "target/libstubpkcs11.so"));
+		if (!lib.isFile()) {
+			throw new IllegalStateException("Stub PKCS11 module not found at " + lib.getAbsolutePath() + ". Build it with 'mvn package' or set -D" + PROPERTY);
+		}
+		return lib.getAbsolutePath();
+	}
+
+	/**
+	 * Configures the tokens of the stub.
+	 *
+	 * @param slots quantity of slots with a token
+	 * @param objects quantity of certificates in each token
+	 * @param latencyUs latency of every call to the token, in microseconds
+	 * @return path to the stub
+	 */
+	public static String configure(int slots, int objects, int latencyUs) {
+		CLibrary libc = (CLibrary) Native.loadLibrary("c", CLibrary.class);
+		libc.setenv("STUB_PKCS11_SLOTS", String.valueOf(slots), 1);
+		libc.setenv("STUB_PKCS11_OBJECTS", String.valueOf(objects), 1);
+		libc.setenv("STUB_PKCS11_LATENCY_US", String.valueOf(latencyUs), 1);
+		return getLibPath();
+	}
+}
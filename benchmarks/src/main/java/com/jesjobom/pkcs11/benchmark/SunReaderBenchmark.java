@@ -0,0 +1,55 @@
+package com.jesjobom.pkcs11.benchmark;
+
+import com.jesjobom.pkcs11.sun.SunReader;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full lookup of the subject through {@link SunReader#getLabel()}: provider,
+ * keystore and certificate chains.
+ *
+ * @author jesjobom
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SunReaderBenchmark {
+
+	@Param({"3", "100"})
+	public int objects;
+
+	@Param({"0", "200"})
+	public int latencyUs;
+
+	private SunReader reader;
+
+	@Setup
+	public void setup() {
+		reader = new SunReader(StubModule.configure(1, objects, latencyUs));
+		reader.initialize();
+	}
+
+	@TearDown
+	public void tearDown() {
+		reader.close();
+	}
+
+	@Benchmark
+	public String getLabel() {
+		return reader.getLabel();
+	}
+}
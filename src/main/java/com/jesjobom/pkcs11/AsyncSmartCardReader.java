@@ -0,0 +1,312 @@
+package com.jesjobom.pkcs11;
+
+import com.jesjobom.pkcs11.utils.DaemonThreadFactory;
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Non blocking counterpart of {@link SmartCardReader}: the lookups return a
+ * {@link CompletableFuture} right away and the native calls run in a
+ * dedicated pool of I/O threads, so the caller's thread is never held by a
+ * smart card.
+ * <br>
+ * Each lookup has a deadline. The libraries are tried in the order of
+ * {@link SmartCardReader#getCandidates()}, each one with the time still left,
+ * and a library that doesn't answer in time is abandoned: its thread keeps
+ * blocked in the native call, but the library isn't called again until it
+ * returns. The libraries that keep failing or hanging are quarantined by the
+ * {@link CircuitBreaker}.
+ * <br>
+ * The I/O pool is bounded, both in threads and in queued lookups. When it is
+ * full the lookup fails at once with a {@link RejectedExecutionException}.
+ * Cancelling the returned future interrupts the native call in progress.
+ *
+ * @author jesjobom
+ */
+public class AsyncSmartCardReader implements Closeable {
+
+	private static final Logger LOGGER = LogManager.getLogger(AsyncSmartCardReader.class);
+
+	public static final int DEFAULT_THREADS = 4;
+
+	public static final int DEFAULT_QUEUE_SIZE = 64;
+
+	private final SmartCardReader reader;
+
+	private final CircuitBreaker breaker;
+
+	private final ThreadPoolExecutor ioExecutor;
+
+	private final ScheduledExecutorService timer;
+
+	/**
+	 * Libraries with a call still running, even if abandoned, which are not
+	 * called again until it returns.
+	 */
+	private final Set<String> runningCalls = ConcurrentHashMap.newKeySet();
+
+	private volatile long timeout = SmartCardReader.DEFAULT_ATTEMPT_TIMEOUT_MS;
+
+	public AsyncSmartCardReader(SmartCardReader reader) {
+		this(reader, new CircuitBreaker(), DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * @param reader does the native calls, already initialized
+	 * @param breaker
+	 * @param threads maximum of native calls at once
+	 * @param queueSize maximum of lookups waiting for a thread
+	 */
+	public AsyncSmartCardReader(SmartCardReader reader, CircuitBreaker breaker, int threads, int queueSize) {
+		this.reader = reader;
+		this.breaker = breaker;
+		this.ioExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueSize), new DaemonThreadFactory("pkcs11-io"));
+		this.ioExecutor.allowCoreThreadTimeOut(true);
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("pkcs11-timeout"));
+		scheduler.setRemoveOnCancelPolicy(true);
+		this.timer = scheduler;
+	}
+
+	public SmartCardReader getReader() {
+		return reader;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Deadline of the lookups without an explicit one, in milliseconds.
+	 *
+	 * @param timeout
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Gets the label with the deadline of {@link #getTimeout()}.
+	 *
+	 * @return {@link CompletableFuture} with the label
+	 * @see SmartCardReader#getLabel()
+	 */
+	public CompletableFuture<String> getLabel() {
+		return getLabel(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets the label with the library that worked last time or, if it fails,
+	 * with the first of the others that works, all within the deadline.
+	 * The future fails with a {@link TimeoutException} if the deadline passes.
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return {@link CompletableFuture} with the label
+	 */
+	public CompletableFuture<String> getLabel(long timeout, TimeUnit unit) {
+		Lookup lookup = new Lookup(reader.getCandidates().iterator(), System.nanoTime() + unit.toNanos(timeout));
+		lookup.next(null);
+		return lookup.result;
+	}
+
+	/**
+	 * Stops the I/O threads, interrupting the calls in progress. The reader
+	 * is not closed.
+	 */
+	@Override
+	public void close() {
+		ioExecutor.shutdownNow();
+		timer.shutdownNow();
+	}
+
+	/**
+	 * A single lookup, trying the libraries one after the other.
+	 */
+	private class Lookup {
+
+		private final Iterator<String> libs;
+
+		private final long deadline;
+
+		private final CompletableFuture<String> result = new CompletableFuture<>();
+
+		private volatile Call call;
+
+		private Lookup(Iterator<String> libs, long deadline) {
+			this.libs = libs;
+			this.deadline = deadline;
+			result.whenComplete((label, ex) -> {
+				Call running = call;
+				if (result.isCancelled() && running != null) {
+					running.abandon();
+				}
+			});
+		}
+
+		/**
+		 * Calls the next library that can be called or fails the lookup.
+		 */
+		private synchronized void next(Exception lastException) {
+			while (!result.isDone() && libs.hasNext()) {
+				String lib = libs.next();
+				//the breaker is asked last, since it may hand over its only attempt
+				if (!runningCalls.add(lib)) {
+					LOGGER.debug("Library {} is still busy with a previous call. Skipping it.", lib);
+					continue;
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					runningCalls.remove(lib);
+					break;
+				}
+				if (!breaker.allows(lib)) {
+					runningCalls.remove(lib);
+					LOGGER.debug("Library {} is quarantined. Skipping it.", lib);
+					continue;
+				}
+				call = new Call(this, lib);
+				call.submit(remaining);
+				return;
+			}
+			if (lastException == null && deadline - System.nanoTime() <= 0) {
+				lastException = new TimeoutException("No library could read the smart card in time");
+			}
+			result.completeExceptionally(lastException instanceof TimeoutException 
+					? lastException : SmartCardReader.failure(lastException));
+		}
+	}
+
+	/**
+	 * The call to a single library, finished by its result, its failure or
+	 * its deadline, whichever comes first.
+	 */
+	private class Call implements Runnable {
+
+		private final Lookup lookup;
+
+		private final String lib;
+
+		private final long start = System.nanoTime();
+
+		/**
+		 * Set by the first to take the call: the I/O thread running it or
+		 * the cancellation before it runs.
+		 */
+		private final AtomicBoolean taken = new AtomicBoolean();
+
+		private final AtomicBoolean finished = new AtomicBoolean();
+
+		private volatile Future<?> future;
+
+		private volatile ScheduledFuture<?> deadlineTask;
+
+		private Call(Lookup lookup, String lib) {
+			this.lookup = lookup;
+			this.lib = lib;
+		}
+
+		private void submit(long remaining) {
+			try {
+				future = ioExecutor.submit(this);
+			} catch (RejectedExecutionException ex) {
+				runningCalls.remove(lib);
+				finished.set(true);
+				breaker.release(lib);
+				lookup.result.completeExceptionally(ex);
+				return;
+			}
+			try {
+				deadlineTask = timer.schedule(this::expire, remaining, TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException ex) {
+				//closed, the call was already interrupted
+			}
+		}
+
+		@Override
+		public void run() {
+			if (!taken.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				String label = reader.readLabel(lib);
+				if (finish()) {
+					breaker.success(lib);
+					reader.succeeded(lib, start);
+					lookup.result.complete(label);
+				}
+			} catch (Throwable ex) {
+				if (finish()) {
+					LOGGER.debug("Failed to read the smart card with library {}", lib, ex);
+					breaker.failure(lib);
+					lookup.next(ex instanceof Exception ? (Exception) ex : new RuntimeException(ex));
+				}
+			} finally {
+				runningCalls.remove(lib);
+			}
+		}
+
+		private void expire() {
+			if (finished.compareAndSet(false, true)) {
+				LOGGER.debug("Library {} didn't answer in time. Abandoning it.", lib);
+				breaker.failure(lib);
+				interrupt();
+				lookup.next(new TimeoutException("Library " + lib + " didn't answer in time"));
+			}
+		}
+
+		/**
+		 * Stops the call because the lookup was cancelled. Its result is not
+		 * reported to the breaker.
+		 */
+		private void abandon() {
+			if (finished.compareAndSet(false, true)) {
+				breaker.release(lib);
+				interrupt();
+			}
+		}
+
+		private boolean finish() {
+			if (!finished.compareAndSet(false, true)) {
+				return false;
+			}
+			ScheduledFuture<?> task = deadlineTask;
+			if (task != null) {
+				task.cancel(false);
+			}
+			return true;
+		}
+
+		/**
+		 * Interrupts the native call or, if it didn't start yet, prevents it.
+		 */
+		private void interrupt() {
+			if (taken.compareAndSet(false, true)) {
+				runningCalls.remove(lib);
+			}
+			Future<?> running = future;
+			if (running != null) {
+				running.cancel(true);
+			}
+		}
+	}
+}
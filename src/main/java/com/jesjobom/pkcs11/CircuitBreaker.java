@@ -0,0 +1,170 @@
+package com.jesjobom.pkcs11;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Quarantines the native libraries that keep failing or hanging, so they
+ * are not called again for a while. After {@link #getFailureThreshold()}
+ * consecutive failures the library is skipped for
+ * {@link #getQuarantineMs()}. Then a single attempt is allowed: if it works
+ * the library is released, if not it is quarantined again.
+ *
+ * @author jesjobom
+ * @see AsyncSmartCardReader
+ */
+public class CircuitBreaker {
+
+	private static final Logger LOGGER = LogManager.getLogger(CircuitBreaker.class);
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+	public static final long DEFAULT_QUARANTINE_MS = 60000;
+
+	private final int failureThreshold;
+
+	private final long quarantineMs;
+
+	private final Map<String, LibraryState> states = new ConcurrentHashMap<>();
+
+	public CircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_QUARANTINE_MS);
+	}
+
+	public CircuitBreaker(int failureThreshold, long quarantineMs) {
+		if (failureThreshold <= 0) {
+			throw new IllegalArgumentException("The failure threshold must be positive: " + failureThreshold);
+		}
+		this.failureThreshold = failureThreshold;
+		this.quarantineMs = quarantineMs;
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	public long getQuarantineMs() {
+		return quarantineMs;
+	}
+
+	/**
+	 * Whether the library can be called now. After the quarantine only the
+	 * first caller is allowed, until its attempt is reported.
+	 *
+	 * @param lib path to the native library
+	 * @return false if the library is quarantined
+	 */
+	public boolean allows(String lib) {
+		LibraryState state = states.get(lib);
+		return state == null || state.allows();
+	}
+
+	/**
+	 * @param lib path to the native library
+	 * @return true if the library is quarantined, without taking the attempt
+	 * allowed after the quarantine
+	 */
+	public boolean isQuarantined(String lib) {
+		LibraryState state = states.get(lib);
+		return state != null && state.isQuarantined();
+	}
+
+	/**
+	 * Reports a successful call, releasing the library.
+	 *
+	 * @param lib path to the native library
+	 */
+	public void success(String lib) {
+		LibraryState state = states.get(lib);
+		if (state != null) {
+			state.success();
+		}
+	}
+
+	/**
+	 * Reports a failed or timed out call.
+	 *
+	 * @param lib path to the native library
+	 */
+	public void failure(String lib) {
+		if (states.computeIfAbsent(lib, path -> new LibraryState()).failure()) {
+			LOGGER.warn("Library " + lib + " quarantined for " + quarantineMs + " ms after " + failureThreshold + " failures");
+		}
+	}
+
+	/**
+	 * Gives back the attempt allowed after the quarantine, without counting
+	 * it as a success or failure, when the call was not made or its result
+	 * will never be known.
+	 *
+	 * @param lib path to the native library
+	 */
+	public void release(String lib) {
+		LibraryState state = states.get(lib);
+		if (state != null) {
+			state.release();
+		}
+	}
+
+	/**
+	 * Releases every library.
+	 */
+	public void reset() {
+		states.clear();
+	}
+
+	/**
+	 * The failures of a single library.
+	 */
+	private class LibraryState {
+
+		private int failures = 0;
+
+		/**
+		 * End of the quarantine, in {@link System#nanoTime()}, or 0.
+		 */
+		private long quarantineEnd = 0;
+
+		private boolean trial = false;
+
+		private synchronized boolean allows() {
+			if (failures < failureThreshold) {
+				return true;
+			}
+			if (trial || System.nanoTime() - quarantineEnd < 0) {
+				return false;
+			}
+			trial = true;
+			return true;
+		}
+
+		private synchronized boolean isQuarantined() {
+			return failures >= failureThreshold && (trial || System.nanoTime() - quarantineEnd < 0);
+		}
+
+		private synchronized void success() {
+			failures = 0;
+			trial = false;
+		}
+
+		private synchronized void release() {
+			trial = false;
+		}
+
+		/**
+		 * @return true if the library was quarantined now
+		 */
+		private synchronized boolean failure() {
+			failures++;
+			if (failures < failureThreshold) {
+				return false;
+			}
+			trial = false;
+			quarantineEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(quarantineMs);
+			return true;
+		}
+	}
+}
@@ -47,6 +47,7 @@ public class Main {
 			String label = reader.getLabel();
 		
 			LOGGER.info(label);
+			reader.close();
 			
 		} catch (Exception ex) {
 			LOGGER.error("Failed to access the smart card.", ex);
@@ -55,11 +56,12 @@ public class Main {
 		LOGGER.info("");
 		LOGGER.info(" === USING JNA ===");
 		
-		SmartCardReader reader = new NativeReader(libs.toArray(new String[0]));
-		reader.initialize(args);
-		String label = reader.getLabel();
-		
-		LOGGER.info(label);
+		try (SmartCardReader reader = new NativeReader(libs.toArray(new String[0]))) {
+			reader.initialize(args);
+			String label = reader.getLabel();
+
+			LOGGER.info(label);
+		}
 		
 		LOGGER.info(" === END OF SMART CARD ACCESS ===");
 	}
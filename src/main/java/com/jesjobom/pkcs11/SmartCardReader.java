@@ -1,31 +1,370 @@
 package com.jesjobom.pkcs11;
 
+import com.jesjobom.pkcs11.utils.DaemonThreadFactory;
+import com.jesjobom.pkcs11.utils.NativeLibsUtils;
+import java.io.Closeable;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * Abstraction for smart card readers.
  * Only needs read operations to get the label from the certificate.
+ * <br>
+ * The label is read with each of the native libraries until one works. The
+ * library that worked is remembered and tried first on the next call.
+ * With {@link #setParallelProbing(boolean)} the other libraries are tried all
+ * at once, each one in its own thread, and the first one that works is used,
+ * so a library that takes long to fail doesn't delay the others.
+ * <br>
+ * The library that worked is also recorded with
+ * {@link NativeLibsUtils#recordSuccess(String, long, String)}, so the next
+ * executions try it first.
  *
  * @author jesjobom
  */
-public abstract class SmartCardReader {
-	
+public abstract class SmartCardReader implements Closeable {
+
 	private static final Logger LOGGER = LogManager.getLogger(SmartCardReader.class);
-	
+
+	public static final long DEFAULT_ATTEMPT_TIMEOUT_MS = 10000;
+
 	protected final List<String> libs;
-	
+
+	private volatile String preferredLib;
+
+	private volatile boolean parallelProbing = false;
+
+	private volatile long attemptTimeout = DEFAULT_ATTEMPT_TIMEOUT_MS;
+
+	/**
+	 * Libraries with an attempt still running, which are not tried again
+	 * until it finishes.
+	 */
+	private final Set<String> runningAttempts = ConcurrentHashMap.newKeySet();
+
+	private ExecutorService probeExecutor;
+
 	public SmartCardReader(String... libs) {
 		if(libs == null || libs.length == 0) {
 			throw new InvalidParameterException("Need native libraries to access the smart card. Use 'com.jesjobom.pkcs11.NativeLibsUtils#getAvailableLibs()' to get them.");
 		}
 		this.libs = Arrays.asList(libs);
 	}
-	
+
 	public abstract void initialize(String... args);
-	
-	public abstract String getLabel();
+
+	/**
+	 * Reads the label with a single native library.
+	 *
+	 * @param lib path to the native library
+	 * @return {@link String} with the label
+	 * @throws Exception if the library can't read the smart card
+	 */
+	protected abstract String readLabel(String lib) throws Exception;
+
+	/**
+	 * Called when a library lost the parallel probing, to another one or
+	 * because none could read the smart card, after its attempt finished, so
+	 * the reader can release what it loaded.
+	 * Nothing is done by default.
+	 *
+	 * @param lib path to the native library
+	 */
+	protected void abandon(String lib) {
+	}
+
+	/**
+	 * Gets the type of the token read by the library, kept with the library
+	 * that worked. Unknown by default.
+	 *
+	 * @param lib path to the native library
+	 * @return model of the token, or null
+	 */
+	protected String getTokenType(String lib) {
+		return null;
+	}
+
+	/**
+	 * Gets the label with the library that worked last time or, if it fails,
+	 * with the first of the others that works.
+	 *
+	 * @return {@link String} with the label
+	 */
+	public String getLabel() {
+		Exception lastException = null;
+
+		//the library that worked last time is tried first,
+		//so it is already initialized
+		String preferred = preferredLib;
+		if (preferred != null) {
+			try {
+				return readLabel(preferred);
+			} catch (Exception ex) {
+				LOGGER.debug("Failed to read the smart card with library " + preferred, ex);
+				lastException = ex;
+			}
+		}
+
+		List<String> others = new ArrayList<>(libs);
+		others.remove(preferred);
+
+		if (parallelProbing && others.size() > 1) {
+			return probe(others, lastException);
+		}
+
+		for (String lib : others) {
+			try {
+				long start = System.nanoTime();
+				String label = readLabel(lib);
+				succeeded(lib, start);
+				return label;
+			} catch (Exception ex) {
+				LOGGER.debug("Failed to read the smart card with library " + lib + ". Will try with the next one if available.", ex);
+				lastException = ex;
+			}
+		}
+
+		throw failure(lastException);
+	}
+
+	/**
+	 * Tries every library at once, returning the label of the first one that
+	 * works. The others, or all of them if none works, are cancelled and
+	 * abandoned when they finish.
+	 * Each attempt has up to {@link #getAttemptTimeout()} to finish.
+	 */
+	private String probe(List<String> candidates, Exception lastException) {
+		ExecutorService executor = getProbeExecutor();
+		CompletionService<String> completion = new ExecutorCompletionService<>(executor);
+		ProbeRound round = new ProbeRound();
+		Map<Future<String>, String> attempts = new HashMap<>();
+
+		for (String lib : candidates) {
+			if (!runningAttempts.add(lib)) {
+				LOGGER.debug("Library " + lib + " is still busy with a previous attempt. Skipping it.");
+				continue;
+			}
+			try {
+				attempts.put(completion.submit(() -> attempt(lib, round)), lib);
+			} catch (RuntimeException ex) {
+				runningAttempts.remove(lib);
+				throw ex;
+			}
+		}
+
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(attemptTimeout);
+		String winner = null;
+		try {
+			for (int pending = attempts.size(); pending > 0; pending--) {
+				Future<String> future = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+				if (future == null) {
+					LOGGER.debug("No library could read the smart card in " + attemptTimeout + " ms");
+					break;
+				}
+				String lib = attempts.get(future);
+				try {
+					String label = future.get();
+					LOGGER.debug("Library " + lib + " won the probing");
+					succeeded(lib, start);
+					winner = lib;
+					return label;
+				} catch (ExecutionException ex) {
+					LOGGER.debug("Failed to read the smart card with library " + lib, ex.getCause());
+					lastException = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while probing the native libraries", ex);
+		} finally {
+			for (Future<String> future : attempts.keySet()) {
+				future.cancel(true);
+			}
+			abandonLosers(round, winner);
+		}
+
+		throw failure(lastException);
+	}
+
+	/**
+	 * Remembers the library that worked, for this reader and for the next
+	 * executions.
+	 */
+	void succeeded(String lib, long start) {
+		preferredLib = lib;
+		long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		try {
+			NativeLibsUtils.recordSuccess(lib, latencyMs, getTokenType(lib));
+		} catch (RuntimeException ex) {
+			LOGGER.debug("Failed to record the library " + lib, ex);
+		}
+	}
+
+	private String attempt(String lib, ProbeRound round) throws Exception {
+		try {
+			return readLabel(lib);
+		} finally {
+			runningAttempts.remove(lib);
+			if (round.finish(lib)) {
+				abandonQuietly(lib);
+			}
+		}
+	}
+
+	/**
+	 * Abandons the libraries that already finished, the others are abandoned
+	 * by their own attempt when they finish.
+	 *
+	 * @param winner the library that won, or null if none did
+	 */
+	private void abandonLosers(ProbeRound round, String winner) {
+		for (String lib : round.decide(winner)) {
+			abandonQuietly(lib);
+		}
+	}
+
+	private void abandonQuietly(String lib) {
+		try {
+			abandon(lib);
+		} catch (RuntimeException ex) {
+			LOGGER.debug("Failed to abandon library " + lib, ex);
+		}
+	}
+
+	static RuntimeException failure(Exception lastException) {
+		if (lastException instanceof RuntimeException) {
+			return (RuntimeException) lastException;
+		}
+		return new RuntimeException("None of the libraries found were able to read the Smart Card.", lastException);
+	}
+
+	private synchronized ExecutorService getProbeExecutor() {
+		if (probeExecutor == null) {
+			//one thread per library at most, since a busy library is not tried again
+			probeExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+					new SynchronousQueue<>(), new DaemonThreadFactory("pkcs11-probe"));
+		}
+		return probeExecutor;
+	}
+
+	/**
+	 * Gets the libraries in the order they should be tried: the one that
+	 * worked last time first.
+	 *
+	 * @return list of paths to the native libraries
+	 */
+	protected List<String> getCandidates() {
+		List<String> candidates = new ArrayList<>(libs);
+		String preferred = preferredLib;
+		if (preferred != null) {
+			candidates.remove(preferred);
+			candidates.add(0, preferred);
+		}
+		return candidates;
+	}
+
+	/**
+	 * @return the library that worked last time, or null
+	 */
+	public String getPreferredLib() {
+		return preferredLib;
+	}
+
+	protected void setPreferredLib(String preferredLib) {
+		this.preferredLib = preferredLib;
+	}
+
+	public boolean isParallelProbing() {
+		return parallelProbing;
+	}
+
+	/**
+	 * Whether the libraries are tried all at once instead of one after the
+	 * other. The library that worked last time is always tried first alone.
+	 *
+	 * @param parallelProbing
+	 */
+	public void setParallelProbing(boolean parallelProbing) {
+		this.parallelProbing = parallelProbing;
+	}
+
+	public long getAttemptTimeout() {
+		return attemptTimeout;
+	}
+
+	/**
+	 * Maximum time to wait for the libraries tried at once, in milliseconds.
+	 *
+	 * @param attemptTimeout
+	 */
+	public void setAttemptTimeout(long attemptTimeout) {
+		this.attemptTimeout = attemptTimeout;
+	}
+
+	/**
+	 * Releases the native resources kept by the reader between lookups.
+	 * Nothing is kept by default.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (probeExecutor != null) {
+				probeExecutor.shutdownNow();
+				probeExecutor = null;
+			}
+		}
+	}
+
+	/**
+	 * The libraries tried at once in a single probing and the one that won.
+	 */
+	private static class ProbeRound {
+
+		private final List<String> finished = new ArrayList<>();
+
+		private boolean decided = false;
+
+		private String winner;
+
+		/**
+		 * @param lib the library whose attempt finished
+		 * @return true if it lost and should be abandoned now
+		 */
+		private synchronized boolean finish(String lib) {
+			if (!decided) {
+				finished.add(lib);
+				return false;
+			}
+			return !lib.equals(winner);
+		}
+
+		/**
+		 * @param lib the library that won, or null if none did
+		 * @return the libraries that already finished and should be abandoned
+		 */
+		private synchronized List<String> decide(String lib) {
+			decided = true;
+			winner = lib;
+			List<String> losers = new ArrayList<>(finished);
+			losers.remove(lib);
+			return losers;
+		}
+	}
 }
@@ -0,0 +1,245 @@
+package com.jesjobom.pkcs11.jna;
+
+import com.jesjobom.pkcs11.utils.NativeLongUtils;
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable native memory for the attribute templates, one per thread.
+ * The template and the values of the attributes are written in a single
+ * contiguous block that is kept and only grows, so reading attributes doesn't
+ * allocate native memory nor copy the values into Java arrays.
+ * <br>
+ * The layout of the template is the same of {@link CK_ATTRIBUTE.Native},
+ * followed by the values, each one aligned to 8 bytes.
+ * <br>
+ * The values are returned as views of the block: they are only valid until
+ * the arena is used again by the same thread. Copy them with
+ * {@link #getBytes(int)} to keep them longer.
+ *
+ * @author jesjobom
+ */
+public class AttributeArena {
+
+	private static final ThreadLocal<AttributeArena> ARENAS = ThreadLocal.withInitial(AttributeArena::new);
+
+	private static final int INITIAL_SIZE = 1024;
+
+	private static final int HEADER_SIZE = NativeLong.SIZE + Pointer.SIZE + NativeLong.SIZE;
+
+	private Memory block = new Memory(INITIAL_SIZE);
+
+	private long[] valueOffsets = new long[8];
+
+	private int count = 0;
+
+	private AttributeArena() {
+	}
+
+	/**
+	 * Gets the arena of the current thread.
+	 *
+	 * @return {@link AttributeArena}
+	 */
+	public static AttributeArena current() {
+		return ARENAS.get();
+	}
+
+	/**
+	 * Writes a template to get the size of the attributes, without values.
+	 *
+	 * @param types of the attributes (CKA_*)
+	 * @return the template in native memory
+	 */
+	public Pointer sizeTemplate(long... types) {
+		reset(types.length);
+		for (int i = 0; i < count; i++) {
+			writeHeader(i, types[i], Pointer.NULL, 0);
+		}
+		return block;
+	}
+
+	/**
+	 * Writes a template with the values of the attributes, like the filters
+	 * of a search.
+	 *
+	 * @param attributes
+	 * @return the template in native memory
+	 */
+	public Pointer valueTemplate(CK_ATTRIBUTE... attributes) {
+		reset(attributes.length);
+		long offset = align(count * HEADER_SIZE);
+		for (int i = 0; i < count; i++) {
+			int length = attributes[i].pValue == null ? 0 : attributes[i].pValue.length;
+			ensureCapacity(offset + length);
+			valueOffsets[i] = offset;
+			offset = align(offset + length);
+		}
+		for (int i = 0; i < count; i++) {
+			byte[] value = attributes[i].pValue;
+			if (value == null || value.length == 0) {
+				writeHeader(i, attributes[i].type, Pointer.NULL, 0);
+			} else {
+				block.write(valueOffsets[i], value, 0, value.length);
+				writeHeader(i, attributes[i].type, block.share(valueOffsets[i]), value.length);
+			}
+		}
+		return block;
+	}
+
+	/**
+	 * Prepares the template filled by a {@link #sizeTemplate(long...)} call
+	 * to receive the values, pointing each available attribute to its room
+	 * in the block. Unavailable attributes are kept without value.
+	 *
+	 * @return the template in native memory
+	 */
+	public Pointer valueTemplate() {
+		long offset = align(count * HEADER_SIZE);
+		for (int i = 0; i < count; i++) {
+			long length = getLength(i);
+			if (length > 0) {
+				ensureCapacity(offset + length);
+				valueOffsets[i] = offset;
+				offset = align(offset + length);
+			} else {
+				valueOffsets[i] = -1;
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			long length = getLength(i);
+			writeHeader(i, getType(i), valueOffsets[i] < 0 ? Pointer.NULL : block.share(valueOffsets[i]), length > 0 ? length : 0);
+		}
+		return block;
+	}
+
+	/**
+	 * @return quantity of attributes in the template
+	 */
+	public int size() {
+		return count;
+	}
+
+	public long getType(int index) {
+		return readLong(index * HEADER_SIZE);
+	}
+
+	/**
+	 * @param index
+	 * @return the length of the attribute or
+	 * {@link Pkcs11Wrapper#CK_UNAVAILABLE_INFORMATION}
+	 */
+	public long getLength(int index) {
+		return readLong(index * HEADER_SIZE + NativeLong.SIZE + Pointer.SIZE);
+	}
+
+	/**
+	 * @param index
+	 * @return whether the attribute was returned by the library
+	 */
+	public boolean isAvailable(int index) {
+		return getLength(index) != Pkcs11Wrapper.CK_UNAVAILABLE_INFORMATION;
+	}
+
+	/**
+	 * Gets the value of the attribute as a view of the arena, without copying.
+	 *
+	 * @param index
+	 * @return {@link ByteBuffer} valid until the next use of the arena, or
+	 * null if the attribute is unavailable
+	 */
+	public ByteBuffer getValue(int index) {
+		long length = getLength(index);
+		if (length == Pkcs11Wrapper.CK_UNAVAILABLE_INFORMATION) {
+			return null;
+		}
+		if (length == 0 || valueOffsets[index] < 0) {
+			return ByteBuffer.allocate(0);
+		}
+		return block.getByteBuffer(valueOffsets[index], length);
+	}
+
+	/**
+	 * Gets the value of a CK_ULONG attribute, like <em>CKA_CLASS</em>.
+	 *
+	 * @param index
+	 * @return the value or {@link Pkcs11Wrapper#CK_UNAVAILABLE_INFORMATION}
+	 */
+	public long getLong(int index) {
+		if (getLength(index) != NativeLong.SIZE || valueOffsets[index] < 0) {
+			return Pkcs11Wrapper.CK_UNAVAILABLE_INFORMATION;
+		}
+		return NativeLongUtils.read(block, valueOffsets[index]);
+	}
+
+	/**
+	 * Gets the value of a CK_BBOOL attribute, like <em>CKA_PRIVATE</em>.
+	 *
+	 * @param index
+	 * @return the value, false if unavailable
+	 */
+	public boolean getBoolean(int index) {
+		return getLength(index) == 1 && valueOffsets[index] >= 0 && block.getByte(valueOffsets[index]) != 0;
+	}
+
+	/**
+	 * Gets a copy of the value of the attribute.
+	 *
+	 * @param index
+	 * @return array of bytes or null if the attribute is unavailable
+	 */
+	public byte[] getBytes(int index) {
+		ByteBuffer value = getValue(index);
+		if (value == null) {
+			return null;
+		}
+		byte[] bytes = new byte[value.remaining()];
+		value.get(bytes);
+		return bytes;
+	}
+
+	private void reset(int count) {
+		this.count = count;
+		if (valueOffsets.length < count) {
+			valueOffsets = new long[count];
+		}
+		ensureCapacity(count * HEADER_SIZE);
+	}
+
+	/**
+	 * Grows the block, keeping the template already written.
+	 */
+	private void ensureCapacity(long size) {
+		if (size <= block.size()) {
+			return;
+		}
+		long newSize = block.size();
+		while (newSize < size) {
+			newSize *= 2;
+		}
+		Memory newBlock = new Memory(newSize);
+		newBlock.write(0, block.getByteArray(0, count * HEADER_SIZE), 0, count * HEADER_SIZE);
+		block = newBlock;
+	}
+
+	private void writeHeader(int index, long type, Pointer value, long length) {
+		long offset = index * HEADER_SIZE;
+		writeLong(offset, type);
+		block.setPointer(offset + NativeLong.SIZE, value);
+		writeLong(offset + NativeLong.SIZE + Pointer.SIZE, length);
+	}
+
+	private void writeLong(long offset, long value) {
+		NativeLongUtils.write(block, offset, value);
+	}
+
+	private long readLong(long offset) {
+		return NativeLongUtils.read(block, offset);
+	}
+
+	private static long align(long offset) {
+		return (offset + 7) & ~7L;
+	}
+}
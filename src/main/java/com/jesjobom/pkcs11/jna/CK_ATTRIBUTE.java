@@ -5,6 +5,8 @@ import com.sun.jna.NativeLong;
 import com.sun.jna.Pointer;
 import com.sun.jna.PointerType;
 import com.sun.jna.Structure;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Mapping of a native structure used by the native library.
@@ -48,6 +50,49 @@ public class CK_ATTRIBUTE {
 		this.ulValueLen = size;
 		this.pValue = new byte[(int)size];
 	}
+
+	/**
+	 * Attribute with a CK_ULONG value, like <em>CKA_CLASS</em>, written with
+	 * the size and the byte order of the native long.
+	 *
+	 * @param type
+	 * @param value
+	 * @return {@link CK_ATTRIBUTE}
+	 */
+	public static CK_ATTRIBUTE ofLong(long type, long value) {
+		ByteBuffer buffer = ByteBuffer.allocate(NativeLong.SIZE).order(ByteOrder.nativeOrder());
+		if (NativeLong.SIZE == 4) {
+			buffer.putInt((int) value);
+		} else {
+			buffer.putLong(value);
+		}
+		return ofBytes(type, buffer.array());
+	}
+
+	/**
+	 * Attribute with a CK_BBOOL value, like <em>CKA_SIGN</em>.
+	 *
+	 * @param type
+	 * @param value
+	 * @return {@link CK_ATTRIBUTE}
+	 */
+	public static CK_ATTRIBUTE ofBoolean(long type, boolean value) {
+		return ofBytes(type, new byte[]{(byte) (value ? 1 : 0)});
+	}
+
+	/**
+	 * Attribute with an array of bytes, like <em>CKA_ID</em>.
+	 *
+	 * @param type
+	 * @param value
+	 * @return {@link CK_ATTRIBUTE}
+	 */
+	public static CK_ATTRIBUTE ofBytes(long type, byte[] value) {
+		CK_ATTRIBUTE attribute = new CK_ATTRIBUTE(type);
+		attribute.pValue = value;
+		attribute.ulValueLen = value.length;
+		return attribute;
+	}
 	
 	/**
 	 * Inner class representing the single memory block with all the data 
@@ -0,0 +1,44 @@
+package com.jesjobom.pkcs11.jna;
+
+import com.jesjobom.pkcs11.utils.OsUtils;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Mapping of the arguments for <em>C_Initialize</em>.
+ * No mutex functions are informed, so with the flag <em>CKF_OS_LOCKING_OK</em>
+ * the library uses the native OS locking to be accessed by many threads.
+ * <br>
+ * On Windows the PKCS11 structures are packed with 1 byte alignment.
+ *
+ * @author jesjobom
+ * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323024092
+ */
+public class CK_C_INITIALIZE_ARGS extends Structure {
+
+	public Pointer CreateMutex;
+
+	public Pointer DestroyMutex;
+
+	public Pointer LockMutex;
+
+	public Pointer UnlockMutex;
+
+	public NativeLong flags;
+
+	public Pointer pReserved;
+
+	public CK_C_INITIALIZE_ARGS(long flags) {
+		super(OsUtils.isWindows() ? Structure.ALIGN_NONE : Structure.ALIGN_DEFAULT);
+		this.flags = new NativeLong(flags);
+		write();
+	}
+
+	@Override
+	protected List<String> getFieldOrder() {
+		return Arrays.asList("CreateMutex", "DestroyMutex", "LockMutex", "UnlockMutex", "flags", "pReserved");
+	}
+}
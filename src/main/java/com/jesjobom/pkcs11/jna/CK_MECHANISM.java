@@ -0,0 +1,70 @@
+package com.jesjobom.pkcs11.jna;
+
+import com.jesjobom.pkcs11.utils.OsUtils;
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Mapping of the mechanism passed to the cryptographic operations, like
+ * <em>C_SignInit</em>. The parameter, if any, is an array of bytes, like the
+ * IV of <em>CKM_AES_CBC_PAD</em>.
+ * <br>
+ * The structure is written once to native memory and only read by the
+ * library, so the same instance can be shared by many threads.
+ * <br>
+ * On Windows the PKCS11 structures are packed with 1 byte alignment.
+ *
+ * @author jesjobom
+ * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc416959692
+ */
+public class CK_MECHANISM extends Structure {
+
+	public NativeLong mechanism;
+
+	public Pointer pParameter;
+
+	public NativeLong ulParameterLen;
+
+	/**
+	 * Kept while the structure is used, since it's only referenced by the
+	 * native memory.
+	 */
+	private final Memory parameter;
+
+	public CK_MECHANISM(long mechanism) {
+		this(mechanism, null);
+	}
+
+	/**
+	 * @param mechanism (CKM_*)
+	 * @param parameter copied to native memory, or null
+	 */
+	public CK_MECHANISM(long mechanism, byte[] parameter) {
+		super(OsUtils.isWindows() ? Structure.ALIGN_NONE : Structure.ALIGN_DEFAULT);
+		this.mechanism = new NativeLong(mechanism);
+		if (parameter == null || parameter.length == 0) {
+			this.parameter = null;
+			this.pParameter = Pointer.NULL;
+			this.ulParameterLen = new NativeLong(0);
+		} else {
+			this.parameter = new Memory(parameter.length);
+			this.parameter.write(0, parameter, 0, parameter.length);
+			this.pParameter = this.parameter;
+			this.ulParameterLen = new NativeLong(parameter.length);
+		}
+		write();
+	}
+
+	public long getMechanism() {
+		return mechanism.longValue();
+	}
+
+	@Override
+	protected List<String> getFieldOrder() {
+		return Arrays.asList("mechanism", "pParameter", "ulParameterLen");
+	}
+}
@@ -0,0 +1,98 @@
+package com.jesjobom.pkcs11.jna;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+/**
+ * A certificate object found in the token, with the public attributes read
+ * without login: <em>CKA_ID</em>, <em>CKA_LABEL</em> and the DER encoding in
+ * <em>CKA_VALUE</em>.
+ * <br>
+ * The DER is only parsed into a {@link X509Certificate} when first requested,
+ * with a {@link CertificateFactory} per thread, since the factories are not
+ * thread safe.
+ *
+ * @author jesjobom
+ * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc416959712
+ */
+public class CertificateObject {
+
+	private static final ThreadLocal<CertificateFactory> FACTORIES = ThreadLocal.withInitial(CertificateObject::newFactory);
+
+	private final long objectId;
+
+	private final byte[] id;
+
+	private final String label;
+
+	private final byte[] encoded;
+
+	private volatile X509Certificate certificate;
+
+	public CertificateObject(long objectId, byte[] id, String label, byte[] encoded) {
+		this.objectId = objectId;
+		this.id = id;
+		this.label = label;
+		this.encoded = encoded;
+	}
+
+	public long getObjectId() {
+		return objectId;
+	}
+
+	/**
+	 * @return copy of the <em>CKA_ID</em>, which links the certificate to its
+	 * keys, or null if the object has none
+	 */
+	public byte[] getId() {
+		return id == null ? null : id.clone();
+	}
+
+	/**
+	 * @return the <em>CKA_LABEL</em>, as returned by the token, or null
+	 */
+	public String getLabel() {
+		return label;
+	}
+
+	/**
+	 * @return copy of the DER encoding of the certificate
+	 */
+	public byte[] getEncoded() {
+		return encoded.clone();
+	}
+
+	/**
+	 * Parses the certificate, only on the first call.
+	 *
+	 * @return {@link X509Certificate}
+	 */
+	public X509Certificate getCertificate() {
+		X509Certificate parsed = certificate;
+		if (parsed == null) {
+			try {
+				parsed = (X509Certificate) FACTORIES.get().generateCertificate(new ByteArrayInputStream(encoded));
+			} catch (CertificateException ex) {
+				throw new RuntimeException("Invalid certificate (obj " + objectId + ")", ex);
+			}
+			certificate = parsed;
+		}
+		return parsed;
+	}
+
+	private static CertificateFactory newFactory() {
+		try {
+			return CertificateFactory.getInstance("X.509");
+		} catch (CertificateException ex) {
+			//every JRE has the X.509 factory
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Certificate obj " + objectId + " (" + label + ")";
+	}
+}
@@ -0,0 +1,267 @@
+package com.jesjobom.pkcs11.jna;
+
+import com.jesjobom.pkcs11.utils.NativeLongUtils;
+import com.jesjobom.pkcs11.utils.OsUtils;
+import com.sun.jna.Function;
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
+
+/**
+ * {@link Pkcs11Api} calling the functions of the library directly through
+ * their {@link Function} handles, resolved once when the library is loaded.
+ * The handles are the pointers of the <em>CK_FUNCTION_LIST</em> returned by a
+ * single call to <em>C_GetFunctionList</em>, so only that symbol is looked up
+ * and each instance calls exactly the functions of its own library. Libraries
+ * without it are resolved symbol by symbol.
+ * <br>
+ * The arguments are passed as primitives with the size of the native long and
+ * raw {@link Pointer}s, skipping the proxy and the type conversion of the
+ * interface mapping.
+ * <br>
+ * Every function of {@link Pkcs11Function} is resolved, the ones without a
+ * method in {@link Pkcs11Api} are called with
+ * {@link #invoke(Pkcs11Function, Object...)}. Functions not exported by the
+ * library return <em>CKR_FUNCTION_NOT_SUPPORTED</em>.
+ *
+ * @author jesjobom
+ * @see Pkcs11Binding#FUNCTION
+ */
+public class FunctionApi implements Pkcs11Api {
+
+	/**
+	 * The handles indexed by {@link Pkcs11Function#ordinal()}, null for the
+	 * functions the library doesn't have.
+	 */
+	private final Function[] functions;
+
+	/**
+	 * Kept reachable since JNA unloads a library once it is collected, which
+	 * would leave the handles of the function list dangling.
+	 */
+	private final NativeLibrary library;
+
+	public FunctionApi(String libPath) {
+		this(NativeLibrary.getInstance(libPath));
+	}
+
+	public FunctionApi(NativeLibrary library) {
+		this.library = library;
+		this.functions = resolve(library);
+	}
+
+	/**
+	 * Resolves every function through <em>C_GetFunctionList</em> or, if the
+	 * library doesn't have it, by their symbols.
+	 */
+	private static Function[] resolve(NativeLibrary library) {
+		Function[] functions = resolveFunctionList(library);
+		if (functions == null) {
+			functions = resolveSymbols(library);
+		}
+		return functions;
+	}
+
+	/**
+	 * Reads the pointers of the <em>CK_FUNCTION_LIST</em>. The struct starts
+	 * with the <em>CK_VERSION</em> (2 bytes), followed by the pointers in the
+	 * order of {@link Pkcs11Function}. On Windows the PKCS11 structs are packed
+	 * to 1 byte, elsewhere the pointers are aligned to their size.
+	 *
+	 * @return the handles or null if the list isn't available
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323024101
+	 */
+	private static Function[] resolveFunctionList(NativeLibrary library) {
+		Function getFunctionList;
+		try {
+			getFunctionList = library.getFunction(Pkcs11Function.C_GetFunctionList.name());
+		} catch (UnsatisfiedLinkError ex) {
+			return null;
+		}
+
+		Memory listPointer = new Memory(Pointer.SIZE);
+		listPointer.setPointer(0, Pointer.NULL);
+		if (getFunctionList.invokeInt(new Object[]{listPointer}) != Pkcs11Wrapper.CKR_OK) {
+			return null;
+		}
+		Pointer list = listPointer.getPointer(0);
+		if (list == null) {
+			return null;
+		}
+
+		long offset = OsUtils.isWindows() ? 2 : Pointer.SIZE;
+		Function[] functions = new Function[Pkcs11Function.values().length];
+		for (int i = 0; i < functions.length; i++) {
+			Pointer function = list.getPointer(offset + (long) i * Pointer.SIZE);
+			if (function != null) {
+				functions[i] = Function.getFunction(function);
+			}
+		}
+		return functions;
+	}
+
+	/**
+	 * Resolves every function by its symbol.
+	 */
+	private static Function[] resolveSymbols(NativeLibrary library) {
+		Pkcs11Function[] names = Pkcs11Function.values();
+		Function[] functions = new Function[names.length];
+		for (Pkcs11Function name : names) {
+			try {
+				functions[name.ordinal()] = library.getFunction(name.name());
+			} catch (UnsatisfiedLinkError ex) {
+				//not supported
+			}
+		}
+		return functions;
+	}
+
+	@Override
+	public int C_Initialize(Pointer args) {
+		return invoke(Pkcs11Function.C_Initialize, args);
+	}
+
+	@Override
+	public int C_Finalize(Pointer reserved) {
+		return invoke(Pkcs11Function.C_Finalize, reserved);
+	}
+
+	@Override
+	public int C_GetSlotList(boolean tokenPresent, Pointer slotList, Pointer count) {
+		return invoke(Pkcs11Function.C_GetSlotList, (byte) (tokenPresent ? 1 : 0), slotList, count);
+	}
+
+	@Override
+	public int C_GetTokenInfo(long slotId, Pointer info) {
+		return invoke(Pkcs11Function.C_GetTokenInfo, ulong(slotId), info);
+	}
+
+	@Override
+	public int C_WaitForSlotEvent(long flags, Pointer slotId, Pointer reserved) {
+		return invoke(Pkcs11Function.C_WaitForSlotEvent, ulong(flags), slotId, reserved);
+	}
+
+	@Override
+	public int C_OpenSession(long slotId, long flags, Pointer app, Pointer notify, Pointer sessionId) {
+		return invoke(Pkcs11Function.C_OpenSession, ulong(slotId), ulong(flags), app, notify, sessionId);
+	}
+
+	@Override
+	public int C_CloseSession(long sessionId) {
+		return invoke(Pkcs11Function.C_CloseSession, ulong(sessionId));
+	}
+
+	@Override
+	public int C_GetSessionInfo(long sessionId, Pointer info) {
+		return invoke(Pkcs11Function.C_GetSessionInfo, ulong(sessionId), info);
+	}
+
+	@Override
+	public int C_FindObjectsInit(long sessionId, Pointer template, long count) {
+		return invoke(Pkcs11Function.C_FindObjectsInit, ulong(sessionId), template, ulong(count));
+	}
+
+	@Override
+	public int C_FindObjects(long sessionId, Pointer objectIds, long maxCount, Pointer count) {
+		return invoke(Pkcs11Function.C_FindObjects, ulong(sessionId), objectIds, ulong(maxCount), count);
+	}
+
+	@Override
+	public int C_FindObjectsFinal(long sessionId) {
+		return invoke(Pkcs11Function.C_FindObjectsFinal, ulong(sessionId));
+	}
+
+	@Override
+	public int C_GetAttributeValue(long sessionId, long objectId, Pointer template, long count) {
+		return invoke(Pkcs11Function.C_GetAttributeValue, ulong(sessionId), ulong(objectId), template, ulong(count));
+	}
+
+	@Override
+	public int C_Login(long sessionId, long userType, Pointer pin, long pinLength) {
+		return invoke(Pkcs11Function.C_Login, ulong(sessionId), ulong(userType), pin, ulong(pinLength));
+	}
+
+	@Override
+	public int C_Logout(long sessionId) {
+		return invoke(Pkcs11Function.C_Logout, ulong(sessionId));
+	}
+
+	@Override
+	public int C_SignInit(long sessionId, Pointer mechanism, long keyId) {
+		return invoke(Pkcs11Function.C_SignInit, ulong(sessionId), mechanism, ulong(keyId));
+	}
+
+	@Override
+	public int C_Sign(long sessionId, Pointer data, long dataLength, Pointer signature, Pointer signatureLength) {
+		return invoke(Pkcs11Function.C_Sign, ulong(sessionId), data, ulong(dataLength), signature, signatureLength);
+	}
+
+	@Override
+	public int C_SignUpdate(long sessionId, Pointer part, long partLength) {
+		return invoke(Pkcs11Function.C_SignUpdate, ulong(sessionId), part, ulong(partLength));
+	}
+
+	@Override
+	public int C_SignFinal(long sessionId, Pointer signature, Pointer signatureLength) {
+		return invoke(Pkcs11Function.C_SignFinal, ulong(sessionId), signature, signatureLength);
+	}
+
+	@Override
+	public int C_DigestInit(long sessionId, Pointer mechanism) {
+		return invoke(Pkcs11Function.C_DigestInit, ulong(sessionId), mechanism);
+	}
+
+	@Override
+	public int C_DigestUpdate(long sessionId, Pointer part, long partLength) {
+		return invoke(Pkcs11Function.C_DigestUpdate, ulong(sessionId), part, ulong(partLength));
+	}
+
+	@Override
+	public int C_DigestFinal(long sessionId, Pointer digest, Pointer digestLength) {
+		return invoke(Pkcs11Function.C_DigestFinal, ulong(sessionId), digest, digestLength);
+	}
+
+	@Override
+	public int C_DecryptInit(long sessionId, Pointer mechanism, long keyId) {
+		return invoke(Pkcs11Function.C_DecryptInit, ulong(sessionId), mechanism, ulong(keyId));
+	}
+
+	@Override
+	public int C_DecryptUpdate(long sessionId, Pointer encryptedPart, long encryptedPartLength, Pointer part, Pointer partLength) {
+		return invoke(Pkcs11Function.C_DecryptUpdate, ulong(sessionId), encryptedPart, ulong(encryptedPartLength), part, partLength);
+	}
+
+	@Override
+	public int C_DecryptFinal(long sessionId, Pointer lastPart, Pointer lastPartLength) {
+		return invoke(Pkcs11Function.C_DecryptFinal, ulong(sessionId), lastPart, lastPartLength);
+	}
+
+	/**
+	 * @param function
+	 * @return true if the library has the function
+	 */
+	public boolean isSupported(Pkcs11Function function) {
+		return functions[function.ordinal()] != null;
+	}
+
+	private static Object ulong(long value) {
+		return NativeLongUtils.box(value);
+	}
+
+	/**
+	 * Calls any function of the library, for the ones without a method in
+	 * {@link Pkcs11Api}. Every CK_ULONG argument must be passed with the size
+	 * of the native long, see {@link NativeLongUtils#box(long)}.
+	 *
+	 * @param function
+	 * @param args
+	 * @return the CK_RV returned, or <em>CKR_FUNCTION_NOT_SUPPORTED</em>
+	 */
+	public int invoke(Pkcs11Function function, Object... args) {
+		Function handle = functions[function.ordinal()];
+		if (handle == null) {
+			return Pkcs11Wrapper.CKR_FUNCTION_NOT_SUPPORTED;
+		}
+		return handle.invokeInt(args);
+	}
+}
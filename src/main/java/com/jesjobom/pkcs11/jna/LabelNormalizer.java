@@ -0,0 +1,21 @@
+package com.jesjobom.pkcs11.jna;
+
+/**
+ * Cleans the label of a certificate read from the token, removing the noise
+ * around the name usually found in it.
+ * <br>
+ * The implementations must be thread safe, since the slots are read in
+ * parallel. See {@link RegexLabelNormalizer} and
+ * {@link ScannerLabelNormalizer}.
+ *
+ * @author jesjobom
+ * @see NativeReader#setLabelNormalizer(LabelNormalizer)
+ */
+public interface LabelNormalizer {
+
+	/**
+	 * @param label as read from the token
+	 * @return {@link String} with the clean label
+	 */
+	String normalize(String label);
+}
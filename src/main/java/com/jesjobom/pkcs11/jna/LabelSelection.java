@@ -0,0 +1,53 @@
+package com.jesjobom.pkcs11.jna;
+
+import java.util.List;
+
+/**
+ * Which of the labels found in the token is returned by
+ * {@link NativeReader#getLabelCert(String)}.
+ *
+ * @author jesjobom
+ * @see NativeReader#setLabelSelection(LabelSelection)
+ */
+public enum LabelSelection {
+
+	/**
+	 * The label of the first certificate found.
+	 */
+	FIRST {
+		@Override
+		public String select(List<String> labels) {
+			return labels.isEmpty() ? null : labels.get(0);
+		}
+	},
+	/**
+	 * The label of the last certificate found, usually the user's one.
+	 */
+	LAST {
+		@Override
+		public String select(List<String> labels) {
+			return labels.isEmpty() ? null : labels.get(labels.size() - 1);
+		}
+	},
+	/**
+	 * The longest label, the first one found on a tie.
+	 */
+	LONGEST {
+		@Override
+		public String select(List<String> labels) {
+			String longest = null;
+			for (String label : labels) {
+				if (longest == null || longest.length() < label.length()) {
+					longest = label;
+				}
+			}
+			return longest;
+		}
+	};
+
+	/**
+	 * @param labels in the order the certificates were found
+	 * @return the chosen label or null if there's none
+	 */
+	public abstract String select(List<String> labels);
+}
@@ -0,0 +1,159 @@
+package com.jesjobom.pkcs11.jna;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.NativeLongByReference;
+
+/**
+ * {@link Pkcs11Api} calling the library through the interface mapping of
+ * {@link Pkcs11Wrapper}. Every call goes through the JNA proxy, converting
+ * the arguments into {@link NativeLong} and {@link NativeLongByReference}.
+ *
+ * @author jesjobom
+ * @see Pkcs11Binding#LIBRARY
+ */
+public class LibraryApi implements Pkcs11Api {
+
+	private final Pkcs11Wrapper pkcs11;
+
+	public LibraryApi(String libPath) {
+		this((Pkcs11Wrapper) Native.loadLibrary(libPath, Pkcs11Wrapper.class));
+	}
+
+	public LibraryApi(Pkcs11Wrapper pkcs11) {
+		this.pkcs11 = pkcs11;
+	}
+
+	@Override
+	public int C_Initialize(Pointer args) {
+		return pkcs11.C_Initialize(args);
+	}
+
+	@Override
+	public int C_Finalize(Pointer reserved) {
+		return pkcs11.C_Finalize(reserved);
+	}
+
+	@Override
+	public int C_GetSlotList(boolean tokenPresent, Pointer slotList, Pointer count) {
+		return pkcs11.C_GetSlotList(tokenPresent ? 1 : 0, slotList, byReference(count));
+	}
+
+	@Override
+	public int C_GetTokenInfo(long slotId, Pointer info) {
+		return pkcs11.C_GetTokenInfo(new NativeLong(slotId), info);
+	}
+
+	@Override
+	public int C_WaitForSlotEvent(long flags, Pointer slotId, Pointer reserved) {
+		return pkcs11.C_WaitForSlotEvent(new NativeLong(flags), byReference(slotId), reserved);
+	}
+
+	@Override
+	public int C_OpenSession(long slotId, long flags, Pointer app, Pointer notify, Pointer sessionId) {
+		return pkcs11.C_OpenSession(new NativeLong(slotId), new NativeLong(flags), app, notify, byReference(sessionId));
+	}
+
+	@Override
+	public int C_CloseSession(long sessionId) {
+		return pkcs11.C_CloseSession(new NativeLong(sessionId));
+	}
+
+	@Override
+	public int C_GetSessionInfo(long sessionId, Pointer info) {
+		return pkcs11.C_GetSessionInfo(new NativeLong(sessionId), info);
+	}
+
+	@Override
+	public int C_FindObjectsInit(long sessionId, Pointer template, long count) {
+		return pkcs11.C_FindObjectsInit(new NativeLong(sessionId), attributes(template), new NativeLong(count));
+	}
+
+	@Override
+	public int C_FindObjects(long sessionId, Pointer objectIds, long maxCount, Pointer count) {
+		return pkcs11.C_FindObjects(new NativeLong(sessionId), objectIds, new NativeLong(maxCount), byReference(count));
+	}
+
+	@Override
+	public int C_FindObjectsFinal(long sessionId) {
+		return pkcs11.C_FindObjectsFinal(new NativeLong(sessionId));
+	}
+
+	@Override
+	public int C_GetAttributeValue(long sessionId, long objectId, Pointer template, long count) {
+		return pkcs11.C_GetAttributeValue(new NativeLong(sessionId), new NativeLong(objectId), attributes(template), new NativeLong(count));
+	}
+
+	@Override
+	public int C_Login(long sessionId, long userType, Pointer pin, long pinLength) {
+		return pkcs11.C_Login(new NativeLong(sessionId), new NativeLong(userType), pin, new NativeLong(pinLength));
+	}
+
+	@Override
+	public int C_Logout(long sessionId) {
+		return pkcs11.C_Logout(new NativeLong(sessionId));
+	}
+
+	@Override
+	public int C_SignInit(long sessionId, Pointer mechanism, long keyId) {
+		return pkcs11.C_SignInit(new NativeLong(sessionId), mechanism, new NativeLong(keyId));
+	}
+
+	@Override
+	public int C_Sign(long sessionId, Pointer data, long dataLength, Pointer signature, Pointer signatureLength) {
+		return pkcs11.C_Sign(new NativeLong(sessionId), data, new NativeLong(dataLength), signature, byReference(signatureLength));
+	}
+
+	@Override
+	public int C_SignUpdate(long sessionId, Pointer part, long partLength) {
+		return pkcs11.C_SignUpdate(new NativeLong(sessionId), part, new NativeLong(partLength));
+	}
+
+	@Override
+	public int C_SignFinal(long sessionId, Pointer signature, Pointer signatureLength) {
+		return pkcs11.C_SignFinal(new NativeLong(sessionId), signature, byReference(signatureLength));
+	}
+
+	@Override
+	public int C_DigestInit(long sessionId, Pointer mechanism) {
+		return pkcs11.C_DigestInit(new NativeLong(sessionId), mechanism);
+	}
+
+	@Override
+	public int C_DigestUpdate(long sessionId, Pointer part, long partLength) {
+		return pkcs11.C_DigestUpdate(new NativeLong(sessionId), part, new NativeLong(partLength));
+	}
+
+	@Override
+	public int C_DigestFinal(long sessionId, Pointer digest, Pointer digestLength) {
+		return pkcs11.C_DigestFinal(new NativeLong(sessionId), digest, byReference(digestLength));
+	}
+
+	@Override
+	public int C_DecryptInit(long sessionId, Pointer mechanism, long keyId) {
+		return pkcs11.C_DecryptInit(new NativeLong(sessionId), mechanism, new NativeLong(keyId));
+	}
+
+	@Override
+	public int C_DecryptUpdate(long sessionId, Pointer encryptedPart, long encryptedPartLength, Pointer part, Pointer partLength) {
+		return pkcs11.C_DecryptUpdate(new NativeLong(sessionId), encryptedPart, new NativeLong(encryptedPartLength), part, byReference(partLength));
+	}
+
+	@Override
+	public int C_DecryptFinal(long sessionId, Pointer lastPart, Pointer lastPartLength) {
+		return pkcs11.C_DecryptFinal(new NativeLong(sessionId), lastPart, byReference(lastPartLength));
+	}
+
+	private static NativeLongByReference byReference(Pointer pointer) {
+		NativeLongByReference reference = new NativeLongByReference();
+		reference.setPointer(pointer);
+		return reference;
+	}
+
+	private static CK_ATTRIBUTE.Native attributes(Pointer template) {
+		CK_ATTRIBUTE.Native attributes = new CK_ATTRIBUTE.Native();
+		attributes.setPointer(template);
+		return attributes;
+	}
+}
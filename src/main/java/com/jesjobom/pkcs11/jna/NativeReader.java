@@ -1,12 +1,25 @@
 package com.jesjobom.pkcs11.jna;
 
 import com.jesjobom.pkcs11.SmartCardReader;
-import com.sun.jna.Memory;
-import com.sun.jna.Native;
-import com.sun.jna.NativeLong;
-import com.sun.jna.Pointer;
-import com.sun.jna.ptr.NativeLongByReference;
+import com.jesjobom.pkcs11.utils.DaemonThreadFactory;
 import java.nio.ByteBuffer;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import javax.security.auth.x500.X500Principal;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -18,6 +31,28 @@ public class NativeReader extends SmartCardReader {
 
 	private static final Logger LOGGER = LogManager.getLogger(NativeReader.class);
 	
+	/**
+	 * Maximum of slots read at the same time by {@link #getSlotResults()}.
+	 */
+	public static final int MAX_PARALLEL_SLOTS = 8;
+	
+	private ExecutorService slotExecutor;
+	
+	private final TokenCache tokenCache = new TokenCache();
+	
+	private volatile LabelNormalizer labelNormalizer = new ScannerLabelNormalizer();
+	
+	private volatile LabelSelection labelSelection = LabelSelection.LAST;
+	
+	private final List<SlotWatcher> watchers = new CopyOnWriteArrayList<>();
+	
+	/**
+	 * Libraries held by this reader, see {@link Pkcs11Module#acquire(String)}.
+	 */
+	private final Set<String> acquiredLibs = ConcurrentHashMap.newKeySet();
+	
+	private volatile SnapshotStore snapshotStore = SnapshotStore.fromSystemProperty();
+	
 	public NativeReader(String... libs) {
 		super(libs);
 	}
@@ -28,312 +63,675 @@ public class NativeReader extends SmartCardReader {
 	}
 
 	@Override
-	public String getLabel() {
-		RuntimeException lastException = null;
-		
-		for (String lib : libs) {
-			try {
-				return getLabelCert(lib);
-			} catch (RuntimeException ex) {
-				lastException = ex;
+	protected String readLabel(String lib) {
+		return getLabelCert(lib);
+	}
+
+	/**
+	 * Lets go of the library that lost the probing, unless a watcher uses it.
+	 * It is finalized if no other reader holds it.
+	 */
+	@Override
+	protected void abandon(String lib) {
+		Pkcs11Module module = Pkcs11Module.getLoadedInstance(lib);
+		if (module == null || lib.equals(getPreferredLib())) {
+			return;
+		}
+		for (SlotWatcher watcher : watchers) {
+			if (watcher.getModule() == module) {
+				return;
+			}
+		}
+		if (acquiredLibs.remove(lib)) {
+			LOGGER.debug("Releasing LIB " + lib + ", which lost the probing");
+			module.release();
+		}
+	}
+
+	@Override
+	protected String getTokenType(String lib) {
+		Pkcs11Module module = Pkcs11Module.getLoadedInstance(lib);
+		if (module == null) {
+			return null;
+		}
+		return module.getTokenInfo(module.getFirstTokenSlotId()).getModel();
+	}
+
+	/**
+	 * Lets go of the native libraries used by this reader.
+	 * They are kept initialized between lookups until this is called
+	 * or the JVM shuts down, and are only finalized when no other reader
+	 * holds them, see {@link Pkcs11Module#acquire(String)}.
+	 */
+	@Override
+	public void close() {
+		super.close();
+		for (SlotWatcher watcher : watchers) {
+			watcher.close();
+		}
+		watchers.clear();
+		synchronized (this) {
+			if (slotExecutor != null) {
+				slotExecutor.shutdownNow();
+				slotExecutor = null;
+			}
+		}
+		for (String lib : acquiredLibs) {
+			if (acquiredLibs.remove(lib)) {
+				Pkcs11Module.getLoadedInstance(lib).release();
 			}
 		}
-		
-		throw lastException;
 	}
 	
 	/**
-	 * Get the label from the last certificate from the smart card using the
+	 * Get the label from the certificate chosen by the {@link LabelSelection}
+	 * (the last one by default) from the smart card using the
 	 * native library located in the passed path.
+	 * The library is loaded and initialized only on the first call, see
+	 * {@link Pkcs11Module}, and the labels are served from the 
+	 * {@link TokenCache} while the same token stays in the slot.
 	 * 
 	 * @param libPath
 	 * @return {@link String} with the label
 	 */
-	public static String getLabelCert(String libPath) {
+	public String getLabelCert(String libPath) {
 
-		loadNativeLib(libPath);
+		Pkcs11Module module = getModule(libPath);
 
-		try {
-			initPkcs11();
+		long slotId = module.getFirstTokenSlotId();
 
-			long slotId = getFirstTokenSlotId();
+		SlotResult result = readSlot(module, slotId);
+		if (!result.isSuccess()) {
+			throw result.getError();
+		}
+		return labelSelection.select(result.getLabels());
+	}
 
-			try {
-				long sessionId = beginNewSession(slotId);
+	/**
+	 * Reads the certificates of the first slot with a token, passing each one
+	 * to the consumer as soon as it is found, without login. The certificates
+	 * are parsed only if the consumer asks for them, see
+	 * {@link CertificateObject#getCertificate()}.
+	 * <br>
+	 * The consumer runs while the session is borrowed, so it shouldn't block.
+	 * 
+	 * @param libPath
+	 * @param consumer receives each certificate, in the order they are found
+	 */
+	public void forEachCertificate(String libPath, Consumer<CertificateObject> consumer) {
+		Pkcs11Module module = getModule(libPath);
+		long slotId = module.getFirstTokenSlotId();
+		TokenSnapshot snapshot = getSnapshot(module, slotId);
+		if (snapshot != null) {
+			snapshot.getCertificates().forEach(consumer);
+			return;
+		}
+		inSession(module, slotId, session -> {
+			readCertificates(session, consumer);
+			return null;
+		});
+	}
 
-				try {
-					initFind(sessionId);
+	/**
+	 * Reads all the certificates of the first slot with a token.
+	 * 
+	 * @param libPath
+	 * @return list of {@link CertificateObject}, in the order they were found
+	 * @see #forEachCertificate(String, Consumer)
+	 */
+	public List<CertificateObject> getCertificates(String libPath) {
+		List<CertificateObject> certificates = new ArrayList<>();
+		forEachCertificate(libPath, certificates::add);
+		return certificates;
+	}
 
-					long[] objectIds = findObjects(sessionId);
+	/**
+	 * Gets the longest certificate chain found in the token, using the library
+	 * that worked last time or the first one that can read it. Like 
+	 * {@link com.jesjobom.pkcs11.sun.SunReader}, the user's certificate is
+	 * supposed to be the one with the longest chain, but no PIN is needed.
+	 * 
+	 * @return array of {@link X509Certificate}, starting with the user's
+	 * @see #getCertificateChain(String)
+	 */
+	public X509Certificate[] getCertificateChain() {
+		RuntimeException lastException = null;
+		
+		for (String lib : getCandidates()) {
+			try {
+				X509Certificate[] chain = getCertificateChain(lib);
+				setPreferredLib(lib);
+				return chain;
+			} catch (RuntimeException ex) {
+				lastException = ex;
+			}
+		}
+		
+		throw lastException;
+	}
 
-					String label = null;
+	/**
+	 * Gets the longest certificate chain found in the token of the first slot.
+	 * The chains are built only with the certificates present in the token,
+	 * linking each one to the certificate whose subject is its issuer.
+	 * 
+	 * @param libPath
+	 * @return array of {@link X509Certificate}, starting with the user's
+	 */
+	public X509Certificate[] getCertificateChain(String libPath) {
+		List<CertificateObject> certificates = getCertificates(libPath);
+		if (certificates.isEmpty()) {
+			throw new RuntimeException("No certificate found in the smart card. Is it a PKCS11 initialized card?");
+		}
+		return longestChain(certificates);
+	}
 
-					LOGGER.debug("Getting LABEL");
-					for (long objectId : objectIds) {
-						try {
-							label = getObjectLabel(sessionId, objectId);
-						} catch (RuntimeException ex) {
-							//if an error occur, continue
-							//to the next certificate.
-						}
-					}
+	/**
+	 * Logs in the token of the first slot, unless the application already
+	 * did, for the operations with its private objects. The login is kept
+	 * and shared with every session of the application, see
+	 * {@link TokenAuthenticator#execute(java.util.function.Function)}.
+	 * 
+	 * @param libPath
+	 * @param pin copied, the caller can wipe its own
+	 * @return {@link TokenAuthenticator} of the token
+	 */
+	public TokenAuthenticator authenticate(String libPath, char[] pin) {
+		Pkcs11Module module = getModule(libPath);
+		TokenAuthenticator authenticator = module.getAuthenticator(module.getFirstTokenSlotId());
+		authenticator.setPin(pin);
+		authenticator.execute(session -> null);
+		return authenticator;
+	}
 
-					if (label != null) {
-						return label.replaceAll("^[^\\p{L}\\p{Digit}]*([\\p{L}\\p{Digit}\\\\\\/\\-\\(\\)\\:\\~ ]+\\)?).*$", "$1");
-					}
+	/**
+	 * Starts watching the tokens inserted and removed, using the library that
+	 * worked last time or the first one that can be initialized.
+	 * The labels of an inserted token are read right away into the 
+	 * {@link TokenCache}, so the next lookup is already served from it, and 
+	 * the cache and the sessions of a removed token are dropped.
+	 * <br>
+	 * The watcher is closed with the reader. More listeners can be added to it.
+	 * 
+	 * @return {@link SlotWatcher} already started
+	 */
+	public SlotWatcher watch() {
+		Pkcs11Module module = openModule();
+		
+		SlotWatcher watcher = new SlotWatcher(module);
+		watcher.addListener(new SlotEventListener() {
+			@Override
+			public void tokenInserted(Pkcs11Module module, long slotId) {
+				getSlotExecutor().submit(() -> readSlot(module, slotId));
+			}
 
-				} finally {
-					endFind(sessionId);
-				}
+			@Override
+			public void tokenRemoved(Pkcs11Module module, long slotId) {
+				tokenCache.invalidate(module.getLibPath(), slotId);
+				module.resetTokenSlotId();
+				module.getSessionPool(slotId).clear();
+				module.discardAuthenticator(slotId);
+			}
+		});
+		watchers.add(watcher);
+		watcher.start();
+		return watcher;
+	}
 
-			} finally {
-				closeSession(slotId);
+	/**
+	 * Gets the module of the library that worked last time or of the first
+	 * one that can be initialized.
+	 * 
+	 * @return {@link Pkcs11Module}
+	 */
+	private Pkcs11Module openModule() {
+		RuntimeException lastException = null;
+		
+		for (String lib : getCandidates()) {
+			try {
+				return getModule(lib);
+			} catch (RuntimeException ex) {
+				lastException = ex;
 			}
+		}
+		
+		throw lastException;
+	}
 
-		} finally {
-			finalizePkcs11();
+	/**
+	 * Gets the module of the library, held by this reader until it is closed.
+	 * 
+	 * @param lib
+	 * @return initialized {@link Pkcs11Module}
+	 */
+	private Pkcs11Module getModule(String lib) {
+		if (!acquiredLibs.add(lib)) {
+			return Pkcs11Module.getInstance(lib);
 		}
+		try {
+			return Pkcs11Module.acquire(lib);
+		} catch (RuntimeException | UnsatisfiedLinkError ex) {
+			acquiredLibs.remove(lib);
+			throw ex;
+		}
+	}
 
-		return null;
+	public LabelNormalizer getLabelNormalizer() {
+		return labelNormalizer;
 	}
 
 	/**
-	 * Load native library into the wrapper class, allowing static calls.
+	 * Sets how the labels are cleaned, {@link ScannerLabelNormalizer} by 
+	 * default. The labels already in the {@link TokenCache} are dropped.
 	 * 
-	 * @param libPath path to the native library
-	 * @see Pkcs11Wrapper
+	 * @param labelNormalizer
 	 */
-	private static void loadNativeLib(String libPath) {
-		LOGGER.debug("Loading native library " + libPath);
-		Native.register(Pkcs11Wrapper.class, libPath);
+	public void setLabelNormalizer(LabelNormalizer labelNormalizer) {
+		this.labelNormalizer = labelNormalizer;
+		tokenCache.clear();
+	}
+
+	public LabelSelection getLabelSelection() {
+		return labelSelection;
 	}
 
 	/**
-	 * Init PKCS11 without parameters.
+	 * Sets which label is returned when the token has many certificates,
+	 * {@link LabelSelection#LAST} by default.
 	 * 
-	 * @throws CertificadoException 
-	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323024102
+	 * @param labelSelection
 	 */
-	private static void initPkcs11() {
-		LOGGER.debug("Initializing PKCS11");
-		int initReturn = Pkcs11Wrapper.C_Initialize(Pointer.NULL);
+	public void setLabelSelection(LabelSelection labelSelection) {
+		this.labelSelection = labelSelection;
+	}
 
-		if (initReturn != 0) {
-			LOGGER.error(initReturn + " : Rerturn INIT");
-			throw new RuntimeException("Failed to initialize: " + initReturn);
-		}
+	public SnapshotStore getSnapshotStore() {
+		return snapshotStore;
 	}
 
 	/**
-	 * Get the ID of the first smart card slot (reader) that contains a token.
-	 * There's no known order to the smart card slots.
-	 * @return long with the ID for the first slot
-	 * @throws CertificadoException 
-	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323024105
+	 * Sets where the public objects of the tokens are kept between the
+	 * executions, by default the directory of the system property
+	 * {@value SnapshotStore#PROPERTY}, if set. Null disables the snapshots.
+	 * 
+	 * @param snapshotStore
 	 */
-	private static long getFirstTokenSlotId() {
-		LOGGER.debug("Getting the first smart card slot with a token");
-		NativeLongByReference slotsCount = new NativeLongByReference();
+	public void setSnapshotStore(SnapshotStore snapshotStore) {
+		this.snapshotStore = snapshotStore;
+	}
+
+	/**
+	 * Gets the cache of the labels read from the tokens.
+	 * 
+	 * @return {@link TokenCache}
+	 */
+	public TokenCache getTokenCache() {
+		return tokenCache;
+	}
+
+	/**
+	 * Reads every slot (reader) with a token, using the library that worked
+	 * last time or the first one able to list the slots.
+	 * 
+	 * @return list of {@link SlotResult}, one per slot
+	 * @see #getSlotResults(String)
+	 */
+	public List<SlotResult> getSlotResults() {
+		RuntimeException lastException = null;
 		
-		int slotReturn = Pkcs11Wrapper.C_GetSlotList(1, Pointer.NULL, slotsCount);
-		if (slotReturn != 0) {
-			LOGGER.error(slotReturn + " : Return SLOT LENGTH");
-			throw new RuntimeException("Failed to Get Slot Length: " + slotReturn);
+		for (String lib : getCandidates()) {
+			try {
+				List<SlotResult> results = getSlotResults(lib);
+				setPreferredLib(lib);
+				return results;
+			} catch (RuntimeException ex) {
+				lastException = ex;
+			}
 		}
 		
-		LOGGER.debug(slotsCount.getValue() + " : Quantity of slots connected");
-		if(slotsCount.getValue().longValue() == 0) {
+		throw lastException;
+	}
+
+	/**
+	 * Reads the labels of the certificates from every slot (reader) with a 
+	 * token using the native library located in the passed path.
+	 * The slots are read in parallel, up to {@link #MAX_PARALLEL_SLOTS} 
+	 * at once. A failure in one slot is kept in its result and doesn't
+	 * affect the others.
+	 * 
+	 * @param libPath
+	 * @return list of {@link SlotResult}, one per slot, in the order 
+	 * returned by the library
+	 */
+	public List<SlotResult> getSlotResults(String libPath) {
+
+		Pkcs11Module module = getModule(libPath);
+
+		long[] slotIds = module.getTokenSlotIds();
+		if (slotIds.length == 0) {
 			throw new RuntimeException("No smart card slot detected. Is the reader connected?");
 		}
 		
-		Pointer slotIds = new Memory(slotsCount.getValue().longValue() * NativeLong.SIZE);
-		
-		slotReturn = Pkcs11Wrapper.C_GetSlotList(1, slotIds, slotsCount);
-		if (slotReturn != 0) {
-			LOGGER.error(slotReturn + " : Return SLOT LIST");
-			throw new RuntimeException("Failed to Get Slot List: " + slotReturn);
+		List<SlotResult> results = new ArrayList<>(slotIds.length);
+		if (slotIds.length == 1) {
+			results.add(readSlot(module, slotIds[0]));
+			return results;
 		}
 
-		long slotId;
-		if(NativeLong.SIZE == 4) {
-			slotId = slotIds.getInt(0);
-		} else {
-			slotId = slotIds.getLong(0);
+		ExecutorService executor = getSlotExecutor();
+		List<Future<SlotResult>> futures = new ArrayList<>(slotIds.length);
+		for (long slotId : slotIds) {
+			futures.add(executor.submit(() -> readSlot(module, slotId)));
 		}
-		
-		LOGGER.debug(slotId + " : first slot ID");
-		return slotId;
+
+		for (int i = 0; i < slotIds.length; i++) {
+			try {
+				results.add(futures.get(i).get());
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				for (Future<SlotResult> future : futures) {
+					future.cancel(true);
+				}
+				throw new RuntimeException("Interrupted while reading the smart card slots", ex);
+			} catch (ExecutionException ex) {
+				results.add(new SlotResult(slotIds[i], null, new RuntimeException(ex.getCause())));
+			}
+		}
+		return results;
+	}
+
+	private synchronized ExecutorService getSlotExecutor() {
+		if (slotExecutor == null) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_PARALLEL_SLOTS, MAX_PARALLEL_SLOTS, 
+					30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new DaemonThreadFactory("pkcs11-slot"));
+			executor.allowCoreThreadTimeOut(true);
+			slotExecutor = executor;
+		}
+		return slotExecutor;
 	}
 
 	/**
-	 * Begins a new session to access the smart card.
+	 * Reads the token info and the labels of a single slot.
+	 * The token info is always read, since it is cheap, and its serial number
+	 * tells if the token is still the one in the cache. Without the labels in
+	 * the cache, they are taken from the {@link TokenSnapshot} of the token,
+	 * if there is a current one, or all the public objects are read and kept
+	 * in a new snapshot.
+	 * 
+	 * @param module
 	 * @param slotId
-	 * @return long with the ID of the new session
-	 * @throws CertificadoException 
-	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc72656119
+	 * @return {@link SlotResult}, with the error if it failed
 	 */
-	private static long beginNewSession(long slotId) {
-		LOGGER.debug("Begining new SESSION for slot " + slotId);
-		Pointer pApplication = new Memory(1024);
-		NativeLongByReference sessionId = new NativeLongByReference();
-		int sessionReturn = Pkcs11Wrapper.C_OpenSession(new NativeLong(slotId), new NativeLong(Pkcs11Wrapper.SERIAL_SESSION), pApplication, Pointer.NULL, sessionId);
-
-		if (sessionReturn != 0) {
-			LOGGER.error(sessionReturn + " : Return OPEN SESSION");
-			throw new RuntimeException("Failed to Open Session: " + sessionReturn);
+	private SlotResult readSlot(Pkcs11Module module, long slotId) {
+		TokenInfo tokenInfo = null;
+		try {
+			tokenInfo = module.getTokenInfo(slotId);
+			
+			SlotResult cached = tokenCache.get(module.getLibPath(), slotId, tokenInfo.getSerialNumber());
+			if (cached != null) {
+				LOGGER.debug("Labels of slot {} found in the cache", slotId);
+				return cached;
+			}
+			
+			LabelNormalizer normalizer = labelNormalizer;
+			SnapshotStore store = snapshotStore;
+			List<String> labels;
+			if (store == null) {
+				labels = inSession(module, slotId, session -> readLabels(session, normalizer));
+			} else {
+				TokenSnapshot snapshot = store.get(tokenInfo);
+				if (snapshot != null) {
+					LOGGER.debug("Labels of slot {} found in the snapshot", slotId);
+				} else {
+					List<SnapshotObject> objects = inSession(module, slotId, NativeReader::readPublicObjects);
+					snapshot = store.put(tokenInfo, objects);
+				}
+				labels = readLabels(snapshot, normalizer);
+			}
+			SlotResult result = new SlotResult(slotId, tokenInfo, labels);
+			tokenCache.put(module.getLibPath(), tokenInfo.getSerialNumber(), result);
+			return result;
+			
+		} catch (RuntimeException ex) {
+			if (ex instanceof Pkcs11Exception && ((Pkcs11Exception) ex).isSessionLost()) {
+				tokenCache.invalidate(module.getLibPath(), slotId);
+				module.resetTokenSlotId();
+			}
+			LOGGER.debug("Failed to read slot {}", slotId, ex);
+			return new SlotResult(slotId, tokenInfo, ex);
 		}
-
-		LOGGER.debug(sessionId.getValue() + " : Session ID");
-		return sessionId.getValue().longValue();
 	}
 
 	/**
-	 * Initializes the search mechanism for certificates.
-	 * A filter is applied for the future search results.
-	 * Only certificates with the attribute CKA_CERTIFICATE_TYPE = 0 will be
-	 * returned.
-	 * @param sessionId
-	 * @throws CertificadoException 
-	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323205460
+	 * Gets the current snapshot of the token in the slot, reading only the
+	 * token info.
+	 * 
+	 * @param module
+	 * @param slotId
+	 * @return {@link TokenSnapshot} or null if disabled or there is none
 	 */
-	private static void initFind(long sessionId) {
-		LOGGER.debug("Initializing SEARCH");
-		
-		ByteBuffer buffer = ByteBuffer.allocate(NativeLong.SIZE);
-		if(NativeLong.SIZE == 4) {
-			buffer.putInt(0);
-		} else {
-			buffer.putLong(0L);
+	private TokenSnapshot getSnapshot(Pkcs11Module module, long slotId) {
+		SnapshotStore store = snapshotStore;
+		if (store == null) {
+			return null;
 		}
-		
-		CK_ATTRIBUTE filter = new CK_ATTRIBUTE(0x80L, NativeLong.SIZE);
-		filter.pValue = buffer.array();
-		CK_ATTRIBUTE[] filters = new CK_ATTRIBUTE[]{filter};
-		
-		CK_ATTRIBUTE.Native nativeAttr = new CK_ATTRIBUTE.Native(filters);
-
-		int findInitReturn = Pkcs11Wrapper.C_FindObjectsInit(new NativeLong(sessionId), nativeAttr, filters.length);
-
-		if (findInitReturn != 0) {
-			LOGGER.error(findInitReturn + " : Return INIT FIND");
-			throw new RuntimeException("Failed to Find Init: " + findInitReturn);
+		TokenSnapshot snapshot = store.get(module.getTokenInfo(slotId));
+		if (snapshot != null) {
+			LOGGER.debug("Certificates of slot {} found in the snapshot", slotId);
 		}
+		return snapshot;
 	}
 
 	/**
-	 * Completes the search and return the results.
-	 * @param sessionId
-	 * @return array of long with maximum of 30 objects (certificates)
-	 * @throws CertificadoException 
-	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323205461
+	 * Runs an operation with a session borrowed from the pool of the slot.
+	 * If the session was lost, usually because the token was removed, it is
+	 * discarded and the slot is looked up again on the next call.
+	 * 
+	 * @param <T>
+	 * @param module
+	 * @param slotId
+	 * @param operation receives the session
+	 * @return the result of the operation
 	 */
-	private static long[] findObjects(long sessionId) {
-		LOGGER.debug("Finding OBJETOS");
-		//Max of 30 objects read from the smart card
-		Pointer objectIds = new Memory(30 * NativeLong.SIZE);
-		NativeLongByReference objectsCount = new NativeLongByReference();
-		int findReturn = Pkcs11Wrapper.C_FindObjects(new NativeLong(sessionId), objectIds, 30, objectsCount);
-
-		if (findReturn != 0) {
-			LOGGER.error(findReturn + " : Return FIND");
-			throw new RuntimeException("Failed to Find: " + findReturn);
+	private static <T> T inSession(Pkcs11Module module, long slotId, Function<Pkcs11Session, T> operation) {
+		Pkcs11Api pkcs11 = module.getApi();
+		SessionPool pool = module.getSessionPool(slotId);
+
+		long sessionId;
+		try {
+			sessionId = pool.borrow();
+		} catch (Pkcs11Exception ex) {
+			//the token may have been removed or moved to another reader
+			module.resetTokenSlotId();
+			throw ex;
 		}
 
-		LOGGER.debug(objectsCount.getValue() + " : Quantity of objects returned from the smart card");
-		long[] objectIdsArr = new long[(int)objectsCount.getValue().longValue()];
-		for(int i = 0; i < objectIdsArr.length; i++) {
-			if(NativeLong.SIZE == 4) {
-				objectIdsArr[i] = objectIds.getInt(i * NativeLong.SIZE);
+		try {
+			T result = operation.apply(new Pkcs11Session(pkcs11, sessionId));
+			pool.release(sessionId);
+			return result;
+
+		} catch (Pkcs11Exception ex) {
+			if (ex.isSessionLost()) {
+				pool.invalidate(sessionId);
+				module.resetTokenSlotId();
 			} else {
-				objectIdsArr[i] = objectIds.getLong(i * NativeLong.SIZE);
+				pool.release(sessionId);
 			}
+			throw ex;
+
+		} catch (RuntimeException ex) {
+			pool.release(sessionId);
+			throw ex;
 		}
-		
-		return objectIdsArr;
 	}
 
 	/**
-	 * Gets the label of the object (certificate) for the informed ID.
-	 * The attribute for the label is <em>CKA_LABEL = 0x3L</em>.
-	 * @param sessionId
-	 * @param objectId
-	 * @return {@link String} with the label of the certificate.
-	 * @throws CertificadoException 
-	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323024125
+	 * Get the labels from the certificates using an open session.
+	 * 
+	 * @param session
+	 * @param normalizer
+	 * @return list of {@link String} with the labels, in the order they 
+	 * were found
 	 */
-	private static String getObjectLabel(long sessionId, long objectId) {
-		LOGGER.trace("Getting LABEL obj ID " + objectId);
-		//field CKA_LABEL
-		CK_ATTRIBUTE attr = new CK_ATTRIBUTE(0x3L);
-		CK_ATTRIBUTE[] attrs = new CK_ATTRIBUTE[]{attr};
-		
-		CK_ATTRIBUTE.Native nativeAttrs = new CK_ATTRIBUTE.Native(attrs);
-		
-		int attrReturn = Pkcs11Wrapper.C_GetAttributeValue(new NativeLong(sessionId), new NativeLong(objectId), nativeAttrs, attrs.length);
+	private static List<String> readLabels(Pkcs11Session session, LabelNormalizer normalizer) {
+		List<String> labels = new ArrayList<>();
 
-		if (attrReturn != 0) {
-			LOGGER.trace(attrReturn + " : Return ATTRIBUTE LENGTH (obj " + objectId + " / size " + attr.ulValueLen + ")");
-			throw new RuntimeException("Failed to get Attribute Value (obj " + objectId + "): " + attrReturn);
+		try (ObjectIterator objectIds = session.find(certificateFilter())) {
+			LOGGER.debug("Getting LABEL");
+			while (objectIds.hasNext()) {
+				long objectId = objectIds.nextLong();
+				try {
+					labels.add(normalizer.normalize(session.getObjectLabel(objectId)));
+				} catch (RuntimeException ex) {
+					if (ex instanceof Pkcs11Exception && ((Pkcs11Exception) ex).isSessionLost()) {
+						throw ex;
+					}
+					//if an error occur, continue
+					//to the next certificate.
+				}
+			}
 		}
-
-		attrs = nativeAttrs.refresh();
-		attr = attrs[0];
 		
-		if (attr.ulValueLen == 0) {
-			LOGGER.trace(attrReturn + " : Return ATTRIBUTE LENGTH (obj " + objectId + " / size " + attr.ulValueLen + ")");
-			throw new RuntimeException("Failed to get Attribute Value (obj " + objectId + "): no return");
+		return labels;
+	}
+
+	/**
+	 * Get the labels from the certificates of a snapshot, like 
+	 * {@link #readLabels(Pkcs11Session, LabelNormalizer)}.
+	 * 
+	 * @param snapshot
+	 * @param normalizer
+	 * @return list of {@link String} with the labels, in the order they 
+	 * were found
+	 */
+	private static List<String> readLabels(TokenSnapshot snapshot, LabelNormalizer normalizer) {
+		List<String> labels = new ArrayList<>();
+		for (int i = 0; i < snapshot.size(); i++) {
+			String label = snapshot.getLabel(i);
+			//certificates without a label are skipped, like when reading the token
+			if (snapshot.getCertificateType(i) == Pkcs11Wrapper.CKC_X_509 && label != null && !label.isEmpty()) {
+				labels.add(normalizer.normalize(label));
+			}
 		}
-		
-		attr = new CK_ATTRIBUTE(attr.type, attr.ulValueLen);
-		attrs = new CK_ATTRIBUTE[]{attr};
-		nativeAttrs = new CK_ATTRIBUTE.Native(attrs);
-		
-		attrReturn = Pkcs11Wrapper.C_GetAttributeValue(new NativeLong(sessionId), new NativeLong(objectId), nativeAttrs, attrs.length);
-		
-		if (attrReturn != 0) {
-			LOGGER.trace(attrReturn + " : Return ATTRIBUTE VALUE (obj " + objectId + " / size " + attr.ulValueLen + ")");
-			throw new RuntimeException("Failed to get Attribute Value (obj " + objectId + "): " + attrReturn);
+		return labels;
+	}
+
+	/**
+	 * Reads every public object of the token using an open session, to be
+	 * kept in a {@link TokenSnapshot}. The private objects aren't visible
+	 * without login, but those flagged as <em>CKA_PRIVATE</em> are skipped
+	 * anyway. Objects that can't be read are skipped.
+	 * 
+	 * @param session
+	 * @return list of {@link SnapshotObject}, in the order they were found
+	 */
+	private static List<SnapshotObject> readPublicObjects(Pkcs11Session session) {
+		List<SnapshotObject> objects = new ArrayList<>();
+
+		try (ObjectIterator objectIds = session.find()) {
+			LOGGER.debug("Getting PUBLIC OBJECTS");
+			while (objectIds.hasNext()) {
+				long objectId = objectIds.nextLong();
+				try {
+					AttributeArena arena = session.readAttributes(objectId, Pkcs11Wrapper.CKA_CLASS, 
+							Pkcs11Wrapper.CKA_PRIVATE, Pkcs11Wrapper.CKA_CERTIFICATE_TYPE, 
+							Pkcs11Wrapper.CKA_ID, Pkcs11Wrapper.CKA_LABEL, Pkcs11Wrapper.CKA_VALUE);
+					if (arena.getBoolean(1)) {
+						continue;
+					}
+					ByteBuffer label = arena.getValue(4);
+					objects.add(new SnapshotObject(objectId, arena.getLong(0), arena.getLong(2), arena.getBytes(3),
+							label == null ? null : Pkcs11Session.decodeLabel(label), arena.getBytes(5)));
+				} catch (RuntimeException ex) {
+					if (ex instanceof Pkcs11Exception && ((Pkcs11Exception) ex).isSessionLost()) {
+						throw ex;
+					}
+					//if an error occur, continue
+					//to the next object.
+				}
+			}
 		}
-		
-		attrs = nativeAttrs.refresh();
-		attr = attrs[0];
 
-		LOGGER.trace(new String(attr.pValue) + " : PVALUE (type " + attr.type + ", size " + attr.ulValueLen + ")");
-		return new String(attr.pValue);
+		return objects;
 	}
 
 	/**
-	 * Finalizes the search for objects.
-	 * @param sessionId 
+	 * Reads the public attributes of each certificate using an open session.
+	 * Certificates that can't be read are skipped.
+	 * 
+	 * @param session
+	 * @param consumer receives each certificate, in the order they are found
 	 */
-	private static void endFind(long sessionId) {
-		LOGGER.debug("Ending FIND");
-		int findFinalReturn = Pkcs11Wrapper.C_FindObjectsFinal(new NativeLong(sessionId));
-		if (findFinalReturn != 0) {
-			LOGGER.error(findFinalReturn + " : Return FIND FINAL");
+	private static void readCertificates(Pkcs11Session session, Consumer<CertificateObject> consumer) {
+		try (ObjectIterator objectIds = session.find(certificateFilter())) {
+			LOGGER.debug("Getting CERTIFICATES");
+			while (objectIds.hasNext()) {
+				long objectId = objectIds.nextLong();
+				CertificateObject certificate;
+				try {
+					AttributeArena arena = session.readAttributes(objectId, 
+							Pkcs11Wrapper.CKA_ID, Pkcs11Wrapper.CKA_LABEL, Pkcs11Wrapper.CKA_VALUE);
+					byte[] encoded = arena.getBytes(2);
+					if (encoded == null || encoded.length == 0) {
+						continue;
+					}
+					ByteBuffer label = arena.getValue(1);
+					certificate = new CertificateObject(objectId, arena.getBytes(0), 
+							label == null ? null : Pkcs11Session.decodeLabel(label), encoded);
+				} catch (RuntimeException ex) {
+					if (ex instanceof Pkcs11Exception && ((Pkcs11Exception) ex).isSessionLost()) {
+						throw ex;
+					}
+					//if an error occur, continue
+					//to the next certificate.
+					continue;
+				}
+				consumer.accept(certificate);
+			}
 		}
 	}
 
 	/**
-	 * Closes the session and the access to the smart card.
-	 * @param sessionId 
+	 * Builds the chain of each certificate and returns the longest one.
+	 * Each certificate is linked to the one whose subject is its issuer, until
+	 * a self signed certificate or an issuer not present in the list. On a tie
+	 * the first certificate found wins.
+	 * 
+	 * @param certificates
+	 * @return array of {@link X509Certificate}, starting with the certificate
+	 * of the chain
 	 */
-	private static void closeSession(long sessionId) {
-		LOGGER.debug("Closing SESSION");
-		int closeReturn = Pkcs11Wrapper.C_CloseSession(new NativeLong(sessionId));
-		if (closeReturn != 0) {
-			LOGGER.error(closeReturn + " : Return CLOSE SESSION");
+	private static X509Certificate[] longestChain(List<CertificateObject> certificates) {
+		Map<X500Principal, X509Certificate> bySubject = new HashMap<>();
+		for (CertificateObject object : certificates) {
+			X509Certificate certificate = object.getCertificate();
+			bySubject.putIfAbsent(certificate.getSubjectX500Principal(), certificate);
+		}
+
+		List<X509Certificate> longest = null;
+		for (CertificateObject object : certificates) {
+			List<X509Certificate> chain = new ArrayList<>();
+			X509Certificate current = object.getCertificate();
+			while (current != null && !chain.contains(current)) {
+				chain.add(current);
+				X500Principal issuer = current.getIssuerX500Principal();
+				current = issuer.equals(current.getSubjectX500Principal()) ? null : bySubject.get(issuer);
+			}
+			if (longest == null || longest.size() < chain.size()) {
+				longest = chain;
+			}
 		}
+		return longest.toArray(new X509Certificate[longest.size()]);
 	}
 
 	/**
-	 * Finalizes the PKCS11 wrapper.
+	 * Filter for the search of certificates.
+	 * Only certificates with the attribute CKA_CERTIFICATE_TYPE = 0 (X.509)
+	 * will be returned.
+	 * @return array of {@link CK_ATTRIBUTE} with the filter
 	 */
-	private static void finalizePkcs11() {
-		LOGGER.debug("Finalizing LIB");
-		int finalizeReturn = Pkcs11Wrapper.C_Finalize(Pointer.NULL);
-		if (finalizeReturn != 0) {
-			LOGGER.error(finalizeReturn + " : Return FINALIZE");
-		}
+	private static CK_ATTRIBUTE[] certificateFilter() {
+		return new CK_ATTRIBUTE[]{CK_ATTRIBUTE.ofLong(Pkcs11Wrapper.CKA_CERTIFICATE_TYPE, 0L)};
 	}
 }
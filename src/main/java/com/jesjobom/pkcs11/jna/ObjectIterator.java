@@ -0,0 +1,119 @@
+package com.jesjobom.pkcs11.jna;
+
+import com.jesjobom.pkcs11.utils.NativeLongUtils;
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLong;
+import java.io.Closeable;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Iterates over the objects found in a search, calling <em>C_FindObjects</em>
+ * for a page of objects at a time until the token has no more. The same native
+ * buffer is used for every page.
+ * <br>
+ * The search is finalized when all the objects were read or when the iterator
+ * is closed, so the consumer can stop early. Only one search can be active in
+ * a session, so the iterator must be closed before the next one.
+ *
+ * @author jesjobom
+ * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323205461
+ */
+public class ObjectIterator implements PrimitiveIterator.OfLong, Closeable {
+
+	private static final Logger LOGGER = LogManager.getLogger(ObjectIterator.class);
+
+	public static final int DEFAULT_PAGE_SIZE = 32;
+
+	private final Pkcs11Session session;
+
+	private final int pageSize;
+
+	private final Memory objectIds;
+
+	private final Memory objectsCount = NativeLongUtils.allocate();
+
+	private int pageCount = 0;
+
+	private int pageIndex = 0;
+
+	private boolean finished = false;
+
+	/**
+	 * Begins the search in the session.
+	 *
+	 * @param session
+	 * @param pageSize maximum of objects returned by each call to the library
+	 * @param filters attributes with the expected values
+	 */
+	ObjectIterator(Pkcs11Session session, int pageSize, CK_ATTRIBUTE... filters) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("The page size must be positive: " + pageSize);
+		}
+		this.session = session;
+		this.pageSize = pageSize;
+		this.objectIds = new Memory(pageSize * NativeLong.SIZE);
+		session.initFind(filters);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (pageIndex < pageCount) {
+			return true;
+		}
+		if (finished) {
+			return false;
+		}
+		readPage();
+		return pageIndex < pageCount;
+	}
+
+	@Override
+	public long nextLong() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		long objectId = NativeLongUtils.read(objectIds, pageIndex * NativeLong.SIZE);
+		pageIndex++;
+		return objectId;
+	}
+
+	/**
+	 * Finalizes the search, if not yet.
+	 */
+	@Override
+	public void close() {
+		if (!finished) {
+			finished = true;
+			pageCount = 0;
+			pageIndex = 0;
+			session.endFind();
+		}
+	}
+
+	private void readPage() {
+		LOGGER.debug("Finding OBJETOS (page of {})", pageSize);
+		int findReturn;
+		try {
+			findReturn = session.getApi().C_FindObjects(session.getSessionId(), objectIds, pageSize, objectsCount);
+		} catch (RuntimeException ex) {
+			close();
+			throw ex;
+		}
+
+		if (findReturn != Pkcs11Wrapper.CKR_OK) {
+			LOGGER.error(findReturn + " : Return FIND");
+			close();
+			throw new Pkcs11Exception("Failed to Find", findReturn);
+		}
+
+		pageCount = (int) NativeLongUtils.read(objectsCount, 0);
+		LOGGER.debug("{} : Quantity of objects returned from the smart card", pageCount);
+		pageIndex = 0;
+		if (pageCount == 0) {
+			close();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.jesjobom.pkcs11.jna;
+
+import com.sun.jna.Pointer;
+
+/**
+ * The functions of the native PKCS11 library used by this project, with
+ * primitive arguments. Every CK_ULONG is passed as a <code>long</code> and 
+ * converted to 4 or 8 bytes by the implementation, and every output argument
+ * is a {@link Pointer} to memory owned by the caller, so no wrapper object is
+ * needed for the calls.
+ * <br>
+ * The implementations are chosen by {@link Pkcs11Binding}.
+ *
+ * @author jesjobom
+ * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html
+ */
+public interface Pkcs11Api {
+
+	int C_Initialize(Pointer args);
+
+	int C_Finalize(Pointer reserved);
+
+	int C_GetSlotList(boolean tokenPresent, Pointer slotList, Pointer count);
+
+	int C_GetTokenInfo(long slotId, Pointer info);
+
+	int C_WaitForSlotEvent(long flags, Pointer slotId, Pointer reserved);
+
+	int C_OpenSession(long slotId, long flags, Pointer app, Pointer notify, Pointer sessionId);
+
+	int C_CloseSession(long sessionId);
+
+	int C_GetSessionInfo(long sessionId, Pointer info);
+
+	int C_FindObjectsInit(long sessionId, Pointer template, long count);
+
+	int C_FindObjects(long sessionId, Pointer objectIds, long maxCount, Pointer count);
+
+	int C_FindObjectsFinal(long sessionId);
+
+	int C_GetAttributeValue(long sessionId, long objectId, Pointer template, long count);
+
+	int C_Login(long sessionId, long userType, Pointer pin, long pinLength);
+
+	int C_Logout(long sessionId);
+
+	int C_SignInit(long sessionId, Pointer mechanism, long keyId);
+
+	int C_Sign(long sessionId, Pointer data, long dataLength, Pointer signature, Pointer signatureLength);
+
+	int C_SignUpdate(long sessionId, Pointer part, long partLength);
+
+	int C_SignFinal(long sessionId, Pointer signature, Pointer signatureLength);
+
+	int C_DigestInit(long sessionId, Pointer mechanism);
+
+	int C_DigestUpdate(long sessionId, Pointer part, long partLength);
+
+	int C_DigestFinal(long sessionId, Pointer digest, Pointer digestLength);
+
+	int C_DecryptInit(long sessionId, Pointer mechanism, long keyId);
+
+	int C_DecryptUpdate(long sessionId, Pointer encryptedPart, long encryptedPartLength, Pointer part, Pointer partLength);
+
+	int C_DecryptFinal(long sessionId, Pointer lastPart, Pointer lastPartLength);
+}
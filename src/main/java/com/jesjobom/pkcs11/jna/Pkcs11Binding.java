@@ -0,0 +1,84 @@
+package com.jesjobom.pkcs11.jna;
+
+import com.jesjobom.pkcs11.replay.ReplayApi;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+
+/**
+ * The ways to bind a native library to {@link Pkcs11Api}, chosen by the
+ * system property {@value #PROPERTY} (<code>function</code> by default).
+ *
+ * @author jesjobom
+ */
+public enum Pkcs11Binding {
+
+	/**
+	 * Interface mapping of {@link Pkcs11Wrapper}, see {@link LibraryApi}.
+	 */
+	LIBRARY {
+		@Override
+		public Pkcs11Api create(String libPath) {
+			return new LibraryApi(libPath);
+		}
+	},
+	/**
+	 * Function handles from <em>C_GetFunctionList</em> called with primitive
+	 * arguments, see {@link FunctionApi}. Covers every function of PKCS11
+	 * and has less overhead per call.
+	 */
+	FUNCTION {
+		@Override
+		public Pkcs11Api create(String libPath) {
+			return new FunctionApi(libPath);
+		}
+	},
+	/**
+	 * No native library: the path is of a trace recorded by
+	 * {@link com.jesjobom.pkcs11.replay.Pkcs11Recorder}, served by
+	 * {@link ReplayApi} as if it was the token.
+	 */
+	REPLAY {
+		@Override
+		public Pkcs11Api create(String libPath) {
+			return ReplayApi.open(libPath);
+		}
+	};
+
+	public static final String PROPERTY = "com.jesjobom.pkcs11.binding";
+
+	/**
+	 * Loads the library with this binding.
+	 *
+	 * @param libPath path to the native library
+	 * @return {@link Pkcs11Api} bound to the library
+	 */
+	public abstract Pkcs11Api create(String libPath);
+
+	/**
+	 * Gets the binding configured by the system property {@value #PROPERTY}.
+	 *
+	 * @return {@link Pkcs11Binding}
+	 */
+	public static Pkcs11Binding getDefault() {
+		return valueOf(System.getProperty(PROPERTY, FUNCTION.name()).trim().toUpperCase());
+	}
+
+	/**
+	 * Serializes every call to the library, for libraries that can't be called
+	 * by many threads at once.
+	 *
+	 * @param api
+	 * @return {@link Pkcs11Api} synchronized on the passed one
+	 */
+	public static Pkcs11Api synchronize(Pkcs11Api api) {
+		return (Pkcs11Api) Proxy.newProxyInstance(Pkcs11Api.class.getClassLoader(), new Class<?>[]{Pkcs11Api.class}, (proxy, method, args) -> {
+			synchronized (api) {
+				try {
+					return method.invoke(api, args);
+				} catch (InvocationTargetException ex) {
+					throw ex.getCause();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,39 @@
+package com.jesjobom.pkcs11.jna;
+
+/**
+ * Failure returned by a function of the native PKCS11 library.
+ * Keeps the return value (CKR_*) so callers can react to specific errors,
+ * like a session closed by the removal of the token.
+ *
+ * @author jesjobom
+ * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323024167
+ */
+public class Pkcs11Exception extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int returnValue;
+
+	public Pkcs11Exception(String message, int returnValue) {
+		super(message + ": " + returnValue);
+		this.returnValue = returnValue;
+	}
+
+	public int getReturnValue() {
+		return returnValue;
+	}
+
+	/**
+	 * Whether the error means that the session can't be used anymore, 
+	 * usually because the token or the reader was removed.
+	 * 
+	 * @return true if the session should be discarded
+	 */
+	public boolean isSessionLost() {
+		return returnValue == Pkcs11Wrapper.CKR_SLOT_ID_INVALID
+				|| returnValue == Pkcs11Wrapper.CKR_SESSION_HANDLE_INVALID
+				|| returnValue == Pkcs11Wrapper.CKR_SESSION_CLOSED
+				|| returnValue == Pkcs11Wrapper.CKR_DEVICE_REMOVED
+				|| returnValue == Pkcs11Wrapper.CKR_TOKEN_NOT_PRESENT;
+	}
+}
@@ -0,0 +1,403 @@
+package com.jesjobom.pkcs11.jna;
+
+import com.jesjobom.pkcs11.metrics.Pkcs11Metrics;
+import com.jesjobom.pkcs11.replay.Pkcs11Recorder;
+import com.jesjobom.pkcs11.utils.NativeLongUtils;
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A PKCS11 native library loaded and initialized once and kept open across
+ * calls. Loading the library and running <em>C_Initialize</em> is the most
+ * expensive part of a lookup, so it is done only when the module is first
+ * requested and undone only by {@link #close()} or on JVM shutdown.
+ * <br>
+ * The module is shared by every reader of the library in the JVM. A reader
+ * that keeps it for its lifetime holds it with {@link #acquire(String)} and
+ * lets go with {@link #release()}, so the library is only finalized by the
+ * last one.
+ * <br>
+ * <strong>Concurrency:</strong> each library gets its own
+ * {@link Pkcs11Api} instance, bound as configured by {@link Pkcs11Binding}, so modules of different libraries can be
+ * used at the same time. The library is initialized with
+ * <em>CKF_OS_LOCKING_OK</em>, allowing many threads to call it at once. When
+ * the library can't use the OS locking (<em>CKR_CANT_LOCK</em>) it is
+ * initialized without arguments and every call to it is serialized on the
+ * api instance, which still doesn't block the other libraries.
+ * A session must be used by a single thread at a time, which is what
+ * {@link SessionPool} guarantees. The login, shared by every session with a
+ * token, is kept by its {@link TokenAuthenticator}.
+ * <br>
+ * When {@link Pkcs11Metrics} is enabled every call to the library is
+ * measured, and when {@link Pkcs11Recorder} is enabled it is recorded.
+ *
+ * @author jesjobom
+ */
+public class Pkcs11Module implements Closeable {
+
+	private static final Logger LOGGER = LogManager.getLogger(Pkcs11Module.class);
+
+	private static final Map<String, Pkcs11Module> MODULES = new ConcurrentHashMap<>();
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(Pkcs11Module::closeAll, "pkcs11-module-shutdown"));
+	}
+
+	private final String libPath;
+
+	private Pkcs11Api library;
+
+	private volatile Pkcs11Api pkcs11;
+
+	private volatile boolean initialized = false;
+
+	private boolean ownsInitialization = false;
+
+	private boolean osLocking = false;
+
+	private Long tokenSlotId;
+
+	private int holders = 0;
+
+	private final Map<Long, SessionPool> sessionPools = new ConcurrentHashMap<>();
+
+	private final Map<Long, TokenAuthenticator> authenticators = new ConcurrentHashMap<>();
+
+	private Pkcs11Module(String libPath) {
+		this.libPath = libPath;
+	}
+
+	/**
+	 * Gets the module for the native library in the passed path, loading and
+	 * initializing it if needed.
+	 *
+	 * @param libPath path to the native library
+	 * @return initialized {@link Pkcs11Module}
+	 */
+	public static Pkcs11Module getInstance(String libPath) {
+		Pkcs11Module module = MODULES.computeIfAbsent(libPath, Pkcs11Module::new);
+		module.open();
+		return module;
+	}
+
+	/**
+	 * Gets the module for the native library in the passed path like
+	 * {@link #getInstance(String)}, holding it initialized until
+	 * {@link #release()}.
+	 *
+	 * @param libPath path to the native library
+	 * @return initialized {@link Pkcs11Module}
+	 */
+	public static Pkcs11Module acquire(String libPath) {
+		Pkcs11Module module = MODULES.computeIfAbsent(libPath, Pkcs11Module::new);
+		module.hold();
+		return module;
+	}
+
+	/**
+	 * Gets the module for the native library in the passed path only if it
+	 * was already requested before, without loading it.
+	 *
+	 * @param libPath path to the native library
+	 * @return {@link Pkcs11Module} or null
+	 */
+	public static Pkcs11Module getLoadedInstance(String libPath) {
+		return MODULES.get(libPath);
+	}
+
+	/**
+	 * Closes every module still open.
+	 */
+	public static void closeAll() {
+		for (Pkcs11Module module : MODULES.values()) {
+			module.close();
+		}
+	}
+
+	/**
+	 * Lets go of the module held by {@link #acquire(String)}, closing it when
+	 * no one else holds it.
+	 */
+	public synchronized void release() {
+		if (holders == 0) {
+			throw new IllegalStateException("PKCS11 module " + libPath + " is not held.");
+		}
+		holders--;
+		if (holders == 0) {
+			close();
+		}
+	}
+
+	public String getLibPath() {
+		return libPath;
+	}
+
+	public boolean isInitialized() {
+		return initialized;
+	}
+
+	/**
+	 * Whether the library was initialized with <em>CKF_OS_LOCKING_OK</em>.
+	 * If not, the calls to this library are serialized.
+	 *
+	 * @return true if the library can be called by many threads at once
+	 */
+	public boolean isOsLocking() {
+		return osLocking;
+	}
+
+	/**
+	 * Gets the functions bound to this library.
+	 *
+	 * @return {@link Pkcs11Api}
+	 */
+	public Pkcs11Api getApi() {
+		if (!initialized) {
+			throw new IllegalStateException("PKCS11 module " + libPath + " is closed.");
+		}
+		return pkcs11;
+	}
+
+	/**
+	 * Get the ID of the first smart card slot (reader) that contains a token.
+	 * There's no known order to the smart card slots.
+	 * The ID is kept until {@link #resetTokenSlotId()} so repeated lookups
+	 * don't need to list the slots again.
+	 *
+	 * @return long with the ID for the first slot
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323024105
+	 */
+	public synchronized long getFirstTokenSlotId() {
+		if (tokenSlotId == null) {
+			tokenSlotId = readFirstTokenSlotId();
+		}
+		return tokenSlotId;
+	}
+
+	/**
+	 * Forgets the slot ID so the next lookup lists the slots again, closing
+	 * the idle sessions of that slot.
+	 * Should be used when the token was removed or moved to another reader.
+	 */
+	public synchronized void resetTokenSlotId() {
+		if (tokenSlotId != null) {
+			SessionPool pool = sessionPools.get(tokenSlotId);
+			if (pool != null) {
+				pool.clear();
+			}
+		}
+		tokenSlotId = null;
+	}
+
+	/**
+	 * Gets the pool of read only sessions for the slot, creating it if needed.
+	 *
+	 * @param slotId
+	 * @return {@link SessionPool}
+	 */
+	public SessionPool getSessionPool(long slotId) {
+		Pkcs11Api api = getApi();
+		return sessionPools.computeIfAbsent(slotId, id -> new SessionPool(api, id));
+	}
+
+	/**
+	 * Gets the login of the token in the slot, creating it if needed. It has
+	 * no PIN until {@link TokenAuthenticator#setPin(char[])}.
+	 *
+	 * @param slotId
+	 * @return {@link TokenAuthenticator}
+	 */
+	public TokenAuthenticator getAuthenticator(long slotId) {
+		getApi();
+		return authenticators.computeIfAbsent(slotId, id -> new TokenAuthenticator(this, id));
+	}
+
+	/**
+	 * Forgets the login of the slot and wipes its PIN, so it isn't tried with
+	 * another token. Should be used when the token was removed.
+	 *
+	 * @param slotId
+	 */
+	public void discardAuthenticator(long slotId) {
+		TokenAuthenticator authenticator = authenticators.remove(slotId);
+		if (authenticator != null) {
+			authenticator.discard();
+		}
+	}
+
+	/**
+	 * Finalizes the library, which also logs out every token and wipes their
+	 * PINs, even if it is still held. The module can still be opened again by
+	 * {@link #getInstance(String)}.
+	 */
+	@Override
+	public synchronized void close() {
+		if (!initialized) {
+			return;
+		}
+		initialized = false;
+		tokenSlotId = null;
+
+		//C_Finalize closes every session
+		for (SessionPool pool : sessionPools.values()) {
+			pool.discard();
+		}
+		sessionPools.clear();
+		for (TokenAuthenticator authenticator : authenticators.values()) {
+			authenticator.discard();
+		}
+		authenticators.clear();
+
+		if (!ownsInitialization) {
+			LOGGER.debug("LIB " + libPath + " was initialized by someone else. Not finalizing.");
+			return;
+		}
+
+		LOGGER.debug("Finalizing LIB " + libPath);
+		int finalizeReturn = pkcs11.C_Finalize(Pointer.NULL);
+		if (finalizeReturn != Pkcs11Wrapper.CKR_OK) {
+			LOGGER.error(finalizeReturn + " : Return FINALIZE");
+		}
+	}
+
+	private synchronized void hold() {
+		open();
+		holders++;
+	}
+
+	/**
+	 * Load native library into its own api instance and init PKCS11
+	 * asking for the OS locking.
+	 *
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323024102
+	 */
+	private synchronized void open() {
+		if (initialized) {
+			return;
+		}
+
+		if (library == null) {
+			Pkcs11Binding binding = Pkcs11Binding.getDefault();
+			LOGGER.debug("Loading native library " + libPath + " (" + binding + ")");
+			library = binding.create(libPath);
+			if (Pkcs11Recorder.isEnabled()) {
+				library = Pkcs11Recorder.record(libPath, library);
+			}
+			if (Pkcs11Metrics.isEnabled()) {
+				library = Pkcs11Metrics.instrument(libPath, library);
+			}
+		}
+
+		LOGGER.debug("Initializing PKCS11");
+		boolean locking = true;
+		int initReturn = library.C_Initialize(new CK_C_INITIALIZE_ARGS(Pkcs11Wrapper.CKF_OS_LOCKING_OK).getPointer());
+
+		if (initReturn == Pkcs11Wrapper.CKR_CANT_LOCK || initReturn == Pkcs11Wrapper.CKR_ARGUMENTS_BAD) {
+			LOGGER.debug(initReturn + " : Return INIT with OS locking. Calls to " + libPath + " will be serialized.");
+			locking = false;
+			initReturn = library.C_Initialize(Pointer.NULL);
+		}
+
+		if (initReturn != Pkcs11Wrapper.CKR_OK && initReturn != Pkcs11Wrapper.CKR_CRYPTOKI_ALREADY_INITIALIZED) {
+			LOGGER.error(initReturn + " : Rerturn INIT");
+			throw new Pkcs11Exception("Failed to initialize", initReturn);
+		}
+
+		pkcs11 = locking ? library : Pkcs11Binding.synchronize(library);
+		osLocking = locking;
+		ownsInitialization = initReturn == Pkcs11Wrapper.CKR_OK;
+		initialized = true;
+	}
+
+	/**
+	 * Gets the IDs of every smart card slot (reader) that contains a token.
+	 * There's no known order to the smart card slots.
+	 *
+	 * @return array of long with the slot IDs, empty if there's no token
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323024105
+	 */
+	public long[] getTokenSlotIds() {
+		LOGGER.debug("Getting the smart card slots with a token");
+		Pkcs11Api api = getApi();
+		Pointer slotsCount = NativeLongUtils.allocate();
+
+		int slotReturn = api.C_GetSlotList(true, Pointer.NULL, slotsCount);
+		if (slotReturn != Pkcs11Wrapper.CKR_OK) {
+			LOGGER.error(slotReturn + " : Return SLOT LENGTH");
+			throw new Pkcs11Exception("Failed to Get Slot Length", slotReturn);
+		}
+
+		long count = NativeLongUtils.read(slotsCount, 0);
+		LOGGER.debug("{} : Quantity of slots connected", count);
+		if(count == 0) {
+			return new long[0];
+		}
+
+		Pointer slotIds = new Memory(count * NativeLong.SIZE);
+
+		slotReturn = api.C_GetSlotList(true, slotIds, slotsCount);
+		if (slotReturn != Pkcs11Wrapper.CKR_OK) {
+			LOGGER.error(slotReturn + " : Return SLOT LIST");
+			throw new Pkcs11Exception("Failed to Get Slot List", slotReturn);
+		}
+
+		long[] slotIdsArr = new long[(int) NativeLongUtils.read(slotsCount, 0)];
+		for(int i = 0; i < slotIdsArr.length; i++) {
+			slotIdsArr[i] = NativeLongUtils.read(slotIds, i * NativeLong.SIZE);
+		}
+		return slotIdsArr;
+	}
+
+	/**
+	 * Gets the information about the token present in the slot.
+	 *
+	 * @param slotId
+	 * @return {@link TokenInfo}
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323024107
+	 */
+	public TokenInfo getTokenInfo(long slotId) {
+		LOGGER.debug("Getting TOKEN INFO for slot {}", slotId);
+		Pointer info = TokenInfo.allocate();
+		int infoReturn = getApi().C_GetTokenInfo(slotId, info);
+		if (infoReturn != Pkcs11Wrapper.CKR_OK) {
+			LOGGER.error(infoReturn + " : Return TOKEN INFO");
+			throw new Pkcs11Exception("Failed to Get Token Info (slot " + slotId + ")", infoReturn);
+		}
+		return TokenInfo.read(info);
+	}
+
+	/**
+	 * Waits for a slot event: a token inserted or removed.
+	 *
+	 * @param block whether to wait for the event or only check if there's one
+	 * @return the ID of the slot with the event or null if there's none
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323024108
+	 */
+	public Long waitForSlotEvent(boolean block) {
+		Pointer slotId = NativeLongUtils.allocate();
+		int eventReturn = getApi().C_WaitForSlotEvent(block ? 0L : Pkcs11Wrapper.CKF_DONT_BLOCK, slotId, Pointer.NULL);
+		if (eventReturn == Pkcs11Wrapper.CKR_NO_EVENT) {
+			return null;
+		}
+		if (eventReturn != Pkcs11Wrapper.CKR_OK) {
+			throw new Pkcs11Exception("Failed to Wait For Slot Event", eventReturn);
+		}
+		return NativeLongUtils.read(slotId, 0);
+	}
+
+	private long readFirstTokenSlotId() {
+		long[] slotIds = getTokenSlotIds();
+		if (slotIds.length == 0) {
+			throw new RuntimeException("No smart card slot detected. Is the reader connected?");
+		}
+		long slotId = slotIds[0];
+		LOGGER.debug("{} : first slot ID", slotId);
+		return slotId;
+	}
+}
@@ -0,0 +1,321 @@
+package com.jesjobom.pkcs11.jna;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An open session with a token and the operations done through it.
+ * A session must be used by a single thread at a time, see {@link SessionPool}.
+ *
+ * @author jesjobom
+ */
+public class Pkcs11Session {
+
+	private static final Logger LOGGER = LogManager.getLogger(Pkcs11Session.class);
+
+	private final Pkcs11Api pkcs11;
+
+	private final long sessionId;
+
+	public Pkcs11Session(Pkcs11Api pkcs11, long sessionId) {
+		this.pkcs11 = pkcs11;
+		this.sessionId = sessionId;
+	}
+
+	public Pkcs11Api getApi() {
+		return pkcs11;
+	}
+
+	public long getSessionId() {
+		return sessionId;
+	}
+
+	/**
+	 * Initializes the search mechanism for objects.
+	 * Only the objects matching all the filters will be returned.
+	 * Prefer {@link #find(CK_ATTRIBUTE...)}, which also finalizes the search.
+	 * @param filters attributes with the expected values
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323205460
+	 */
+	public void initFind(CK_ATTRIBUTE... filters) {
+		LOGGER.debug("Initializing SEARCH");
+
+		Pointer template = AttributeArena.current().valueTemplate(filters);
+
+		int findInitReturn = pkcs11.C_FindObjectsInit(sessionId, template, filters.length);
+
+		if (findInitReturn != Pkcs11Wrapper.CKR_OK) {
+			LOGGER.error(findInitReturn + " : Return INIT FIND");
+			throw new Pkcs11Exception("Failed to Find Init", findInitReturn);
+		}
+	}
+
+	/**
+	 * Searches the objects matching the filters, reading them page by page.
+	 * The iterator must be closed if not read until the end.
+	 * @param pageSize maximum of objects returned by each call to the library
+	 * @param filters attributes with the expected values
+	 * @return {@link ObjectIterator} over the IDs of the objects
+	 */
+	public ObjectIterator find(int pageSize, CK_ATTRIBUTE... filters) {
+		return new ObjectIterator(this, pageSize, filters);
+	}
+
+	/**
+	 * Searches the objects matching the filters, reading 
+	 * {@link ObjectIterator#DEFAULT_PAGE_SIZE} objects at a time.
+	 * The iterator must be closed if not read until the end.
+	 * @param filters attributes with the expected values
+	 * @return {@link ObjectIterator} over the IDs of the objects
+	 */
+	public ObjectIterator find(CK_ATTRIBUTE... filters) {
+		return find(ObjectIterator.DEFAULT_PAGE_SIZE, filters);
+	}
+
+	/**
+	 * Searches and return all the objects matching the filters.
+	 * @param filters attributes with the expected values
+	 * @return array of long with the IDs of the objects
+	 */
+	public long[] findObjects(CK_ATTRIBUTE... filters) {
+		long[] objectIdsArr = new long[ObjectIterator.DEFAULT_PAGE_SIZE];
+		int count = 0;
+		try (ObjectIterator objectIds = find(filters)) {
+			while (objectIds.hasNext()) {
+				if (count == objectIdsArr.length) {
+					objectIdsArr = Arrays.copyOf(objectIdsArr, count * 2);
+				}
+				objectIdsArr[count++] = objectIds.nextLong();
+			}
+		}
+		return Arrays.copyOf(objectIdsArr, count);
+	}
+
+	/**
+	 * Finalizes the search for objects.
+	 */
+	public void endFind() {
+		LOGGER.debug("Ending FIND");
+		int findFinalReturn = pkcs11.C_FindObjectsFinal(sessionId);
+		if (findFinalReturn != Pkcs11Wrapper.CKR_OK) {
+			LOGGER.error(findFinalReturn + " : Return FIND FINAL");
+		}
+	}
+
+	/**
+	 * Gets many attributes of the object at once, with only two calls to the
+	 * native library: the first gets the size of every attribute and the
+	 * second fills every value.
+	 * <br>
+	 * Attributes that the object doesn't have or that can't be revealed
+	 * (<em>CKR_ATTRIBUTE_TYPE_INVALID</em>, <em>CKR_ATTRIBUTE_SENSITIVE</em>)
+	 * don't fail the call: they are returned with a <code>null</code> value
+	 * and the length {@link Pkcs11Wrapper#CK_UNAVAILABLE_INFORMATION}.
+	 * <br>
+	 * The values are read into the {@link AttributeArena} of the current
+	 * thread and are valid until it is used again.
+	 *
+	 * @param objectId
+	 * @param types of the attributes (CKA_*)
+	 * @return {@link AttributeArena} with the attributes in the same order of
+	 * the types
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323024125
+	 */
+	public AttributeArena readAttributes(long objectId, long... types) {
+		LOGGER.trace("Getting {} ATTRIBUTES obj ID {}", types.length, objectId);
+		AttributeArena arena = AttributeArena.current();
+
+		int attrReturn = pkcs11.C_GetAttributeValue(sessionId, objectId, arena.sizeTemplate(types), types.length);
+
+		if (!isPartialSuccess(attrReturn)) {
+			LOGGER.trace("{} : Return ATTRIBUTE LENGTH (obj {})", attrReturn, objectId);
+			throw new Pkcs11Exception("Failed to get Attribute Value (obj " + objectId + ")", attrReturn);
+		}
+
+		//only read again if some attribute has content
+		boolean hasContent = false;
+		for (int i = 0; i < types.length && !hasContent; i++) {
+			hasContent = arena.getLength(i) > 0;
+		}
+		if (!hasContent) {
+			return arena;
+		}
+
+		attrReturn = pkcs11.C_GetAttributeValue(sessionId, objectId, arena.valueTemplate(), types.length);
+
+		if (!isPartialSuccess(attrReturn)) {
+			LOGGER.trace("{} : Return ATTRIBUTE VALUE (obj {})", attrReturn, objectId);
+			throw new Pkcs11Exception("Failed to get Attribute Value (obj " + objectId + ")", attrReturn);
+		}
+		return arena;
+	}
+
+	/**
+	 * Same as {@link #readAttributes(long, long...)}, but copying the values 
+	 * to the Java objects.
+	 *
+	 * @param objectId
+	 * @param types of the attributes (CKA_*)
+	 * @return array of {@link CK_ATTRIBUTE} in the same order of the types
+	 */
+	public CK_ATTRIBUTE[] getAttributes(long objectId, long... types) {
+		AttributeArena arena = readAttributes(objectId, types);
+		CK_ATTRIBUTE[] attrs = new CK_ATTRIBUTE[types.length];
+		for (int i = 0; i < types.length; i++) {
+			attrs[i] = new CK_ATTRIBUTE(types[i]);
+			attrs[i].ulValueLen = arena.getLength(i);
+			attrs[i].pValue = arena.getBytes(i);
+		}
+		return attrs;
+	}
+
+	/**
+	 * Gets the label of the object (certificate) for the informed ID.
+	 * The attribute for the label is <em>CKA_LABEL = 0x3L</em>, encoded in
+	 * UTF-8.
+	 * @param objectId
+	 * @return {@link String} with the label of the certificate.
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323024125
+	 */
+	public String getObjectLabel(long objectId) {
+		LOGGER.trace("Getting LABEL obj ID {}", objectId);
+		AttributeArena arena = readAttributes(objectId, Pkcs11Wrapper.CKA_LABEL);
+		ByteBuffer value = arena.getValue(0);
+
+		if (value == null || !value.hasRemaining()) {
+			LOGGER.trace("Return ATTRIBUTE LENGTH (obj {} / size {})", objectId, arena.getLength(0));
+			throw new RuntimeException("Failed to get Attribute Value (obj " + objectId + "): no return");
+		}
+
+		String label = decodeLabel(value);
+		LOGGER.trace("{} : PVALUE (type {}, size {})", label, Pkcs11Wrapper.CKA_LABEL, arena.getLength(0));
+		return label;
+	}
+
+	/**
+	 * Logs the user in the token. The login is shared by every session of
+	 * the application with the same token, so a token already logged in is
+	 * not an error.
+	 * <br>
+	 * The PIN is encoded in UTF-8 to native memory only for the call and
+	 * wiped right after.
+	 *
+	 * @param userType <em>CKU_USER</em> or <em>CKU_SO</em>
+	 * @param pin
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323205456
+	 */
+	public void login(long userType, char[] pin) {
+		LOGGER.debug("LOGIN session {}", sessionId);
+		ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(pin));
+		int length = encoded.remaining();
+		Memory pinMemory = new Memory(Math.max(length, 1));
+		try {
+			for (int i = 0; i < length; i++) {
+				pinMemory.setByte(i, encoded.get(i));
+			}
+			int loginReturn = pkcs11.C_Login(sessionId, userType, pinMemory, length);
+			if (loginReturn != Pkcs11Wrapper.CKR_OK && loginReturn != Pkcs11Wrapper.CKR_USER_ALREADY_LOGGED_IN) {
+				LOGGER.error(loginReturn + " : Return LOGIN");
+				throw new Pkcs11Exception("Failed to Login", loginReturn);
+			}
+		} finally {
+			pinMemory.clear();
+			Arrays.fill(encoded.array(), (byte) 0);
+		}
+	}
+
+	/**
+	 * Logs the user out of the token, for every session of the application
+	 * with it. A token not logged in is not an error.
+	 *
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323205457
+	 */
+	public void logout() {
+		LOGGER.debug("LOGOUT session {}", sessionId);
+		int logoutReturn = pkcs11.C_Logout(sessionId);
+		if (logoutReturn != Pkcs11Wrapper.CKR_OK && logoutReturn != Pkcs11Wrapper.CKR_USER_NOT_LOGGED_IN) {
+			LOGGER.error(logoutReturn + " : Return LOGOUT");
+			throw new Pkcs11Exception("Failed to Logout", logoutReturn);
+		}
+	}
+
+	/**
+	 * Initializes a signature with the private key, for the next call to
+	 * <em>C_Sign</em>.
+	 *
+	 * @param mechanism
+	 * @param keyId the object ID of the private key
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323205474
+	 */
+	public void signInit(CK_MECHANISM mechanism, long keyId) {
+		int signInitReturn = pkcs11.C_SignInit(sessionId, mechanism.getPointer(), keyId);
+		if (signInitReturn != Pkcs11Wrapper.CKR_OK) {
+			LOGGER.debug("{} : Return SIGN INIT (key {})", signInitReturn, keyId);
+			throw new Pkcs11Exception("Failed to Sign Init (key " + keyId + ")", signInitReturn);
+		}
+	}
+
+	/**
+	 * Initializes a digest, for the next calls to <em>C_DigestUpdate</em> or
+	 * <em>C_Digest</em>.
+	 *
+	 * @param mechanism
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323205468
+	 */
+	public void digestInit(CK_MECHANISM mechanism) {
+		int digestInitReturn = pkcs11.C_DigestInit(sessionId, mechanism.getPointer());
+		if (digestInitReturn != Pkcs11Wrapper.CKR_OK) {
+			LOGGER.debug("{} : Return DIGEST INIT", digestInitReturn);
+			throw new Pkcs11Exception("Failed to Digest Init", digestInitReturn);
+		}
+	}
+
+	/**
+	 * Initializes a decryption with the key, for the next calls to
+	 * <em>C_DecryptUpdate</em> or <em>C_Decrypt</em>.
+	 *
+	 * @param mechanism
+	 * @param keyId the object ID of the key
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323205462
+	 */
+	public void decryptInit(CK_MECHANISM mechanism, long keyId) {
+		int decryptInitReturn = pkcs11.C_DecryptInit(sessionId, mechanism.getPointer(), keyId);
+		if (decryptInitReturn != Pkcs11Wrapper.CKR_OK) {
+			LOGGER.debug("{} : Return DECRYPT INIT (key {})", decryptInitReturn, keyId);
+			throw new Pkcs11Exception("Failed to Decrypt Init (key " + keyId + ")", decryptInitReturn);
+		}
+	}
+
+	/**
+	 * Decodes a <em>CKA_LABEL</em>, which is always UTF-8, whatever the
+	 * platform charset.
+	 *
+	 * @param value
+	 * @return {@link String}
+	 */
+	static String decodeLabel(ByteBuffer value) {
+		if (value.hasArray()) {
+			return new String(value.array(), value.arrayOffset() + value.position(), value.remaining(), StandardCharsets.UTF_8);
+		}
+		byte[] bytes = new byte[value.remaining()];
+		value.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The return values of <em>C_GetAttributeValue</em> that still process
+	 * every attribute of the template, marking the ones not returned.
+	 */
+	private static boolean isPartialSuccess(int attrReturn) {
+		return attrReturn == Pkcs11Wrapper.CKR_OK
+				|| attrReturn == Pkcs11Wrapper.CKR_ATTRIBUTE_SENSITIVE
+				|| attrReturn == Pkcs11Wrapper.CKR_ATTRIBUTE_TYPE_INVALID
+				|| attrReturn == Pkcs11Wrapper.CKR_BUFFER_TOO_SMALL;
+	}
+}
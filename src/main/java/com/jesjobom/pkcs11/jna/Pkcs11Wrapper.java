@@ -1,35 +1,122 @@
 package com.jesjobom.pkcs11.jna;
 
+import com.sun.jna.Library;
 import com.sun.jna.NativeLong;
 import com.sun.jna.Pointer;
 import com.sun.jna.ptr.NativeLongByReference;
 
 /**
  * Java Wrapper for the native PKCS11 library.
+ * Each native library gets its own instance through
+ * {@link com.sun.jna.Native#loadLibrary(String, Class)}, so different libraries
+ * can be used at the same time. See {@link Pkcs11Module}.
  *
  * @author jesjobom
  * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html
  */
-public class Pkcs11Wrapper {
+public interface Pkcs11Wrapper extends Library {
 
 	public static final long READ_ONLY_SESSION = 0L;
 	public static final long SERIAL_SESSION = 4L;
 
-	public static native int C_Initialize(Pointer args);
+	public static final long CK_UNAVAILABLE_INFORMATION = -1L;
 
-	public static native int C_Finalize(Pointer args);
+	public static final long CKU_USER = 1L;
 
-	public static native int C_GetSlotList(int onlyToken, Pointer slotIds, NativeLongByReference slotsCount);
+	public static final long CKO_CERTIFICATE = 0x1L;
+	public static final long CKO_PRIVATE_KEY = 0x3L;
 
-	public static native int C_OpenSession(NativeLong slotId, NativeLong flags, Pointer app, Pointer notify, NativeLongByReference sessionId);
+	public static final long CKC_X_509 = 0x0L;
 
-	public static native int C_CloseSession(NativeLong sessionId);
+	public static final long CKA_CLASS = 0x0L;
+	public static final long CKA_PRIVATE = 0x2L;
+	public static final long CKA_LABEL = 0x3L;
+	public static final long CKA_VALUE = 0x11L;
+	public static final long CKA_CERTIFICATE_TYPE = 0x80L;
+	public static final long CKA_ISSUER = 0x81L;
+	public static final long CKA_SUBJECT = 0x101L;
+	public static final long CKA_ID = 0x102L;
+	public static final long CKA_SIGN = 0x108L;
 
-	public static native int C_FindObjectsInit(NativeLong sessionId, CK_ATTRIBUTE.Native attrs, int attrQuantity);
+	public static final long CKM_RSA_PKCS = 0x1L;
+	public static final long CKM_SHA256_RSA_PKCS = 0x40L;
+	public static final long CKM_SHA_1 = 0x220L;
+	public static final long CKM_SHA256 = 0x250L;
+	public static final long CKM_ECDSA = 0x1041L;
+	public static final long CKM_AES_CBC_PAD = 0x1085L;
 
-	public static native int C_FindObjects(NativeLong sessionId, Pointer objectIds, int maxObjCount, NativeLongByReference returnedCount);
+	public static final long CKF_DONT_BLOCK = 0x1L;
+	public static final long CKF_OS_LOCKING_OK = 0x2L;
 
-	public static native int C_GetAttributeValue(NativeLong sessionId, NativeLong objectId, CK_ATTRIBUTE.Native attrs, int attrCount);
+	public static final int CKR_OK = 0x0;
+	public static final int CKR_SLOT_ID_INVALID = 0x3;
+	public static final int CKR_ARGUMENTS_BAD = 0x7;
+	public static final int CKR_NO_EVENT = 0x8;
+	public static final int CKR_CANT_LOCK = 0xA;
+	public static final int CKR_ATTRIBUTE_SENSITIVE = 0x11;
+	public static final int CKR_ATTRIBUTE_TYPE_INVALID = 0x12;
+	public static final int CKR_DEVICE_REMOVED = 0x32;
+	public static final int CKR_FUNCTION_NOT_SUPPORTED = 0x54;
+	public static final int CKR_KEY_HANDLE_INVALID = 0x60;
+	public static final int CKR_OBJECT_HANDLE_INVALID = 0x82;
+	public static final int CKR_OPERATION_ACTIVE = 0x90;
+	public static final int CKR_OPERATION_NOT_INITIALIZED = 0x91;
+	public static final int CKR_PIN_INCORRECT = 0xA0;
+	public static final int CKR_SESSION_CLOSED = 0xB0;
+	public static final int CKR_SESSION_COUNT = 0xB1;
+	public static final int CKR_SESSION_HANDLE_INVALID = 0xB3;
+	public static final int CKR_TOKEN_NOT_PRESENT = 0xE0;
+	public static final int CKR_USER_ALREADY_LOGGED_IN = 0x100;
+	public static final int CKR_USER_NOT_LOGGED_IN = 0x101;
+	public static final int CKR_BUFFER_TOO_SMALL = 0x150;
+	public static final int CKR_CRYPTOKI_NOT_INITIALIZED = 0x190;
+	public static final int CKR_CRYPTOKI_ALREADY_INITIALIZED = 0x191;
 
-	public static native int C_FindObjectsFinal(NativeLong sessionId);
+	public int C_Initialize(Pointer args);
+
+	public int C_Finalize(Pointer args);
+
+	public int C_GetSlotList(int onlyToken, Pointer slotIds, NativeLongByReference slotsCount);
+
+	public int C_GetTokenInfo(NativeLong slotId, Pointer info);
+
+	public int C_WaitForSlotEvent(NativeLong flags, NativeLongByReference slotId, Pointer reserved);
+
+	public int C_OpenSession(NativeLong slotId, NativeLong flags, Pointer app, Pointer notify, NativeLongByReference sessionId);
+
+	public int C_CloseSession(NativeLong sessionId);
+
+	public int C_GetSessionInfo(NativeLong sessionId, Pointer info);
+
+	public int C_FindObjectsInit(NativeLong sessionId, CK_ATTRIBUTE.Native attrs, NativeLong attrQuantity);
+
+	public int C_FindObjects(NativeLong sessionId, Pointer objectIds, NativeLong maxObjCount, NativeLongByReference returnedCount);
+
+	public int C_GetAttributeValue(NativeLong sessionId, NativeLong objectId, CK_ATTRIBUTE.Native attrs, NativeLong attrCount);
+
+	public int C_FindObjectsFinal(NativeLong sessionId);
+
+	public int C_Login(NativeLong sessionId, NativeLong userType, Pointer pin, NativeLong pinLen);
+
+	public int C_Logout(NativeLong sessionId);
+
+	public int C_SignInit(NativeLong sessionId, Pointer mechanism, NativeLong keyId);
+
+	public int C_Sign(NativeLong sessionId, Pointer data, NativeLong dataLen, Pointer signature, NativeLongByReference signatureLen);
+
+	public int C_SignUpdate(NativeLong sessionId, Pointer part, NativeLong partLen);
+
+	public int C_SignFinal(NativeLong sessionId, Pointer signature, NativeLongByReference signatureLen);
+
+	public int C_DigestInit(NativeLong sessionId, Pointer mechanism);
+
+	public int C_DigestUpdate(NativeLong sessionId, Pointer part, NativeLong partLen);
+
+	public int C_DigestFinal(NativeLong sessionId, Pointer digest, NativeLongByReference digestLen);
+
+	public int C_DecryptInit(NativeLong sessionId, Pointer mechanism, NativeLong keyId);
+
+	public int C_DecryptUpdate(NativeLong sessionId, Pointer encryptedPart, NativeLong encryptedPartLen, Pointer part, NativeLongByReference partLen);
+
+	public int C_DecryptFinal(NativeLong sessionId, Pointer lastPart, NativeLongByReference lastPartLen);
 }
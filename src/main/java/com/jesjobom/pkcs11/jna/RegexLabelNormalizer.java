@@ -0,0 +1,41 @@
+package com.jesjobom.pkcs11.jna;
+
+import java.util.regex.Pattern;
+
+/**
+ * {@link LabelNormalizer} replacing a regular expression, compiled only once.
+ *
+ * @author jesjobom
+ */
+public class RegexLabelNormalizer implements LabelNormalizer {
+
+	/**
+	 * Keeps the name, starting at the first letter or digit, with the symbols
+	 * usually found in it.
+	 */
+	public static final String DEFAULT_REGEX = "^[^\\p{L}\\p{Digit}]*([\\p{L}\\p{Digit}\\\\\\/\\-\\(\\)\\:\\~ ]+\\)?).*$";
+
+	public static final String DEFAULT_REPLACEMENT = "$1";
+
+	private final Pattern pattern;
+
+	private final String replacement;
+
+	public RegexLabelNormalizer() {
+		this(DEFAULT_REGEX, DEFAULT_REPLACEMENT);
+	}
+
+	/**
+	 * @param regex
+	 * @param replacement as in {@link java.util.regex.Matcher#replaceAll(String)}
+	 */
+	public RegexLabelNormalizer(String regex, String replacement) {
+		this.pattern = Pattern.compile(regex);
+		this.replacement = replacement;
+	}
+
+	@Override
+	public String normalize(String label) {
+		return pattern.matcher(label).replaceAll(replacement);
+	}
+}
@@ -0,0 +1,105 @@
+package com.jesjobom.pkcs11.jna;
+
+/**
+ * {@link LabelNormalizer} with the same result of the
+ * {@link RegexLabelNormalizer#DEFAULT_REGEX}, scanning the label once without
+ * the regex engine. Only the clean label is allocated, and not even that when
+ * the label is already clean.
+ *
+ * @author jesjobom
+ */
+public class ScannerLabelNormalizer implements LabelNormalizer {
+
+	@Override
+	public String normalize(String label) {
+		int length = label.length();
+
+		//the name starts at the first letter or digit
+		int start = -1;
+		int lastSymbol = -1;
+		for (int i = 0; i < length && start < 0; ) {
+			int codePoint = label.codePointAt(i);
+			if (isLetterOrDigit(codePoint)) {
+				start = i;
+			} else if (isSymbol(codePoint)) {
+				lastSymbol = i;
+			}
+			i += Character.charCount(codePoint);
+		}
+
+		int end;
+		if (start >= 0) {
+			end = start;
+			while (end < length) {
+				int codePoint = label.codePointAt(end);
+				if (!isLetterOrDigit(codePoint) && !isSymbol(codePoint)) {
+					break;
+				}
+				end += Character.charCount(codePoint);
+			}
+		} else if (lastSymbol >= 0) {
+			//without letters or digits the regex keeps only the last symbol
+			start = lastSymbol;
+			end = lastSymbol + 1;
+		} else {
+			return label;
+		}
+
+		int restEnd = restEnd(label, end);
+		if (restEnd < 0) {
+			return label;
+		}
+		if (start == 0 && end == restEnd) {
+			return label;
+		}
+		if (restEnd == length) {
+			return label.substring(start, end);
+		}
+		return label.substring(start, end).concat(label.substring(restEnd));
+	}
+
+	/**
+	 * Where the rest of the label ends, which can't span many lines. Like the
+	 * <code>$</code> of the regex, a line terminator at the very end is
+	 * allowed and kept.
+	 *
+	 * @return index of the final line terminator, the length of the label
+	 * without it, or -1 if the rest has many lines
+	 */
+	private static int restEnd(String label, int from) {
+		int length = label.length();
+		for (int i = from; i < length; i++) {
+			char c = label.charAt(i);
+			if (isLineTerminator(c)) {
+				boolean last = i == length - 1
+						|| (c == '\r' && label.charAt(i + 1) == '\n' && i == length - 2);
+				return last ? i : -1;
+			}
+		}
+		return length;
+	}
+
+	private static boolean isLetterOrDigit(int codePoint) {
+		return Character.isLetter(codePoint) || (codePoint >= '0' && codePoint <= '9');
+	}
+
+	private static boolean isSymbol(int codePoint) {
+		switch (codePoint) {
+			case '\\':
+			case '/':
+			case '-':
+			case '(':
+			case ')':
+			case ':':
+			case '~':
+			case ' ':
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+}
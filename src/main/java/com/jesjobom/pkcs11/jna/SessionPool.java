@@ -0,0 +1,190 @@
+package com.jesjobom.pkcs11.jna;
+
+import com.jesjobom.pkcs11.utils.NativeLongUtils;
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Bounded pool of open read only sessions for a single slot.
+ * Opening and closing a session may need a round-trip to the token, which is
+ * slow on USB readers, so the sessions are kept open and handed over to the
+ * next lookup.
+ * <br>
+ * A session is used by one thread at a time: it must be returned with
+ * {@link #release(long)} or, if it failed because the token was removed,
+ * discarded with {@link #invalidate(long)}.
+ *
+ * @author jesjobom
+ */
+public class SessionPool {
+
+	private static final Logger LOGGER = LogManager.getLogger(SessionPool.class);
+
+	public static final int DEFAULT_MAX_SESSIONS = 4;
+
+	public static final long DEFAULT_BORROW_TIMEOUT_MS = 30000;
+
+	private final Pkcs11Api pkcs11;
+
+	private final long slotId;
+
+	private final Semaphore permits;
+
+	private final ConcurrentLinkedDeque<Long> idleSessions = new ConcurrentLinkedDeque<>();
+
+	public SessionPool(Pkcs11Api pkcs11, long slotId) {
+		this(pkcs11, slotId, DEFAULT_MAX_SESSIONS);
+	}
+
+	public SessionPool(Pkcs11Api pkcs11, long slotId, int maxSessions) {
+		this.pkcs11 = pkcs11;
+		this.slotId = slotId;
+		this.permits = new Semaphore(maxSessions, true);
+	}
+
+	public long getSlotId() {
+		return slotId;
+	}
+
+	/**
+	 * Borrows a session, waiting up to {@link #DEFAULT_BORROW_TIMEOUT_MS} if
+	 * all of them are in use.
+	 *
+	 * @return long with the ID of the session
+	 */
+	public long borrow() {
+		return borrow(DEFAULT_BORROW_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Borrows an idle session still valid or begins a new one.
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return long with the ID of the session
+	 */
+	public long borrow(long timeout, TimeUnit unit) {
+		try {
+			if (!permits.tryAcquire(timeout, unit)) {
+				throw new RuntimeException("No session available for slot " + slotId + " after " + timeout + " " + unit);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for a session for slot " + slotId, ex);
+		}
+
+		try {
+			Long sessionId;
+			while ((sessionId = idleSessions.pollFirst()) != null) {
+				if (isValid(sessionId)) {
+					return sessionId;
+				}
+				LOGGER.debug("Evicting SESSION {} of slot {}", sessionId, slotId);
+				closeSession(sessionId);
+			}
+			return beginNewSession();
+
+		} catch (RuntimeException ex) {
+			permits.release();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Returns the session to the pool, keeping it open for the next lookup.
+	 *
+	 * @param sessionId
+	 */
+	public void release(long sessionId) {
+		idleSessions.offerFirst(sessionId);
+		permits.release();
+	}
+
+	/**
+	 * Closes a borrowed session instead of returning it to the pool.
+	 *
+	 * @param sessionId
+	 */
+	public void invalidate(long sessionId) {
+		closeSession(sessionId);
+		permits.release();
+	}
+
+	/**
+	 * Closes every idle session. Borrowed sessions are closed when
+	 * invalidated or when the library is finalized.
+	 * Should be used when the token was removed.
+	 */
+	public void clear() {
+		Long sessionId;
+		while ((sessionId = idleSessions.pollFirst()) != null) {
+			closeSession(sessionId);
+		}
+	}
+
+	/**
+	 * Forgets the idle sessions without closing them, since
+	 * <em>C_Finalize</em> already closed them.
+	 */
+	void discard() {
+		idleSessions.clear();
+	}
+
+	/**
+	 * Checks if an idle session is still open for this slot.
+	 *
+	 * @param sessionId
+	 * @return true if the session can be used
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323205453
+	 */
+	private boolean isValid(long sessionId) {
+		//CK_SESSION_INFO: slotID, state, flags and ulDeviceError
+		Pointer info = new Memory(4 * NativeLong.SIZE);
+		int infoReturn = pkcs11.C_GetSessionInfo(sessionId, info);
+		if (infoReturn != Pkcs11Wrapper.CKR_OK) {
+			LOGGER.debug("{} : Return SESSION INFO", infoReturn);
+			return false;
+		}
+
+		return NativeLongUtils.read(info, 0) == slotId;
+	}
+
+	/**
+	 * Begins a new read only session to access the smart card.
+	 * @return long with the ID of the new session
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc72656119
+	 */
+	private long beginNewSession() {
+		LOGGER.debug("Begining new SESSION for slot {}", slotId);
+		Pointer pApplication = new Memory(1024);
+		Pointer sessionId = NativeLongUtils.allocate();
+		int sessionReturn = pkcs11.C_OpenSession(slotId, Pkcs11Wrapper.SERIAL_SESSION, pApplication, Pointer.NULL, sessionId);
+
+		if (sessionReturn != Pkcs11Wrapper.CKR_OK) {
+			LOGGER.error(sessionReturn + " : Return OPEN SESSION");
+			throw new Pkcs11Exception("Failed to Open Session", sessionReturn);
+		}
+
+		long newSessionId = NativeLongUtils.read(sessionId, 0);
+		LOGGER.debug("{} : Session ID", newSessionId);
+		return newSessionId;
+	}
+
+	/**
+	 * Closes the session and the access to the smart card.
+	 * @param sessionId
+	 */
+	private void closeSession(long sessionId) {
+		LOGGER.debug("Closing SESSION {}", sessionId);
+		int closeReturn = pkcs11.C_CloseSession(sessionId);
+		if (closeReturn != Pkcs11Wrapper.CKR_OK) {
+			LOGGER.error(closeReturn + " : Return CLOSE SESSION");
+		}
+	}
+}
@@ -0,0 +1,633 @@
+package com.jesjobom.pkcs11.jna;
+
+import com.jesjobom.pkcs11.utils.DaemonThreadFactory;
+import com.jesjobom.pkcs11.utils.NativeLongUtils;
+import com.sun.jna.Memory;
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Signs batches of digests already computed with the private key of every
+ * token found in the libraries, keeping all of them busy.
+ * <br>
+ * When opened, each token is logged in once, through the
+ * {@link TokenAuthenticator} shared with the rest of the application, and
+ * its signing key is looked up once. Each batch is then signed by {@link #getSessionsPerToken()}
+ * sessions of every token at the same time, each one in its own thread,
+ * taking the next digest as soon as it finishes the previous one. A slow
+ * token just signs fewer digests of the batch.
+ * <br>
+ * The digests are passed to <em>C_Sign</em> as they are, so they must
+ * already be in the format of the mechanism: a <em>DigestInfo</em> for
+ * <em>CKM_RSA_PKCS</em> or the raw hash for <em>CKM_ECDSA</em>.
+ * <br>
+ * A digest whose session was lost, usually because the token was removed,
+ * is signed by another session, up to {@link #MAX_ATTEMPTS} times. A token
+ * that logged out is logged in again. Any other failure is reported for that
+ * digest only, see {@link SigningReport}.
+ *
+ * @author jesjobom
+ * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323205474
+ */
+public class SigningEngine implements Closeable {
+
+	private static final Logger LOGGER = LogManager.getLogger(SigningEngine.class);
+
+	public static final int DEFAULT_SESSIONS_PER_TOKEN = SessionPool.DEFAULT_MAX_SESSIONS;
+
+	/**
+	 * Times a digest is tried when its session is lost.
+	 */
+	public static final int MAX_ATTEMPTS = 3;
+
+	private static final int INITIAL_SIGNATURE_SIZE = 512;
+
+	private final String[] libs;
+
+	private final char[] pin;
+
+	private long mechanism = Pkcs11Wrapper.CKM_RSA_PKCS;
+
+	private byte[] keyId;
+
+	private int sessionsPerToken = DEFAULT_SESSIONS_PER_TOKEN;
+
+	private List<Token> tokens;
+
+	private final List<Pkcs11Module> modules = new ArrayList<>();
+
+	private ExecutorService executor;
+
+	private boolean closed = false;
+
+	/**
+	 * @param pin of the tokens, copied and wiped on {@link #close()}
+	 * @param libs paths to the native libraries
+	 */
+	public SigningEngine(char[] pin, String... libs) {
+		this.pin = pin.clone();
+		this.libs = libs.clone();
+	}
+
+	public synchronized long getMechanism() {
+		return mechanism;
+	}
+
+	/**
+	 * Mechanism of the next batches, without parameters. By default
+	 * <em>CKM_RSA_PKCS</em>.
+	 *
+	 * @param mechanism (CKM_*)
+	 */
+	public synchronized void setMechanism(long mechanism) {
+		this.mechanism = mechanism;
+	}
+
+	/**
+	 * Only signs with the private key with this <em>CKA_ID</em>. By default
+	 * the first key of each token that can sign is used.
+	 * Must be set before {@link #open()}.
+	 *
+	 * @param keyId
+	 */
+	public synchronized void setKeyId(byte[] keyId) {
+		checkNotOpen();
+		this.keyId = keyId == null ? null : keyId.clone();
+	}
+
+	public synchronized int getSessionsPerToken() {
+		return sessionsPerToken;
+	}
+
+	/**
+	 * Signatures of each token at the same time. Must be set before
+	 * {@link #open()}.
+	 *
+	 * @param sessionsPerToken
+	 */
+	public synchronized void setSessionsPerToken(int sessionsPerToken) {
+		checkNotOpen();
+		if (sessionsPerToken < 1) {
+			throw new IllegalArgumentException("At least one session per token is needed");
+		}
+		this.sessionsPerToken = sessionsPerToken;
+	}
+
+	/**
+	 * Logs in every token of the libraries and finds their signing keys.
+	 * Tokens without a key are skipped. Called by the first batch if needed.
+	 * The libraries are held until {@link #close()}, see
+	 * {@link Pkcs11Module#acquire(String)}.
+	 * <br>
+	 * If a token rejects the PIN, the tokens already opened are logged out
+	 * and their sessions closed before the exception is thrown.
+	 */
+	public synchronized void open() {
+		if (closed) {
+			throw new IllegalStateException("Signing engine is closed.");
+		}
+		if (tokens != null) {
+			return;
+		}
+
+		List<Token> found = new ArrayList<>();
+		try {
+			for (String lib : libs) {
+				Pkcs11Module module;
+				long[] slotIds;
+				try {
+					module = Pkcs11Module.acquire(lib);
+				} catch (RuntimeException | UnsatisfiedLinkError ex) {
+					LOGGER.debug("Failed to load library {}", lib, ex);
+					continue;
+				}
+				modules.add(module);
+				try {
+					slotIds = module.getTokenSlotIds();
+				} catch (RuntimeException ex) {
+					LOGGER.debug("Failed to list the slots of library {}", lib, ex);
+					continue;
+				}
+				for (long slotId : slotIds) {
+					Token token = openToken(module, slotId);
+					if (token != null) {
+						found.add(token);
+					}
+				}
+			}
+		} catch (RuntimeException ex) {
+			release(found);
+			releaseModules();
+			throw ex;
+		}
+		if (found.isEmpty()) {
+			releaseModules();
+			throw new RuntimeException("No token with a signing key was found.");
+		}
+
+		tokens = found;
+		executor = Executors.newCachedThreadPool(new DaemonThreadFactory("pkcs11-sign"));
+	}
+
+	/**
+	 * Signs the digests with every token. Only one batch is signed at a time.
+	 * If interrupted, the digests not signed yet are reported as failures.
+	 *
+	 * @param digests in the format of the mechanism
+	 * @return {@link SigningReport} with the signatures in the same order
+	 */
+	public synchronized SigningReport sign(List<byte[]> digests) {
+		open();
+		Batch batch = new Batch(digests, new CK_MECHANISM(mechanism));
+		LOGGER.debug("Signing {} digests with {} tokens", digests.size(), tokens.size());
+
+		long start = System.nanoTime();
+		List<Tally> tallies = new ArrayList<>(tokens.size());
+		List<Future<?>> workers = new ArrayList<>();
+		int sessions = Math.min(sessionsPerToken, Math.max(digests.size(), 1));
+		for (Token token : tokens) {
+			Tally tally = new Tally();
+			tallies.add(tally);
+			for (int i = 0; i < sessions; i++) {
+				workers.add(executor.submit(new Worker(batch, token, tally)));
+			}
+		}
+
+		boolean interrupted = false;
+		for (Future<?> worker : workers) {
+			while (true) {
+				try {
+					worker.get();
+					break;
+				} catch (InterruptedException ex) {
+					interrupted = true;
+					batch.stop();
+				} catch (ExecutionException ex) {
+					LOGGER.error("Signing worker failed", ex.getCause());
+					break;
+				}
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		batch.finish();
+		List<SigningReport.TokenStats> stats = new ArrayList<>(tokens.size());
+		for (int i = 0; i < tokens.size(); i++) {
+			stats.add(tallies.get(i).toStats(tokens.get(i), elapsed));
+		}
+		return new SigningReport(batch.signatures, batch.errors, stats, elapsed);
+	}
+
+	/**
+	 * Stops the signing threads, closes the sessions and wipes the PIN.
+	 * The libraries are let go, staying initialized while someone else holds
+	 * them, and so does the login of the tokens with its own copy of the
+	 * PIN, see {@link TokenAuthenticator}.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		Arrays.fill(pin, '\0');
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		if (tokens != null) {
+			for (Token token : tokens) {
+				token.pool.clear();
+			}
+		}
+		releaseModules();
+	}
+
+	/**
+	 * Closes the sessions of the tokens and logs them out, wiping the PIN
+	 * given to their authenticators.
+	 */
+	private static void release(List<Token> tokens) {
+		for (Token token : tokens) {
+			token.pool.clear();
+			token.authenticator.close();
+		}
+	}
+
+	private void releaseModules() {
+		for (Pkcs11Module module : modules) {
+			module.release();
+		}
+		modules.clear();
+	}
+
+	private void checkNotOpen() {
+		if (tokens != null || closed) {
+			throw new IllegalStateException("Signing engine already opened.");
+		}
+	}
+
+	/**
+	 * Logs in the token and finds its signing key.
+	 *
+	 * @return {@link Token} or null if it can't sign
+	 */
+	private Token openToken(Pkcs11Module module, long slotId) {
+		Pkcs11Api api = module.getApi();
+		SessionPool pool = new SessionPool(api, slotId, sessionsPerToken);
+		TokenAuthenticator authenticator = module.getAuthenticator(slotId);
+		authenticator.setPin(pin);
+		try {
+			TokenInfo info = module.getTokenInfo(slotId);
+			long sessionId = pool.borrow();
+			long[] keys;
+			try {
+				Pkcs11Session session = new Pkcs11Session(api, sessionId);
+				keys = authenticator.call(session, s -> s.findObjects(keyFilter()));
+			} catch (RuntimeException ex) {
+				pool.invalidate(sessionId);
+				throw ex;
+			}
+			pool.release(sessionId);
+
+			if (keys.length == 0) {
+				LOGGER.warn("No signing key in token {} (slot {})", info, slotId);
+				pool.clear();
+				return null;
+			}
+			LOGGER.debug("Signing with key {} of token {} (slot {})", keys[0], info, slotId);
+			return new Token(module.getLibPath(), api, slotId, info, pool, authenticator, keys[0]);
+
+		} catch (Pkcs11Exception ex) {
+			pool.clear();
+			if (ex.getReturnValue() == Pkcs11Wrapper.CKR_PIN_INCORRECT) {
+				//trying the other tokens could lock them
+				throw ex;
+			}
+			LOGGER.warn("Failed to open token of slot {} with library {}", slotId, module.getLibPath(), ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Filter for the search of the private key that can sign, with the
+	 * <em>CKA_ID</em> if one was set.
+	 */
+	private CK_ATTRIBUTE[] keyFilter() {
+		CK_ATTRIBUTE keyClass = CK_ATTRIBUTE.ofLong(Pkcs11Wrapper.CKA_CLASS, Pkcs11Wrapper.CKO_PRIVATE_KEY);
+		CK_ATTRIBUTE sign = CK_ATTRIBUTE.ofBoolean(Pkcs11Wrapper.CKA_SIGN, true);
+		if (keyId == null) {
+			return new CK_ATTRIBUTE[]{keyClass, sign};
+		}
+		return new CK_ATTRIBUTE[]{keyClass, sign, CK_ATTRIBUTE.ofBytes(Pkcs11Wrapper.CKA_ID, keyId)};
+	}
+
+	/**
+	 * A token logged in, with its sessions and signing key.
+	 */
+	private static class Token {
+
+		private final String libPath;
+
+		private final Pkcs11Api api;
+
+		private final long slotId;
+
+		private final TokenInfo info;
+
+		private final SessionPool pool;
+
+		private final TokenAuthenticator authenticator;
+
+		private final long keyId;
+
+		private Token(String libPath, Pkcs11Api api, long slotId, TokenInfo info, SessionPool pool,
+				TokenAuthenticator authenticator, long keyId) {
+			this.libPath = libPath;
+			this.api = api;
+			this.slotId = slotId;
+			this.info = info;
+			this.pool = pool;
+			this.authenticator = authenticator;
+			this.keyId = keyId;
+		}
+	}
+
+	/**
+	 * The digests of a batch, handed over to the sessions one at a time.
+	 * Each index is owned by a single worker until it is signed, failed or
+	 * queued again, so the arrays need no locking.
+	 * <br>
+	 * A worker only leaves the batch when no digest is left in flight, since
+	 * a session lost may still queue its digest again for the others.
+	 */
+	private static class Batch {
+
+		private final List<byte[]> digests;
+
+		private final CK_MECHANISM mechanism;
+
+		private final byte[][] signatures;
+
+		private final RuntimeException[] errors;
+
+		private final int[] attempts;
+
+		private int nextIndex = 0;
+
+		/**
+		 * Digests not signed nor failed yet, queued or in flight.
+		 */
+		private int pending;
+
+		private final Queue<Integer> retries = new ArrayDeque<>();
+
+		private volatile boolean stopped = false;
+
+		private volatile RuntimeException lastSessionLost;
+
+		private Batch(List<byte[]> digests, CK_MECHANISM mechanism) {
+			this.digests = digests;
+			this.mechanism = mechanism;
+			this.signatures = new byte[digests.size()][];
+			this.errors = new RuntimeException[digests.size()];
+			this.attempts = new int[digests.size()];
+			this.pending = digests.size();
+		}
+
+		/**
+		 * Waits while the digests in flight may still be queued again.
+		 *
+		 * @return index of the next digest to sign or -1 if there's none
+		 */
+		private synchronized int next() {
+			while (!stopped) {
+				Integer retry = retries.poll();
+				if (retry != null) {
+					return retry;
+				}
+				if (nextIndex < digests.size()) {
+					return nextIndex++;
+				}
+				if (pending == 0) {
+					return -1;
+				}
+				try {
+					wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return -1;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * The digest was signed or failed for good.
+		 */
+		private synchronized void done(int index) {
+			if (--pending == 0) {
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Hands the digest over to another session, if it still has attempts.
+		 */
+		private synchronized void sessionLost(int index, Pkcs11Exception ex) {
+			lastSessionLost = ex;
+			if (++attempts[index] >= MAX_ATTEMPTS) {
+				errors[index] = ex;
+				done(index);
+			} else {
+				retries.add(index);
+				notify();
+			}
+		}
+
+		private synchronized void stop() {
+			stopped = true;
+			notifyAll();
+		}
+
+		/**
+		 * Fails the digests left behind by the sessions.
+		 */
+		private void finish() {
+			for (int i = 0; i < signatures.length; i++) {
+				if (signatures[i] == null && errors[i] == null) {
+					errors[i] = stopped ? new RuntimeException("Signing interrupted")
+							: new RuntimeException("No session left to sign the digest", lastSessionLost);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Signatures of a token in a batch, added by each of its sessions.
+	 */
+	private static class Tally {
+
+		private long signatures;
+
+		private long failures;
+
+		private long totalNanos;
+
+		private long minNanos = Long.MAX_VALUE;
+
+		private long maxNanos;
+
+		private synchronized void add(Worker worker) {
+			signatures += worker.signatures;
+			failures += worker.failures;
+			totalNanos += worker.totalNanos;
+			minNanos = Math.min(minNanos, worker.minNanos);
+			maxNanos = Math.max(maxNanos, worker.maxNanos);
+		}
+
+		private synchronized SigningReport.TokenStats toStats(Token token, long elapsedNanos) {
+			return new SigningReport.TokenStats(token.libPath, token.slotId, token.info,
+					signatures, failures, totalNanos, minNanos, maxNanos, elapsedNanos);
+		}
+	}
+
+	/**
+	 * A session of a token signing the digests of the batch until there's
+	 * none left. The native buffers are reused for every digest.
+	 */
+	private static class Worker implements Runnable {
+
+		private final Batch batch;
+
+		private final Token token;
+
+		private final Tally tally;
+
+		private Memory data;
+
+		private Memory signature = new Memory(INITIAL_SIGNATURE_SIZE);
+
+		private final Memory signatureLength = NativeLongUtils.allocate();
+
+		private long signatures;
+
+		private long failures;
+
+		private long totalNanos;
+
+		private long minNanos = Long.MAX_VALUE;
+
+		private long maxNanos;
+
+		private Worker(Batch batch, Token token, Tally tally) {
+			this.batch = batch;
+			this.token = token;
+			this.tally = tally;
+		}
+
+		@Override
+		public void run() {
+			long sessionId;
+			try {
+				sessionId = token.pool.borrow();
+			} catch (RuntimeException ex) {
+				LOGGER.debug("No session for slot {}", token.slotId, ex);
+				return;
+			}
+
+			try {
+				Pkcs11Session session = new Pkcs11Session(token.api, sessionId);
+				int index;
+				while ((index = batch.next()) >= 0) {
+					if (!sign(session, index)) {
+						token.pool.invalidate(sessionId);
+						return;
+					}
+				}
+				token.pool.release(sessionId);
+			} finally {
+				tally.add(this);
+			}
+		}
+
+		/**
+		 * Signs a single digest.
+		 *
+		 * @return false if the session was lost
+		 */
+		private boolean sign(Pkcs11Session session, int index) {
+			long start = System.nanoTime();
+			boolean lost = false;
+			try {
+				batch.signatures[index] = token.authenticator.call(session, s -> {
+					s.signInit(batch.mechanism, token.keyId);
+					return sign(s.getSessionId(), batch.digests.get(index));
+				});
+				long latency = System.nanoTime() - start;
+				signatures++;
+				totalNanos += latency;
+				minNanos = Math.min(minNanos, latency);
+				maxNanos = Math.max(maxNanos, latency);
+
+			} catch (Pkcs11Exception ex) {
+				if (ex.isSessionLost()) {
+					LOGGER.debug("Session {} of slot {} lost", session.getSessionId(), token.slotId);
+					lost = true;
+					batch.sessionLost(index, ex);
+					return false;
+				}
+				failures++;
+				batch.errors[index] = ex;
+
+			} catch (RuntimeException ex) {
+				failures++;
+				batch.errors[index] = ex;
+
+			} finally {
+				if (!lost) {
+					batch.done(index);
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Calls <em>C_Sign</em> with the buffer of the last signature, growing
+		 * it and calling again if too small. The operation is only finished
+		 * when the signature is returned.
+		 */
+		private byte[] sign(long sessionId, byte[] digest) {
+			if (data == null || data.size() < digest.length) {
+				data = new Memory(Math.max(digest.length, 64));
+			}
+			data.write(0, digest, 0, digest.length);
+
+			NativeLongUtils.write(signatureLength, 0, signature.size());
+			int signReturn = token.api.C_Sign(sessionId, data, digest.length, signature, signatureLength);
+
+			if (signReturn == Pkcs11Wrapper.CKR_BUFFER_TOO_SMALL) {
+				signature = new Memory(NativeLongUtils.read(signatureLength, 0));
+				NativeLongUtils.write(signatureLength, 0, signature.size());
+				signReturn = token.api.C_Sign(sessionId, data, digest.length, signature, signatureLength);
+			}
+
+			if (signReturn != Pkcs11Wrapper.CKR_OK) {
+				throw new Pkcs11Exception("Failed to Sign", signReturn);
+			}
+			return signature.getByteArray(0, (int) NativeLongUtils.read(signatureLength, 0));
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package com.jesjobom.pkcs11.jna;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The result of a batch signed by the {@link SigningEngine}: the signatures
+ * in the same order of the digests, the failures of the digests that
+ * couldn't be signed and the statistics of each token.
+ *
+ * @author jesjobom
+ */
+public class SigningReport {
+
+	private final byte[][] signatures;
+
+	private final RuntimeException[] errors;
+
+	private final List<TokenStats> tokens;
+
+	private final long elapsedNanos;
+
+	SigningReport(byte[][] signatures, RuntimeException[] errors, List<TokenStats> tokens, long elapsedNanos) {
+		this.signatures = signatures;
+		this.errors = errors;
+		this.tokens = Collections.unmodifiableList(tokens);
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * @return quantity of digests in the batch
+	 */
+	public int size() {
+		return signatures.length;
+	}
+
+	/**
+	 * @param index of the digest in the batch
+	 * @return the signature or null if the digest failed
+	 */
+	public byte[] getSignature(int index) {
+		return signatures[index];
+	}
+
+	/**
+	 * @param index of the digest in the batch
+	 * @return the failure or null if the digest was signed
+	 */
+	public RuntimeException getError(int index) {
+		return errors[index];
+	}
+
+	/**
+	 * @return quantity of digests that couldn't be signed
+	 */
+	public int getFailures() {
+		int failures = 0;
+		for (RuntimeException error : errors) {
+			if (error != null) {
+				failures++;
+			}
+		}
+		return failures;
+	}
+
+	public boolean isSuccess() {
+		return getFailures() == 0;
+	}
+
+	/**
+	 * @return the statistics of each token used
+	 */
+	public List<TokenStats> getTokens() {
+		return tokens;
+	}
+
+	/**
+	 * @return wall time of the whole batch, in nanoseconds
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return signatures per second of every token together
+	 */
+	public double getThroughput() {
+		return perSecond(size() - getFailures(), elapsedNanos);
+	}
+
+	private static double perSecond(long count, long nanos) {
+		return nanos <= 0 ? 0 : count * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(size()).append(" digests, ").append(getFailures()).append(" failed, ")
+				.append(String.format("%.1f", getThroughput())).append(" signatures/s");
+		for (TokenStats token : tokens) {
+			builder.append("\n  ").append(token);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Signatures done by a single token. The latency is the time of
+	 * <em>C_SignInit</em> and <em>C_Sign</em> for a digest.
+	 */
+	public static class TokenStats {
+
+		private final String libPath;
+
+		private final long slotId;
+
+		private final TokenInfo tokenInfo;
+
+		private final long signatures;
+
+		private final long failures;
+
+		private final long totalNanos;
+
+		private final long minNanos;
+
+		private final long maxNanos;
+
+		private final long elapsedNanos;
+
+		TokenStats(String libPath, long slotId, TokenInfo tokenInfo, long signatures, long failures, 
+				long totalNanos, long minNanos, long maxNanos, long elapsedNanos) {
+			this.libPath = libPath;
+			this.slotId = slotId;
+			this.tokenInfo = tokenInfo;
+			this.signatures = signatures;
+			this.failures = failures;
+			this.totalNanos = totalNanos;
+			this.minNanos = minNanos;
+			this.maxNanos = maxNanos;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public String getLibPath() {
+			return libPath;
+		}
+
+		public long getSlotId() {
+			return slotId;
+		}
+
+		public TokenInfo getTokenInfo() {
+			return tokenInfo;
+		}
+
+		public long getSignatures() {
+			return signatures;
+		}
+
+		public long getFailures() {
+			return failures;
+		}
+
+		/**
+		 * @return average latency of a signature, in nanoseconds
+		 */
+		public long getAverageNanos() {
+			return signatures == 0 ? 0 : totalNanos / signatures;
+		}
+
+		public long getMinNanos() {
+			return signatures == 0 ? 0 : minNanos;
+		}
+
+		public long getMaxNanos() {
+			return maxNanos;
+		}
+
+		/**
+		 * @return signatures per second of this token during the batch
+		 */
+		public double getThroughput() {
+			return perSecond(signatures, elapsedNanos);
+		}
+
+		@Override
+		public String toString() {
+			return "slot " + slotId + " " + tokenInfo + ": " + signatures + " signed, " + failures + " failed, "
+					+ String.format("%.1f", getThroughput()) + " signatures/s, latency avg "
+					+ TimeUnit.NANOSECONDS.toMicros(getAverageNanos()) + " us, min "
+					+ TimeUnit.NANOSECONDS.toMicros(getMinNanos()) + " us, max "
+					+ TimeUnit.NANOSECONDS.toMicros(getMaxNanos()) + " us";
+		}
+	}
+}
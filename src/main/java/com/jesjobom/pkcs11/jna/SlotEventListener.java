@@ -0,0 +1,26 @@
+package com.jesjobom.pkcs11.jna;
+
+/**
+ * Listener of the tokens inserted and removed, notified by {@link SlotWatcher}.
+ * Called from the thread of the watcher, so it shouldn't block for long.
+ *
+ * @author jesjobom
+ */
+public interface SlotEventListener {
+
+	/**
+	 * A token was inserted into the slot (reader).
+	 *
+	 * @param module library that detected the token
+	 * @param slotId
+	 */
+	void tokenInserted(Pkcs11Module module, long slotId);
+
+	/**
+	 * The token was removed from the slot (reader).
+	 *
+	 * @param module library that detected the removal
+	 * @param slotId
+	 */
+	void tokenRemoved(Pkcs11Module module, long slotId);
+}
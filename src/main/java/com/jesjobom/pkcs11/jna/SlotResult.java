@@ -0,0 +1,75 @@
+package com.jesjobom.pkcs11.jna;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of the lookup on a single slot (reader). When the lookup failed the
+ * error is kept instead of the labels, so one bad reader doesn't hide the
+ * others.
+ *
+ * @author jesjobom
+ */
+public class SlotResult {
+
+	private final long slotId;
+
+	private final TokenInfo tokenInfo;
+
+	private final List<String> labels;
+
+	private final RuntimeException error;
+
+	public SlotResult(long slotId, TokenInfo tokenInfo, List<String> labels) {
+		this.slotId = slotId;
+		this.tokenInfo = tokenInfo;
+		this.labels = Collections.unmodifiableList(labels);
+		this.error = null;
+	}
+
+	public SlotResult(long slotId, TokenInfo tokenInfo, RuntimeException error) {
+		this.slotId = slotId;
+		this.tokenInfo = tokenInfo;
+		this.labels = Collections.emptyList();
+		this.error = error;
+	}
+
+	public long getSlotId() {
+		return slotId;
+	}
+
+	/**
+	 * @return {@link TokenInfo} or null if it couldn't be read
+	 */
+	public TokenInfo getTokenInfo() {
+		return tokenInfo;
+	}
+
+	/**
+	 * @return labels of the certificates, in the order they were found
+	 */
+	public List<String> getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @return the label of the last certificate, or null
+	 * @see LabelSelection#LAST
+	 */
+	public String getLabel() {
+		return LabelSelection.LAST.select(labels);
+	}
+
+	public RuntimeException getError() {
+		return error;
+	}
+
+	public boolean isSuccess() {
+		return error == null;
+	}
+
+	@Override
+	public String toString() {
+		return "Slot " + slotId + " " + tokenInfo + ": " + (isSuccess() ? labels : error.getMessage());
+	}
+}
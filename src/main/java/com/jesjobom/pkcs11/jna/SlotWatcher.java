@@ -0,0 +1,232 @@
+package com.jesjobom.pkcs11.jna;
+
+import com.jesjobom.pkcs11.utils.DaemonThreadFactory;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Background watcher of the tokens inserted and removed from the slots of a
+ * library, notifying the {@link SlotEventListener}s.
+ * <br>
+ * The watcher waits on <em>C_WaitForSlotEvent</em>, so it uses no CPU nor USB
+ * traffic while nothing happens. When the library doesn't support the
+ * blocking wait, or serializes its calls (see {@link Pkcs11Module}), it checks
+ * for events without blocking every {@link #getPollInterval()} milliseconds,
+ * falling back to comparing the slot list when even that is not supported.
+ * <br>
+ * Libraries may also report events of a token that is still there. The token
+ * of the slot is only notified as removed and inserted again when its
+ * {@link TokenInfo#getFingerprint() fingerprint} changed, that is another
+ * token or the same one with another content, so its sessions and login are
+ * kept otherwise.
+ * <br>
+ * A blocked <em>C_WaitForSlotEvent</em> only returns on an event or when the
+ * library is finalized, so after {@link #close()} the thread may linger until
+ * then. It is a daemon thread and doesn't keep the JVM alive.
+ *
+ * @author jesjobom
+ * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323024108
+ */
+public class SlotWatcher implements Closeable {
+
+	private static final Logger LOGGER = LogManager.getLogger(SlotWatcher.class);
+
+	public static final long DEFAULT_POLL_INTERVAL_MS = 1000;
+
+	private static final DaemonThreadFactory THREAD_FACTORY = new DaemonThreadFactory("pkcs11-slot-watcher");
+
+	private enum Mode {
+		BLOCKING, NON_BLOCKING, SLOT_LIST
+	}
+
+	private final Pkcs11Module module;
+
+	private final long pollInterval;
+
+	private final List<SlotEventListener> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Fingerprints of the tokens present, null when it couldn't be read.
+	 */
+	private final Map<Long, Long> presentSlots = new HashMap<>();
+
+	private volatile boolean running = false;
+
+	private Thread thread;
+
+	public SlotWatcher(Pkcs11Module module) {
+		this(module, DEFAULT_POLL_INTERVAL_MS);
+	}
+
+	public SlotWatcher(Pkcs11Module module, long pollInterval) {
+		this.module = module;
+		this.pollInterval = pollInterval;
+	}
+
+	public void addListener(SlotEventListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(SlotEventListener listener) {
+		listeners.remove(listener);
+	}
+
+	public Pkcs11Module getModule() {
+		return module;
+	}
+
+	public long getPollInterval() {
+		return pollInterval;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Starts watching. The tokens already present are notified as inserted
+	 * right away.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		thread = THREAD_FACTORY.newThread(this::watch);
+		thread.start();
+	}
+
+	/**
+	 * Stops watching.
+	 */
+	@Override
+	public synchronized void close() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	private void watch() {
+		LOGGER.debug("Watching the slots of " + module.getLibPath());
+		Mode mode = module.isOsLocking() ? Mode.BLOCKING : Mode.NON_BLOCKING;
+
+		try {
+			refreshSlots(null);
+
+			while (running) {
+				if (mode == Mode.SLOT_LIST) {
+					sleep();
+					refreshSlots(null);
+					continue;
+				}
+
+				Long slotId;
+				try {
+					slotId = module.waitForSlotEvent(mode == Mode.BLOCKING);
+				} catch (Pkcs11Exception ex) {
+					if (ex.getReturnValue() != Pkcs11Wrapper.CKR_FUNCTION_NOT_SUPPORTED) {
+						throw ex;
+					}
+					mode = mode == Mode.BLOCKING ? Mode.NON_BLOCKING : Mode.SLOT_LIST;
+					LOGGER.debug("Slot events not supported by " + module.getLibPath() + ". Watching with " + mode);
+					continue;
+				}
+
+				if (slotId != null) {
+					refreshSlots(slotId);
+				} else {
+					sleep();
+				}
+			}
+
+		} catch (InterruptedException ex) {
+			//closed
+		} catch (RuntimeException ex) {
+			if (running) {
+				//the library was probably finalized
+				LOGGER.debug("Stopped watching the slots of " + module.getLibPath(), ex);
+			}
+		} finally {
+			running = false;
+		}
+	}
+
+	/**
+	 * Compares the slots with a token to the ones known before, notifying the
+	 * differences.
+	 * 
+	 * @param eventSlotId slot reported by the library, which may have had its
+	 * token changed if it is still present, or null
+	 */
+	private void refreshSlots(Long eventSlotId) {
+		Map<Long, Long> current = new HashMap<>();
+		for (long slotId : module.getTokenSlotIds()) {
+			if (presentSlots.containsKey(slotId) && !Long.valueOf(slotId).equals(eventSlotId)) {
+				current.put(slotId, presentSlots.get(slotId));
+			} else {
+				current.put(slotId, readFingerprint(slotId));
+			}
+		}
+
+		for (Long slotId : new ArrayList<>(presentSlots.keySet())) {
+			if (!current.containsKey(slotId) || changed(presentSlots.get(slotId), current.get(slotId))) {
+				presentSlots.remove(slotId);
+				LOGGER.debug("Token removed from slot " + slotId);
+				for (SlotEventListener listener : listeners) {
+					notify(() -> listener.tokenRemoved(module, slotId));
+				}
+			}
+		}
+
+		for (Map.Entry<Long, Long> token : current.entrySet()) {
+			Long slotId = token.getKey();
+			if (!presentSlots.containsKey(slotId)) {
+				presentSlots.put(slotId, token.getValue());
+				LOGGER.debug("Token inserted into slot " + slotId);
+				for (SlotEventListener listener : listeners) {
+					notify(() -> listener.tokenInserted(module, slotId));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return fingerprint of the token in the slot or null if it can't be read
+	 */
+	private Long readFingerprint(long slotId) {
+		try {
+			return module.getTokenInfo(slotId).getFingerprint();
+		} catch (Pkcs11Exception ex) {
+			LOGGER.debug("Failed to read the token of slot " + slotId, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Whether the token may not be the same, which is assumed when any of the
+	 * fingerprints couldn't be read.
+	 */
+	private static boolean changed(Long known, Long current) {
+		return known == null || current == null || !known.equals(current);
+	}
+
+	private static void notify(Runnable notification) {
+		try {
+			notification.run();
+		} catch (RuntimeException ex) {
+			LOGGER.error("Slot event listener failed", ex);
+		}
+	}
+
+	private void sleep() throws InterruptedException {
+		Thread.sleep(pollInterval);
+	}
+}
@@ -0,0 +1,95 @@
+package com.jesjobom.pkcs11.jna;
+
+/**
+ * A public object of the token as kept in a {@link TokenSnapshot}: its class,
+ * the type of certificate, the <em>CKA_ID</em>, the <em>CKA_LABEL</em> and
+ * the <em>CKA_VALUE</em>, the DER encoding for the certificates.
+ * Attributes the object doesn't have are null, or
+ * {@link Pkcs11Wrapper#CK_UNAVAILABLE_INFORMATION} for the numbers.
+ *
+ * @author jesjobom
+ */
+public class SnapshotObject {
+
+	private final long objectId;
+
+	private final long objectClass;
+
+	private final long certificateType;
+
+	private final byte[] id;
+
+	private final String label;
+
+	private final byte[] value;
+
+	public SnapshotObject(long objectId, long objectClass, long certificateType, byte[] id, String label, byte[] value) {
+		this.objectId = objectId;
+		this.objectClass = objectClass;
+		this.certificateType = certificateType;
+		this.id = id;
+		this.label = label;
+		this.value = value;
+	}
+
+	/**
+	 * @return the object ID when the snapshot was taken, which may not be
+	 * valid in other sessions
+	 */
+	public long getObjectId() {
+		return objectId;
+	}
+
+	/**
+	 * @return the <em>CKA_CLASS</em> (CKO_*)
+	 */
+	public long getObjectClass() {
+		return objectClass;
+	}
+
+	/**
+	 * @return the <em>CKA_CERTIFICATE_TYPE</em> (CKC_*)
+	 */
+	public long getCertificateType() {
+		return certificateType;
+	}
+
+	public byte[] getId() {
+		return id == null ? null : id.clone();
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	public byte[] getValue() {
+		return value == null ? null : value.clone();
+	}
+
+	/**
+	 * @return true for the X.509 certificates with a value
+	 */
+	public boolean isCertificate() {
+		return objectClass == Pkcs11Wrapper.CKO_CERTIFICATE && certificateType == Pkcs11Wrapper.CKC_X_509 && value != null && value.length > 0;
+	}
+
+	/**
+	 * @return {@link CertificateObject} with a copy of the attributes
+	 */
+	public CertificateObject toCertificate() {
+		return new CertificateObject(objectId, getId(), label, getValue());
+	}
+
+	byte[] id() {
+		return id;
+	}
+
+	byte[] value() {
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return "Object " + objectId + " class " + objectClass + " (" + label + ")";
+	}
+}
@@ -0,0 +1,154 @@
+package com.jesjobom.pkcs11.jna;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps the public objects read from each token in a directory, a
+ * {@link TokenSnapshot} file per token, so a new process can answer with
+ * them right after reading the token info, without searching the objects
+ * again. A snapshot is used only while the token in the slot has the same
+ * serial number and fingerprint, see {@link TokenInfo#getFingerprint()}.
+ * <br>
+ * Nothing is kept for a token that doesn't report its free public memory,
+ * since its fingerprint would stay the same when the public objects change
+ * and the snapshot would never be found stale, see
+ * {@link TokenInfo#reportsPublicMemory()}. Such a token is read again by
+ * each new process.
+ * <br>
+ * The files are memory mapped, read only. They are replaced, never changed,
+ * so a snapshot already open keeps its content.
+ * <br>
+ * The directory is set by the system property {@value #PROPERTY}. Without it
+ * nothing is kept.
+ *
+ * @author jesjobom
+ */
+public class SnapshotStore {
+
+	private static final Logger LOGGER = LogManager.getLogger(SnapshotStore.class);
+
+	public static final String PROPERTY = "com.jesjobom.pkcs11.snapshots";
+
+	private static final String EXTENSION = ".snapshot";
+
+	private final File dir;
+
+	public SnapshotStore(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * @return the store of the directory set by {@value #PROPERTY} or null if
+	 * it isn't set
+	 */
+	public static SnapshotStore fromSystemProperty() {
+		String path = System.getProperty(PROPERTY);
+		if (path == null || path.trim().isEmpty()) {
+			return null;
+		}
+		return new SnapshotStore(new File(path.trim()));
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * Opens the snapshot of the token.
+	 *
+	 * @param tokenInfo of the token currently in the slot
+	 * @return {@link TokenSnapshot} or null if there is none, it doesn't match
+	 * the token, the token can't be kept or it can't be read
+	 */
+	public TokenSnapshot get(TokenInfo tokenInfo) {
+		if (!tokenInfo.reportsPublicMemory()) {
+			return null;
+		}
+		File file = getFile(tokenInfo);
+		if (!file.isFile()) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			//the mapping stays valid after the channel is closed
+			TokenSnapshot snapshot = new TokenSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			if (!snapshot.matches(tokenInfo)) {
+				LOGGER.debug("Snapshot {} is stale", file);
+				return null;
+			}
+			return snapshot;
+		} catch (IOException | IllegalArgumentException ex) {
+			LOGGER.debug("Ignoring the snapshot " + file, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Replaces the snapshot of the token. A failure to write it is only
+	 * logged, the snapshot is returned anyway, and so it is when the token
+	 * can't be kept.
+	 *
+	 * @param tokenInfo of the token the objects were read from
+	 * @param objects public objects of the token
+	 * @return {@link TokenSnapshot} of the objects
+	 */
+	public TokenSnapshot put(TokenInfo tokenInfo, List<SnapshotObject> objects) {
+		byte[] encoded = TokenSnapshot.encode(tokenInfo, objects, System.currentTimeMillis());
+		if (!tokenInfo.reportsPublicMemory()) {
+			LOGGER.debug("Token {} doesn't report its memory. Not saving its snapshot.", tokenInfo.getSerialNumber());
+			return new TokenSnapshot(ByteBuffer.wrap(encoded));
+		}
+		File file = getFile(tokenInfo);
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Can't create the directory " + dir);
+			}
+			//written aside and moved, so a concurrent process never reads half of it
+			File temp = File.createTempFile(file.getName(), ".tmp", dir);
+			try {
+				Files.write(temp.toPath(), encoded);
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				temp.delete();
+			}
+			LOGGER.debug("Snapshot of token {} saved in {}", tokenInfo.getSerialNumber(), file);
+		} catch (IOException ex) {
+			LOGGER.debug("Failed to save the snapshot " + file, ex);
+		}
+		return new TokenSnapshot(ByteBuffer.wrap(encoded));
+	}
+
+	/**
+	 * Drops the snapshot of the token.
+	 *
+	 * @param tokenInfo
+	 */
+	public void remove(TokenInfo tokenInfo) {
+		File file = getFile(tokenInfo);
+		if (file.exists() && !file.delete()) {
+			LOGGER.debug("Failed to delete the snapshot {}", file);
+		}
+	}
+
+	/**
+	 * The file of a token is named after its manufacturer and serial number,
+	 * in hexadecimal since they may have any character.
+	 */
+	private File getFile(TokenInfo tokenInfo) {
+		byte[] key = (tokenInfo.getManufacturerId() + '\0' + tokenInfo.getSerialNumber()).getBytes(StandardCharsets.UTF_8);
+		StringBuilder name = new StringBuilder(key.length * 2 + EXTENSION.length());
+		for (byte b : key) {
+			name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return new File(dir, name.append(EXTENSION).toString());
+	}
+}
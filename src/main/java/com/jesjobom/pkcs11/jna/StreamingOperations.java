@@ -0,0 +1,323 @@
+package com.jesjobom.pkcs11.jna;
+
+import com.jesjobom.pkcs11.utils.NativeLongUtils;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Multi-part operations of a session over channels: digest, sign and
+ * decrypt payloads of any size in constant memory.
+ * <br>
+ * The payload is passed to the library in chunks of {@link #getChunkSize()}
+ * bytes, straight from direct buffers. A {@link FileChannel} is memory mapped
+ * and its pages are passed to the library without any copy, any other
+ * channel is read into a single direct buffer reused for every chunk. The
+ * decrypted data is written to the output channel from another direct
+ * buffer, also reused.
+ * <br>
+ * Like the session, an instance must be used by a single thread at a time.
+ * The channels must be blocking.
+ *
+ * @author jesjobom
+ * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323024125
+ */
+public class StreamingOperations {
+
+	private static final Logger LOGGER = LogManager.getLogger(StreamingOperations.class);
+
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * Size of each region of a file mapped at once.
+	 */
+	public static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * Room for the padding and the final block of the decryption, besides
+	 * the chunk.
+	 */
+	private static final int OUTPUT_MARGIN = 64;
+
+	private final Pkcs11Session session;
+
+	private final int chunkSize;
+
+	private boolean memoryMapped = true;
+
+	private ByteBuffer input;
+
+	private Pointer inputAddress;
+
+	private ByteBuffer output;
+
+	private Pointer outputAddress;
+
+	private final Memory outputLength = NativeLongUtils.allocate();
+
+	/**
+	 * The region of the file being passed to the library, kept reachable
+	 * while its pages are in use, since only its address is passed.
+	 */
+	private MappedByteBuffer window;
+
+	public StreamingOperations(Pkcs11Session session) {
+		this(session, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param session
+	 * @param chunkSize bytes passed to the library in each call
+	 */
+	public StreamingOperations(Pkcs11Session session, int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+		}
+		this.session = session;
+		this.chunkSize = chunkSize;
+	}
+
+	public Pkcs11Session getSession() {
+		return session;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * Whether a {@link FileChannel} is memory mapped, true by default. If
+	 * not, it is read like any other channel.
+	 *
+	 * @param memoryMapped
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * Digests everything left in the channel, with <em>C_DigestUpdate</em>.
+	 *
+	 * @param mechanism like <em>CKM_SHA256</em>
+	 * @param in read until the end
+	 * @return the digest
+	 * @throws IOException
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323205468
+	 */
+	public byte[] digest(CK_MECHANISM mechanism, ReadableByteChannel in) throws IOException {
+		Pkcs11Api api = session.getApi();
+		long sessionId = session.getSessionId();
+		OutputCall digestFinal = (out, outLength) -> api.C_DigestFinal(sessionId, out, outLength);
+
+		session.digestInit(mechanism);
+		update(in, (chunk, size) -> check(api.C_DigestUpdate(sessionId, chunk, size), "Failed to Digest Update"), digestFinal);
+		return outputBytes(call(digestFinal, "Failed to Digest Final"));
+	}
+
+	/**
+	 * Signs everything left in the channel, with <em>C_SignUpdate</em>.
+	 *
+	 * @param mechanism that hashes the data, like <em>CKM_SHA256_RSA_PKCS</em>
+	 * @param keyId the object ID of the private key
+	 * @param in read until the end
+	 * @return the signature
+	 * @throws IOException
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323205474
+	 */
+	public byte[] sign(CK_MECHANISM mechanism, long keyId, ReadableByteChannel in) throws IOException {
+		Pkcs11Api api = session.getApi();
+		long sessionId = session.getSessionId();
+		OutputCall signFinal = (out, outLength) -> api.C_SignFinal(sessionId, out, outLength);
+
+		session.signInit(mechanism, keyId);
+		update(in, (chunk, size) -> check(api.C_SignUpdate(sessionId, chunk, size), "Failed to Sign Update"), signFinal);
+		return outputBytes(call(signFinal, "Failed to Sign Final"));
+	}
+
+	/**
+	 * Decrypts everything left in the channel, with
+	 * <em>C_DecryptUpdate</em>, writing each decrypted part to the output.
+	 *
+	 * @param mechanism like <em>CKM_AES_CBC_PAD</em>
+	 * @param keyId the object ID of the key
+	 * @param in read until the end
+	 * @param out receives the decrypted data
+	 * @return quantity of bytes written
+	 * @throws IOException
+	 * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323205462
+	 */
+	public long decrypt(CK_MECHANISM mechanism, long keyId, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		Pkcs11Api api = session.getApi();
+		long sessionId = session.getSessionId();
+		OutputCall decryptFinal = (part, partLength) -> api.C_DecryptFinal(sessionId, part, partLength);
+		long[] written = {0};
+
+		session.decryptInit(mechanism, keyId);
+		update(in, (chunk, size) -> {
+			int decrypted = call((part, partLength) -> api.C_DecryptUpdate(sessionId, chunk, size, part, partLength), "Failed to Decrypt Update");
+			written[0] += write(out, decrypted);
+		}, decryptFinal);
+		written[0] += write(out, call(decryptFinal, "Failed to Decrypt Final"));
+		return written[0];
+	}
+
+	/**
+	 * Passes every chunk of the channel to the library. The operation is
+	 * finished if it fails before the library ends it.
+	 *
+	 * @param in
+	 * @param update receives each chunk
+	 * @param finish ends the operation
+	 */
+	private void update(ReadableByteChannel in, Update update, OutputCall finish) throws IOException {
+		try {
+			if (memoryMapped && in instanceof FileChannel) {
+				updateMapped((FileChannel) in, update);
+			} else {
+				updateRead(in, update);
+			}
+		} catch (Pkcs11Exception ex) {
+			//the library already ended the operation
+			throw ex;
+		} catch (IOException | RuntimeException ex) {
+			abort(finish);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Maps the rest of the file, a window at a time, and passes its pages to
+	 * the library.
+	 */
+	private void updateMapped(FileChannel file, Update update) throws IOException {
+		long position = file.position();
+		long end = file.size();
+		try {
+			while (position < end) {
+				long windowSize = Math.min(MAP_WINDOW_SIZE, end - position);
+				window = file.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+				Pointer address = Native.getDirectBufferPointer(window);
+				for (long offset = 0; offset < windowSize; offset += chunkSize) {
+					update.update(address.share(offset), (int) Math.min(chunkSize, windowSize - offset));
+				}
+				position += windowSize;
+				file.position(position);
+			}
+		} finally {
+			window = null;
+		}
+	}
+
+	/**
+	 * Reads the channel into the input buffer, a chunk at a time.
+	 */
+	private void updateRead(ReadableByteChannel in, Update update) throws IOException {
+		if (input == null) {
+			input = ByteBuffer.allocateDirect(chunkSize);
+			inputAddress = Native.getDirectBufferPointer(input);
+		}
+		boolean end = false;
+		while (!end) {
+			input.clear();
+			while (input.hasRemaining()) {
+				if (in.read(input) < 0) {
+					end = true;
+					break;
+				}
+			}
+			if (input.position() > 0) {
+				update.update(inputAddress, input.position());
+			}
+		}
+	}
+
+	/**
+	 * Calls a function that returns its data in the output buffer, growing
+	 * it and calling again if too small.
+	 *
+	 * @return quantity of bytes returned in the output buffer
+	 */
+	private int call(OutputCall call, String message) {
+		if (output == null) {
+			allocateOutput(chunkSize + OUTPUT_MARGIN);
+		}
+		NativeLongUtils.write(outputLength, 0, output.capacity());
+		int callReturn = call.call(outputAddress, outputLength);
+
+		if (callReturn == Pkcs11Wrapper.CKR_BUFFER_TOO_SMALL) {
+			allocateOutput((int) NativeLongUtils.read(outputLength, 0));
+			NativeLongUtils.write(outputLength, 0, output.capacity());
+			callReturn = call.call(outputAddress, outputLength);
+		}
+
+		check(callReturn, message);
+		return (int) NativeLongUtils.read(outputLength, 0);
+	}
+
+	/**
+	 * Ends the operation, ignoring the result.
+	 */
+	private void abort(OutputCall finish) {
+		try {
+			call(finish, "Failed to end the operation");
+		} catch (RuntimeException ex) {
+			LOGGER.debug("Failed to end the operation of session {}", session.getSessionId(), ex);
+		}
+	}
+
+	private void allocateOutput(int size) {
+		output = ByteBuffer.allocateDirect(size);
+		outputAddress = Native.getDirectBufferPointer(output);
+	}
+
+	private byte[] outputBytes(int length) {
+		byte[] bytes = new byte[length];
+		output.clear();
+		output.get(bytes);
+		return bytes;
+	}
+
+	private int write(WritableByteChannel out, int length) throws IOException {
+		output.clear();
+		output.limit(length);
+		while (output.hasRemaining()) {
+			out.write(output);
+		}
+		return length;
+	}
+
+	private static void check(int callReturn, String message) {
+		if (callReturn != Pkcs11Wrapper.CKR_OK) {
+			throw new Pkcs11Exception(message, callReturn);
+		}
+	}
+
+	/**
+	 * Passes a chunk to the library.
+	 */
+	private interface Update {
+
+		void update(Pointer chunk, int size) throws IOException;
+	}
+
+	/**
+	 * A function with output: the buffer and its length, updated by the
+	 * library.
+	 */
+	private interface OutputCall {
+
+		int call(Pointer out, Pointer outLength);
+	}
+}
@@ -0,0 +1,243 @@
+package com.jesjobom.pkcs11.jna;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The login of the user in a token, shared by every session of the
+ * application with it. The login belongs to the token, not to the session
+ * it was done with, and may take most of a second on a smart card, so it is
+ * done once and kept until {@link #logout()}, the token is removed or its
+ * last session is closed.
+ * <br>
+ * The PIN is kept in a copy that is wiped on {@link #close()}, when
+ * replaced or when the token rejects it, so a wrong PIN is not tried again
+ * until it locks the token. An operation failing with
+ * <em>CKR_USER_NOT_LOGGED_IN</em>, because the token logged out behind our
+ * back, logs in again and is tried once more. Many sessions failing at once
+ * log in only once.
+ * <br>
+ * Each slot of a {@link Pkcs11Module} has a single authenticator, see
+ * {@link Pkcs11Module#getAuthenticator(long)}.
+ *
+ * @author jesjobom
+ * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323205456
+ */
+public class TokenAuthenticator implements Closeable {
+
+	private static final Logger LOGGER = LogManager.getLogger(TokenAuthenticator.class);
+
+	private final Pkcs11Module module;
+
+	private final long slotId;
+
+	private char[] pin;
+
+	/**
+	 * Incremented by each login, so a session that saw an older one knows
+	 * someone else already logged in again.
+	 */
+	private volatile long generation = 0;
+
+	private volatile boolean loggedIn = false;
+
+	private final AtomicLong logins = new AtomicLong();
+
+	TokenAuthenticator(Pkcs11Module module, long slotId) {
+		this.module = module;
+		this.slotId = slotId;
+	}
+
+	public long getSlotId() {
+		return slotId;
+	}
+
+	/**
+	 * Sets the PIN of the user, replacing and wiping the previous one. The
+	 * current login is kept.
+	 *
+	 * @param pin copied, the caller can wipe its own
+	 */
+	public synchronized void setPin(char[] pin) {
+		wipePin();
+		this.pin = pin == null ? null : pin.clone();
+	}
+
+	public synchronized boolean hasPin() {
+		return pin != null;
+	}
+
+	/**
+	 * Whether the token is logged in as far as known. The token may have
+	 * logged out on its own since, which is noticed by the next operation.
+	 *
+	 * @return true if logged in
+	 */
+	public boolean isLoggedIn() {
+		return loggedIn;
+	}
+
+	/**
+	 * @return times <em>C_Login</em> was called successfully
+	 */
+	public long getLoginCount() {
+		return logins.get();
+	}
+
+	/**
+	 * Logs in through the session unless already logged in.
+	 *
+	 * @param session of this slot
+	 * @return the current login, for {@link #call(Pkcs11Session, Function)}
+	 */
+	public long login(Pkcs11Session session) {
+		if (loggedIn) {
+			return generation;
+		}
+		synchronized (this) {
+			if (!loggedIn) {
+				doLogin(session);
+			}
+			return generation;
+		}
+	}
+
+	/**
+	 * Runs the operation in the session, logging in first if needed. If the
+	 * token logged out, it logs in again and runs the operation once more.
+	 *
+	 * @param <T>
+	 * @param session of this slot, borrowed by the caller
+	 * @param operation using a private object
+	 * @return result of the operation
+	 */
+	public <T> T call(Pkcs11Session session, Function<Pkcs11Session, T> operation) {
+		long seen = login(session);
+		try {
+			return operation.apply(session);
+		} catch (Pkcs11Exception ex) {
+			if (ex.getReturnValue() != Pkcs11Wrapper.CKR_USER_NOT_LOGGED_IN) {
+				throw ex;
+			}
+			LOGGER.debug("Token of slot {} logged out. Logging in again.", slotId);
+			relogin(session, seen);
+			return operation.apply(session);
+		}
+	}
+
+	/**
+	 * Runs the operation in a session borrowed from the pool of the slot, see
+	 * {@link #call(Pkcs11Session, Function)}.
+	 *
+	 * @param <T>
+	 * @param operation using a private object
+	 * @return result of the operation
+	 */
+	public <T> T execute(Function<Pkcs11Session, T> operation) {
+		SessionPool pool = module.getSessionPool(slotId);
+		long sessionId = pool.borrow();
+		T result;
+		try {
+			result = call(new Pkcs11Session(module.getApi(), sessionId), operation);
+		} catch (Pkcs11Exception ex) {
+			if (ex.isSessionLost()) {
+				loggedIn = false;
+				pool.invalidate(sessionId);
+			} else {
+				pool.release(sessionId);
+			}
+			throw ex;
+		} catch (RuntimeException ex) {
+			pool.release(sessionId);
+			throw ex;
+		}
+		pool.release(sessionId);
+		return result;
+	}
+
+	/**
+	 * Logs the user out of the token, for every session of the application.
+	 * The PIN is kept for the next login.
+	 */
+	public synchronized void logout() {
+		if (!loggedIn) {
+			return;
+		}
+		loggedIn = false;
+		SessionPool pool = module.getSessionPool(slotId);
+		long sessionId = pool.borrow();
+		try {
+			new Pkcs11Session(module.getApi(), sessionId).logout();
+		} catch (RuntimeException ex) {
+			pool.invalidate(sessionId);
+			throw ex;
+		}
+		pool.release(sessionId);
+	}
+
+	/**
+	 * Logs out, if the library is still initialized, and wipes the PIN.
+	 */
+	@Override
+	public synchronized void close() {
+		if (loggedIn && module.isInitialized()) {
+			try {
+				logout();
+			} catch (RuntimeException ex) {
+				LOGGER.debug("Failed to logout of slot {}", slotId, ex);
+			}
+		}
+		discard();
+	}
+
+	/**
+	 * Forgets the login and wipes the PIN without calling the library, since
+	 * the token was removed or the library finalized.
+	 */
+	synchronized void discard() {
+		loggedIn = false;
+		wipePin();
+	}
+
+	/**
+	 * Logs in again unless someone else already did since the login the
+	 * session saw.
+	 */
+	private synchronized void relogin(Pkcs11Session session, long seen) {
+		if (loggedIn && generation != seen) {
+			return;
+		}
+		loggedIn = false;
+		doLogin(session);
+	}
+
+	private void doLogin(Pkcs11Session session) {
+		if (pin == null) {
+			throw new IllegalStateException("No PIN for the token of slot " + slotId);
+		}
+		try {
+			session.login(Pkcs11Wrapper.CKU_USER, pin);
+		} catch (Pkcs11Exception ex) {
+			if (ex.getReturnValue() == Pkcs11Wrapper.CKR_PIN_INCORRECT) {
+				//trying it again could lock the token
+				wipePin();
+			}
+			throw ex;
+		}
+		generation++;
+		loggedIn = true;
+		logins.incrementAndGet();
+		LOGGER.debug("Logged in the token of slot {}", slotId);
+	}
+
+	private void wipePin() {
+		if (pin != null) {
+			Arrays.fill(pin, '\0');
+			pin = null;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.jesjobom.pkcs11.jna;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In memory cache of what was read from the tokens, so repeated lookups for the
+ * same card don't need to go back to it.
+ * <br>
+ * The entries are keyed by library, slot and the serial number of the token,
+ * so a different card in the same reader is never served from the cache.
+ * The cache is bounded: the least recently used entry is dropped when full
+ * and every entry expires after the time to live. Entries of a slot should be
+ * invalidated when its token is removed, see {@link #invalidate(String, long)}.
+ *
+ * @author jesjobom
+ */
+public class TokenCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 64;
+
+	public static final long DEFAULT_TTL_MS = 5 * 60 * 1000;
+
+	private final long ttlMillis;
+
+	private final LinkedHashMap<String, CachedResult> entries;
+
+	public TokenCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MS);
+	}
+
+	/**
+	 * @param maxEntries maximum of tokens kept
+	 * @param ttlMillis time to live of each entry, in milliseconds
+	 */
+	public TokenCache(final int maxEntries, long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Gets the result read before from the token, if still valid.
+	 *
+	 * @param libPath
+	 * @param slotId
+	 * @param serialNumber serial of the token currently in the slot
+	 * @return {@link SlotResult} or null if not cached
+	 */
+	public synchronized SlotResult get(String libPath, long slotId, String serialNumber) {
+		String key = key(libPath, slotId, serialNumber);
+		CachedResult entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expiresAt < System.currentTimeMillis()) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.result;
+	}
+
+	/**
+	 * Keeps a successful result read from the token. Failures are not cached.
+	 *
+	 * @param libPath
+	 * @param serialNumber
+	 * @param result
+	 */
+	public synchronized void put(String libPath, String serialNumber, SlotResult result) {
+		if (!result.isSuccess()) {
+			return;
+		}
+		//a slot holds one token at a time
+		invalidate(libPath, result.getSlotId());
+		entries.put(key(libPath, result.getSlotId(), serialNumber), new CachedResult(result, System.currentTimeMillis() + ttlMillis));
+	}
+
+	/**
+	 * Drops the entries of a slot, whatever token it had.
+	 * Should be used when the token is removed or changed.
+	 *
+	 * @param libPath
+	 * @param slotId
+	 */
+	public synchronized void invalidate(String libPath, long slotId) {
+		String prefix = key(libPath, slotId, "");
+		Iterator<String> keys = entries.keySet().iterator();
+		while (keys.hasNext()) {
+			if (keys.next().startsWith(prefix)) {
+				keys.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drops every entry.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private static String key(String libPath, long slotId, String serialNumber) {
+		return libPath + '#' + slotId + '#' + serialNumber;
+	}
+
+	private static class CachedResult {
+
+		private final SlotResult result;
+
+		private final long expiresAt;
+
+		private CachedResult(SlotResult result, long expiresAt) {
+			this.result = result;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package com.jesjobom.pkcs11.jna;
+
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Information about the token present in a slot, read from the native
+ * structure <em>CK_TOKEN_INFO</em>. Only the identification of the token is
+ * kept: the strings are blank padded in the structure and are trimmed here.
+ * <br>
+ * The fingerprint tells if the content of the token may have changed: it is
+ * a hash of the identification, the flags, the memory used and the versions,
+ * without the counters of sessions and the clock. A token that doesn't report
+ * its free public memory (<em>CK_UNAVAILABLE_INFORMATION</em>) keeps the same
+ * fingerprint when its public objects change, see
+ * {@link #reportsPublicMemory()}.
+ *
+ * @author jesjobom
+ * @see http://docs.oasis-open.org/pkcs11/pkcs11-base/v2.40/os/pkcs11-base-v2.40-os.html#_Toc323024062
+ */
+public class TokenInfo {
+
+	private static final int LABEL_OFFSET = 0;
+	private static final int MANUFACTURER_OFFSET = 32;
+	private static final int MODEL_OFFSET = 64;
+	private static final int SERIAL_OFFSET = 80;
+	private static final int FLAGS_OFFSET = 96;
+
+	//indexes of the CK_ULONG after the strings
+	private static final int TOTAL_PUBLIC_MEMORY = 7;
+	private static final int FREE_PUBLIC_MEMORY = 8;
+	private static final int FREE_PRIVATE_MEMORY = 10;
+	private static final int VERSIONS_OFFSET = FLAGS_OFFSET + 11 * NativeLong.SIZE;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final String label;
+
+	private final String manufacturerId;
+
+	private final String model;
+
+	private final String serialNumber;
+
+	private final long flags;
+
+	private final long fingerprint;
+
+	private final boolean publicMemory;
+
+	public TokenInfo(String label, String manufacturerId, String model, String serialNumber, long flags) {
+		this(label, manufacturerId, model, serialNumber, flags, 
+				hash(hash(FNV_OFFSET, (label + '\0' + manufacturerId + '\0' + model + '\0' + serialNumber).getBytes(StandardCharsets.UTF_8)), flags));
+	}
+
+	public TokenInfo(String label, String manufacturerId, String model, String serialNumber, long flags, long fingerprint) {
+		this(label, manufacturerId, model, serialNumber, flags, fingerprint, true);
+	}
+
+	public TokenInfo(String label, String manufacturerId, String model, String serialNumber, long flags, long fingerprint,
+			boolean publicMemory) {
+		this.label = label;
+		this.manufacturerId = manufacturerId;
+		this.model = model;
+		this.serialNumber = serialNumber;
+		this.flags = flags;
+		this.fingerprint = fingerprint;
+		this.publicMemory = publicMemory;
+	}
+
+	/**
+	 * Size of the native structure: after the 4 strings there are 11 CK_ULONG,
+	 * 2 versions of 2 bytes and the 16 bytes of the UTC time, plus some room
+	 * for the alignment.
+	 */
+	public static final int SIZE = FLAGS_OFFSET + 11 * NativeLong.SIZE + 4 + 16 + NativeLong.SIZE;
+
+	/**
+	 * Allocates the memory for the native structure.
+	 *
+	 * @return {@link Memory}
+	 */
+	static Memory allocate() {
+		return new Memory(SIZE);
+	}
+
+	/**
+	 * Converts the native structure into a Java Object.
+	 *
+	 * @param info memory filled by <em>C_GetTokenInfo</em>
+	 * @return {@link TokenInfo}
+	 */
+	static TokenInfo read(Pointer info) {
+		long flags = readLong(info, 0);
+
+		long fingerprint = hash(FNV_OFFSET, info.getByteArray(0, FLAGS_OFFSET));
+		fingerprint = hash(fingerprint, flags);
+		for (int i = TOTAL_PUBLIC_MEMORY; i <= FREE_PRIVATE_MEMORY; i++) {
+			fingerprint = hash(fingerprint, readLong(info, i));
+		}
+		fingerprint = hash(fingerprint, info.getByteArray(VERSIONS_OFFSET, 4));
+
+		return new TokenInfo(
+				readString(info, LABEL_OFFSET, 32),
+				readString(info, MANUFACTURER_OFFSET, 32),
+				readString(info, MODEL_OFFSET, 16),
+				readString(info, SERIAL_OFFSET, 16),
+				flags,
+				fingerprint,
+				readLong(info, FREE_PUBLIC_MEMORY) != Pkcs11Wrapper.CK_UNAVAILABLE_INFORMATION);
+	}
+
+	private static long readLong(Pointer info, int index) {
+		if (NativeLong.SIZE == 4) {
+			return info.getInt(FLAGS_OFFSET + index * NativeLong.SIZE);
+		} else {
+			return info.getLong(FLAGS_OFFSET + index * NativeLong.SIZE);
+		}
+	}
+
+	private static long hash(long hash, byte[] bytes) {
+		for (byte b : bytes) {
+			hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	private static long hash(long hash, long value) {
+		for (int i = 0; i < 8; i++) {
+			hash = (hash ^ ((value >>> (8 * i)) & 0xFF)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	private static String readString(Pointer info, int offset, int size) {
+		byte[] bytes = info.getByteArray(offset, size);
+		return new String(bytes, StandardCharsets.UTF_8).trim();
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	public String getManufacturerId() {
+		return manufacturerId;
+	}
+
+	public String getModel() {
+		return model;
+	}
+
+	public String getSerialNumber() {
+		return serialNumber;
+	}
+
+	public long getFlags() {
+		return flags;
+	}
+
+	/**
+	 * @return hash of what changes when the content of the token changes
+	 */
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Whether the token reports its free public memory, so the fingerprint
+	 * changes when a public object is created, changed or destroyed.
+	 *
+	 * @return false if the memory is <em>CK_UNAVAILABLE_INFORMATION</em>
+	 */
+	public boolean reportsPublicMemory() {
+		return publicMemory;
+	}
+
+	@Override
+	public String toString() {
+		return label + " (" + manufacturerId + " " + model + ", serial " + serialNumber + ")";
+	}
+}
@@ -0,0 +1,316 @@
+package com.jesjobom.pkcs11.jna;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The public objects of a token, as read at some point, in a compact binary
+ * format kept by the {@link SnapshotStore}. The objects are read straight
+ * from the buffer, usually memory mapped from the file, only when requested.
+ * <br>
+ * Format, big endian:
+ * <pre>
+ * int     magic "PK11"
+ * short   version
+ * short   reserved
+ * long    fingerprint of the token, see {@link TokenInfo#getFingerprint()}
+ * long    creation time, in milliseconds
+ * short   length + UTF-8 of the manufacturer of the token
+ * short   length + UTF-8 of the serial number of the token
+ * int     quantity of objects
+ * objects:
+ *   long  object ID
+ *   long  CKA_CLASS
+ *   long  CKA_CERTIFICATE_TYPE
+ *   int   length of CKA_ID, CKA_LABEL (UTF-8) and CKA_VALUE, -1 if unavailable
+ *   the 3 values
+ * int     CRC32 of everything before
+ * </pre>
+ *
+ * @author jesjobom
+ */
+public class TokenSnapshot {
+
+	private static final int MAGIC = 0x504B3131;
+
+	public static final short VERSION = 1;
+
+	private final ByteBuffer buffer;
+
+	private final long fingerprint;
+
+	private final long createdAt;
+
+	private final String manufacturerId;
+
+	private final String serialNumber;
+
+	private final int[] offsets;
+
+	/**
+	 * Validates the buffer and indexes its objects.
+	 *
+	 * @param buffer with the whole snapshot
+	 * @throws IllegalArgumentException if the buffer is not a valid snapshot
+	 * of this version
+	 */
+	TokenSnapshot(ByteBuffer buffer) {
+		this.buffer = buffer.duplicate();
+		try {
+			int size = this.buffer.limit();
+			CRC32 crc = new CRC32();
+			ByteBuffer content = this.buffer.duplicate();
+			content.limit(size - 4);
+			crc.update(content);
+			if (this.buffer.getInt(size - 4) != (int) crc.getValue()) {
+				throw new IllegalArgumentException("Corrupted snapshot");
+			}
+
+			ByteBuffer reader = this.buffer.duplicate();
+			if (reader.getInt() != MAGIC) {
+				throw new IllegalArgumentException("Not a snapshot");
+			}
+			short version = reader.getShort();
+			if (version != VERSION) {
+				throw new IllegalArgumentException("Unsupported snapshot version " + version);
+			}
+			reader.getShort();
+			fingerprint = reader.getLong();
+			createdAt = reader.getLong();
+			manufacturerId = readString(reader);
+			serialNumber = readString(reader);
+
+			offsets = new int[reader.getInt()];
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] = reader.position();
+				reader.position(reader.position() + 3 * 8);
+				int valuesSize = 0;
+				for (int j = 0; j < 3; j++) {
+					valuesSize += Math.max(reader.getInt(), 0);
+				}
+				reader.position(reader.position() + valuesSize);
+			}
+			if (reader.position() != size - 4) {
+				throw new IllegalArgumentException("Corrupted snapshot");
+			}
+		} catch (IndexOutOfBoundsException | BufferUnderflowException ex) {
+			throw new IllegalArgumentException("Corrupted snapshot", ex);
+		}
+	}
+
+	/**
+	 * Writes the objects in the format of the snapshot.
+	 *
+	 * @param tokenInfo of the token the objects were read from
+	 * @param objects
+	 * @param createdAt
+	 * @return the snapshot
+	 */
+	static byte[] encode(TokenInfo tokenInfo, List<SnapshotObject> objects, long createdAt) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeShort(0);
+			out.writeLong(tokenInfo.getFingerprint());
+			out.writeLong(createdAt);
+			writeString(out, tokenInfo.getManufacturerId());
+			writeString(out, tokenInfo.getSerialNumber());
+			out.writeInt(objects.size());
+			for (SnapshotObject object : objects) {
+				byte[] label = object.getLabel() == null ? null : object.getLabel().getBytes(StandardCharsets.UTF_8);
+				out.writeLong(object.getObjectId());
+				out.writeLong(object.getObjectClass());
+				out.writeLong(object.getCertificateType());
+				out.writeInt(object.id() == null ? -1 : object.id().length);
+				out.writeInt(label == null ? -1 : label.length);
+				out.writeInt(object.value() == null ? -1 : object.value().length);
+				writeBytes(out, object.id());
+				writeBytes(out, label);
+				writeBytes(out, object.value());
+			}
+			CRC32 crc = new CRC32();
+			crc.update(bytes.toByteArray());
+			out.writeInt((int) crc.getValue());
+		} catch (IOException ex) {
+			//not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException(ex);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Whether the snapshot was taken from this token and its content didn't
+	 * change since then.
+	 *
+	 * @param tokenInfo of the token currently in the slot
+	 * @return true if the snapshot can be used
+	 */
+	public boolean matches(TokenInfo tokenInfo) {
+		return fingerprint == tokenInfo.getFingerprint()
+				&& serialNumber.equals(tokenInfo.getSerialNumber())
+				&& manufacturerId.equals(tokenInfo.getManufacturerId());
+	}
+
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @return when the snapshot was taken, in milliseconds
+	 */
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	public String getManufacturerId() {
+		return manufacturerId;
+	}
+
+	public String getSerialNumber() {
+		return serialNumber;
+	}
+
+	/**
+	 * @return quantity of objects
+	 */
+	public int size() {
+		return offsets.length;
+	}
+
+	public long getObjectId(int index) {
+		return buffer.getLong(offsets[index]);
+	}
+
+	public long getObjectClass(int index) {
+		return buffer.getLong(offsets[index] + 8);
+	}
+
+	public long getCertificateType(int index) {
+		return buffer.getLong(offsets[index] + 16);
+	}
+
+	/**
+	 * @param index
+	 * @return the <em>CKA_LABEL</em> or null
+	 */
+	public String getLabel(int index) {
+		ByteBuffer label = getAttribute(index, 1);
+		return label == null ? null : Pkcs11Session.decodeLabel(label);
+	}
+
+	/**
+	 * Gets the <em>CKA_VALUE</em> as a view of the snapshot, without copying.
+	 *
+	 * @param index
+	 * @return read only {@link ByteBuffer} or null
+	 */
+	public ByteBuffer getValue(int index) {
+		return getAttribute(index, 2);
+	}
+
+	/**
+	 * @param index
+	 * @return {@link SnapshotObject} with a copy of the attributes
+	 */
+	public SnapshotObject getObject(int index) {
+		return new SnapshotObject(getObjectId(index), getObjectClass(index), getCertificateType(index),
+				copy(getAttribute(index, 0)), getLabel(index), copy(getValue(index)));
+	}
+
+	/**
+	 * @return every object, in the order they were found in the token
+	 */
+	public List<SnapshotObject> getObjects() {
+		List<SnapshotObject> objects = new ArrayList<>(offsets.length);
+		for (int i = 0; i < offsets.length; i++) {
+			objects.add(getObject(i));
+		}
+		return objects;
+	}
+
+	/**
+	 * @return the X.509 certificates, in the order they were found in the
+	 * token
+	 * @see SnapshotObject#isCertificate()
+	 */
+	public List<CertificateObject> getCertificates() {
+		List<CertificateObject> certificates = new ArrayList<>();
+		for (int i = 0; i < offsets.length; i++) {
+			if (isCertificate(i)) {
+				certificates.add(getObject(i).toCertificate());
+			}
+		}
+		return certificates;
+	}
+
+	/**
+	 * @param index
+	 * @return true for the X.509 certificates with a value
+	 */
+	public boolean isCertificate(int index) {
+		ByteBuffer value = getValue(index);
+		return getObjectClass(index) == Pkcs11Wrapper.CKO_CERTIFICATE
+				&& getCertificateType(index) == Pkcs11Wrapper.CKC_X_509
+				&& value != null && value.hasRemaining();
+	}
+
+	/**
+	 * @param index of the object
+	 * @param attribute 0 for the CKA_ID, 1 for the CKA_LABEL and 2 for the
+	 * CKA_VALUE
+	 */
+	private ByteBuffer getAttribute(int index, int attribute) {
+		int lengths = offsets[index] + 3 * 8;
+		int position = lengths + 3 * 4;
+		for (int i = 0; i < attribute; i++) {
+			position += Math.max(buffer.getInt(lengths + i * 4), 0);
+		}
+		int length = buffer.getInt(lengths + attribute * 4);
+		if (length < 0) {
+			return null;
+		}
+		ByteBuffer value = buffer.asReadOnlyBuffer();
+		value.limit(position + length).position(position);
+		return value.slice();
+	}
+
+	private static byte[] copy(ByteBuffer value) {
+		if (value == null) {
+			return null;
+		}
+		byte[] bytes = new byte[value.remaining()];
+		value.get(bytes);
+		return bytes;
+	}
+
+	private static String readString(ByteBuffer reader) {
+		byte[] bytes = new byte[reader.getShort() & 0xFFFF];
+		reader.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		if (bytes != null) {
+			out.write(bytes);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Snapshot of token " + serialNumber + " (" + offsets.length + " objects)";
+	}
+}
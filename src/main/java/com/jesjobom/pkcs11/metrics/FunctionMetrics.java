@@ -0,0 +1,177 @@
+package com.jesjobom.pkcs11.metrics;
+
+import com.jesjobom.pkcs11.jna.Pkcs11Function;
+import com.jesjobom.pkcs11.jna.Pkcs11Wrapper;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, return codes and calls in flight of a single PKCS11 function of a
+ * library. Every counter is a {@link LongAdder}, so the threads calling the
+ * library at the same time don't contend on them.
+ *
+ * @author jesjobom
+ */
+public class FunctionMetrics implements FunctionMetricsMXBean {
+
+	public static final int HISTOGRAM_BUCKETS = 28;
+
+	private final String libPath;
+
+	private final Pkcs11Function function;
+
+	private final LongAdder calls = new LongAdder();
+
+	private final LongAdder errors = new LongAdder();
+
+	private final LongAdder failures = new LongAdder();
+
+	private final LongAdder inFlight = new LongAdder();
+
+	private final LongAdder totalNanos = new LongAdder();
+
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+	private final LongAdder[] histogram = new LongAdder[HISTOGRAM_BUCKETS];
+
+	private final Map<Integer, LongAdder> returnCodes = new ConcurrentHashMap<>();
+
+	public FunctionMetrics(String libPath, Pkcs11Function function) {
+		this.libPath = libPath;
+		this.function = function;
+		for (int i = 0; i < histogram.length; i++) {
+			histogram[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Marks the start of a call.
+	 *
+	 * @return the start time, to be passed to {@link #end(long, int)}
+	 */
+	public long begin() {
+		inFlight.increment();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records a call that returned.
+	 *
+	 * @param start returned by {@link #begin()}
+	 * @param rv the CK_RV returned by the library
+	 * @return the time the call took, in nanoseconds
+	 */
+	public long end(long start, int rv) {
+		long nanos = finish(start);
+		if (rv != Pkcs11Wrapper.CKR_OK) {
+			errors.increment();
+		}
+		LongAdder count = returnCodes.get(rv);
+		if (count == null) {
+			count = returnCodes.computeIfAbsent(rv, code -> new LongAdder());
+		}
+		count.increment();
+		return nanos;
+	}
+
+	/**
+	 * Records a call that threw an exception.
+	 *
+	 * @param start returned by {@link #begin()}
+	 * @return the time the call took, in nanoseconds
+	 */
+	public long fail(long start) {
+		long nanos = finish(start);
+		failures.increment();
+		return nanos;
+	}
+
+	private long finish(long start) {
+		long nanos = System.nanoTime() - start;
+		inFlight.decrement();
+		calls.increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		histogram[Math.min(bucket, HISTOGRAM_BUCKETS - 1)].increment();
+		return nanos;
+	}
+
+	@Override
+	public String getLibPath() {
+		return libPath;
+	}
+
+	@Override
+	public String getFunction() {
+		return function.name();
+	}
+
+	public Pkcs11Function getPkcs11Function() {
+		return function;
+	}
+
+	@Override
+	public long getCalls() {
+		return calls.sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	@Override
+	public long getInFlight() {
+		return inFlight.sum();
+	}
+
+	@Override
+	public long getTotalTimeNanos() {
+		return totalNanos.sum();
+	}
+
+	@Override
+	public long getMaxTimeNanos() {
+		return maxNanos.get();
+	}
+
+	@Override
+	public long getMeanTimeNanos() {
+		long count = calls.sum();
+		return count == 0 ? 0 : totalNanos.sum() / count;
+	}
+
+	@Override
+	public long[] getLatencyHistogram() {
+		long[] counts = new long[histogram.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = histogram[i].sum();
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Long> getReturnCodes() {
+		Map<String, Long> counts = new TreeMap<>();
+		for (Map.Entry<Integer, LongAdder> entry : returnCodes.entrySet()) {
+			counts.put("0x" + Integer.toHexString(entry.getKey()).toUpperCase(), entry.getValue().sum());
+		}
+		return counts;
+	}
+
+	@Override
+	public String toString() {
+		return function + " of " + libPath + ": " + getCalls() + " calls, mean " + getMeanTimeNanos() + " ns";
+	}
+}
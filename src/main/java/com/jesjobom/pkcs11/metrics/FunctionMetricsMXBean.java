@@ -0,0 +1,57 @@
+package com.jesjobom.pkcs11.metrics;
+
+import java.util.Map;
+
+/**
+ * The metrics of a single PKCS11 function of a library, as exported by
+ * {@link JmxMetricsSink}.
+ *
+ * @author jesjobom
+ */
+public interface FunctionMetricsMXBean {
+
+	String getLibPath();
+
+	String getFunction();
+
+	/**
+	 * @return quantity of calls finished
+	 */
+	long getCalls();
+
+	/**
+	 * @return quantity of calls that returned something other than CKR_OK
+	 */
+	long getErrors();
+
+	/**
+	 * @return quantity of calls that threw an exception instead of returning
+	 */
+	long getFailures();
+
+	/**
+	 * @return quantity of calls running right now
+	 */
+	long getInFlight();
+
+	long getTotalTimeNanos();
+
+	long getMaxTimeNanos();
+
+	long getMeanTimeNanos();
+
+	/**
+	 * The latency of the calls in buckets of powers of two microseconds:
+	 * bucket 0 counts the calls under 1 us and bucket <em>i</em> the ones
+	 * from 2<sup>i-1</sup> up to 2<sup>i</sup> us. The last bucket counts
+	 * every slower call.
+	 *
+	 * @return array with the count of each bucket
+	 */
+	long[] getLatencyHistogram();
+
+	/**
+	 * @return quantity of calls by the CK_RV returned, in hexadecimal
+	 */
+	Map<String, Long> getReturnCodes();
+}
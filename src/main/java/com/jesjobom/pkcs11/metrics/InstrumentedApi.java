@@ -0,0 +1,458 @@
+package com.jesjobom.pkcs11.metrics;
+
+import com.jesjobom.pkcs11.jna.Pkcs11Api;
+import com.jesjobom.pkcs11.jna.Pkcs11Function;
+import com.sun.jna.Pointer;
+
+/**
+ * {@link Pkcs11Api} recording the {@link FunctionMetrics} of every call to
+ * the wrapped one and opening a span with the {@link Pkcs11Tracer}, if any.
+ * The time measured is only the one spent in the call, without the locking
+ * of the libraries whose calls are serialized.
+ *
+ * @author jesjobom
+ * @see Pkcs11Metrics
+ */
+public class InstrumentedApi implements Pkcs11Api {
+
+	private final String libPath;
+
+	private final Pkcs11Api api;
+
+	private final FunctionMetrics initialize;
+	private final FunctionMetrics finalize;
+	private final FunctionMetrics getSlotList;
+	private final FunctionMetrics getTokenInfo;
+	private final FunctionMetrics waitForSlotEvent;
+	private final FunctionMetrics openSession;
+	private final FunctionMetrics closeSession;
+	private final FunctionMetrics getSessionInfo;
+	private final FunctionMetrics findObjectsInit;
+	private final FunctionMetrics findObjects;
+	private final FunctionMetrics findObjectsFinal;
+	private final FunctionMetrics getAttributeValue;
+	private final FunctionMetrics login;
+	private final FunctionMetrics logout;
+	private final FunctionMetrics signInit;
+	private final FunctionMetrics sign;
+	private final FunctionMetrics signUpdate;
+	private final FunctionMetrics signFinal;
+	private final FunctionMetrics digestInit;
+	private final FunctionMetrics digestUpdate;
+	private final FunctionMetrics digestFinal;
+	private final FunctionMetrics decryptInit;
+	private final FunctionMetrics decryptUpdate;
+	private final FunctionMetrics decryptFinal;
+
+	public InstrumentedApi(String libPath, Pkcs11Api api) {
+		this.libPath = libPath;
+		this.api = api;
+		initialize = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_Initialize);
+		finalize = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_Finalize);
+		getSlotList = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_GetSlotList);
+		getTokenInfo = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_GetTokenInfo);
+		waitForSlotEvent = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_WaitForSlotEvent);
+		openSession = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_OpenSession);
+		closeSession = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_CloseSession);
+		getSessionInfo = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_GetSessionInfo);
+		findObjectsInit = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_FindObjectsInit);
+		findObjects = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_FindObjects);
+		findObjectsFinal = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_FindObjectsFinal);
+		getAttributeValue = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_GetAttributeValue);
+		login = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_Login);
+		logout = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_Logout);
+		signInit = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_SignInit);
+		sign = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_Sign);
+		signUpdate = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_SignUpdate);
+		signFinal = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_SignFinal);
+		digestInit = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_DigestInit);
+		digestUpdate = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_DigestUpdate);
+		digestFinal = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_DigestFinal);
+		decryptInit = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_DecryptInit);
+		decryptUpdate = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_DecryptUpdate);
+		decryptFinal = Pkcs11Metrics.getMetrics(libPath, Pkcs11Function.C_DecryptFinal);
+	}
+
+	@Override
+	public int C_Initialize(Pointer args) {
+		Span span = start(initialize);
+		int rv;
+		try {
+			rv = api.C_Initialize(args);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_Finalize(Pointer reserved) {
+		Span span = start(finalize);
+		int rv;
+		try {
+			rv = api.C_Finalize(reserved);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_GetSlotList(boolean tokenPresent, Pointer slotList, Pointer count) {
+		Span span = start(getSlotList);
+		int rv;
+		try {
+			rv = api.C_GetSlotList(tokenPresent, slotList, count);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_GetTokenInfo(long slotId, Pointer info) {
+		Span span = start(getTokenInfo);
+		int rv;
+		try {
+			rv = api.C_GetTokenInfo(slotId, info);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_WaitForSlotEvent(long flags, Pointer slotId, Pointer reserved) {
+		Span span = start(waitForSlotEvent);
+		int rv;
+		try {
+			rv = api.C_WaitForSlotEvent(flags, slotId, reserved);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_OpenSession(long slotId, long flags, Pointer app, Pointer notify, Pointer sessionId) {
+		Span span = start(openSession);
+		int rv;
+		try {
+			rv = api.C_OpenSession(slotId, flags, app, notify, sessionId);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_CloseSession(long sessionId) {
+		Span span = start(closeSession);
+		int rv;
+		try {
+			rv = api.C_CloseSession(sessionId);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_GetSessionInfo(long sessionId, Pointer info) {
+		Span span = start(getSessionInfo);
+		int rv;
+		try {
+			rv = api.C_GetSessionInfo(sessionId, info);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_FindObjectsInit(long sessionId, Pointer template, long count) {
+		Span span = start(findObjectsInit);
+		int rv;
+		try {
+			rv = api.C_FindObjectsInit(sessionId, template, count);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_FindObjects(long sessionId, Pointer objectIds, long maxCount, Pointer count) {
+		Span span = start(findObjects);
+		int rv;
+		try {
+			rv = api.C_FindObjects(sessionId, objectIds, maxCount, count);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_FindObjectsFinal(long sessionId) {
+		Span span = start(findObjectsFinal);
+		int rv;
+		try {
+			rv = api.C_FindObjectsFinal(sessionId);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_GetAttributeValue(long sessionId, long objectId, Pointer template, long count) {
+		Span span = start(getAttributeValue);
+		int rv;
+		try {
+			rv = api.C_GetAttributeValue(sessionId, objectId, template, count);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_Login(long sessionId, long userType, Pointer pin, long pinLength) {
+		Span span = start(login);
+		int rv;
+		try {
+			rv = api.C_Login(sessionId, userType, pin, pinLength);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_Logout(long sessionId) {
+		Span span = start(logout);
+		int rv;
+		try {
+			rv = api.C_Logout(sessionId);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_SignInit(long sessionId, Pointer mechanism, long keyId) {
+		Span span = start(signInit);
+		int rv;
+		try {
+			rv = api.C_SignInit(sessionId, mechanism, keyId);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_Sign(long sessionId, Pointer data, long dataLength, Pointer signature, Pointer signatureLength) {
+		Span span = start(sign);
+		int rv;
+		try {
+			rv = api.C_Sign(sessionId, data, dataLength, signature, signatureLength);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_SignUpdate(long sessionId, Pointer part, long partLength) {
+		Span span = start(signUpdate);
+		int rv;
+		try {
+			rv = api.C_SignUpdate(sessionId, part, partLength);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_SignFinal(long sessionId, Pointer signature, Pointer signatureLength) {
+		Span span = start(signFinal);
+		int rv;
+		try {
+			rv = api.C_SignFinal(sessionId, signature, signatureLength);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_DigestInit(long sessionId, Pointer mechanism) {
+		Span span = start(digestInit);
+		int rv;
+		try {
+			rv = api.C_DigestInit(sessionId, mechanism);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_DigestUpdate(long sessionId, Pointer part, long partLength) {
+		Span span = start(digestUpdate);
+		int rv;
+		try {
+			rv = api.C_DigestUpdate(sessionId, part, partLength);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_DigestFinal(long sessionId, Pointer digest, Pointer digestLength) {
+		Span span = start(digestFinal);
+		int rv;
+		try {
+			rv = api.C_DigestFinal(sessionId, digest, digestLength);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_DecryptInit(long sessionId, Pointer mechanism, long keyId) {
+		Span span = start(decryptInit);
+		int rv;
+		try {
+			rv = api.C_DecryptInit(sessionId, mechanism, keyId);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_DecryptUpdate(long sessionId, Pointer encryptedPart, long encryptedPartLength, Pointer part, Pointer partLength) {
+		Span span = start(decryptUpdate);
+		int rv;
+		try {
+			rv = api.C_DecryptUpdate(sessionId, encryptedPart, encryptedPartLength, part, partLength);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	@Override
+	public int C_DecryptFinal(long sessionId, Pointer lastPart, Pointer lastPartLength) {
+		Span span = start(decryptFinal);
+		int rv;
+		try {
+			rv = api.C_DecryptFinal(sessionId, lastPart, lastPartLength);
+		} catch (RuntimeException | Error ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		span.end(rv);
+		return rv;
+	}
+
+	public Pkcs11Api getApi() {
+		return api;
+	}
+
+	private Span start(FunctionMetrics metrics) {
+		Pkcs11Tracer tracer = Pkcs11Metrics.getTracer();
+		if (tracer == null) {
+			return new Span(metrics, null, null);
+		}
+		return new Span(metrics, tracer, tracer.start(libPath, metrics.getPkcs11Function()));
+	}
+
+	/**
+	 * A call in progress.
+	 */
+	private static class Span {
+
+		private final FunctionMetrics metrics;
+
+		private final Pkcs11Tracer tracer;
+
+		private final Object traceSpan;
+
+		private final long start;
+
+		private Span(FunctionMetrics metrics, Pkcs11Tracer tracer, Object traceSpan) {
+			this.metrics = metrics;
+			this.tracer = tracer;
+			this.traceSpan = traceSpan;
+			this.start = metrics.begin();
+		}
+
+		private void end(int rv) {
+			metrics.end(start, rv);
+			if (tracer != null) {
+				tracer.end(traceSpan, rv, null);
+			}
+		}
+
+		private void fail(Throwable error) {
+			metrics.fail(start);
+			if (tracer != null) {
+				tracer.end(traceSpan, -1, error);
+			}
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package com.jesjobom.pkcs11.metrics;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Exports each function of each library as a MBean named
+ * <code>com.jesjobom.pkcs11:type=Function,library="...",name=C_...</code>
+ * in the platform MBean server.
+ *
+ * @author jesjobom
+ * @see FunctionMetricsMXBean
+ */
+public class JmxMetricsSink implements MetricsSink {
+
+	private static final Logger LOGGER = LogManager.getLogger(JmxMetricsSink.class);
+
+	public static final String DOMAIN = "com.jesjobom.pkcs11";
+
+	private final MBeanServer server;
+
+	public JmxMetricsSink() {
+		this(ManagementFactory.getPlatformMBeanServer());
+	}
+
+	public JmxMetricsSink(MBeanServer server) {
+		this.server = server;
+	}
+
+	@Override
+	public void register(FunctionMetrics metrics) {
+		try {
+			ObjectName name = getName(metrics);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(metrics, name);
+		} catch (JMException ex) {
+			LOGGER.warn("Failed to register the metrics of " + metrics.getFunction(), ex);
+		}
+	}
+
+	@Override
+	public void unregister(FunctionMetrics metrics) {
+		try {
+			ObjectName name = getName(metrics);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException ex) {
+			LOGGER.warn("Failed to unregister the metrics of " + metrics.getFunction(), ex);
+		}
+	}
+
+	public static ObjectName getName(FunctionMetrics metrics) throws JMException {
+		return new ObjectName(DOMAIN + ":type=Function,library=" + ObjectName.quote(metrics.getLibPath())
+				+ ",name=" + metrics.getFunction());
+	}
+}
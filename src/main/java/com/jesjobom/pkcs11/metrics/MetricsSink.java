@@ -0,0 +1,28 @@
+package com.jesjobom.pkcs11.metrics;
+
+/**
+ * Where the metrics of the PKCS11 functions are exported to. The metrics are
+ * kept up to date by the instrumented calls, so the sink only needs to expose
+ * them, reading their values when asked.
+ * <br>
+ * {@link JmxMetricsSink} by default. Other monitoring systems (like
+ * Micrometer) can be plugged with {@link Pkcs11Metrics#setSink(MetricsSink)}.
+ *
+ * @author jesjobom
+ */
+public interface MetricsSink {
+
+	/**
+	 * Called once for each function of a library when it is instrumented.
+	 *
+	 * @param metrics
+	 */
+	void register(FunctionMetrics metrics);
+
+	/**
+	 * Called when the metrics of the library are dropped.
+	 *
+	 * @param metrics
+	 */
+	void unregister(FunctionMetrics metrics);
+}
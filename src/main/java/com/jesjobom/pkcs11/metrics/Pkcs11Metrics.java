@@ -0,0 +1,156 @@
+package com.jesjobom.pkcs11.metrics;
+
+import com.jesjobom.pkcs11.jna.Pkcs11Api;
+import com.jesjobom.pkcs11.jna.Pkcs11Function;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Instrumentation of the calls to the native libraries, enabled by the system
+ * property {@value #PROPERTY} or by {@link #setEnabled(boolean)} before the
+ * libraries are loaded.
+ * <br>
+ * When enabled, each library loaded by {@link com.jesjobom.pkcs11.jna.Pkcs11Module}
+ * is wrapped by {@link InstrumentedApi}, recording the {@link FunctionMetrics}
+ * of every call, exported by the {@link MetricsSink}, and opening a span with
+ * the {@link Pkcs11Tracer}, if any. When disabled the libraries are not
+ * wrapped at all, so there's no cost.
+ *
+ * @author jesjobom
+ */
+public class Pkcs11Metrics {
+
+	public static final String PROPERTY = "com.jesjobom.pkcs11.metrics";
+
+	private static final Map<String, Map<Pkcs11Function, FunctionMetrics>> LIBRARIES = new ConcurrentHashMap<>();
+
+	private static volatile Boolean enabled;
+
+	private static volatile MetricsSink sink;
+
+	private static volatile Pkcs11Tracer tracer;
+
+	private Pkcs11Metrics() {
+	}
+
+	/**
+	 * @return true if the libraries loaded from now on are instrumented
+	 */
+	public static boolean isEnabled() {
+		Boolean value = enabled;
+		return value != null ? value : Boolean.getBoolean(PROPERTY);
+	}
+
+	/**
+	 * Overrides the system property {@value #PROPERTY}. Only the libraries
+	 * loaded after this call are affected.
+	 *
+	 * @param enabled
+	 */
+	public static void setEnabled(boolean enabled) {
+		Pkcs11Metrics.enabled = enabled;
+	}
+
+	/**
+	 * @return the sink, {@link JmxMetricsSink} by default
+	 */
+	public static synchronized MetricsSink getSink() {
+		if (sink == null) {
+			sink = new JmxMetricsSink();
+		}
+		return sink;
+	}
+
+	/**
+	 * Replaces the sink, moving the metrics already recorded to the new one.
+	 *
+	 * @param sink
+	 */
+	public static synchronized void setSink(MetricsSink sink) {
+		MetricsSink previous = Pkcs11Metrics.sink;
+		Pkcs11Metrics.sink = sink;
+		for (FunctionMetrics metrics : getMetrics()) {
+			if (previous != null) {
+				previous.unregister(metrics);
+			}
+			sink.register(metrics);
+		}
+	}
+
+	/**
+	 * @return the tracer or null
+	 */
+	public static Pkcs11Tracer getTracer() {
+		return tracer;
+	}
+
+	/**
+	 * Sets the tracer of the calls, null to stop tracing.
+	 *
+	 * @param tracer
+	 */
+	public static void setTracer(Pkcs11Tracer tracer) {
+		Pkcs11Metrics.tracer = tracer;
+	}
+
+	/**
+	 * Wraps the library, recording every call.
+	 *
+	 * @param libPath path to the native library
+	 * @param api bound to the library
+	 * @return {@link InstrumentedApi}
+	 */
+	public static Pkcs11Api instrument(String libPath, Pkcs11Api api) {
+		return new InstrumentedApi(libPath, api);
+	}
+
+	/**
+	 * Gets the metrics of the function of a library, creating and registering
+	 * them in the sink the first time.
+	 *
+	 * @param libPath path to the native library
+	 * @param function
+	 * @return {@link FunctionMetrics}
+	 */
+	public static FunctionMetrics getMetrics(String libPath, Pkcs11Function function) {
+		Map<Pkcs11Function, FunctionMetrics> functions = LIBRARIES.computeIfAbsent(libPath, path -> new ConcurrentHashMap<>());
+		FunctionMetrics metrics = functions.get(function);
+		if (metrics == null) {
+			synchronized (Pkcs11Metrics.class) {
+				metrics = functions.get(function);
+				if (metrics == null) {
+					metrics = new FunctionMetrics(libPath, function);
+					functions.put(function, metrics);
+					getSink().register(metrics);
+				}
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * @return the metrics of every function of every library instrumented
+	 */
+	public static List<FunctionMetrics> getMetrics() {
+		List<FunctionMetrics> all = new ArrayList<>();
+		for (Map<Pkcs11Function, FunctionMetrics> functions : LIBRARIES.values()) {
+			all.addAll(functions.values());
+		}
+		return all;
+	}
+
+	/**
+	 * Drops every metric recorded, unregistering them from the sink. The
+	 * libraries already instrumented keep recording into the dropped ones.
+	 */
+	public static synchronized void clear() {
+		for (FunctionMetrics metrics : getMetrics()) {
+			if (sink != null) {
+				sink.unregister(metrics);
+			}
+		}
+		LIBRARIES.clear();
+	}
+}
@@ -0,0 +1,31 @@
+package com.jesjobom.pkcs11.metrics;
+
+import com.jesjobom.pkcs11.jna.Pkcs11Function;
+
+/**
+ * Opens a trace span around each call to a PKCS11 function, for tracing
+ * systems that follow a request through the application. None by default,
+ * see {@link Pkcs11Metrics#setTracer(Pkcs11Tracer)}.
+ *
+ * @author jesjobom
+ */
+public interface Pkcs11Tracer {
+
+	/**
+	 * Called right before the native function.
+	 *
+	 * @param libPath path to the native library
+	 * @param function
+	 * @return the span, passed back to {@link #end(Object, int, Throwable)}
+	 */
+	Object start(String libPath, Pkcs11Function function);
+
+	/**
+	 * Called right after the native function, by the same thread.
+	 *
+	 * @param span returned by {@link #start(String, Pkcs11Function)}
+	 * @param rv the CK_RV returned, meaningless if there's an error
+	 * @param error thrown by the call, or null
+	 */
+	void end(Object span, int rv, Throwable error);
+}
@@ -0,0 +1,94 @@
+package com.jesjobom.pkcs11.replay;
+
+import com.jesjobom.pkcs11.jna.Pkcs11Api;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Recording of the calls to the native libraries, enabled by the system
+ * property {@value #PROPERTY} with the directory of the traces, or by
+ * {@link #setDir(File)} before the libraries are loaded.
+ * <br>
+ * When enabled, each library loaded by {@link com.jesjobom.pkcs11.jna.Pkcs11Module}
+ * is wrapped by {@link RecordingApi}, writing every call to a new trace file
+ * in the directory, named after the library and the time it was loaded. The
+ * traces are flushed when the library is finalized and when the JVM shuts
+ * down, and can be served later by {@link ReplayApi}.
+ *
+ * @author jesjobom
+ */
+public class Pkcs11Recorder {
+
+	private static final Logger LOGGER = LogManager.getLogger(Pkcs11Recorder.class);
+
+	public static final String PROPERTY = "com.jesjobom.pkcs11.record";
+
+	private static final List<TraceWriter> WRITERS = new CopyOnWriteArrayList<>();
+
+	private static volatile File dir;
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> WRITERS.forEach(TraceWriter::flush), "pkcs11-recorder-shutdown"));
+	}
+
+	private Pkcs11Recorder() {
+	}
+
+	/**
+	 * @return true if the libraries loaded from now on are recorded
+	 */
+	public static boolean isEnabled() {
+		return getDir() != null;
+	}
+
+	/**
+	 * @return the directory of the traces or null if disabled
+	 */
+	public static File getDir() {
+		File value = dir;
+		if (value != null) {
+			return value;
+		}
+		String path = System.getProperty(PROPERTY);
+		return path == null || path.trim().isEmpty() ? null : new File(path.trim());
+	}
+
+	/**
+	 * Overrides the system property {@value #PROPERTY}. Only the libraries
+	 * loaded after this call are affected.
+	 *
+	 * @param dir of the traces
+	 */
+	public static void setDir(File dir) {
+		Pkcs11Recorder.dir = dir;
+	}
+
+	/**
+	 * Wraps the library, recording every call into a new trace. If the trace
+	 * can't be created the library is not recorded.
+	 *
+	 * @param libPath path to the native library
+	 * @param api bound to the library
+	 * @return {@link RecordingApi} or the passed api
+	 */
+	public static Pkcs11Api record(String libPath, Pkcs11Api api) {
+		File traceDir = getDir();
+		File file = new File(traceDir, new File(libPath).getName() + "-" + System.currentTimeMillis() + ".trace");
+		try {
+			if (!traceDir.isDirectory() && !traceDir.mkdirs()) {
+				throw new IOException("Can't create the directory " + traceDir);
+			}
+			TraceWriter writer = new TraceWriter(file, libPath);
+			WRITERS.add(writer);
+			LOGGER.debug("Recording LIB " + libPath + " into " + file);
+			return new RecordingApi(api, writer);
+		} catch (IOException ex) {
+			LOGGER.error("Failed to create the trace " + file + ". Not recording " + libPath, ex);
+			return api;
+		}
+	}
+}
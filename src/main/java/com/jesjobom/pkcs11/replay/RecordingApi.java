@@ -0,0 +1,386 @@
+package com.jesjobom.pkcs11.replay;
+
+import com.jesjobom.pkcs11.jna.Pkcs11Api;
+import com.jesjobom.pkcs11.jna.Pkcs11Function;
+import com.jesjobom.pkcs11.jna.Pkcs11Wrapper;
+import com.jesjobom.pkcs11.jna.TokenInfo;
+import com.jesjobom.pkcs11.utils.NativeLongUtils;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * {@link Pkcs11Api} writing every call to the wrapped one into a trace, with
+ * the arguments and what the library returned, to be served later by
+ * {@link ReplayApi}.
+ * <br>
+ * The numbers and buffers recorded for each function are:
+ * <pre>
+ * C_GetSlotList        tokenPresent, with list, count, slot IDs
+ * C_GetTokenInfo       slotId              | CK_TOKEN_INFO
+ * C_WaitForSlotEvent   flags, slotId
+ * C_OpenSession        slotId, flags, sessionId
+ * C_CloseSession       sessionId
+ * C_GetSessionInfo     sessionId
+ * C_FindObjectsInit    sessionId           | template
+ * C_FindObjects        sessionId, max, count, object IDs
+ * C_FindObjectsFinal   sessionId
+ * C_GetAttributeValue  sessionId, objectId, count, type and length of each
+ *                      attribute           | value of each attribute
+ * C_Login              sessionId, userType, PIN length
+ * C_Logout             sessionId
+ * C_SignInit           sessionId, keyId, mechanism
+ * C_Sign               sessionId, data length, signature length | signature
+ * C_SignUpdate         sessionId, part length
+ * C_SignFinal          sessionId, signature length | signature
+ * C_DigestInit         sessionId, mechanism
+ * C_DigestUpdate       sessionId, part length
+ * C_DigestFinal        sessionId, digest length | digest
+ * C_DecryptInit        sessionId, keyId, mechanism
+ * C_DecryptUpdate      sessionId, encrypted length, part length | part
+ * C_DecryptFinal       sessionId, part length | part
+ * </pre>
+ * The template of a search is encoded as the type, the length (-1 without
+ * value) and the value of each attribute.
+ * <br>
+ * The PIN and the data passed to the library are never recorded, only their
+ * length. What the library returns is, including decrypted data.
+ *
+ * @author jesjobom
+ * @see Pkcs11Recorder
+ */
+public class RecordingApi implements Pkcs11Api {
+
+	//layout of each CK_ATTRIBUTE of a template, see AttributeArena
+	private static final int ATTRIBUTE_SIZE = NativeLong.SIZE + Pointer.SIZE + NativeLong.SIZE;
+	private static final int VALUE_OFFSET = NativeLong.SIZE;
+	private static final int LENGTH_OFFSET = NativeLong.SIZE + Pointer.SIZE;
+
+	private static final byte[][] NO_BUFFERS = new byte[0][];
+
+	private final Pkcs11Api api;
+
+	private final TraceWriter writer;
+
+	public RecordingApi(Pkcs11Api api, TraceWriter writer) {
+		this.api = api;
+		this.writer = writer;
+	}
+
+	public Pkcs11Api getApi() {
+		return api;
+	}
+
+	public TraceWriter getWriter() {
+		return writer;
+	}
+
+	@Override
+	public int C_Initialize(Pointer args) {
+		long start = System.nanoTime();
+		int rv = api.C_Initialize(args);
+		record(Pkcs11Function.C_Initialize, start, rv, new long[0]);
+		return rv;
+	}
+
+	/**
+	 * Also flushes the trace.
+	 */
+	@Override
+	public int C_Finalize(Pointer reserved) {
+		long start = System.nanoTime();
+		int rv = api.C_Finalize(reserved);
+		record(Pkcs11Function.C_Finalize, start, rv, new long[0]);
+		writer.flush();
+		return rv;
+	}
+
+	@Override
+	public int C_GetSlotList(boolean tokenPresent, Pointer slotList, Pointer count) {
+		long start = System.nanoTime();
+		int rv = api.C_GetSlotList(tokenPresent, slotList, count);
+		int returned = slotList == null || rv != Pkcs11Wrapper.CKR_OK ? 0 : (int) NativeLongUtils.read(count, 0);
+		long[] values = new long[3 + returned];
+		values[0] = tokenPresent ? 1 : 0;
+		values[1] = slotList == null ? 0 : 1;
+		values[2] = NativeLongUtils.read(count, 0);
+		for (int i = 0; i < returned; i++) {
+			values[3 + i] = NativeLongUtils.read(slotList, (long) i * NativeLong.SIZE);
+		}
+		record(Pkcs11Function.C_GetSlotList, start, rv, values);
+		return rv;
+	}
+
+	@Override
+	public int C_GetTokenInfo(long slotId, Pointer info) {
+		long start = System.nanoTime();
+		int rv = api.C_GetTokenInfo(slotId, info);
+		record(Pkcs11Function.C_GetTokenInfo, start, rv, new long[]{slotId},
+				rv == Pkcs11Wrapper.CKR_OK ? info.getByteArray(0, TokenInfo.SIZE) : null);
+		return rv;
+	}
+
+	@Override
+	public int C_WaitForSlotEvent(long flags, Pointer slotId, Pointer reserved) {
+		long start = System.nanoTime();
+		int rv = api.C_WaitForSlotEvent(flags, slotId, reserved);
+		record(Pkcs11Function.C_WaitForSlotEvent, start, rv, new long[]{flags, readULong(slotId, rv)});
+		return rv;
+	}
+
+	@Override
+	public int C_OpenSession(long slotId, long flags, Pointer app, Pointer notify, Pointer sessionId) {
+		long start = System.nanoTime();
+		int rv = api.C_OpenSession(slotId, flags, app, notify, sessionId);
+		record(Pkcs11Function.C_OpenSession, start, rv, new long[]{slotId, flags, readULong(sessionId, rv)});
+		return rv;
+	}
+
+	@Override
+	public int C_CloseSession(long sessionId) {
+		long start = System.nanoTime();
+		int rv = api.C_CloseSession(sessionId);
+		record(Pkcs11Function.C_CloseSession, start, rv, new long[]{sessionId});
+		return rv;
+	}
+
+	@Override
+	public int C_GetSessionInfo(long sessionId, Pointer info) {
+		long start = System.nanoTime();
+		int rv = api.C_GetSessionInfo(sessionId, info);
+		record(Pkcs11Function.C_GetSessionInfo, start, rv, new long[]{sessionId});
+		return rv;
+	}
+
+	@Override
+	public int C_FindObjectsInit(long sessionId, Pointer template, long count) {
+		long start = System.nanoTime();
+		int rv = api.C_FindObjectsInit(sessionId, template, count);
+		record(Pkcs11Function.C_FindObjectsInit, start, rv, new long[]{sessionId}, encodeTemplate(template, count));
+		return rv;
+	}
+
+	@Override
+	public int C_FindObjects(long sessionId, Pointer objectIds, long maxCount, Pointer count) {
+		long start = System.nanoTime();
+		int rv = api.C_FindObjects(sessionId, objectIds, maxCount, count);
+		int found = rv == Pkcs11Wrapper.CKR_OK ? (int) NativeLongUtils.read(count, 0) : 0;
+		long[] values = new long[3 + found];
+		values[0] = sessionId;
+		values[1] = maxCount;
+		values[2] = found;
+		for (int i = 0; i < found; i++) {
+			values[3 + i] = NativeLongUtils.read(objectIds, (long) i * NativeLong.SIZE);
+		}
+		record(Pkcs11Function.C_FindObjects, start, rv, values);
+		return rv;
+	}
+
+	@Override
+	public int C_FindObjectsFinal(long sessionId) {
+		long start = System.nanoTime();
+		int rv = api.C_FindObjectsFinal(sessionId);
+		record(Pkcs11Function.C_FindObjectsFinal, start, rv, new long[]{sessionId});
+		return rv;
+	}
+
+	@Override
+	public int C_GetAttributeValue(long sessionId, long objectId, Pointer template, long count) {
+		long start = System.nanoTime();
+		int rv = api.C_GetAttributeValue(sessionId, objectId, template, count);
+		//the template is only updated by these
+		boolean returned = rv == Pkcs11Wrapper.CKR_OK || rv == Pkcs11Wrapper.CKR_ATTRIBUTE_SENSITIVE
+				|| rv == Pkcs11Wrapper.CKR_ATTRIBUTE_TYPE_INVALID || rv == Pkcs11Wrapper.CKR_BUFFER_TOO_SMALL;
+		long[] values = new long[3 + 2 * (int) count];
+		byte[][] buffers = new byte[(int) count][];
+		values[0] = sessionId;
+		values[1] = objectId;
+		values[2] = count;
+		for (int i = 0; i < count; i++) {
+			long offset = (long) i * ATTRIBUTE_SIZE;
+			long length = NativeLongUtils.read(template, offset + LENGTH_OFFSET);
+			Pointer value = template.getPointer(offset + VALUE_OFFSET);
+			values[3 + 2 * i] = NativeLongUtils.read(template, offset);
+			values[4 + 2 * i] = length;
+			if (returned && value != null && length != Pkcs11Wrapper.CK_UNAVAILABLE_INFORMATION) {
+				buffers[i] = value.getByteArray(0, (int) length);
+			}
+		}
+		record(Pkcs11Function.C_GetAttributeValue, start, rv, values, buffers);
+		return rv;
+	}
+
+	@Override
+	public int C_Login(long sessionId, long userType, Pointer pin, long pinLength) {
+		long start = System.nanoTime();
+		int rv = api.C_Login(sessionId, userType, pin, pinLength);
+		record(Pkcs11Function.C_Login, start, rv, new long[]{sessionId, userType, pinLength});
+		return rv;
+	}
+
+	@Override
+	public int C_Logout(long sessionId) {
+		long start = System.nanoTime();
+		int rv = api.C_Logout(sessionId);
+		record(Pkcs11Function.C_Logout, start, rv, new long[]{sessionId});
+		return rv;
+	}
+
+	@Override
+	public int C_SignInit(long sessionId, Pointer mechanism, long keyId) {
+		long start = System.nanoTime();
+		int rv = api.C_SignInit(sessionId, mechanism, keyId);
+		record(Pkcs11Function.C_SignInit, start, rv, new long[]{sessionId, keyId, readULong(mechanism)});
+		return rv;
+	}
+
+	@Override
+	public int C_Sign(long sessionId, Pointer data, long dataLength, Pointer signature, Pointer signatureLength) {
+		long start = System.nanoTime();
+		int rv = api.C_Sign(sessionId, data, dataLength, signature, signatureLength);
+		record(Pkcs11Function.C_Sign, start, rv, new long[]{sessionId, dataLength, readULong(signatureLength)},
+				readBytes(signature, signatureLength, rv));
+		return rv;
+	}
+
+	@Override
+	public int C_SignUpdate(long sessionId, Pointer part, long partLength) {
+		long start = System.nanoTime();
+		int rv = api.C_SignUpdate(sessionId, part, partLength);
+		record(Pkcs11Function.C_SignUpdate, start, rv, new long[]{sessionId, partLength});
+		return rv;
+	}
+
+	@Override
+	public int C_SignFinal(long sessionId, Pointer signature, Pointer signatureLength) {
+		long start = System.nanoTime();
+		int rv = api.C_SignFinal(sessionId, signature, signatureLength);
+		record(Pkcs11Function.C_SignFinal, start, rv, new long[]{sessionId, readULong(signatureLength)},
+				readBytes(signature, signatureLength, rv));
+		return rv;
+	}
+
+	@Override
+	public int C_DigestInit(long sessionId, Pointer mechanism) {
+		long start = System.nanoTime();
+		int rv = api.C_DigestInit(sessionId, mechanism);
+		record(Pkcs11Function.C_DigestInit, start, rv, new long[]{sessionId, readULong(mechanism)});
+		return rv;
+	}
+
+	@Override
+	public int C_DigestUpdate(long sessionId, Pointer part, long partLength) {
+		long start = System.nanoTime();
+		int rv = api.C_DigestUpdate(sessionId, part, partLength);
+		record(Pkcs11Function.C_DigestUpdate, start, rv, new long[]{sessionId, partLength});
+		return rv;
+	}
+
+	@Override
+	public int C_DigestFinal(long sessionId, Pointer digest, Pointer digestLength) {
+		long start = System.nanoTime();
+		int rv = api.C_DigestFinal(sessionId, digest, digestLength);
+		record(Pkcs11Function.C_DigestFinal, start, rv, new long[]{sessionId, readULong(digestLength)},
+				readBytes(digest, digestLength, rv));
+		return rv;
+	}
+
+	@Override
+	public int C_DecryptInit(long sessionId, Pointer mechanism, long keyId) {
+		long start = System.nanoTime();
+		int rv = api.C_DecryptInit(sessionId, mechanism, keyId);
+		record(Pkcs11Function.C_DecryptInit, start, rv, new long[]{sessionId, keyId, readULong(mechanism)});
+		return rv;
+	}
+
+	@Override
+	public int C_DecryptUpdate(long sessionId, Pointer encryptedPart, long encryptedPartLength, Pointer part, Pointer partLength) {
+		long start = System.nanoTime();
+		int rv = api.C_DecryptUpdate(sessionId, encryptedPart, encryptedPartLength, part, partLength);
+		record(Pkcs11Function.C_DecryptUpdate, start, rv, new long[]{sessionId, encryptedPartLength, readULong(partLength)},
+				readBytes(part, partLength, rv));
+		return rv;
+	}
+
+	@Override
+	public int C_DecryptFinal(long sessionId, Pointer lastPart, Pointer lastPartLength) {
+		long start = System.nanoTime();
+		int rv = api.C_DecryptFinal(sessionId, lastPart, lastPartLength);
+		record(Pkcs11Function.C_DecryptFinal, start, rv, new long[]{sessionId, readULong(lastPartLength)},
+				readBytes(lastPart, lastPartLength, rv));
+		return rv;
+	}
+
+	/**
+	 * Encodes a template with values, like the filters of a search, as the
+	 * type, the length (-1 without value) and the value of each attribute.
+	 *
+	 * @param template in native memory
+	 * @param count quantity of attributes
+	 * @return the encoded template
+	 */
+	static byte[] encodeTemplate(Pointer template, long count) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			for (int i = 0; i < count; i++) {
+				long offset = (long) i * ATTRIBUTE_SIZE;
+				Pointer value = template.getPointer(offset + VALUE_OFFSET);
+				int length = (int) NativeLongUtils.read(template, offset + LENGTH_OFFSET);
+				out.writeLong(NativeLongUtils.read(template, offset));
+				if (value == null) {
+					out.writeInt(-1);
+				} else {
+					out.writeInt(length);
+					out.write(value.getByteArray(0, length));
+				}
+			}
+		} catch (IOException ex) {
+			//not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException(ex);
+		}
+		return bytes.toByteArray();
+	}
+
+	static long readType(Pointer template, int index) {
+		return NativeLongUtils.read(template, (long) index * ATTRIBUTE_SIZE);
+	}
+
+	static Pointer readValue(Pointer template, int index) {
+		return template.getPointer((long) index * ATTRIBUTE_SIZE + VALUE_OFFSET);
+	}
+
+	static long readLength(Pointer template, int index) {
+		return NativeLongUtils.read(template, (long) index * ATTRIBUTE_SIZE + LENGTH_OFFSET);
+	}
+
+	static void writeLength(Pointer template, int index, long length) {
+		NativeLongUtils.write(template, (long) index * ATTRIBUTE_SIZE + LENGTH_OFFSET, length);
+	}
+
+	private static long readULong(Pointer pointer) {
+		return pointer == null ? Pkcs11Wrapper.CK_UNAVAILABLE_INFORMATION : NativeLongUtils.read(pointer, 0);
+	}
+
+	private static long readULong(Pointer pointer, int rv) {
+		return rv == Pkcs11Wrapper.CKR_OK ? NativeLongUtils.read(pointer, 0) : Pkcs11Wrapper.CK_UNAVAILABLE_INFORMATION;
+	}
+
+	/**
+	 * @return the output of the function, or null if only its length was
+	 * asked or the call failed
+	 */
+	private static byte[] readBytes(Pointer out, Pointer outLength, int rv) {
+		if (out == null || rv != Pkcs11Wrapper.CKR_OK) {
+			return null;
+		}
+		return out.getByteArray(0, (int) NativeLongUtils.read(outLength, 0));
+	}
+
+	private void record(Pkcs11Function function, long start, int rv, long[] values, byte[]... buffers) {
+		long end = System.nanoTime();
+		writer.write(new TraceRecord(function, Thread.currentThread().getId(), start - writer.getStartNanos(),
+				end - start, rv, values, buffers.length == 0 ? NO_BUFFERS : buffers));
+	}
+}
@@ -0,0 +1,709 @@
+package com.jesjobom.pkcs11.replay;
+
+import com.jesjobom.pkcs11.jna.Pkcs11Api;
+import com.jesjobom.pkcs11.jna.Pkcs11Function;
+import com.jesjobom.pkcs11.jna.Pkcs11Wrapper;
+import com.jesjobom.pkcs11.utils.NativeLongUtils;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+
+/**
+ * {@link Pkcs11Api} serving a {@link Trace} instead of a native library, to
+ * run the readers without a smart card, see {@link com.jesjobom.pkcs11.jna.Pkcs11Binding#REPLAY}.
+ * <br>
+ * The trace is not played back call by call: it describes the token. The
+ * slots, the token info, the results of each search, the attributes of each
+ * object and the outputs of the cryptographic functions are taken from it,
+ * and any sequence of calls is served with them, by as many threads and
+ * sessions as wanted. A search not recorded is answered with the objects
+ * whose attributes match the template. The signatures, digests and
+ * decrypted parts are the ones recorded, each function cycling through its
+ * own, whatever the input.
+ * <br>
+ * Each call takes the time of a recorded call of the same function, in the
+ * order they were recorded, multiplied by {@link #getLatencyFactor()}. Each
+ * token serves at most {@link #getMaxConcurrentCalls()} calls at once, 1 by
+ * default like a smart card, and the others wait.
+ * <br>
+ * The sessions, the operations in progress and the login are kept like in a
+ * token: a signature or decryption needs <em>C_Login</em>, and the token
+ * logs out when its last session is closed.
+ *
+ * @author jesjobom
+ * @see RecordingApi
+ */
+public class ReplayApi implements Pkcs11Api {
+
+	public static final String LATENCY_PROPERTY = "com.jesjobom.pkcs11.replay.latency";
+
+	public static final String CONCURRENCY_PROPERTY = "com.jesjobom.pkcs11.replay.concurrency";
+
+	public static final String SESSIONS_PROPERTY = "com.jesjobom.pkcs11.replay.sessions";
+
+	//CK_STATE
+	private static final long CKS_RO_PUBLIC_SESSION = 0;
+	private static final long CKS_RO_USER_FUNCTIONS = 1;
+	private static final long CKF_RW_SESSION = 0x2;
+
+	/**
+	 * The slot of the calls that don't go to a token.
+	 */
+	private static final long NO_SLOT = -1;
+
+	private final Trace trace;
+
+	private final long[] slotIds;
+
+	private final Map<Long, byte[]> tokenInfos = new LinkedHashMap<>();
+
+	private final Map<ByteBuffer, long[]> searches = new HashMap<>();
+
+	private final Map<Long, Map<Long, byte[]>> objects = new LinkedHashMap<>();
+
+	private final Map<Pkcs11Function, Cycle<byte[]>> outputs = new EnumMap<>(Pkcs11Function.class);
+
+	private final Map<Pkcs11Function, Cycle<Long>> latencies = new EnumMap<>(Pkcs11Function.class);
+
+	private final AtomicBoolean initialized = new AtomicBoolean();
+
+	private final Map<Long, ReplaySession> sessions = new ConcurrentHashMap<>();
+
+	private final AtomicLong lastSessionId = new AtomicLong();
+
+	/**
+	 * Slots whose token is logged in.
+	 */
+	private final Set<Long> loggedIn = ConcurrentHashMap.newKeySet();
+
+	private volatile double latencyFactor = 1;
+
+	private volatile int maxConcurrentCalls;
+
+	/**
+	 * The calls in progress in each token.
+	 */
+	private volatile Map<Long, Semaphore> concurrency;
+
+	private volatile int maxSessions = 0;
+
+	public ReplayApi(Trace trace) {
+		this.trace = trace;
+		this.slotIds = load(trace.getRecords());
+		setMaxConcurrentCalls(1);
+	}
+
+	/**
+	 * Reads the trace and configures the replay with the system properties
+	 * {@value #LATENCY_PROPERTY}, {@value #CONCURRENCY_PROPERTY} and
+	 * {@value #SESSIONS_PROPERTY}.
+	 *
+	 * @param tracePath path to the trace file
+	 * @return {@link ReplayApi}
+	 */
+	public static ReplayApi open(String tracePath) {
+		Trace trace;
+		try {
+			trace = Trace.read(new File(tracePath));
+		} catch (IOException ex) {
+			throw new UncheckedIOException("Failed to read the trace " + tracePath, ex);
+		}
+		ReplayApi api = new ReplayApi(trace);
+		api.setLatencyFactor(Double.parseDouble(System.getProperty(LATENCY_PROPERTY, "1").trim()));
+		api.setMaxConcurrentCalls(Integer.parseInt(System.getProperty(CONCURRENCY_PROPERTY, "1").trim()));
+		api.setMaxSessions(Integer.parseInt(System.getProperty(SESSIONS_PROPERTY, "0").trim()));
+		return api;
+	}
+
+	public Trace getTrace() {
+		return trace;
+	}
+
+	public double getLatencyFactor() {
+		return latencyFactor;
+	}
+
+	/**
+	 * Sets how much of the recorded latency each call takes: 1 by default,
+	 * 0 answers at once and 2 is twice slower than the recording.
+	 *
+	 * @param latencyFactor
+	 */
+	public void setLatencyFactor(double latencyFactor) {
+		this.latencyFactor = latencyFactor;
+	}
+
+	public int getMaxConcurrentCalls() {
+		return maxConcurrentCalls;
+	}
+
+	/**
+	 * Sets how many calls are served at the same time by each token, 0 for no
+	 * limit. The calls waiting don't count their wait as latency. The calls
+	 * that don't go to a token, like <em>C_GetSlotList</em>, are not limited.
+	 *
+	 * @param maxConcurrentCalls
+	 */
+	public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+		this.maxConcurrentCalls = maxConcurrentCalls;
+		this.concurrency = new ConcurrentHashMap<>();
+	}
+
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	/**
+	 * Sets how many sessions can be open at once, 0 for no limit. Beyond it
+	 * <em>C_OpenSession</em> returns <em>CKR_SESSION_COUNT</em>.
+	 *
+	 * @param maxSessions
+	 */
+	public void setMaxSessions(int maxSessions) {
+		this.maxSessions = maxSessions;
+	}
+
+	@Override
+	public int C_Initialize(Pointer args) {
+		return call(Pkcs11Function.C_Initialize, NO_SLOT, () -> initialized.compareAndSet(false, true)
+				? Pkcs11Wrapper.CKR_OK : Pkcs11Wrapper.CKR_CRYPTOKI_ALREADY_INITIALIZED);
+	}
+
+	@Override
+	public int C_Finalize(Pointer reserved) {
+		return call(Pkcs11Function.C_Finalize, NO_SLOT, () -> {
+			initialized.set(false);
+			sessions.clear();
+			loggedIn.clear();
+			return Pkcs11Wrapper.CKR_OK;
+		});
+	}
+
+	@Override
+	public int C_GetSlotList(boolean tokenPresent, Pointer slotList, Pointer count) {
+		return call(Pkcs11Function.C_GetSlotList, NO_SLOT, () -> {
+			if (slotList != null) {
+				if (NativeLongUtils.read(count, 0) < slotIds.length) {
+					NativeLongUtils.write(count, 0, slotIds.length);
+					return Pkcs11Wrapper.CKR_BUFFER_TOO_SMALL;
+				}
+				for (int i = 0; i < slotIds.length; i++) {
+					NativeLongUtils.write(slotList, (long) i * NativeLong.SIZE, slotIds[i]);
+				}
+			}
+			NativeLongUtils.write(count, 0, slotIds.length);
+			return Pkcs11Wrapper.CKR_OK;
+		});
+	}
+
+	@Override
+	public int C_GetTokenInfo(long slotId, Pointer info) {
+		return call(Pkcs11Function.C_GetTokenInfo, slotId, () -> {
+			byte[] tokenInfo = tokenInfos.get(slotId);
+			if (tokenInfo == null) {
+				return Pkcs11Wrapper.CKR_SLOT_ID_INVALID;
+			}
+			info.write(0, tokenInfo, 0, tokenInfo.length);
+			return Pkcs11Wrapper.CKR_OK;
+		});
+	}
+
+	/**
+	 * The tokens are never removed: there's no event to wait for.
+	 */
+	@Override
+	public int C_WaitForSlotEvent(long flags, Pointer slotId, Pointer reserved) {
+		return call(Pkcs11Function.C_WaitForSlotEvent, NO_SLOT, () -> (flags & Pkcs11Wrapper.CKF_DONT_BLOCK) != 0
+				? Pkcs11Wrapper.CKR_NO_EVENT : Pkcs11Wrapper.CKR_FUNCTION_NOT_SUPPORTED);
+	}
+
+	@Override
+	public int C_OpenSession(long slotId, long flags, Pointer app, Pointer notify, Pointer sessionId) {
+		return call(Pkcs11Function.C_OpenSession, slotId, () -> {
+			if (!tokenInfos.containsKey(slotId)) {
+				return Pkcs11Wrapper.CKR_SLOT_ID_INVALID;
+			}
+			int max = maxSessions;
+			if (max > 0 && sessions.size() >= max) {
+				return Pkcs11Wrapper.CKR_SESSION_COUNT;
+			}
+			long id = lastSessionId.incrementAndGet();
+			sessions.put(id, new ReplaySession(slotId, flags));
+			NativeLongUtils.write(sessionId, 0, id);
+			return Pkcs11Wrapper.CKR_OK;
+		});
+	}
+
+	@Override
+	public int C_CloseSession(long sessionId) {
+		return call(Pkcs11Function.C_CloseSession, slotOf(sessionId), () -> {
+			ReplaySession session = sessions.remove(sessionId);
+			if (session == null) {
+				return Pkcs11Wrapper.CKR_SESSION_HANDLE_INVALID;
+			}
+			if (sessions.values().stream().noneMatch(other -> other.slotId == session.slotId)) {
+				loggedIn.remove(session.slotId);
+			}
+			return Pkcs11Wrapper.CKR_OK;
+		});
+	}
+
+	@Override
+	public int C_GetSessionInfo(long sessionId, Pointer info) {
+		return call(Pkcs11Function.C_GetSessionInfo, slotOf(sessionId), () -> {
+			ReplaySession session = sessions.get(sessionId);
+			if (session == null) {
+				return Pkcs11Wrapper.CKR_SESSION_HANDLE_INVALID;
+			}
+			//CK_SESSION_INFO: slotID, state, flags and ulDeviceError
+			long state = loggedIn.contains(session.slotId) ? CKS_RO_USER_FUNCTIONS : CKS_RO_PUBLIC_SESSION;
+			if ((session.flags & CKF_RW_SESSION) != 0) {
+				state += 2;
+			}
+			NativeLongUtils.write(info, 0, session.slotId);
+			NativeLongUtils.write(info, NativeLong.SIZE, state);
+			NativeLongUtils.write(info, 2 * NativeLong.SIZE, session.flags);
+			NativeLongUtils.write(info, 3 * NativeLong.SIZE, 0);
+			return Pkcs11Wrapper.CKR_OK;
+		});
+	}
+
+	@Override
+	public int C_FindObjectsInit(long sessionId, Pointer template, long count) {
+		return call(Pkcs11Function.C_FindObjectsInit, slotOf(sessionId), () -> {
+			ReplaySession session = sessions.get(sessionId);
+			if (session == null) {
+				return Pkcs11Wrapper.CKR_SESSION_HANDLE_INVALID;
+			}
+			if (session.found != null) {
+				return Pkcs11Wrapper.CKR_OPERATION_ACTIVE;
+			}
+			long[] found = searches.get(ByteBuffer.wrap(RecordingApi.encodeTemplate(template, count)));
+			session.found = found != null ? found : search(template, (int) count);
+			session.next = 0;
+			return Pkcs11Wrapper.CKR_OK;
+		});
+	}
+
+	@Override
+	public int C_FindObjects(long sessionId, Pointer objectIds, long maxCount, Pointer count) {
+		return call(Pkcs11Function.C_FindObjects, slotOf(sessionId), () -> {
+			ReplaySession session = sessions.get(sessionId);
+			if (session == null) {
+				return Pkcs11Wrapper.CKR_SESSION_HANDLE_INVALID;
+			}
+			if (session.found == null) {
+				return Pkcs11Wrapper.CKR_OPERATION_NOT_INITIALIZED;
+			}
+			int returned = (int) Math.min(maxCount, session.found.length - session.next);
+			for (int i = 0; i < returned; i++) {
+				NativeLongUtils.write(objectIds, (long) i * NativeLong.SIZE, session.found[session.next++]);
+			}
+			NativeLongUtils.write(count, 0, returned);
+			return Pkcs11Wrapper.CKR_OK;
+		});
+	}
+
+	@Override
+	public int C_FindObjectsFinal(long sessionId) {
+		return call(Pkcs11Function.C_FindObjectsFinal, slotOf(sessionId), () -> {
+			ReplaySession session = sessions.get(sessionId);
+			if (session == null) {
+				return Pkcs11Wrapper.CKR_SESSION_HANDLE_INVALID;
+			}
+			if (session.found == null) {
+				return Pkcs11Wrapper.CKR_OPERATION_NOT_INITIALIZED;
+			}
+			session.found = null;
+			return Pkcs11Wrapper.CKR_OK;
+		});
+	}
+
+	@Override
+	public int C_GetAttributeValue(long sessionId, long objectId, Pointer template, long count) {
+		return call(Pkcs11Function.C_GetAttributeValue, slotOf(sessionId), () -> {
+			if (!sessions.containsKey(sessionId)) {
+				return Pkcs11Wrapper.CKR_SESSION_HANDLE_INVALID;
+			}
+			Map<Long, byte[]> attributes = objects.get(objectId);
+			if (attributes == null) {
+				return Pkcs11Wrapper.CKR_OBJECT_HANDLE_INVALID;
+			}
+			int rv = Pkcs11Wrapper.CKR_OK;
+			for (int i = 0; i < count; i++) {
+				byte[] value = attributes.get(RecordingApi.readType(template, i));
+				Pointer buffer = RecordingApi.readValue(template, i);
+				if (value == null) {
+					RecordingApi.writeLength(template, i, Pkcs11Wrapper.CK_UNAVAILABLE_INFORMATION);
+					rv = rv == Pkcs11Wrapper.CKR_OK ? Pkcs11Wrapper.CKR_ATTRIBUTE_TYPE_INVALID : rv;
+				} else if (buffer != null && RecordingApi.readLength(template, i) < value.length) {
+					RecordingApi.writeLength(template, i, Pkcs11Wrapper.CK_UNAVAILABLE_INFORMATION);
+					rv = rv == Pkcs11Wrapper.CKR_OK ? Pkcs11Wrapper.CKR_BUFFER_TOO_SMALL : rv;
+				} else {
+					if (buffer != null) {
+						buffer.write(0, value, 0, value.length);
+					}
+					RecordingApi.writeLength(template, i, value.length);
+				}
+			}
+			return rv;
+		});
+	}
+
+	@Override
+	public int C_Login(long sessionId, long userType, Pointer pin, long pinLength) {
+		return call(Pkcs11Function.C_Login, slotOf(sessionId), () -> {
+			ReplaySession session = sessions.get(sessionId);
+			if (session == null) {
+				return Pkcs11Wrapper.CKR_SESSION_HANDLE_INVALID;
+			}
+			return loggedIn.add(session.slotId) ? Pkcs11Wrapper.CKR_OK : Pkcs11Wrapper.CKR_USER_ALREADY_LOGGED_IN;
+		});
+	}
+
+	@Override
+	public int C_Logout(long sessionId) {
+		return call(Pkcs11Function.C_Logout, slotOf(sessionId), () -> {
+			ReplaySession session = sessions.get(sessionId);
+			if (session == null) {
+				return Pkcs11Wrapper.CKR_SESSION_HANDLE_INVALID;
+			}
+			return loggedIn.remove(session.slotId) ? Pkcs11Wrapper.CKR_OK : Pkcs11Wrapper.CKR_USER_NOT_LOGGED_IN;
+		});
+	}
+
+	@Override
+	public int C_SignInit(long sessionId, Pointer mechanism, long keyId) {
+		return call(Pkcs11Function.C_SignInit, slotOf(sessionId), () -> init(sessionId, Pkcs11Function.C_SignInit, true));
+	}
+
+	@Override
+	public int C_Sign(long sessionId, Pointer data, long dataLength, Pointer signature, Pointer signatureLength) {
+		return call(Pkcs11Function.C_Sign, slotOf(sessionId), () -> output(sessionId, Pkcs11Function.C_SignInit, Pkcs11Function.C_Sign,
+				signature, signatureLength, true));
+	}
+
+	@Override
+	public int C_SignUpdate(long sessionId, Pointer part, long partLength) {
+		return call(Pkcs11Function.C_SignUpdate, slotOf(sessionId), () -> update(sessionId, Pkcs11Function.C_SignInit));
+	}
+
+	@Override
+	public int C_SignFinal(long sessionId, Pointer signature, Pointer signatureLength) {
+		return call(Pkcs11Function.C_SignFinal, slotOf(sessionId), () -> output(sessionId, Pkcs11Function.C_SignInit, Pkcs11Function.C_SignFinal,
+				signature, signatureLength, true));
+	}
+
+	@Override
+	public int C_DigestInit(long sessionId, Pointer mechanism) {
+		return call(Pkcs11Function.C_DigestInit, slotOf(sessionId), () -> init(sessionId, Pkcs11Function.C_DigestInit, false));
+	}
+
+	@Override
+	public int C_DigestUpdate(long sessionId, Pointer part, long partLength) {
+		return call(Pkcs11Function.C_DigestUpdate, slotOf(sessionId), () -> update(sessionId, Pkcs11Function.C_DigestInit));
+	}
+
+	@Override
+	public int C_DigestFinal(long sessionId, Pointer digest, Pointer digestLength) {
+		return call(Pkcs11Function.C_DigestFinal, slotOf(sessionId), () -> output(sessionId, Pkcs11Function.C_DigestInit, Pkcs11Function.C_DigestFinal,
+				digest, digestLength, true));
+	}
+
+	@Override
+	public int C_DecryptInit(long sessionId, Pointer mechanism, long keyId) {
+		return call(Pkcs11Function.C_DecryptInit, slotOf(sessionId), () -> init(sessionId, Pkcs11Function.C_DecryptInit, true));
+	}
+
+	@Override
+	public int C_DecryptUpdate(long sessionId, Pointer encryptedPart, long encryptedPartLength, Pointer part, Pointer partLength) {
+		return call(Pkcs11Function.C_DecryptUpdate, slotOf(sessionId), () -> output(sessionId, Pkcs11Function.C_DecryptInit, Pkcs11Function.C_DecryptUpdate,
+				part, partLength, false));
+	}
+
+	@Override
+	public int C_DecryptFinal(long sessionId, Pointer lastPart, Pointer lastPartLength) {
+		return call(Pkcs11Function.C_DecryptFinal, slotOf(sessionId), () -> output(sessionId, Pkcs11Function.C_DecryptInit, Pkcs11Function.C_DecryptFinal,
+				lastPart, lastPartLength, true));
+	}
+
+	private long slotOf(long sessionId) {
+		ReplaySession session = sessions.get(sessionId);
+		return session == null ? NO_SLOT : session.slotId;
+	}
+
+	/**
+	 * Serves a call within the limit of concurrent calls, taking the latency
+	 * of a recorded one.
+	 */
+	private int call(Pkcs11Function function, long slotId, IntSupplier body) {
+		int max = maxConcurrentCalls;
+		Semaphore limit = max > 0 && slotId != NO_SLOT
+				? concurrency.computeIfAbsent(slotId, id -> new Semaphore(max, true)) : null;
+		if (limit != null) {
+			limit.acquireUninterruptibly();
+		}
+		try {
+			long start = System.nanoTime();
+			int rv = function == Pkcs11Function.C_Initialize || initialized.get()
+					? body.getAsInt() : Pkcs11Wrapper.CKR_CRYPTOKI_NOT_INITIALIZED;
+			pause(function, start);
+			return rv;
+		} finally {
+			if (limit != null) {
+				limit.release();
+			}
+		}
+	}
+
+	private void pause(Pkcs11Function function, long start) {
+		Cycle<Long> durations = latencies.get(function);
+		double factor = latencyFactor;
+		if (durations == null || factor <= 0) {
+			return;
+		}
+		long end = start + (long) (durations.next() * factor);
+		for (long remaining = end - System.nanoTime(); remaining > 0; remaining = end - System.nanoTime()) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	/**
+	 * Starts an operation in the session.
+	 *
+	 * @param init the function starting the operation
+	 * @param login whether the operation uses a private key
+	 */
+	private int init(long sessionId, Pkcs11Function init, boolean login) {
+		ReplaySession session = sessions.get(sessionId);
+		if (session == null) {
+			return Pkcs11Wrapper.CKR_SESSION_HANDLE_INVALID;
+		}
+		if (session.operation != null) {
+			return Pkcs11Wrapper.CKR_OPERATION_ACTIVE;
+		}
+		if (login && !loggedIn.contains(session.slotId)) {
+			return Pkcs11Wrapper.CKR_USER_NOT_LOGGED_IN;
+		}
+		session.operation = init;
+		return Pkcs11Wrapper.CKR_OK;
+	}
+
+	private int update(long sessionId, Pkcs11Function init) {
+		ReplaySession session = sessions.get(sessionId);
+		if (session == null) {
+			return Pkcs11Wrapper.CKR_SESSION_HANDLE_INVALID;
+		}
+		return session.operation == init ? Pkcs11Wrapper.CKR_OK : Pkcs11Wrapper.CKR_OPERATION_NOT_INITIALIZED;
+	}
+
+	/**
+	 * Returns the next recorded output of the function, with the convention
+	 * of PKCS11: a null buffer only asks the length and a buffer too small
+	 * doesn't end the operation, so the same output is returned by the next
+	 * call.
+	 *
+	 * @param init the function starting the operation
+	 * @param function returning the output
+	 * @param ends whether the operation ends with the output
+	 */
+	private int output(long sessionId, Pkcs11Function init, Pkcs11Function function, Pointer out, Pointer outLength, boolean ends) {
+		ReplaySession session = sessions.get(sessionId);
+		if (session == null) {
+			return Pkcs11Wrapper.CKR_SESSION_HANDLE_INVALID;
+		}
+		if (session.operation != init) {
+			return Pkcs11Wrapper.CKR_OPERATION_NOT_INITIALIZED;
+		}
+		if (session.output == null) {
+			Cycle<byte[]> recorded = outputs.get(function);
+			if (recorded == null) {
+				//nothing to answer with
+				session.operation = null;
+				return Pkcs11Wrapper.CKR_FUNCTION_NOT_SUPPORTED;
+			}
+			session.output = recorded.next();
+		}
+		byte[] output = session.output;
+		if (out != null && NativeLongUtils.read(outLength, 0) < output.length) {
+			NativeLongUtils.write(outLength, 0, output.length);
+			return Pkcs11Wrapper.CKR_BUFFER_TOO_SMALL;
+		}
+		NativeLongUtils.write(outLength, 0, output.length);
+		if (out != null) {
+			out.write(0, output, 0, output.length);
+			session.output = null;
+			if (ends) {
+				session.operation = null;
+			}
+		}
+		return Pkcs11Wrapper.CKR_OK;
+	}
+
+	/**
+	 * Finds the objects whose attributes are equal to the ones of the
+	 * template, in the order they were first seen in the trace.
+	 */
+	private long[] search(Pointer template, int count) {
+		List<Long> found = new ArrayList<>();
+		for (Map.Entry<Long, Map<Long, byte[]>> object : objects.entrySet()) {
+			boolean matches = true;
+			for (int i = 0; i < count && matches; i++) {
+				byte[] value = object.getValue().get(RecordingApi.readType(template, i));
+				Pointer filter = RecordingApi.readValue(template, i);
+				matches = value != null && filter != null
+						&& Arrays.equals(value, filter.getByteArray(0, (int) RecordingApi.readLength(template, i)));
+			}
+			if (matches) {
+				found.add(object.getKey());
+			}
+		}
+		return found.stream().mapToLong(Long::longValue).toArray();
+	}
+
+	/**
+	 * Builds the token from the recorded calls.
+	 *
+	 * @return the IDs of the slots
+	 */
+	private long[] load(List<TraceRecord> records) {
+		long[] slots = null;
+		Map<Long, ByteBuffer> templates = new HashMap<>();
+		Map<Long, List<Long>> found = new HashMap<>();
+
+		for (TraceRecord record : records) {
+			latencies.computeIfAbsent(record.getFunction(), function -> new Cycle<>()).add(record.getDurationNanos());
+			boolean ok = record.getReturnValue() == Pkcs11Wrapper.CKR_OK;
+
+			switch (record.getFunction()) {
+				case C_GetSlotList:
+					if (ok && record.getValue(1) == 1) {
+						slots = new long[record.getValueCount() - 3];
+						for (int i = 0; i < slots.length; i++) {
+							slots[i] = record.getValue(3 + i);
+						}
+					}
+					break;
+				case C_GetTokenInfo:
+					if (ok) {
+						tokenInfos.put(record.getValue(0), record.getBuffer(0));
+					}
+					break;
+				case C_FindObjectsInit:
+					if (ok) {
+						templates.put(record.getValue(0), ByteBuffer.wrap(record.getBuffer(0)));
+						found.put(record.getValue(0), new ArrayList<>());
+					}
+					break;
+				case C_FindObjects:
+					List<Long> ids = found.get(record.getValue(0));
+					for (int i = 3; ok && ids != null && i < record.getValueCount(); i++) {
+						ids.add(record.getValue(i));
+						objects.computeIfAbsent(record.getValue(i), id -> new HashMap<>());
+					}
+					break;
+				case C_FindObjectsFinal:
+					ByteBuffer template = templates.remove(record.getValue(0));
+					List<Long> result = found.remove(record.getValue(0));
+					if (template != null) {
+						searches.putIfAbsent(template, result.stream().mapToLong(Long::longValue).toArray());
+					}
+					break;
+				case C_GetAttributeValue:
+					Map<Long, byte[]> attributes = objects.computeIfAbsent(record.getValue(1), id -> new HashMap<>());
+					for (int i = 0; i < record.getBufferCount(); i++) {
+						if (record.getBuffer(i) != null) {
+							attributes.put(record.getValue(3 + 2 * i), record.getBuffer(i));
+						}
+					}
+					break;
+				case C_Sign:
+				case C_SignFinal:
+				case C_DigestFinal:
+				case C_DecryptUpdate:
+				case C_DecryptFinal:
+					if (ok && record.getBuffer(0) != null) {
+						outputs.computeIfAbsent(record.getFunction(), function -> new Cycle<>()).add(record.getBuffer(0));
+					}
+					break;
+				default:
+					break;
+			}
+		}
+
+		if (slots == null) {
+			slots = tokenInfos.keySet().stream().mapToLong(Long::longValue).toArray();
+		}
+		return slots;
+	}
+
+	/**
+	 * A session open in the replay. Like in a token, it is used by a single
+	 * thread at a time.
+	 */
+	private static class ReplaySession {
+
+		private final long slotId;
+
+		private final long flags;
+
+		/**
+		 * Results of the search in progress, if any.
+		 */
+		private long[] found;
+
+		private int next;
+
+		/**
+		 * The function that started the operation in progress, if any.
+		 */
+		private Pkcs11Function operation;
+
+		/**
+		 * The output whose length was already returned.
+		 */
+		private byte[] output;
+
+		private ReplaySession(long slotId, long flags) {
+			this.slotId = slotId;
+			this.flags = flags;
+		}
+	}
+
+	/**
+	 * Recorded values of a function, returned one after the other and again
+	 * from the start when they end.
+	 */
+	private static class Cycle<T> {
+
+		private final List<T> values = new ArrayList<>();
+
+		private final AtomicInteger next = new AtomicInteger();
+
+		private void add(T value) {
+			values.add(value);
+		}
+
+		private T next() {
+			return values.get((next.getAndIncrement() & Integer.MAX_VALUE) % values.size());
+		}
+	}
+}
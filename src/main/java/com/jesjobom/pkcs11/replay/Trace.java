@@ -0,0 +1,132 @@
+package com.jesjobom.pkcs11.replay;
+
+import com.jesjobom.pkcs11.jna.Pkcs11Function;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The calls of a trace file written by {@link TraceWriter}, read at once.
+ *
+ * @author jesjobom
+ */
+public class Trace {
+
+	private final String libPath;
+
+	private final long createdAt;
+
+	private final List<TraceRecord> records;
+
+	public Trace(String libPath, long createdAt, List<TraceRecord> records) {
+		this.libPath = libPath;
+		this.createdAt = createdAt;
+		this.records = Collections.unmodifiableList(records);
+	}
+
+	/**
+	 * Reads the whole trace. A record cut short at the end of the file is
+	 * ignored.
+	 *
+	 * @param file
+	 * @return {@link Trace}
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the file is not a trace of this
+	 * version or was recorded on a platform with another layout of the native
+	 * structures
+	 */
+	public static Trace read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != TraceWriter.MAGIC) {
+				throw new IllegalArgumentException("Not a trace: " + file);
+			}
+			short version = in.readShort();
+			if (version != TraceWriter.VERSION) {
+				throw new IllegalArgumentException("Unsupported trace version " + version + ": " + file);
+			}
+			int longSize = in.readByte();
+			int pointerSize = in.readByte();
+			boolean windows = in.readByte() != 0;
+			if (longSize != NativeLong.SIZE || pointerSize != Pointer.SIZE || windows != Platform.isWindows()) {
+				throw new IllegalArgumentException("Trace " + file + " was recorded on another platform");
+			}
+			long createdAt = in.readLong();
+			String libPath = in.readUTF();
+
+			Pkcs11Function[] functions = Pkcs11Function.values();
+			List<TraceRecord> records = new ArrayList<>();
+			while (true) {
+				int function;
+				try {
+					function = in.readShort();
+				} catch (EOFException ex) {
+					break;
+				}
+				if (function < 0 || function >= functions.length) {
+					throw new IllegalArgumentException("Corrupted trace: " + file);
+				}
+				try {
+					records.add(readRecord(in, functions[function]));
+				} catch (EOFException ex) {
+					break;
+				}
+			}
+			return new Trace(libPath, createdAt, records);
+		}
+	}
+
+	private static TraceRecord readRecord(DataInputStream in, Pkcs11Function function) throws IOException {
+		long threadId = in.readLong();
+		long start = in.readLong();
+		long duration = in.readLong();
+		int returnValue = in.readInt();
+		long[] values = new long[in.readShort()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readLong();
+		}
+		byte[][] buffers = new byte[in.readShort()][];
+		for (int i = 0; i < buffers.length; i++) {
+			int length = in.readInt();
+			if (length >= 0) {
+				buffers[i] = new byte[length];
+				in.readFully(buffers[i]);
+			}
+		}
+		return new TraceRecord(function, threadId, start, duration, returnValue, values, buffers);
+	}
+
+	/**
+	 * @return path of the library recorded
+	 */
+	public String getLibPath() {
+		return libPath;
+	}
+
+	/**
+	 * @return when the recording started, in milliseconds
+	 */
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	/**
+	 * @return the calls, in the order they ended
+	 */
+	public List<TraceRecord> getRecords() {
+		return records;
+	}
+
+	@Override
+	public String toString() {
+		return "Trace of " + libPath + " (" + records.size() + " calls)";
+	}
+}
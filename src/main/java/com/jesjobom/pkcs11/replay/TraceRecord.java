@@ -0,0 +1,100 @@
+package com.jesjobom.pkcs11.replay;
+
+import com.jesjobom.pkcs11.jna.Pkcs11Function;
+
+/**
+ * A single call recorded in a trace: the function, when and by which thread
+ * it was called, how long it took, its return value and its arguments.
+ * <br>
+ * The arguments are kept as numbers (the CK_ULONG passed and returned) and
+ * buffers (the bytes returned by the library), in an order defined by each
+ * function, see {@link RecordingApi}.
+ *
+ * @author jesjobom
+ */
+public class TraceRecord {
+
+	private final Pkcs11Function function;
+
+	private final long threadId;
+
+	private final long startNanos;
+
+	private final long durationNanos;
+
+	private final int returnValue;
+
+	private final long[] values;
+
+	private final byte[][] buffers;
+
+	public TraceRecord(Pkcs11Function function, long threadId, long startNanos, long durationNanos,
+			int returnValue, long[] values, byte[][] buffers) {
+		this.function = function;
+		this.threadId = threadId;
+		this.startNanos = startNanos;
+		this.durationNanos = durationNanos;
+		this.returnValue = returnValue;
+		this.values = values;
+		this.buffers = buffers;
+	}
+
+	public Pkcs11Function getFunction() {
+		return function;
+	}
+
+	public long getThreadId() {
+		return threadId;
+	}
+
+	/**
+	 * @return when the call started, in nanoseconds since the trace started
+	 */
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	/**
+	 * @return the CK_RV
+	 */
+	public int getReturnValue() {
+		return returnValue;
+	}
+
+	public int getValueCount() {
+		return values.length;
+	}
+
+	public long getValue(int index) {
+		return values[index];
+	}
+
+	public int getBufferCount() {
+		return buffers.length;
+	}
+
+	/**
+	 * @param index
+	 * @return the bytes or null if nothing was returned
+	 */
+	public byte[] getBuffer(int index) {
+		return buffers[index];
+	}
+
+	long[] values() {
+		return values;
+	}
+
+	byte[][] buffers() {
+		return buffers;
+	}
+
+	@Override
+	public String toString() {
+		return function + " = " + returnValue + " (" + durationNanos / 1000 + " us)";
+	}
+}
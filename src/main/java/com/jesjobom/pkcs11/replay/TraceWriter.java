@@ -0,0 +1,153 @@
+package com.jesjobom.pkcs11.replay;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes the calls recorded to a trace file, in the order they end.
+ * <br>
+ * Format, big endian:
+ * <pre>
+ * int     magic "PKTR"
+ * short   version
+ * byte    size of the CK_ULONG
+ * byte    size of the pointers
+ * byte    1 on Windows, where the structures are packed
+ * long    creation time, in milliseconds
+ * UTF     path of the library recorded
+ * records, until the end of the file:
+ *   short function, see {@link com.jesjobom.pkcs11.jna.Pkcs11Function}
+ *   long  thread ID
+ *   long  start, in nanoseconds since the trace started
+ *   long  duration, in nanoseconds
+ *   int   return value
+ *   short quantity of numbers, then each one as long
+ *   short quantity of buffers, then each one as the int length, -1 for
+ *         null, and the bytes
+ * </pre>
+ * The records are appended, so a trace cut short by a crash can still be
+ * read up to the last whole record.
+ * <br>
+ * A failure to write is logged and stops the recording, the calls to the
+ * library are not affected.
+ *
+ * @author jesjobom
+ */
+public class TraceWriter implements Closeable, Flushable {
+
+	private static final Logger LOGGER = LogManager.getLogger(TraceWriter.class);
+
+	static final int MAGIC = 0x504B5452;
+
+	public static final short VERSION = 1;
+
+	private final File file;
+
+	private final DataOutputStream out;
+
+	private final long startNanos = System.nanoTime();
+
+	private boolean failed = false;
+
+	/**
+	 * Creates the file and writes its header.
+	 *
+	 * @param file
+	 * @param libPath path of the library recorded
+	 * @throws IOException
+	 */
+	public TraceWriter(File file, String libPath) throws IOException {
+		this.file = file;
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeByte(NativeLong.SIZE);
+		out.writeByte(Pointer.SIZE);
+		out.writeByte(Platform.isWindows() ? 1 : 0);
+		out.writeLong(System.currentTimeMillis());
+		out.writeUTF(libPath);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the time the records are relative to, from
+	 * {@link System#nanoTime()}
+	 */
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	/**
+	 * Appends a call to the trace.
+	 *
+	 * @param record
+	 */
+	public synchronized void write(TraceRecord record) {
+		if (failed) {
+			return;
+		}
+		try {
+			out.writeShort(record.getFunction().ordinal());
+			out.writeLong(record.getThreadId());
+			out.writeLong(record.getStartNanos());
+			out.writeLong(record.getDurationNanos());
+			out.writeInt(record.getReturnValue());
+			out.writeShort(record.values().length);
+			for (long value : record.values()) {
+				out.writeLong(value);
+			}
+			out.writeShort(record.buffers().length);
+			for (byte[] buffer : record.buffers()) {
+				if (buffer == null) {
+					out.writeInt(-1);
+				} else {
+					out.writeInt(buffer.length);
+					out.write(buffer);
+				}
+			}
+		} catch (IOException ex) {
+			fail(ex);
+		}
+	}
+
+	@Override
+	public synchronized void flush() {
+		if (failed) {
+			return;
+		}
+		try {
+			out.flush();
+		} catch (IOException ex) {
+			fail(ex);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		flush();
+		failed = true;
+		try {
+			out.close();
+		} catch (IOException ex) {
+			LOGGER.debug("Failed to close the trace " + file, ex);
+		}
+	}
+
+	private void fail(IOException ex) {
+		failed = true;
+		LOGGER.error("Failed to write the trace " + file + ". Recording stopped.", ex);
+	}
+}
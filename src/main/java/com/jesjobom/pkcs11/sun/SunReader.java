@@ -6,21 +6,41 @@ import java.io.IOException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.security.Provider;
+import java.security.ProviderException;
+import java.security.Security;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.security.auth.login.LoginException;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import sun.security.pkcs11.SunPKCS11;
+import sun.security.pkcs11.wrapper.CK_TOKEN_INFO;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
 
 /**
  * Smart card reader using Sun's implementation. On Windows x64, Java 7 needs to
  * be 32 bits. Java 8+ should be fine either on 32 or 64 bits. Java 7 does not
  * include Sun's implementation for 64 bits since it was not homologated.
+ * <br>
+ * Creating the provider and loading the keystore is what takes most of the
+ * time, so a single provider is registered for each library and kept for the
+ * life of the JVM, and the certificate found in the keystore is kept by the
+ * reader. The keystore is only loaded again when the serial number of the
+ * token changes, with a new provider since the old one may still hold the
+ * removed token.
+ * <br>
+ * The provider stays logged in after loading the keystore, so its private
+ * keys can be used without another login. The providers are shared by every
+ * reader, so it only logs out when the last reader holding its certificate
+ * forgets it, closed or initialized again.
  *
  * @author jesjobom
  */
@@ -28,6 +48,17 @@ public class SunReader extends SmartCardReader {
 
 	private static final Logger LOGGER = LogManager.getLogger(SunReader.class);
 
+	private static final Map<String, SunPKCS11> PROVIDERS = new ConcurrentHashMap<>();
+
+	private static final AtomicInteger PROVIDER_COUNT = new AtomicInteger();
+
+	/**
+	 * Readers holding the login of each provider.
+	 */
+	private static final Map<SunPKCS11, Integer> LOGINS = new HashMap<>();
+
+	private final Map<String, TokenCertificate> certificates = new ConcurrentHashMap<>();
+
 	private String pin;
 
 	public SunReader(String... libs) {
@@ -37,33 +68,125 @@ public class SunReader extends SmartCardReader {
 	@Override
 	public void initialize(String... args) {
 		this.pin = args == null || args.length == 0 ? null : args[0];
+		forgetAll();
 	}
 
 	@Override
-	public String getLabel() {
-
-		KeyStore keystore = null;
-		for (String lib : libs) {
-			try {
-				keystore = loadKeystore(lib);
-			} catch (CertificateException | KeyStoreException | IOException | NoSuchAlgorithmException ex) {
-				LOGGER.debug("Failed to load keystore with library " + lib + ". Will try with the next one if available.", ex);
+	protected String readLabel(String lib) throws CertificateException, KeyStoreException, IOException, NoSuchAlgorithmException {
+		return getCertificate(lib).getSubjectX500Principal().getName();
+	}
+
+	/**
+	 * Forgets the certificates loaded, logging out of the tokens no other
+	 * reader holds. The providers are kept registered.
+	 */
+	@Override
+	public void close() {
+		super.close();
+		forgetAll();
+	}
+
+	/**
+	 * Gets the certificate already loaded for the library if the token is the
+	 * same, or loads the keystore again.
+	 *
+	 * @param lib
+	 * @return {@link X509Certificate}
+	 */
+	private X509Certificate getCertificate(String lib) throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException {
+		SunPKCS11 provider = getProvider(lib);
+
+		TokenCertificate loaded = certificates.get(lib);
+		long slotId = loaded != null ? loaded.slotId : readSlotId(lib);
+		String serialNumber;
+		try {
+			serialNumber = readSerialNumber(lib, slotId);
+		} catch (IOException ex) {
+			//the token or the reader was removed, the slot is looked up again next time
+			if (loaded != null) {
+				forget(lib, loaded);
+			}
+			throw ex;
+		}
+
+		if (loaded != null) {
+			if (serialNumber.equals(loaded.serialNumber)) {
+				return loaded.certificate;
 			}
+			forget(lib, loaded);
+			LOGGER.debug("Token changed for library " + lib + ". Loading the keystore again.");
+			provider = renewProvider(lib, provider);
 		}
 
-		if (keystore == null) {
-			throw new RuntimeException("None of the libraries found were able to load the keystore from the Smart Card.");
+		KeyStore keyStore;
+		try {
+			keyStore = loadKeystore(provider);
+		} catch (ProviderException ex) {
+			//the provider still holds a token removed before
+			LOGGER.debug("Provider " + provider.getName() + " failed. Loading the keystore with a new one.", ex);
+			provider = renewProvider(lib, provider);
+			keyStore = loadKeystore(provider);
 		}
+		acquire(provider);
 
 		X509Certificate certificate;
 		try {
-			certificate = getLastCertificateFromKeystore(keystore);
+			certificate = getLastCertificateFromKeystore(keyStore);
 		} catch (KeyStoreException ex) {
 			LOGGER.error("Error while trying to load the keystore", ex);
+			release(provider);
 			throw new RuntimeException(ex);
+		} catch (RuntimeException ex) {
+			release(provider);
+			throw ex;
+		}
+		TokenCertificate previous = certificates.put(lib, new TokenCertificate(slotId, serialNumber, certificate, provider));
+		if (previous != null) {
+			release(previous.provider);
+		}
+		return certificate;
+	}
+
+	/**
+	 * Forgets the certificate loaded, if still the current one.
+	 */
+	private void forget(String lib, TokenCertificate loaded) {
+		if (certificates.remove(lib, loaded)) {
+			release(loaded.provider);
+		}
+	}
+
+	private void forgetAll() {
+		for (Map.Entry<String, TokenCertificate> entry : certificates.entrySet()) {
+			forget(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Counts a reader holding the login of the provider.
+	 */
+	private static void acquire(SunPKCS11 provider) {
+		synchronized (LOGINS) {
+			LOGINS.merge(provider, 1, Integer::sum);
+		}
+	}
+
+	/**
+	 * Logs out of the provider if no other reader holds its login.
+	 */
+	private static void release(SunPKCS11 provider) {
+		synchronized (LOGINS) {
+			Integer count = LOGINS.get(provider);
+			if (count == null) {
+				return;
+			}
+			if (count > 1) {
+				LOGINS.put(provider, count - 1);
+				return;
+			}
+			LOGINS.remove(provider);
+			logout(provider);
 		}
-		
-		return certificate.getSubjectX500Principal().getName();
 	}
 
 	/**
@@ -71,32 +194,107 @@ public class SunReader extends SmartCardReader {
 	 * the Sun's implementation defined that these certificates can only be
 	 * obtained via a keystore and a PIN code.
 	 *
-	 * @param lib
+	 * @param provider
 	 * @return {@link KeyStore}
 	 */
-	private KeyStore loadKeystore(String lib) throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException {
-		SunPKCS11 provider = new SunPKCS11(new ByteArrayInputStream(generatePkcs11Config(lib).getBytes()));
+	private KeyStore loadKeystore(SunPKCS11 provider) throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException {
 		KeyStore keyStore = KeyStore.getInstance("PKCS11", provider);
 		keyStore.load(null, pin == null ? null : pin.toCharArray());
+		return keyStore;
+	}
+
+	private static void logout(SunPKCS11 provider) {
 		try {
 			provider.logout();
-		} catch (LoginException ex) {
+		} catch (LoginException | ProviderException ex) {
+			//the token may be gone already
+			LOGGER.debug("Failed to logout of provider " + provider.getName(), ex);
+		}
+	}
+
+	/**
+	 * Gets the provider of the library, creating and registering it the first
+	 * time. The provider follows the token removal and insertion by itself.
+	 *
+	 * @param lib
+	 * @return {@link SunPKCS11}
+	 */
+	private static SunPKCS11 getProvider(String lib) {
+		return PROVIDERS.computeIfAbsent(lib, path -> {
+			SunPKCS11 provider = new SunPKCS11(new ByteArrayInputStream(generatePkcs11Config(path, PROVIDER_COUNT.incrementAndGet()).getBytes()));
+			Security.addProvider(provider);
+			LOGGER.debug("Registered provider " + provider.getName() + " for library " + path);
+			return provider;
+		});
+	}
+
+	/**
+	 * Replaces the provider of the library by a new one, bound to the token
+	 * currently present.
+	 *
+	 * @param lib
+	 * @param provider the one to be replaced
+	 * @return {@link SunPKCS11}
+	 */
+	private static SunPKCS11 renewProvider(String lib, SunPKCS11 provider) {
+		if (PROVIDERS.remove(lib, provider)) {
+			Security.removeProvider(provider.getName());
+		}
+		return getProvider(lib);
+	}
+
+	/**
+	 * Gets the slot used by the provider of the library: the first one, as
+	 * chosen by {@link SunPKCS11} when no slot is configured. The native
+	 * library is shared with the provider, so it must already be loaded by
+	 * {@link #getProvider(String)}.
+	 *
+	 * @param lib
+	 * @return long with the ID of the slot
+	 */
+	private static long readSlotId(String lib) throws IOException {
+		try {
+			long[] slots = PKCS11.getInstance(lib, "C_GetFunctionList", null, true).C_GetSlotList(false);
+			if (slots.length == 0) {
+				throw new IOException("No smart card slot detected. Is the reader connected?");
+			}
+			return slots[0];
+		} catch (PKCS11Exception ex) {
+			throw new IOException("Failed to list the slots with library " + lib, ex);
+		}
+	}
+
+	/**
+	 * Reads the serial number of the token in the slot.
+	 *
+	 * @param lib
+	 * @param slotId
+	 * @return {@link String} with the serial number
+	 */
+	private static String readSerialNumber(String lib, long slotId) throws IOException {
+		try {
+			CK_TOKEN_INFO tokenInfo = PKCS11.getInstance(lib, "C_GetFunctionList", null, true).C_GetTokenInfo(slotId);
+			return new String(tokenInfo.serialNumber).trim();
+		} catch (PKCS11Exception ex) {
+			throw new IOException("Failed to read the token with library " + lib, ex);
 		}
-		return keyStore;
 	}
 
 	/**
 	 * Config for the Sun's implementation of PKCS11
 	 *
 	 * @param lib
+	 * @param index to make the name of the provider unique
 	 * @see
 	 * http://docs.oracle.com/javase/7/docs/technotes/guides/security/p11guide.html#Config
 	 * @return
 	 */
-	private static String generatePkcs11Config(String lib) {
+	private static String generatePkcs11Config(String lib, int index) {
 		StringBuilder builder = new StringBuilder();
 		
-		builder.append("name=SmartCard\n");
+		builder.append("name=SmartCard");
+		builder.append(index);
+		builder.append("\n");
 		builder.append("showInfo=");
 		builder.append(LOGGER.getLevel().isLessSpecificThan(Level.DEBUG) ? "true\n" : "false\n");
 		builder.append("library=");
@@ -137,4 +335,28 @@ public class SunReader extends SmartCardReader {
 		//certificate.checkValidity();
 		return certificate;
 	}
+
+	/**
+	 * The certificate chosen from the keystore of a token.
+	 */
+	private static class TokenCertificate {
+
+		private final long slotId;
+
+		private final String serialNumber;
+
+		private final X509Certificate certificate;
+
+		/**
+		 * Logged in since the keystore was loaded.
+		 */
+		private final SunPKCS11 provider;
+
+		private TokenCertificate(long slotId, String serialNumber, X509Certificate certificate, SunPKCS11 provider) {
+			this.slotId = slotId;
+			this.serialNumber = serialNumber;
+			this.certificate = certificate;
+			this.provider = provider;
+		}
+	}
 }
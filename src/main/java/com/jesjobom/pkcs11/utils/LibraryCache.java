@@ -0,0 +1,248 @@
+package com.jesjobom.pkcs11.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * What is known about the native libraries of this host, kept in a small
+ * properties file between the executions, so the discovery doesn't need to
+ * load every candidate again and the library that worked is tried first.
+ * <br>
+ * For each library are kept the modification time seen, if it exports
+ * <code>C_GetFunctionList</code>, the time the last successful read took
+ * and the models of the tokens it read. Everything about a library is
+ * forgotten when its file changes.
+ * <br>
+ * The file is set by the system property {@value #PROPERTY}, by default
+ * <code>~/.jesjobom-pkcs11/libs.properties</code>. An empty value disables
+ * the persistence.
+ *
+ * @author jesjobom
+ */
+public class LibraryCache {
+
+	private static final Logger LOGGER = LogManager.getLogger(LibraryCache.class);
+
+	public static final String PROPERTY = "com.jesjobom.pkcs11.libs.cache";
+
+	private static final String MTIME = ".mtime";
+	private static final String VERIFIED = ".verified";
+	private static final String LATENCY = ".latency";
+	private static final String TOKENS = ".tokens";
+	private static final String LAST_SUCCESS = ".lastSuccess";
+
+	private static volatile LibraryCache instance;
+
+	private final File file;
+
+	private final Properties properties = new Properties();
+
+	/**
+	 * Libraries whose success was already recorded by this process.
+	 */
+	private final Set<String> recorded = new LinkedHashSet<>();
+
+	LibraryCache(File file) {
+		this.file = file;
+		load();
+	}
+
+	/**
+	 * Gets the cache of the file configured by {@value #PROPERTY}, loaded on
+	 * the first call.
+	 *
+	 * @return {@link LibraryCache}
+	 */
+	public static LibraryCache getInstance() {
+		if (instance == null) {
+			synchronized (LibraryCache.class) {
+				if (instance == null) {
+					instance = new LibraryCache(getDefaultFile());
+				}
+			}
+		}
+		return instance;
+	}
+
+	private static File getDefaultFile() {
+		String path = System.getProperty(PROPERTY);
+		if (path == null) {
+			return new File(System.getProperty("user.home"), ".jesjobom-pkcs11" + File.separator + "libs.properties");
+		}
+		return path.trim().isEmpty() ? null : new File(path.trim());
+	}
+
+	private synchronized void load() {
+		if (file == null || !file.isFile()) {
+			return;
+		}
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+			LOGGER.debug("Library cache loaded from " + file);
+		} catch (IOException | IllegalArgumentException ex) {
+			LOGGER.debug("Ignoring the library cache " + file, ex);
+			properties.clear();
+		}
+	}
+
+	private synchronized void save() {
+		if (file == null) {
+			return;
+		}
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Can't create the directory " + dir);
+			}
+			//written aside and moved, so a concurrent process never reads half of it
+			File temp = new File(file.getPath() + ".tmp");
+			try (OutputStream out = new FileOutputStream(temp)) {
+				properties.store(out, "Native PKCS11 libraries found on this host");
+			}
+			if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+				throw new IOException("Can't replace " + file);
+			}
+		} catch (IOException ex) {
+			LOGGER.debug("Failed to save the library cache " + file, ex);
+		}
+	}
+
+	/**
+	 * Forgets the library if its file changed since it was cached.
+	 *
+	 * @param lib absolute path to the native library
+	 * @return true if there is something cached for the library
+	 */
+	private boolean isCurrent(String lib) {
+		String mtime = properties.getProperty(lib + MTIME);
+		if (mtime == null) {
+			return false;
+		}
+		if (mtime.equals(String.valueOf(new File(lib).lastModified()))) {
+			return true;
+		}
+		for (String suffix : new String[]{MTIME, VERIFIED, LATENCY, TOKENS, LAST_SUCCESS}) {
+			properties.remove(lib + suffix);
+		}
+		return false;
+	}
+
+	/**
+	 * @param lib absolute path to the native library
+	 * @return true or false if it was already checked to be a PKCS11 library,
+	 * null if it needs to be checked
+	 */
+	public synchronized Boolean isVerified(String lib) {
+		if (!isCurrent(lib)) {
+			return null;
+		}
+		String verified = properties.getProperty(lib + VERIFIED);
+		return verified == null ? null : Boolean.valueOf(verified);
+	}
+
+	/**
+	 * Keeps the result of the check of a library, saved with the next
+	 * {@link #flush()}.
+	 *
+	 * @param lib absolute path to the native library
+	 * @param verified if it exports <code>C_GetFunctionList</code>
+	 */
+	public synchronized void setVerified(String lib, boolean verified) {
+		isCurrent(lib);
+		properties.setProperty(lib + MTIME, String.valueOf(new File(lib).lastModified()));
+		properties.setProperty(lib + VERIFIED, String.valueOf(verified));
+	}
+
+	/**
+	 * Keeps that a library read a smart card. Only the first success of each
+	 * library in the process is saved, the file is not written on every read.
+	 *
+	 * @param lib absolute path to the native library
+	 * @param latencyMs how long the read took, including the initialization
+	 * @param tokenType model of the token read, or null if unknown
+	 */
+	public synchronized void recordSuccess(String lib, long latencyMs, String tokenType) {
+		Set<String> tokens = new LinkedHashSet<>(getTokenTypes(lib));
+		boolean newToken = tokenType != null && !tokenType.isEmpty() && tokens.add(tokenType);
+		if (!recorded.add(lib) && !newToken) {
+			return;
+		}
+		properties.setProperty(lib + MTIME, String.valueOf(new File(lib).lastModified()));
+		properties.setProperty(lib + VERIFIED, "true");
+		properties.setProperty(lib + LATENCY, String.valueOf(latencyMs));
+		properties.setProperty(lib + LAST_SUCCESS, String.valueOf(System.currentTimeMillis()));
+		if (!tokens.isEmpty()) {
+			properties.setProperty(lib + TOKENS, String.join(",", tokens));
+		}
+		save();
+	}
+
+	/**
+	 * @param lib absolute path to the native library
+	 * @return when the library last read a smart card, 0 if never
+	 */
+	public synchronized long getLastSuccess(String lib) {
+		return isCurrent(lib) ? getLong(lib + LAST_SUCCESS, 0) : 0;
+	}
+
+	/**
+	 * @param lib absolute path to the native library
+	 * @return how long the last successful read took, in milliseconds, or -1
+	 */
+	public synchronized long getLatency(String lib) {
+		return isCurrent(lib) ? getLong(lib + LATENCY, -1) : -1;
+	}
+
+	/**
+	 * @param lib absolute path to the native library
+	 * @return models of the tokens read by the library
+	 */
+	public synchronized List<String> getTokenTypes(String lib) {
+		String tokens = isCurrent(lib) ? properties.getProperty(lib + TOKENS) : null;
+		if (tokens == null || tokens.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<String> types = new ArrayList<>();
+		Collections.addAll(types, tokens.split(","));
+		return types;
+	}
+
+	/**
+	 * Reads a number of the file, which may have been edited or cut short.
+	 *
+	 * @param key
+	 * @param missing value if absent or not a number
+	 * @return long
+	 */
+	private long getLong(String key, long missing) {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return missing;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException ex) {
+			LOGGER.debug("Ignoring " + key + " of the library cache: " + value);
+			return missing;
+		}
+	}
+
+	/**
+	 * Saves the libraries checked since the last save.
+	 */
+	public void flush() {
+		save();
+	}
+}
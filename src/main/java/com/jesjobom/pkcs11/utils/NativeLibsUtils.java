@@ -1,55 +1,246 @@
 package com.jesjobom.pkcs11.utils;
 
+import com.sun.jna.NativeLibrary;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * Helper to find smart card native librabies in the OS.
- * Actually using a list of known possible libs (.so or .dll).
+ * Looks for a list of known possible libs (.so or .dll) in the directories of
+ * the system property {@value #DIRS_PROPERTY}, of <code>LD_LIBRARY_PATH</code>
+ * and of the OS, and for the modules registered in the p11-kit configuration.
+ * <br>
+ * Each candidate is checked to export <code>C_GetFunctionList</code> and the
+ * result is kept in the {@link LibraryCache}, so the next executions don't
+ * need to load it again. The libraries that already read a smart card on
+ * this host come first, the most recent one before the others.
  *
  * @author jesjobom
  */
 public class NativeLibsUtils {
-	
+
 	private static final Logger LOGGER = LogManager.getLogger(NativeLibsUtils.class);
-	
+
+	/**
+	 * More directories to look for the libraries, separated by
+	 * {@link File#pathSeparator}. They are searched before the default ones.
+	 */
+	public static final String DIRS_PROPERTY = "com.jesjobom.pkcs11.libs.dirs";
+
 	private static final String WIN_BASE = "C:/Windows/System32/";
-	private static final String UNIX_BASE = "/usr/lib/";
+	private static final String[] UNIX_BASES = {"/usr/lib/", "/usr/lib64/", "/usr/local/lib/", "/usr/lib/x86_64-linux-gnu/"};
 
 	private static final String[] WIN_LIBS = {"aetpkss1.dll", "asepkcs.dll", "gclib.dll", "pk2priv.dll", "w32pk2ig.dll", "ngp11v211.dll", "eTPkcs11.dll", "eTPKCS11.dll", "acospkcs11.dll", "dkck201.dll", "dkck232.dll", "cryptoki22.dll", "acpkcs.dll", "slbck.dll", "WDPKCS.dll", "cmP11.dll", "WDBraz_P11_CCID_v34.dll"};
 	private static final String[] UNIX_LIBS = {"libASEP11.so", "opensc-pkcs11.so", "libaetpkss.so", "libaetpkss.so.3", "libgpkcs11.so", "libgpkcs11.so.2", "libepsng_p11.so", "libepsng_p11.so.1", "libeTPkcs11.so", "libeToken.so", "libeToken.so.4", "libcmP11.so", "libwdpkcs.so", "/usr/local/lib64/libwdpkcs.so", "/usr/local/lib/libwdpkcs.so", "pkcs11/opensc-pkcs11.so", "/usr/lib/x86_64-linux-gnu/opensc-pkcs11.so", "ifdokccid.so", "libokbase2.so", "libokbase2.so.3"};
-	
+
+	/**
+	 * Where p11-kit reads the module configs from, the system ones first.
+	 * @see https://p11-glue.github.io/p11-glue/p11-kit/manual/pkcs11-conf.html
+	 */
+	private static final String[] P11_KIT_CONFIG_DIRS = {"/etc/pkcs11/modules", "/usr/share/p11-kit/modules",
+		System.getProperty("user.home") + "/.config/pkcs11/modules"};
+
+	/**
+	 * Where p11-kit looks for a module configured with a relative path.
+	 */
+	private static final String[] P11_KIT_MODULE_DIRS = {"/usr/lib/x86_64-linux-gnu/pkcs11/", "/usr/lib64/pkcs11/", "/usr/lib/pkcs11/"};
+
+	private static volatile List<String> availableLibs;
+
+	/**
+	 * Gets the PKCS11 libraries of the host, the ones that already worked
+	 * first. The search is done once per process, see {@link #refresh()}.
+	 *
+	 * @return list of absolute paths
+	 */
 	public static List<String> getAvailableLibs() {
+		List<String> libs = availableLibs;
+		if (libs == null) {
+			synchronized (NativeLibsUtils.class) {
+				libs = availableLibs;
+				if (libs == null) {
+					libs = Collections.unmodifiableList(findAvailableLibs());
+					availableLibs = libs;
+				}
+			}
+		}
+		return libs;
+	}
+
+	/**
+	 * Forgets the libraries found, so the next {@link #getAvailableLibs()}
+	 * searches again.
+	 */
+	public static synchronized void refresh() {
+		availableLibs = null;
+	}
+
+	/**
+	 * Keeps that a library read a smart card, so it is the first one returned
+	 * by {@link #getAvailableLibs()} on the next executions.
+	 *
+	 * @param lib path to the native library
+	 * @param latencyMs how long the read took, including the initialization
+	 * @param tokenType model of the token read, or null if unknown
+	 */
+	public static void recordSuccess(String lib, long latencyMs, String tokenType) {
+		LibraryCache.getInstance().recordSuccess(new File(lib).getAbsolutePath(), latencyMs, tokenType);
+	}
+
+	private static List<String> findAvailableLibs() {
 		LOGGER.debug("Detected OS: " + OsUtils.getOsName());
 
-		List<String> foundLibs;
+		Set<String> candidates = new LinkedHashSet<>();
 		if (OsUtils.isWindows()) {
-			foundLibs = findLibs(WIN_BASE, WIN_LIBS);
+			candidates.addAll(findLibs(getSearchDirs(WIN_BASE), WIN_LIBS));
 		} else {
-			foundLibs = findLibs(UNIX_BASE, UNIX_LIBS);
+			candidates.addAll(findLibs(getSearchDirs(UNIX_BASES), UNIX_LIBS));
+			candidates.addAll(findP11KitModules());
+		}
+
+		LibraryCache cache = LibraryCache.getInstance();
+		List<String> foundLibs = new ArrayList<>();
+		boolean checked = false;
+		for (String lib : candidates) {
+			Boolean verified = cache.isVerified(lib);
+			if (verified == null) {
+				verified = exportsFunctionList(lib);
+				cache.setVerified(lib, verified);
+				checked = true;
+			}
+			if (verified) {
+				foundLibs.add(lib);
+			} else {
+				LOGGER.debug("Not a PKCS11 lib: " + lib);
+			}
 		}
-                
-                LOGGER.debug((foundLibs == null ? 0 : foundLibs.size()) + " libs found.");
+		if (checked) {
+			cache.flush();
+		}
+
+		//stable, so the libraries that never worked keep the search order
+		foundLibs.sort(Comparator.comparingLong(cache::getLastSuccess).reversed());
+
+		LOGGER.debug(foundLibs.size() + " libs found.");
 		return foundLibs;
 	}
 
-	private static List<String> findLibs(String basePath, String... libs) {
+	/**
+	 * The directories of the system property {@value #DIRS_PROPERTY} and of
+	 * <code>LD_LIBRARY_PATH</code>, followed by the default ones.
+	 */
+	private static List<String> getSearchDirs(String... defaults) {
+		List<String> dirs = new ArrayList<>();
+		for (String paths : new String[]{System.getProperty(DIRS_PROPERTY), System.getenv("LD_LIBRARY_PATH")}) {
+			if (paths == null) {
+				continue;
+			}
+			for (String dir : paths.split(File.pathSeparator)) {
+				if (!dir.trim().isEmpty()) {
+					dirs.add(dir.trim().endsWith("/") ? dir.trim() : dir.trim() + "/");
+				}
+			}
+		}
+		dirs.addAll(Arrays.asList(defaults));
+		return dirs;
+	}
+
+	private static List<String> findLibs(List<String> basePaths, String... libs) {
 		List<String> foundLibs = new ArrayList<>();
 		for (String lib : libs) {
-			File file;
 			if (lib.startsWith("/") || lib.startsWith("C:")) {
-				file = new File(lib);
-			} else {
-				file = new File(basePath + lib);
+				addIfExists(foundLibs, new File(lib));
+				continue;
+			}
+			for (String basePath : basePaths) {
+				addIfExists(foundLibs, new File(basePath + lib));
+			}
+		}
+		return foundLibs;
+	}
+
+	private static void addIfExists(List<String> foundLibs, File file) {
+		if (file.isFile()) {
+			foundLibs.add(file.getAbsolutePath());
+			LOGGER.debug("Found lib: " + file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Reads the <code>module:</code> of each <code>*.module</code> file of the
+	 * p11-kit configuration.
+	 */
+	private static List<String> findP11KitModules() {
+		List<String> foundLibs = new ArrayList<>();
+		for (String configDir : P11_KIT_CONFIG_DIRS) {
+			File[] configs = new File(configDir).listFiles((dir, name) -> name.endsWith(".module"));
+			if (configs == null) {
+				continue;
 			}
-			if (file.exists()) {
-				foundLibs.add(file.getAbsolutePath());
-				LOGGER.debug("Found lib: " + file.getAbsolutePath());
+			Arrays.sort(configs);
+			for (File config : configs) {
+				String module = readP11KitModule(config);
+				if (module == null) {
+					continue;
+				}
+				if (module.startsWith("/")) {
+					addIfExists(foundLibs, new File(module));
+					continue;
+				}
+				for (String moduleDir : P11_KIT_MODULE_DIRS) {
+					addIfExists(foundLibs, new File(moduleDir + module));
+				}
 			}
 		}
 		return foundLibs;
 	}
+
+	private static String readP11KitModule(File config) {
+		try (BufferedReader reader = Files.newBufferedReader(config.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.startsWith("module:")) {
+					return line.substring("module:".length()).trim();
+				}
+			}
+		} catch (IOException ex) {
+			LOGGER.debug("Failed to read the p11-kit config " + config, ex);
+		}
+		return null;
+	}
+
+	/**
+	 * Loads the library just to look for <code>C_GetFunctionList</code>,
+	 * without calling anything from it. A PKCS11 library is kept loaded,
+	 * since it is going to be used and JNA shares the instance.
+	 */
+	private static boolean exportsFunctionList(String lib) {
+		NativeLibrary library;
+		try {
+			library = NativeLibrary.getInstance(lib);
+		} catch (UnsatisfiedLinkError ex) {
+			LOGGER.debug("Failed to load " + lib, ex);
+			return false;
+		}
+		try {
+			library.getFunction("C_GetFunctionList");
+			return true;
+		} catch (UnsatisfiedLinkError ex) {
+			library.dispose();
+			return false;
+		}
+	}
 }
@@ -0,0 +1,54 @@
+package com.jesjobom.pkcs11.utils;
+
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+/**
+ * Helper to read and write the native <em>unsigned long</em> (CK_ULONG), which
+ * needs 8 or 4 bytes depending on the OS.
+ *
+ * @author jesjobom
+ */
+public class NativeLongUtils {
+
+	/**
+	 * Allocates the memory for a single native long.
+	 *
+	 * @return {@link Memory}
+	 */
+	public static Memory allocate() {
+		return new Memory(NativeLong.SIZE);
+	}
+
+	public static long read(Pointer pointer, long offset) {
+		if (NativeLong.SIZE == 4) {
+			return pointer.getInt(offset);
+		} else {
+			return pointer.getLong(offset);
+		}
+	}
+
+	public static void write(Pointer pointer, long offset, long value) {
+		if (NativeLong.SIZE == 4) {
+			pointer.setInt(offset, (int) value);
+		} else {
+			pointer.setLong(offset, value);
+		}
+	}
+
+	/**
+	 * Boxes the value with the size of the native long, to be passed as an
+	 * argument to {@link com.sun.jna.Function}.
+	 *
+	 * @param value
+	 * @return {@link Integer} or {@link Long}
+	 */
+	public static Object box(long value) {
+		if (NativeLong.SIZE == 4) {
+			return (int) value;
+		} else {
+			return value;
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package com.jesjobom.pkcs11.worker;
+
+import com.jesjobom.pkcs11.SmartCardReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Smart card reader that calls the native libraries in child processes,
+ * through a pool of {@link WorkerProcess} for each library. A library that
+ * crashes only takes its worker down, and a library that isn't thread safe
+ * still runs in parallel with the others, each one in its own process.
+ * <br>
+ * The workers are started on the first lookup with the library, or all at
+ * once by {@link #prewarm()}. A dead worker is replaced on the next lookup.
+ * Each request has up to {@link #getAttemptTimeout()} to be answered, after
+ * that the worker is killed.
+ *
+ * @author jesjobom
+ */
+public class ProcessReader extends SmartCardReader {
+
+	private static final Logger LOGGER = LogManager.getLogger(ProcessReader.class);
+
+	public static final int DEFAULT_WORKERS_PER_LIB = 1;
+
+	private final int workersPerLib;
+
+	private final Map<String, WorkerPool> pools = new ConcurrentHashMap<>();
+
+	private volatile List<String> jvmOptions = Collections.emptyList();
+
+	public ProcessReader(String... libs) {
+		this(DEFAULT_WORKERS_PER_LIB, libs);
+	}
+
+	/**
+	 * @param workersPerLib maximum of processes for each library
+	 * @param libs paths to the native libraries
+	 */
+	public ProcessReader(int workersPerLib, String... libs) {
+		super(libs);
+		if (workersPerLib <= 0) {
+			throw new IllegalArgumentException("Need at least one worker per library: " + workersPerLib);
+		}
+		this.workersPerLib = workersPerLib;
+	}
+
+	@Override
+	public void initialize(String... args) {
+		//do nothing
+	}
+
+	public List<String> getJvmOptions() {
+		return jvmOptions;
+	}
+
+	/**
+	 * Extra options of the worker JVMs, like <code>-Xmx32m</code>. Only the
+	 * workers started after this call are affected.
+	 *
+	 * @param jvmOptions
+	 */
+	public void setJvmOptions(String... jvmOptions) {
+		this.jvmOptions = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(jvmOptions)));
+	}
+
+	/**
+	 * Starts every worker of every library and waits for them to initialize
+	 * their library, so the first lookups don't pay for it. The workers are
+	 * launched all at once. A worker that fails to start is replaced on the
+	 * next lookup.
+	 */
+	public void prewarm() {
+		List<WorkerProcess> started = new ArrayList<>();
+		for (String lib : libs) {
+			started.addAll(getPool(lib).fill());
+		}
+		for (WorkerProcess worker : started) {
+			try {
+				worker.awaitReady(getAttemptTimeout());
+			} catch (IOException ex) {
+				LOGGER.debug("{} failed to start", worker, ex);
+			}
+			getPool(worker.getLibPath()).release(worker);
+		}
+	}
+
+	@Override
+	protected String readLabel(String lib) throws Exception {
+		WorkerPool pool = getPool(lib);
+		WorkerProcess worker = pool.borrow(getAttemptTimeout());
+		try {
+			return worker.getLabel(getAttemptTimeout());
+		} finally {
+			pool.release(worker);
+		}
+	}
+
+	/**
+	 * Stops the workers of the library that lost the probing.
+	 */
+	@Override
+	protected void abandon(String lib) {
+		if (lib.equals(getPreferredLib())) {
+			return;
+		}
+		WorkerPool pool = pools.remove(lib);
+		if (pool != null) {
+			pool.close();
+		}
+	}
+
+	/**
+	 * Stops every worker.
+	 */
+	@Override
+	public void close() {
+		super.close();
+		for (String lib : new ArrayList<>(pools.keySet())) {
+			WorkerPool pool = pools.remove(lib);
+			if (pool != null) {
+				pool.close();
+			}
+		}
+	}
+
+	private WorkerPool getPool(String lib) {
+		return pools.computeIfAbsent(lib, WorkerPool::new);
+	}
+
+	/**
+	 * The workers of a single library.
+	 */
+	private class WorkerPool {
+
+		private final String lib;
+
+		private final BlockingQueue<WorkerProcess> idle = new LinkedBlockingQueue<>();
+
+		private int count = 0;
+
+		private volatile boolean closed = false;
+
+		private WorkerPool(String lib) {
+			this.lib = lib;
+		}
+
+		/**
+		 * Launches the missing workers.
+		 *
+		 * @return the workers launched, not yet in the pool
+		 */
+		private List<WorkerProcess> fill() {
+			List<WorkerProcess> started = new ArrayList<>();
+			WorkerProcess worker;
+			try {
+				while ((worker = launch()) != null) {
+					started.add(worker);
+				}
+			} catch (IOException ex) {
+				LOGGER.debug("Failed to start a worker for {}", lib, ex);
+			}
+			return started;
+		}
+
+		/**
+		 * Takes an idle worker still alive, launching one if there's room, or
+		 * waits for one to be released.
+		 */
+		private WorkerProcess borrow(long timeoutMs) throws IOException, InterruptedException {
+			WorkerProcess worker = idle.poll();
+			while (worker != null && !worker.isAlive()) {
+				LOGGER.debug("{} died while idle. Replacing it.", worker);
+				release(worker);
+				worker = idle.poll();
+			}
+			if (worker == null) {
+				worker = launch();
+			}
+			if (worker == null) {
+				worker = idle.poll(timeoutMs, TimeUnit.MILLISECONDS);
+			}
+			if (worker == null) {
+				throw new IOException("No worker for " + lib + " available in " + timeoutMs + " ms");
+			}
+			return worker;
+		}
+
+		/**
+		 * Puts the worker back in the pool or, if it died, makes room for a
+		 * new one.
+		 */
+		private void release(WorkerProcess worker) {
+			if (closed || !worker.isAlive()) {
+				worker.close();
+				synchronized (this) {
+					count--;
+				}
+				return;
+			}
+			idle.offer(worker);
+		}
+
+		/**
+		 * @return the new worker or null if the pool is full
+		 */
+		private WorkerProcess launch() throws IOException {
+			synchronized (this) {
+				if (closed || count >= workersPerLib) {
+					return null;
+				}
+				count++;
+			}
+			try {
+				return new WorkerProcess(lib, jvmOptions);
+			} catch (IOException | RuntimeException ex) {
+				synchronized (this) {
+					count--;
+				}
+				throw ex;
+			}
+		}
+
+		private void close() {
+			closed = true;
+			WorkerProcess worker;
+			while ((worker = idle.poll()) != null) {
+				worker.close();
+				synchronized (this) {
+					count--;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.jesjobom.pkcs11.worker;
+
+import com.jesjobom.pkcs11.jna.NativeReader;
+import com.jesjobom.pkcs11.jna.Pkcs11Module;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Main class of a worker process, started by {@link WorkerProcess}. Keeps a
+ * single native library initialized and answers the requests read from the
+ * socket of the parent, one at a time. See {@link WorkerProtocol}.
+ * <br>
+ * The protocol doesn't go through the standard output, so the library can
+ * print whatever it wants there, even from native code. The worker ends when
+ * the socket is closed, usually because the parent died.
+ *
+ * @author jesjobom
+ */
+public class WorkerMain {
+
+	/**
+	 * @param args where args[0] is the path to the native library and args[1]
+	 * the port of the parent
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args == null || args.length != 2) {
+			System.err.println("Usage: WorkerMain <native library> <port>");
+			System.exit(2);
+		}
+		String lib = args[0];
+		int port = Integer.parseInt(args[1]);
+
+		//before the library is loaded
+		byte[] key = new byte[WorkerProtocol.KEY_SIZE];
+		new DataInputStream(System.in).readFully(key);
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+				NativeReader reader = new NativeReader(lib)) {
+			socket.setTcpNoDelay(true);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out.write(key);
+			out.flush();
+
+			try {
+				Pkcs11Module.getInstance(lib);
+			} catch (RuntimeException | LinkageError ex) {
+				//reported again on each request
+			}
+			WorkerProtocol.writeLabel(out, WorkerProtocol.READY_ID, null);
+
+			int[] request;
+			while ((request = WorkerProtocol.readRequest(in)) != null) {
+				int id = request[0];
+				switch (request[1]) {
+					case WorkerProtocol.PING:
+						WorkerProtocol.writeLabel(out, id, null);
+						break;
+					case WorkerProtocol.GET_LABEL:
+						try {
+							WorkerProtocol.writeLabel(out, id, reader.getLabelCert(lib));
+						} catch (RuntimeException | LinkageError ex) {
+							WorkerProtocol.writeError(out, id, ex);
+						}
+						break;
+					case WorkerProtocol.SHUTDOWN:
+						WorkerProtocol.writeLabel(out, id, null);
+						return;
+					default:
+						WorkerProtocol.writeError(out, id, new UnsupportedOperationException("Unknown operation " + request[1]));
+				}
+			}
+		}
+	}
+}
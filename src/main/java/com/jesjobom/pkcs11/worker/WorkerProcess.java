@@ -0,0 +1,269 @@
+package com.jesjobom.pkcs11.worker;
+
+import com.jesjobom.pkcs11.utils.DaemonThreadFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A child JVM running {@link WorkerMain} for a single native library. The
+ * requests are sent one at a time. A request that doesn't get its response in
+ * time kills the worker, so a hung library is never waited for twice.
+ * <br>
+ * The worker inherits the classpath, the system properties of this project
+ * and of JNA, and the standard output and error of this process, so what the
+ * library prints shows up as if it was loaded here. The protocol goes through
+ * a loopback socket instead, which the worker connects to with a random key
+ * read from its standard input.
+ *
+ * @author jesjobom
+ */
+public class WorkerProcess implements Closeable {
+
+	private static final Logger LOGGER = LogManager.getLogger(WorkerProcess.class);
+
+	private static final ScheduledExecutorService KILLER = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("pkcs11-worker-timeout"));
+
+	private final String libPath;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	/**
+	 * How often the connection is checked for a worker that died.
+	 */
+	private static final int ACCEPT_POLL_MS = 100;
+
+	private final Process process;
+
+	private final ServerSocket server;
+
+	private final byte[] key = new byte[WorkerProtocol.KEY_SIZE];
+
+	private volatile Socket socket;
+
+	private volatile DataOutputStream out;
+
+	private DataInputStream in;
+
+	private int nextId = WorkerProtocol.READY_ID + 1;
+
+	private boolean ready = false;
+
+	/**
+	 * Launches the worker, without waiting for it to initialize the library.
+	 *
+	 * @param libPath path to the native library
+	 * @param jvmOptions extra options of the child JVM, like <code>-Xmx</code>
+	 */
+	public WorkerProcess(String libPath, List<String> jvmOptions) throws IOException {
+		this.libPath = libPath;
+
+		List<String> command = new ArrayList<>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(jvmOptions);
+		for (Map.Entry<Object, Object> property : System.getProperties().entrySet()) {
+			String name = property.getKey().toString();
+			if (name.startsWith("com.jesjobom.pkcs11.") || name.startsWith("jna.")) {
+				command.add("-D" + name + "=" + property.getValue());
+			}
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(WorkerMain.class.getName());
+		command.add(libPath);
+
+		server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		command.add(String.valueOf(server.getLocalPort()));
+		RANDOM.nextBytes(key);
+
+		LOGGER.debug("Starting worker for {}", libPath);
+		try {
+			process = new ProcessBuilder(command)
+					.redirectOutput(ProcessBuilder.Redirect.INHERIT)
+					.redirectError(ProcessBuilder.Redirect.INHERIT)
+					.start();
+		} catch (IOException ex) {
+			server.close();
+			throw ex;
+		}
+		//never on the command line, which other users can see
+		try (OutputStream stdin = process.getOutputStream()) {
+			stdin.write(key);
+		} catch (IOException ex) {
+			process.destroyForcibly();
+			server.close();
+			throw ex;
+		}
+	}
+
+	public String getLibPath() {
+		return libPath;
+	}
+
+	public boolean isAlive() {
+		return process.isAlive();
+	}
+
+	/**
+	 * Waits for the worker to load and initialize the library.
+	 *
+	 * @param timeoutMs
+	 * @throws IOException if the worker died or didn't start in time
+	 */
+	public synchronized void awaitReady(long timeoutMs) throws IOException {
+		if (!ready) {
+			long start = System.nanoTime();
+			connect(timeoutMs);
+			long remaining = timeoutMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			call(WorkerProtocol.READY_ID, Math.max(remaining, 1));
+			ready = true;
+		}
+	}
+
+	/**
+	 * Waits for the worker to connect with its key, killing it if it
+	 * doesn't in time. Connections without the key are dropped.
+	 */
+	private void connect(long timeoutMs) throws IOException {
+		if (socket != null) {
+			return;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		Socket connected = null;
+		try {
+			while (connected == null) {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining <= 0) {
+					throw new IOException("Worker for " + libPath + " didn't connect in " + timeoutMs + " ms");
+				}
+				if (!process.isAlive()) {
+					throw new IOException("Worker for " + libPath + " died before connecting");
+				}
+				server.setSoTimeout((int) Math.min(remaining, ACCEPT_POLL_MS));
+				Socket accepted;
+				try {
+					accepted = server.accept();
+				} catch (SocketTimeoutException ex) {
+					continue;
+				}
+				if (isWorker(accepted, remaining)) {
+					connected = accepted;
+				} else {
+					LOGGER.warn("Dropping a connection without the key of the worker for {}", libPath);
+					accepted.close();
+				}
+			}
+		} catch (IOException ex) {
+			process.destroyForcibly();
+			throw ex;
+		} finally {
+			server.close();
+		}
+		connected.setTcpNoDelay(true);
+		out = new DataOutputStream(new BufferedOutputStream(connected.getOutputStream()));
+		in = new DataInputStream(new BufferedInputStream(connected.getInputStream()));
+		socket = connected;
+	}
+
+	private boolean isWorker(Socket accepted, long timeoutMs) throws IOException {
+		byte[] received = new byte[key.length];
+		accepted.setSoTimeout((int) timeoutMs);
+		try {
+			new DataInputStream(accepted.getInputStream()).readFully(received);
+		} catch (IOException ex) {
+			return false;
+		}
+		accepted.setSoTimeout(0);
+		return MessageDigest.isEqual(key, received);
+	}
+
+	/**
+	 * Reads the label with the library of the worker.
+	 *
+	 * @param timeoutMs maximum time to wait for the response
+	 * @return the label
+	 * @throws IOException if the worker died or didn't answer in time, being
+	 * killed
+	 */
+	public synchronized String getLabel(long timeoutMs) throws IOException {
+		long start = System.nanoTime();
+		awaitReady(timeoutMs);
+		long remaining = timeoutMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		int id = nextId++;
+		WorkerProtocol.writeRequest(out, id, WorkerProtocol.GET_LABEL);
+		return call(id, Math.max(remaining, 1));
+	}
+
+	/**
+	 * Waits for a response, killing the worker if it takes too long.
+	 */
+	private String call(int id, long timeoutMs) throws IOException {
+		ScheduledFuture<?> kill = KILLER.schedule(() -> {
+			LOGGER.warn("Worker for {} didn't answer in {} ms. Killing it.", libPath, timeoutMs);
+			process.destroyForcibly();
+		}, timeoutMs, TimeUnit.MILLISECONDS);
+		try {
+			return WorkerProtocol.readResponse(in, id);
+		} catch (IOException ex) {
+			process.destroyForcibly();
+			throw new IOException("Worker for " + libPath + " died", ex);
+		} finally {
+			kill.cancel(false);
+		}
+	}
+
+	/**
+	 * Asks the worker to finalize the library and end, killing it if it
+	 * doesn't end in a second.
+	 */
+	@Override
+	public void close() {
+		try {
+			server.close();
+			Socket connected = socket;
+			if (connected != null) {
+				try {
+					if (process.isAlive()) {
+						WorkerProtocol.writeRequest(out, 0, WorkerProtocol.SHUTDOWN);
+					}
+				} finally {
+					connected.close();
+				}
+			}
+			//without a connection the worker fails to connect and ends
+			if (process.isAlive() && !process.waitFor(1, TimeUnit.SECONDS)) {
+				process.destroyForcibly();
+			}
+		} catch (IOException ex) {
+			process.destroyForcibly();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			process.destroyForcibly();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Worker for " + libPath;
+	}
+}
@@ -0,0 +1,159 @@
+package com.jesjobom.pkcs11.worker;
+
+import com.jesjobom.pkcs11.jna.Pkcs11Exception;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * The binary protocol between {@link ProcessReader} and the worker
+ * processes, over a loopback socket. The worker connects to the port it was
+ * given and sends first the {@link #KEY_SIZE} bytes of the key it read from
+ * its standard input.
+ * <br>
+ * Every message is a frame: an <code>int</code> with the size of the rest,
+ * then the request ID (<code>int</code>). A request follows with the
+ * operation (<code>byte</code>). A response follows with the status
+ * (<code>byte</code>) and, if {@link #OK}, a flag and the label in modified
+ * UTF-8, or, if {@link #ERROR}, the CKR_ returned by the library (or
+ * {@link #NO_RETURN_VALUE}) and the message.
+ * <br>
+ * The worker sends a response with ID 0 once the library is initialized.
+ *
+ * @author jesjobom
+ */
+public class WorkerProtocol {
+
+	public static final byte PING = 1;
+	public static final byte GET_LABEL = 2;
+	public static final byte SHUTDOWN = 3;
+
+	public static final byte OK = 0;
+	public static final byte ERROR = 1;
+
+	public static final int READY_ID = 0;
+
+	public static final int NO_RETURN_VALUE = -1;
+
+	public static final int KEY_SIZE = 32;
+
+	/**
+	 * Larger frames mean the stream is corrupted.
+	 */
+	private static final int MAX_FRAME_SIZE = 1 << 20;
+
+	private WorkerProtocol() {
+	}
+
+	public static void writeRequest(DataOutputStream out, int id, byte operation) throws IOException {
+		out.writeInt(5);
+		out.writeInt(id);
+		out.writeByte(operation);
+		out.flush();
+	}
+
+	/**
+	 * @param in
+	 * @return the ID and the operation, or null at the end of the stream
+	 */
+	public static int[] readRequest(DataInputStream in) throws IOException {
+		DataInputStream frame = readFrame(in);
+		if (frame == null) {
+			return null;
+		}
+		return new int[]{frame.readInt(), frame.readByte()};
+	}
+
+	/**
+	 * @param out
+	 * @param id of the request
+	 * @param label may be null
+	 */
+	public static void writeLabel(DataOutputStream out, int id, String label) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream frame = new DataOutputStream(bytes);
+		frame.writeInt(id);
+		frame.writeByte(OK);
+		frame.writeBoolean(label != null);
+		if (label != null) {
+			frame.writeUTF(label);
+		}
+		writeFrame(out, bytes);
+	}
+
+	/**
+	 * @param out
+	 * @param id of the request
+	 * @param error thrown by the reader
+	 */
+	public static void writeError(DataOutputStream out, int id, Throwable error) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream frame = new DataOutputStream(bytes);
+		frame.writeInt(id);
+		frame.writeByte(ERROR);
+		frame.writeInt(error instanceof Pkcs11Exception ? ((Pkcs11Exception) error).getReturnValue() : NO_RETURN_VALUE);
+		String message = error.getMessage() == null ? error.getClass().getName() : error.getMessage();
+		frame.writeUTF(message.length() > 4096 ? message.substring(0, 4096) : message);
+		writeFrame(out, bytes);
+	}
+
+	/**
+	 * Reads the response of a request.
+	 *
+	 * @param in
+	 * @param id of the request
+	 * @return the label, may be null
+	 * @throws IOException if the stream ended or is corrupted, usually
+	 * because the worker died
+	 * @throws Pkcs11Exception if the library failed in the worker
+	 * @throws RuntimeException if the reader failed in the worker
+	 */
+	public static String readResponse(DataInputStream in, int id) throws IOException {
+		DataInputStream frame = readFrame(in);
+		if (frame == null) {
+			throw new IOException("Worker closed the stream");
+		}
+		int responseId = frame.readInt();
+		if (responseId != id) {
+			throw new IOException("Expected response " + id + " from the worker but got " + responseId);
+		}
+		if (frame.readByte() == OK) {
+			return frame.readBoolean() ? frame.readUTF() : null;
+		}
+		int returnValue = frame.readInt();
+		String message = frame.readUTF();
+		if (returnValue == NO_RETURN_VALUE) {
+			throw new RuntimeException(message);
+		}
+		//the exception appends the return value again
+		String suffix = ": " + returnValue;
+		if (message.endsWith(suffix)) {
+			message = message.substring(0, message.length() - suffix.length());
+		}
+		throw new Pkcs11Exception(message, returnValue);
+	}
+
+	private static void writeFrame(DataOutputStream out, ByteArrayOutputStream bytes) throws IOException {
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+		out.flush();
+	}
+
+	private static DataInputStream readFrame(DataInputStream in) throws IOException {
+		int size;
+		try {
+			size = in.readInt();
+		} catch (EOFException ex) {
+			return null;
+		}
+		if (size < 0 || size > MAX_FRAME_SIZE) {
+			throw new IOException("Invalid frame size " + size);
+		}
+		byte[] bytes = new byte[size];
+		in.readFully(bytes);
+		return new DataInputStream(new ByteArrayInputStream(bytes));
+	}
+}
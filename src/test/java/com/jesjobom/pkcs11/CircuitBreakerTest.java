@@ -0,0 +1,112 @@
+package com.jesjobom.pkcs11;
+
+import org.junit.Test;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author jesjobom
+ */
+public class CircuitBreakerTest {
+
+	private static final String LIB = "/usr/lib/libpkcs11.so";
+
+	private static final String OTHER_LIB = "/usr/lib/other.so";
+
+	@Test
+	public void quarantinesAfterTheThreshold() {
+		CircuitBreaker breaker = new CircuitBreaker(2, CircuitBreaker.DEFAULT_QUARANTINE_MS);
+		assertTrue(breaker.allows(LIB));
+
+		breaker.failure(LIB);
+		assertTrue(breaker.allows(LIB));
+		assertFalse(breaker.isQuarantined(LIB));
+
+		breaker.failure(LIB);
+		assertFalse(breaker.allows(LIB));
+		assertTrue(breaker.isQuarantined(LIB));
+		assertTrue(breaker.allows(OTHER_LIB));
+	}
+
+	@Test
+	public void countsOnlyConsecutiveFailures() {
+		CircuitBreaker breaker = new CircuitBreaker(2, CircuitBreaker.DEFAULT_QUARANTINE_MS);
+		breaker.failure(LIB);
+		breaker.success(LIB);
+		breaker.failure(LIB);
+
+		assertTrue(breaker.allows(LIB));
+		assertFalse(breaker.isQuarantined(LIB));
+	}
+
+	@Test
+	public void allowsASingleAttemptAfterTheQuarantine() {
+		CircuitBreaker breaker = new CircuitBreaker(1, 0);
+		breaker.failure(LIB);
+		assertFalse(breaker.isQuarantined(LIB));
+
+		assertTrue(breaker.allows(LIB));
+		//the attempt is running
+		assertTrue(breaker.isQuarantined(LIB));
+		assertFalse(breaker.allows(LIB));
+	}
+
+	@Test
+	public void quarantinesAgainWhenTheAttemptFails() {
+		CircuitBreaker breaker = new CircuitBreaker(1, CircuitBreaker.DEFAULT_QUARANTINE_MS);
+		breaker.failure(LIB);
+		assertFalse(breaker.allows(LIB));
+
+		CircuitBreaker expired = new CircuitBreaker(1, 0);
+		expired.failure(LIB);
+		assertTrue(expired.allows(LIB));
+		expired.failure(LIB);
+		//a new trial after the new quarantine, already over
+		assertTrue(expired.allows(LIB));
+		assertFalse(expired.allows(LIB));
+	}
+
+	@Test
+	public void releasesWhenTheAttemptWorks() {
+		CircuitBreaker breaker = new CircuitBreaker(1, 0);
+		breaker.failure(LIB);
+		assertTrue(breaker.allows(LIB));
+
+		breaker.success(LIB);
+
+		assertFalse(breaker.isQuarantined(LIB));
+		assertTrue(breaker.allows(LIB));
+		assertTrue(breaker.allows(LIB));
+	}
+
+	@Test
+	public void givesTheAttemptBack() {
+		CircuitBreaker breaker = new CircuitBreaker(1, 0);
+		breaker.failure(LIB);
+		assertTrue(breaker.allows(LIB));
+		assertFalse(breaker.allows(LIB));
+
+		breaker.release(LIB);
+
+		assertTrue(breaker.allows(LIB));
+		assertFalse(breaker.allows(LIB));
+	}
+
+	@Test
+	public void resetsEveryLibrary() {
+		CircuitBreaker breaker = new CircuitBreaker(1, CircuitBreaker.DEFAULT_QUARANTINE_MS);
+		breaker.failure(LIB);
+		breaker.failure(OTHER_LIB);
+
+		breaker.reset();
+
+		assertTrue(breaker.allows(LIB));
+		assertTrue(breaker.allows(OTHER_LIB));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAThresholdOfZero() {
+		new CircuitBreaker(0, CircuitBreaker.DEFAULT_QUARANTINE_MS);
+	}
+}
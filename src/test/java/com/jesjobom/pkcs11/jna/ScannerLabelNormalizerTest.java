@@ -0,0 +1,79 @@
+package com.jesjobom.pkcs11.jna;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ *
+ * @author jesjobom
+ */
+public class ScannerLabelNormalizerTest {
+
+	private static final List<String> LABELS = Arrays.asList(
+			"",
+			"JOSE DA SILVA:12345678900",
+			"JOSÉ DA SILVA:12345678900",
+			"  --JOSÉ DA SILVA:12345678900's certificate",
+			"(e-CPF) JOSE DA SILVA (A3)",
+			"JOSE DA SILVA (A3) - ICP-Brasil",
+			"EMPRESA LTDA:12345678000190, issued by AC",
+			"C:\\certs/user~1",
+			"NOME\nSEGUNDA LINHA",
+			"NOME\n",
+			"NOME\r\n",
+			"\nNOME",
+			"!!!",
+			"   ",
+			"*-*",
+			"-",
+			")",
+			"ÁÉÍÕÇ 123",
+			"١٢٣ رقم",
+			"\uD835\uDC00\uD835\uDC01 MATH",
+			"\uD83D\uDE00 SMILE",
+			"SMILE \uD83D\uDE00 AFTER",
+			"\uD800 LONE SURROGATE",
+			"NAME)");
+
+	/**
+	 * Characters near the boundaries of the regex: letters, digits, the kept
+	 * symbols, the others and the line terminators.
+	 */
+	private static final String ALPHABET = "aZ09ÉçΩ٣ \\/-():~)*!,._\t\n\r\u0085\u2028\u2029\uD835\uDC00\uD83D\uDE00\uD800";
+
+	private final LabelNormalizer scanner = new ScannerLabelNormalizer();
+
+	private final LabelNormalizer regex = new RegexLabelNormalizer();
+
+	@Test
+	public void cleansLikeTheRegex() {
+		for (String label : LABELS) {
+			assertEquals("Label [" + label + "]", regex.normalize(label), scanner.normalize(label));
+		}
+	}
+
+	@Test
+	public void cleansRandomLabelsLikeTheRegex() {
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			StringBuilder label = new StringBuilder();
+			int length = random.nextInt(12);
+			for (int j = 0; j < length; j++) {
+				label.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+			}
+			String value = label.toString();
+			assertEquals("Label [" + value + "]", regex.normalize(value), scanner.normalize(value));
+		}
+	}
+
+	@Test
+	public void keepsACleanLabel() {
+		String label = "JOSE DA SILVA:12345678900";
+
+		assertSame(label, scanner.normalize(label));
+	}
+}
@@ -0,0 +1,224 @@
+package com.jesjobom.pkcs11.jna;
+
+import com.jesjobom.pkcs11.replay.TraceRecord;
+import com.jesjobom.pkcs11.replay.TraceWriter;
+import com.jesjobom.pkcs11.utils.NativeLongUtils;
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLong;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Signs with two tokens replayed from a trace, see
+ * {@link com.jesjobom.pkcs11.replay.ReplayApi}.
+ *
+ * @author jesjobom
+ */
+public class SigningEngineTest {
+
+	private static final byte[] SIGNATURE = {1, 2, 3, 4};
+
+	private static final char[] PIN = "1234".toCharArray();
+
+	private static String previousBinding;
+
+	private File trace;
+
+	@BeforeClass
+	public static void useTheReplay() {
+		previousBinding = System.getProperty(Pkcs11Binding.PROPERTY);
+		System.setProperty(Pkcs11Binding.PROPERTY, Pkcs11Binding.REPLAY.name());
+	}
+
+	@AfterClass
+	public static void restoreTheBinding() {
+		if (previousBinding == null) {
+			System.clearProperty(Pkcs11Binding.PROPERTY);
+		} else {
+			System.setProperty(Pkcs11Binding.PROPERTY, previousBinding);
+		}
+	}
+
+	@Before
+	public void createTrace() throws IOException {
+		trace = File.createTempFile("signing", ".trace");
+	}
+
+	@After
+	public void deleteTrace() {
+		trace.delete();
+	}
+
+	@Test
+	public void signsWithEveryToken() throws IOException {
+		writeTrace(true);
+		List<byte[]> digests = digests(100);
+
+		SigningReport report;
+		try (SigningEngine engine = new SigningEngine(PIN, trace.getPath())) {
+			report = engine.sign(digests);
+		}
+
+		assertTrue(report.isSuccess());
+		assertEquals(digests.size(), report.size());
+		for (int i = 0; i < digests.size(); i++) {
+			assertArrayEquals(SIGNATURE, report.getSignature(i));
+		}
+		assertEquals(2, report.getTokens().size());
+		assertEquals(digests.size(), signatures(report));
+	}
+
+	@Test
+	public void signsAgainWithTheSessionsLeft() throws IOException, InterruptedException {
+		writeTrace(true);
+		List<byte[]> digests = digests(400);
+		Pkcs11Module module = Pkcs11Module.acquire(trace.getPath());
+		AtomicBoolean signing = new AtomicBoolean(true);
+		AtomicInteger closed = new AtomicInteger();
+		//removes the sessions of the token of slot 2 while it signs
+		Thread remover = new Thread(() -> {
+			Memory info = new Memory(4 * NativeLong.SIZE);
+			while (signing.get()) {
+				for (long sessionId = 1; sessionId <= 64; sessionId++) {
+					Pkcs11Api api = module.getApi();
+					if (api.C_GetSessionInfo(sessionId, info) == Pkcs11Wrapper.CKR_OK && NativeLongUtils.read(info, 0) == 2
+							&& api.C_CloseSession(sessionId) == Pkcs11Wrapper.CKR_OK) {
+						closed.incrementAndGet();
+					}
+				}
+			}
+		});
+
+		SigningReport report;
+		try (SigningEngine engine = new SigningEngine(PIN, trace.getPath())) {
+			engine.setSessionsPerToken(2);
+			engine.open();
+			remover.start();
+			report = engine.sign(digests);
+		} finally {
+			signing.set(false);
+			remover.join();
+			module.release();
+		}
+
+		assertTrue(closed.get() > 0);
+		assertTrue(report.toString(), report.isSuccess());
+		for (int i = 0; i < digests.size(); i++) {
+			assertArrayEquals(SIGNATURE, report.getSignature(i));
+		}
+		assertEquals(digests.size(), signatures(report));
+	}
+
+	@Test
+	public void reportsTheFailures() throws IOException {
+		//without a signature to answer with
+		writeTrace(false);
+		List<byte[]> digests = digests(10);
+
+		SigningReport report;
+		try (SigningEngine engine = new SigningEngine(PIN, trace.getPath())) {
+			report = engine.sign(digests);
+		}
+
+		assertFalse(report.isSuccess());
+		assertEquals(digests.size(), report.getFailures());
+		for (int i = 0; i < digests.size(); i++) {
+			assertEquals(Pkcs11Wrapper.CKR_FUNCTION_NOT_SUPPORTED, ((Pkcs11Exception) report.getError(i)).getReturnValue());
+		}
+		assertEquals(0, signatures(report));
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void failsWithoutTokens() throws IOException {
+		new TraceWriter(trace, "/usr/lib/libpkcs11.so").close();
+
+		try (SigningEngine engine = new SigningEngine(PIN, trace.getPath())) {
+			engine.open();
+		}
+	}
+
+	/**
+	 * Records 2 tokens with a private key that can sign.
+	 */
+	private void writeTrace(boolean withSignature) throws IOException {
+		try (TraceWriter writer = new TraceWriter(trace, "/usr/lib/libpkcs11.so")) {
+			writer.write(record(Pkcs11Function.C_GetSlotList, new long[]{1, 1, 2, 1, 2}));
+			writer.write(record(Pkcs11Function.C_GetTokenInfo, new long[]{1}, tokenInfo("SERIAL1")));
+			writer.write(record(Pkcs11Function.C_GetTokenInfo, new long[]{2}, tokenInfo("SERIAL2")));
+			writer.write(record(Pkcs11Function.C_GetAttributeValue,
+					new long[]{1, 7, 2, Pkcs11Wrapper.CKA_CLASS, NativeLong.SIZE, Pkcs11Wrapper.CKA_SIGN, 1},
+					nativeLong(Pkcs11Wrapper.CKO_PRIVATE_KEY), new byte[]{1}));
+			if (withSignature) {
+				writer.write(new TraceRecord(Pkcs11Function.C_Sign, 1, 0, 200000, Pkcs11Wrapper.CKR_OK,
+						new long[]{1, 32, SIGNATURE.length}, new byte[][]{SIGNATURE}));
+			}
+		}
+	}
+
+	private static TraceRecord record(Pkcs11Function function, long[] values, byte[]... buffers) {
+		return new TraceRecord(function, 1, 0, 0, Pkcs11Wrapper.CKR_OK, values, buffers);
+	}
+
+	/**
+	 * CK_TOKEN_INFO with the strings padded with blanks.
+	 */
+	private static byte[] tokenInfo(String serialNumber) {
+		byte[] info = new byte[TokenInfo.SIZE];
+		put(info, 0, 32, "Token");
+		put(info, 32, 32, "jesjobom");
+		put(info, 64, 16, "replay");
+		put(info, 80, 16, serialNumber);
+		return info;
+	}
+
+	private static void put(byte[] info, int offset, int size, String value) {
+		Arrays.fill(info, offset, offset + size, (byte) ' ');
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(bytes, 0, info, offset, bytes.length);
+	}
+
+	private static byte[] nativeLong(long value) {
+		ByteBuffer buffer = ByteBuffer.allocate(NativeLong.SIZE).order(ByteOrder.nativeOrder());
+		if (NativeLong.SIZE == 4) {
+			buffer.putInt((int) value);
+		} else {
+			buffer.putLong(value);
+		}
+		return buffer.array();
+	}
+
+	private static List<byte[]> digests(int count) {
+		List<byte[]> digests = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			byte[] digest = new byte[32];
+			ByteBuffer.wrap(digest).putInt(i);
+			digests.add(digest);
+		}
+		return digests;
+	}
+
+	private static long signatures(SigningReport report) {
+		long signatures = 0;
+		for (SigningReport.TokenStats token : report.getTokens()) {
+			signatures += token.getSignatures();
+		}
+		return signatures;
+	}
+}
@@ -0,0 +1,94 @@
+package com.jesjobom.pkcs11.jna;
+
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ *
+ * @author jesjobom
+ */
+public class TokenCacheTest {
+
+	private static final String LIB = "/usr/lib/libpkcs11.so";
+
+	@Test
+	public void servesTheSameToken() {
+		TokenCache cache = new TokenCache();
+		SlotResult result = result(1);
+		cache.put(LIB, "SERIAL1", result);
+
+		assertSame(result, cache.get(LIB, 1, "SERIAL1"));
+		assertNull(cache.get(LIB, 1, "SERIAL2"));
+		assertNull(cache.get(LIB, 2, "SERIAL1"));
+		assertNull(cache.get("/usr/lib/other.so", 1, "SERIAL1"));
+	}
+
+	@Test
+	public void dropsTheLeastRecentlyUsed() {
+		TokenCache cache = new TokenCache(2, TokenCache.DEFAULT_TTL_MS);
+		cache.put(LIB, "SERIAL1", result(1));
+		cache.put(LIB, "SERIAL2", result(2));
+		//slot 1 is now the most recently used
+		assertNotNull(cache.get(LIB, 1, "SERIAL1"));
+
+		cache.put(LIB, "SERIAL3", result(3));
+
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get(LIB, 1, "SERIAL1"));
+		assertNull(cache.get(LIB, 2, "SERIAL2"));
+		assertNotNull(cache.get(LIB, 3, "SERIAL3"));
+	}
+
+	@Test
+	public void expiresAfterTheTimeToLive() throws InterruptedException {
+		TokenCache cache = new TokenCache(TokenCache.DEFAULT_MAX_ENTRIES, 20);
+		cache.put(LIB, "SERIAL1", result(1));
+		assertNotNull(cache.get(LIB, 1, "SERIAL1"));
+
+		Thread.sleep(50);
+
+		assertNull(cache.get(LIB, 1, "SERIAL1"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void keepsOneTokenPerSlot() {
+		TokenCache cache = new TokenCache();
+		cache.put(LIB, "SERIAL1", result(1));
+		cache.put(LIB, "SERIAL2", result(1));
+
+		assertEquals(1, cache.size());
+		assertNull(cache.get(LIB, 1, "SERIAL1"));
+		assertNotNull(cache.get(LIB, 1, "SERIAL2"));
+	}
+
+	@Test
+	public void invalidatesTheSlot() {
+		TokenCache cache = new TokenCache();
+		cache.put(LIB, "SERIAL1", result(1));
+		cache.put(LIB, "SERIAL2", result(2));
+		cache.put(LIB, "SERIAL3", result(12));
+
+		cache.invalidate(LIB, 1);
+
+		assertNull(cache.get(LIB, 1, "SERIAL1"));
+		assertNotNull(cache.get(LIB, 2, "SERIAL2"));
+		assertNotNull(cache.get(LIB, 12, "SERIAL3"));
+	}
+
+	@Test
+	public void ignoresFailures() {
+		TokenCache cache = new TokenCache();
+		cache.put(LIB, "SERIAL1", new SlotResult(1, null, new RuntimeException("failed")));
+
+		assertEquals(0, cache.size());
+	}
+
+	private static SlotResult result(long slotId) {
+		return new SlotResult(slotId, null, Collections.singletonList("LABEL " + slotId));
+	}
+}
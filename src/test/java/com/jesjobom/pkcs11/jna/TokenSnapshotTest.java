@@ -0,0 +1,165 @@
+package com.jesjobom.pkcs11.jna;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ * @author jesjobom
+ */
+public class TokenSnapshotTest {
+
+	private static final TokenInfo TOKEN = new TokenInfo("Token", "jesjobom", "model", "SERIAL1", 0, 0x1234567890L);
+
+	private static final List<SnapshotObject> OBJECTS = Arrays.asList(
+			new SnapshotObject(1, Pkcs11Wrapper.CKO_CERTIFICATE, Pkcs11Wrapper.CKC_X_509,
+					new byte[]{1, 2}, "JOSÉ DA SILVA:12345678900", new byte[]{0x30, 0x03, 0x02, 0x01, 0x01}),
+			new SnapshotObject(2, Pkcs11Wrapper.CKO_PRIVATE_KEY, 0, new byte[]{1, 2}, null, null),
+			new SnapshotObject(3, Pkcs11Wrapper.CKO_CERTIFICATE, Pkcs11Wrapper.CKC_X_509, null, "", new byte[0]));
+
+	@Test
+	public void decodesWhatWasEncoded() {
+		TokenSnapshot snapshot = new TokenSnapshot(ByteBuffer.wrap(TokenSnapshot.encode(TOKEN, OBJECTS, 1000)));
+
+		assertEquals(TOKEN.getFingerprint(), snapshot.getFingerprint());
+		assertEquals(1000, snapshot.getCreatedAt());
+		assertEquals("jesjobom", snapshot.getManufacturerId());
+		assertEquals("SERIAL1", snapshot.getSerialNumber());
+		assertEquals(OBJECTS.size(), snapshot.size());
+		for (int i = 0; i < OBJECTS.size(); i++) {
+			SnapshotObject expected = OBJECTS.get(i);
+			SnapshotObject object = snapshot.getObject(i);
+			assertEquals(expected.getObjectId(), object.getObjectId());
+			assertEquals(expected.getObjectClass(), object.getObjectClass());
+			assertEquals(expected.getCertificateType(), object.getCertificateType());
+			assertArrayEquals(expected.getId(), object.getId());
+			assertEquals(expected.getLabel(), object.getLabel());
+			assertArrayEquals(expected.getValue(), object.getValue());
+		}
+	}
+
+	@Test
+	public void readsTheAttributesWithoutCopying() {
+		TokenSnapshot snapshot = new TokenSnapshot(ByteBuffer.wrap(TokenSnapshot.encode(TOKEN, OBJECTS, 0)));
+
+		assertEquals("JOSÉ DA SILVA:12345678900", snapshot.getLabel(0));
+		assertEquals(5, snapshot.getValue(0).remaining());
+		assertTrue(snapshot.isCertificate(0));
+		assertNull(snapshot.getLabel(1));
+		assertNull(snapshot.getValue(1));
+		assertFalse(snapshot.isCertificate(1));
+		//a certificate without value is skipped
+		assertFalse(snapshot.isCertificate(2));
+	}
+
+	@Test
+	public void encodesNoObjects() {
+		TokenSnapshot snapshot = new TokenSnapshot(ByteBuffer.wrap(TokenSnapshot.encode(TOKEN, Collections.emptyList(), 0)));
+
+		assertEquals(0, snapshot.size());
+		assertTrue(snapshot.getCertificates().isEmpty());
+	}
+
+	@Test
+	public void matchesOnlyTheSameToken() {
+		TokenSnapshot snapshot = new TokenSnapshot(ByteBuffer.wrap(TokenSnapshot.encode(TOKEN, OBJECTS, 0)));
+
+		assertTrue(snapshot.matches(new TokenInfo("Token", "jesjobom", "model", "SERIAL1", 0, TOKEN.getFingerprint())));
+		assertFalse(snapshot.matches(new TokenInfo("Token", "jesjobom", "model", "SERIAL1", 0, TOKEN.getFingerprint() + 1)));
+		assertFalse(snapshot.matches(new TokenInfo("Token", "jesjobom", "model", "SERIAL2", 0, TOKEN.getFingerprint())));
+		assertFalse(snapshot.matches(new TokenInfo("Token", "other", "model", "SERIAL1", 0, TOKEN.getFingerprint())));
+	}
+
+	@Test
+	public void rejectsACorruptedCrc() {
+		byte[] encoded = TokenSnapshot.encode(TOKEN, OBJECTS, 0);
+		encoded[encoded.length - 1] ^= 1;
+
+		assertRejected(encoded);
+	}
+
+	@Test
+	public void rejectsACorruptedContent() {
+		byte[] encoded = TokenSnapshot.encode(TOKEN, OBJECTS, 0);
+		int label = indexOf(encoded, "JOSÉ".getBytes(StandardCharsets.UTF_8));
+		encoded[label] = 'X';
+
+		assertRejected(encoded);
+	}
+
+	@Test
+	public void rejectsAnotherVersion() {
+		byte[] encoded = TokenSnapshot.encode(TOKEN, OBJECTS, 0);
+		//the version follows the magic
+		ByteBuffer.wrap(encoded).putShort(4, (short) (TokenSnapshot.VERSION + 1));
+
+		assertRejected(withCrc(encoded));
+	}
+
+	@Test
+	public void rejectsAnotherFormat() {
+		byte[] encoded = TokenSnapshot.encode(TOKEN, OBJECTS, 0);
+		ByteBuffer.wrap(encoded).putInt(0, 0x12345678);
+
+		assertRejected(withCrc(encoded));
+	}
+
+	@Test
+	public void rejectsATruncatedSnapshot() {
+		byte[] encoded = TokenSnapshot.encode(TOKEN, OBJECTS, 0);
+
+		assertRejected(withCrc(Arrays.copyOf(encoded, encoded.length - 10)));
+		assertRejected(new byte[3]);
+	}
+
+	@Test
+	public void rejectsAWrongQuantityOfObjects() {
+		byte[] encoded = TokenSnapshot.encode(TOKEN, OBJECTS, 0);
+		ByteBuffer buffer = ByteBuffer.wrap(encoded);
+		//magic, version, reserved, fingerprint, creation and the 2 strings
+		int count = 4 + 2 + 2 + 8 + 8 + 2 + "jesjobom".length() + 2 + "SERIAL1".length();
+		assertEquals(OBJECTS.size(), buffer.getInt(count));
+		buffer.putInt(count, OBJECTS.size() - 1);
+
+		assertRejected(withCrc(encoded));
+	}
+
+	private static void assertRejected(byte[] encoded) {
+		try {
+			new TokenSnapshot(ByteBuffer.wrap(encoded));
+			fail("Corrupted snapshot accepted");
+		} catch (IllegalArgumentException ex) {
+			//expected
+		}
+	}
+
+	/**
+	 * Replaces the CRC at the end, so only the rest is checked.
+	 */
+	private static byte[] withCrc(byte[] encoded) {
+		CRC32 crc = new CRC32();
+		crc.update(encoded, 0, encoded.length - 4);
+		ByteBuffer.wrap(encoded).putInt(encoded.length - 4, (int) crc.getValue());
+		return encoded;
+	}
+
+	private static int indexOf(byte[] bytes, byte[] part) {
+		for (int i = 0; i + part.length <= bytes.length; i++) {
+			if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + part.length), part)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Not found");
+	}
+}
@@ -0,0 +1,139 @@
+package com.jesjobom.pkcs11.worker;
+
+import com.jesjobom.pkcs11.jna.Pkcs11Exception;
+import com.jesjobom.pkcs11.jna.Pkcs11Wrapper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ * @author jesjobom
+ */
+public class WorkerProtocolTest {
+
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+	private final DataOutputStream out = new DataOutputStream(bytes);
+
+	@Test
+	public void readsTheRequests() throws IOException {
+		WorkerProtocol.writeRequest(out, 1, WorkerProtocol.PING);
+		WorkerProtocol.writeRequest(out, 2, WorkerProtocol.GET_LABEL);
+		DataInputStream in = input();
+
+		assertArrayEquals(new int[]{1, WorkerProtocol.PING}, WorkerProtocol.readRequest(in));
+		assertArrayEquals(new int[]{2, WorkerProtocol.GET_LABEL}, WorkerProtocol.readRequest(in));
+		assertNull(WorkerProtocol.readRequest(in));
+	}
+
+	@Test
+	public void readsTheLabels() throws IOException {
+		WorkerProtocol.writeLabel(out, 1, "JOSÉ DA SILVA:12345678900");
+		WorkerProtocol.writeLabel(out, 2, null);
+		DataInputStream in = input();
+
+		assertEquals("JOSÉ DA SILVA:12345678900", WorkerProtocol.readResponse(in, 1));
+		assertNull(WorkerProtocol.readResponse(in, 2));
+	}
+
+	@Test
+	public void keepsTheReturnValueOfTheLibrary() throws IOException {
+		WorkerProtocol.writeError(out, 1, new Pkcs11Exception("Failed to read the token", Pkcs11Wrapper.CKR_DEVICE_REMOVED));
+
+		try {
+			WorkerProtocol.readResponse(input(), 1);
+			fail("Error not thrown");
+		} catch (Pkcs11Exception ex) {
+			assertEquals(Pkcs11Wrapper.CKR_DEVICE_REMOVED, ex.getReturnValue());
+			assertEquals("Failed to read the token: " + Pkcs11Wrapper.CKR_DEVICE_REMOVED, ex.getMessage());
+		}
+	}
+
+	@Test
+	public void keepsTheMessageOfOtherErrors() throws IOException {
+		WorkerProtocol.writeError(out, 1, new IllegalStateException("No token"));
+		WorkerProtocol.writeError(out, 2, new NullPointerException());
+		DataInputStream in = input();
+
+		try {
+			WorkerProtocol.readResponse(in, 1);
+			fail("Error not thrown");
+		} catch (Pkcs11Exception ex) {
+			fail("Not an error of the library");
+		} catch (RuntimeException ex) {
+			assertEquals("No token", ex.getMessage());
+		}
+		try {
+			WorkerProtocol.readResponse(in, 2);
+			fail("Error not thrown");
+		} catch (RuntimeException ex) {
+			assertEquals(NullPointerException.class.getName(), ex.getMessage());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsTheResponseOfAnotherRequest() throws IOException {
+		WorkerProtocol.writeLabel(out, 1, "LABEL");
+
+		WorkerProtocol.readResponse(input(), 2);
+	}
+
+	@Test(expected = IOException.class)
+	public void failsWhenTheWorkerClosesTheStream() throws IOException {
+		WorkerProtocol.readResponse(input(), 1);
+	}
+
+	@Test(expected = IOException.class)
+	public void failsOnATruncatedFrame() throws IOException {
+		WorkerProtocol.writeLabel(out, 1, "LABEL");
+		byte[] frame = bytes.toByteArray();
+
+		WorkerProtocol.readResponse(new DataInputStream(new ByteArrayInputStream(frame, 0, frame.length - 1)), 1);
+	}
+
+	@Test
+	public void acceptsFramesUpTo1MB() throws IOException {
+		out.writeInt(1 << 20);
+		out.writeInt(1);
+		out.writeByte(WorkerProtocol.PING);
+		out.write(new byte[(1 << 20) - 5]);
+
+		assertArrayEquals(new int[]{1, WorkerProtocol.PING}, WorkerProtocol.readRequest(input()));
+	}
+
+	@Test
+	public void rejectsLargerFrames() throws IOException {
+		out.writeInt((1 << 20) + 1);
+
+		assertInvalidFrame(input());
+	}
+
+	@Test
+	public void rejectsNegativeFrames() throws IOException {
+		out.writeInt(-1);
+
+		assertInvalidFrame(input());
+	}
+
+	private DataInputStream input() {
+		return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+	}
+
+	private static void assertInvalidFrame(DataInputStream in) {
+		try {
+			WorkerProtocol.readRequest(in);
+			fail("Frame accepted");
+		} catch (IOException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().startsWith("Invalid frame size"));
+		}
+	}
+}